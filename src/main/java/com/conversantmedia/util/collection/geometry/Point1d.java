@@ -48,6 +48,15 @@ public final class Point1d implements HyperPoint {
         }
     }
 
+    @Override
+    public double getDoubleCoord(final int d) {
+        if(d==0) {
+            return x;
+        } else {
+            throw new IllegalArgumentException("Invalid dimension");
+        }
+    }
+
     @Override
     public double distance(final HyperPoint p) {
         final Point1d p2 = (Point1d)p;
@@ -55,6 +55,17 @@ public final class Point2d implements HyperPoint {
         }
     }
 
+    @Override
+    public double getDoubleCoord(final int d) {
+        if(d==X) {
+            return x;
+        } else if(d==Y) {
+            return y;
+        } else {
+            throw new IllegalArgumentException("Invalid dimension");
+        }
+    }
+
     @Override
     public double distance(final HyperPoint p) {
         final Point2d p2 = (Point2d)p;
@@ -57,6 +57,19 @@ public final class Point3d implements HyperPoint {
         }
     }
 
+    @Override
+    public double getDoubleCoord(final int d) {
+        if(d==X) {
+            return x;
+        } else if(d==Y) {
+            return y;
+        } else if(d==Z) {
+            return z;
+        } else {
+            throw new IllegalArgumentException("Invalid dimension");
+        }
+    }
+
     @Override
     public double distance(final HyperPoint p) {
         final Point3d p2 = (Point3d)p;
@@ -73,6 +73,15 @@ public final class Range1d implements HyperRect {
         return new Point1d(dx);
     }
 
+    @Override
+    public double getCenter(final int d) {
+        if(d == 0) {
+            return min.x + (max.x - min.x)/2.0;
+        } else {
+            throw new IllegalArgumentException("Invalid dimension");
+        }
+    }
+
     @Override
     public HyperPoint getMin() {
         return min;
@@ -83,6 +92,24 @@ public final class Range1d implements HyperRect {
         return max;
     }
 
+    @Override
+    public double getMinCoord(final int d) {
+        if(d == 0) {
+            return min.x;
+        } else {
+            throw new IllegalArgumentException("Invalid dimension");
+        }
+    }
+
+    @Override
+    public double getMaxCoord(final int d) {
+        if(d == 0) {
+            return max.x;
+        } else {
+            throw new IllegalArgumentException("Invalid dimension");
+        }
+    }
+
     @Override
     public double getRange(final int d) {
         if(d == 0) {
@@ -166,7 +193,7 @@ public final class Range1d implements HyperRect {
 
         @Override
         public HyperRect getMbr(final HyperPoint p1, final HyperPoint p2) {
-            return new Range1d(p1.getCoord(0), p2.getCoord(0));
+            return new Range1d(p1.getDoubleCoord(0), p2.getDoubleCoord(0));
         }
     }
 }
\ No newline at end of file
@@ -85,6 +85,17 @@ public final class Rect2d implements HyperRect {
         return new Point2d(dx, dy);
     }
 
+    @Override
+    public double getCenter(final int d) {
+        if(d == 0) {
+            return min.x + (max.x - min.x)/2.0;
+        } else if(d == 1) {
+            return min.y + (max.y - min.y)/2.0;
+        } else {
+            throw new IllegalArgumentException("Invalid dimension");
+        }
+    }
+
     @Override
     public HyperPoint getMin() {
         return min;
@@ -95,6 +106,28 @@ public final class Rect2d implements HyperRect {
         return max;
     }
 
+    @Override
+    public double getMinCoord(final int d) {
+        if(d == 0) {
+            return min.x;
+        } else if(d == 1) {
+            return min.y;
+        } else {
+            throw new IllegalArgumentException("Invalid dimension");
+        }
+    }
+
+    @Override
+    public double getMaxCoord(final int d) {
+        if(d == 0) {
+            return max.x;
+        } else if(d == 1) {
+            return max.y;
+        } else {
+            throw new IllegalArgumentException("Invalid dimension");
+        }
+    }
+
     @Override
     public double getRange(final int d) {
         if(d == 0) {
@@ -189,7 +222,7 @@ public final class Rect2d implements HyperRect {
 
         @Override
         public HyperRect getMbr(final HyperPoint p1, final HyperPoint p2) {
-            return new Rect2d(p1.getCoord(0), p1.getCoord(1), p2.getCoord(0), p2.getCoord(1));
+            return new Rect2d(p1.getDoubleCoord(0), p1.getDoubleCoord(1), p2.getDoubleCoord(0), p2.getDoubleCoord(1));
         }
     }
 }
\ No newline at end of file
@@ -97,6 +97,19 @@ public final class Rect3d implements HyperRect {
         return new Point3d(dx, dy, dz);
     }
 
+    @Override
+    public double getCenter(final int d) {
+        if(d == 0) {
+            return min.x + (max.x - min.x)/2.0;
+        } else if(d == 1) {
+            return min.y + (max.y - min.y)/2.0;
+        } else if(d == 2) {
+            return min.z + (max.z - min.z)/2.0;
+        } else {
+            throw new IllegalArgumentException("Invalid dimension");
+        }
+    }
+
     @Override
     public HyperPoint getMin() {
         return min;
@@ -107,6 +120,32 @@ public final class Rect3d implements HyperRect {
         return max;
     }
 
+    @Override
+    public double getMinCoord(final int d) {
+        if(d == 0) {
+            return min.x;
+        } else if(d == 1) {
+            return min.y;
+        } else if(d == 2) {
+            return min.z;
+        } else {
+            throw new IllegalArgumentException("Invalid dimension");
+        }
+    }
+
+    @Override
+    public double getMaxCoord(final int d) {
+        if(d == 0) {
+            return max.x;
+        } else if(d == 1) {
+            return max.y;
+        } else if(d == 2) {
+            return max.z;
+        } else {
+            throw new IllegalArgumentException("Invalid dimension");
+        }
+    }
+
     @Override
     public double getRange(final int d) {
         if(d == 0) {
@@ -206,7 +245,7 @@ public final class Rect3d implements HyperRect {
 
         @Override
         public HyperRect getMbr(final HyperPoint p1, final HyperPoint p2) {
-            return new Rect3d(p1.getCoord(0), p1.getCoord(1), p1.getCoord(2), p2.getCoord(0), p2.getCoord(1), p2.getCoord(2));
+            return new Rect3d(p1.getDoubleCoord(0), p1.getDoubleCoord(1), p1.getDoubleCoord(2), p2.getDoubleCoord(0), p2.getDoubleCoord(1), p2.getDoubleCoord(2));
         }
     }
 }
\ No newline at end of file
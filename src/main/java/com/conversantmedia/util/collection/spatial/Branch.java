@@ -20,6 +20,9 @@ package com.conversantmedia.util.collection.spatial;
  * #L%
  */
 
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
 import java.util.function.Consumer;
 
 /**
@@ -39,16 +42,25 @@ final class Branch<T> implements Node<T> {
 
     private final Node[] child;
 
-    private HyperRect mbr;
+    // bounds of child i in dimension d are min[d*mMax + i] to max[d*mMax + i], allocated on first add
+    private double[] min;
+
+    private double[] max;
 
     private int size;
 
+    // number of entries in this subtree
+    private int count;
+
+    // generation this branch was copied in, 0 if it is not a copy and its children may be changed in place
+    private long gen;
+
     Branch(final RectBuilder<T> builder, final int mMin, final int mMax, final RTree.Split splitType) {
         this.mMin = mMin;
         this.mMax = mMax;
         this.builder = builder;
-        this.mbr = null;
         this.size = 0;
+        this.count = 0;
         this.child = new Node[mMax];
         this.splitType = splitType;
     }
@@ -61,13 +73,9 @@ final class Branch<T> implements Node<T> {
      */
     protected int addChild(final Node<T> n) {
         if(size < mMax) {
+            setBound(size, n);
             child[size++] = n;
-
-            if(mbr != null) {
-                mbr = mbr.getMbr(n.getBound());
-            } else {
-                mbr = n.getBound();
-            }
+            count += n.totalSize();
 
             return size - 1;
         }
@@ -76,141 +84,491 @@ final class Branch<T> implements Node<T> {
         }
     }
 
+    /**
+     * Add a child whose bounds are already known, such as one read back from a stream
+     *
+     * @param n node to be added (can be leaf or branch)
+     * @param bounds - the min of each dimension followed by the max of each dimension
+     */
+    void addChild(final Node<T> n, final double[] bounds) {
+        final int nD = bounds.length/2;
+        if(min == null) {
+            min = new double[nD*mMax];
+            max = new double[nD*mMax];
+        }
+        for(int d = 0; d < nD; d++) {
+            min[d*mMax + size] = bounds[d];
+            max[d*mMax + size] = bounds[nD + d];
+        }
+        child[size++] = n;
+        count += n.totalSize();
+    }
+
+    /**
+     * Copy the bounds of child i, the min of each dimension followed by the max of each dimension
+     */
+    void getChildBound(final int i, final double[] bounds) {
+        final int nD = bounds.length/2;
+        for(int d = 0; d < nD; d++) {
+            bounds[d] = min[d*mMax + i];
+            bounds[nD + d] = max[d*mMax + i];
+        }
+    }
+
+    @Override
+    public Node<T> copy(final long gen) {
+        final Branch<T> copy = new Branch<>(builder, mMin, mMax, splitType);
+        System.arraycopy(child, 0, copy.child, 0, size);
+        if(min != null) {
+            copy.min = min.clone();
+            copy.max = max.clone();
+        }
+        copy.size = size;
+        copy.count = count;
+        copy.gen = gen;
+        return copy;
+    }
+
+    @Override
+    public long getGen() {
+        return gen;
+    }
+
+    /**
+     * Child i, ready to be changed.  A copied branch shares its children with the original, so
+     * copies the child first unless that was already done in the same generation.
+     */
+    private Node<T> own(final int i) {
+        if(gen != 0 && child[i].getGen() != gen) {
+            child[i] = child[i].copy(gen);
+        }
+        return child[i];
+    }
+
     @Override
     public boolean isLeaf() {
         return false;
     }
 
+    /**
+     * Built on each call, from the arrays, so changes never pay for it and reading it never writes
+     * to the branch.  Each least min and greatest max is followed down to the entry that holds it,
+     * only the bounding rects of those entries are combined.
+     *
+     * @return minimum bounding rect of the children, null when empty
+     */
     @Override
     public HyperRect getBound() {
-        return mbr;
+        if(size == 0) {
+            return null;
+        }
+        HyperRect bound = null;
+        for(int d = 0; d < getNDim(); d++) {
+            bound = Leaf.include(bound, getExtremeBound(d, false));
+            bound = Leaf.include(bound, getExtremeBound(d, true));
+        }
+        return bound;
+    }
+
+    /**
+     * @param d - dimension
+     * @param high - true for the greatest max, false for the least min
+     * @return bounding rect of the entry holding the least min or greatest max of dimension d
+     */
+    HyperRect getExtremeBound(final int d, final boolean high) {
+        int k = 0;
+        for(int i = 1; i < size; i++) {
+            if(high ? max[d*mMax + i] > max[d*mMax + k] : min[d*mMax + i] < min[d*mMax + k]) {
+                k = i;
+            }
+        }
+        final Node<T> n = CounterNode.unwrap(child[k]);
+        if(n instanceof Branch) {
+            return ((Branch<T>) n).getExtremeBound(d, high);
+        } else if(n instanceof Leaf) {
+            return ((Leaf<T>) n).getExtremeBound(d, high);
+        }
+        return n.getBound();
     }
 
     /**
      * Adds a data entry to one of the child nodes of this branch
      *
+     * A child that splits is replaced by its two halves, if that overflows this branch it splits
+     * in turn and the parent receives a new branch holding both halves, so the tree only grows
+     * in height at the root.
+     *
+     * Unless something splits, bounds are grown in place and nothing is allocated.
+     *
      * @param t data entry to add
-     * @return Node that the entry was added to
+     * @return this branch, or a new branch holding the two halves if it was split
      */
     @Override
     public Node<T> add(final T t) {
+        return add(t, 0, null);
+    }
+
+    /**
+     * Adds a data entry, for an R* insert treating the first overflow of each level below the
+     * root with forced reinsertion, see {@link Reinsertion}
+     *
+     * @param t data entry to add
+     * @param level - level of this branch, the leaves are level 0
+     * @param reinsertion - state of the insert, null to split every full node
+     * @return this branch, or a new branch holding the two halves if it was split
+     */
+    Node<T> add(final T t, final int level, final Reinsertion<T> reinsertion) {
         final HyperRect tRect = builder.getBBox(t);
-        if(size < mMin) {
-            for(int i=0; i<size; i++) {
-                if(child[i].getBound().contains(tRect)) {
-                    child[i] = child[i].add(t);
-                    mbr = mbr.getMbr(child[i].getBound());
-                    return this;
-                }
+        final int i = chooseLeaf(tRect);
+        count++;
+
+        if(reinsertion != null && level == 1 && child[i].size() == mMax && child[i] instanceof RStarSplitLeaf && reinsertion.first(0)) {
+            // the leaf gives up the entries farthest from its center, to be added again from the root
+            final RStarSplitLeaf<T> leaf = (RStarSplitLeaf<T>) own(i);
+            final List<T> evicted = leaf.evict(t);
+            reinsertion.reinsert(evicted);
+            setBound(i, leaf);
+            count -= evicted.size();
+            return this;
+        }
+
+        final Node<T> c = own(i);
+        final Node<T> n = reinsertion != null && c instanceof Branch ? ((Branch<T>) c).add(t, level - 1, reinsertion) : c.add(t);
+        return childAdded(i, n, tRect, level, reinsertion);
+    }
+
+    /**
+     * Adds a subtree given up by forced reinsertion, it becomes a child of a branch at the level
+     * above its own
+     *
+     * @param node - subtree to add
+     * @param nodeLevel - level of the subtree
+     * @param level - level of this branch
+     * @param reinsertion - state of the insert
+     * @return this branch, or a new branch holding the two halves if it was split
+     */
+    Node<T> addNode(final Node<T> node, final int nodeLevel, final int level, final Reinsertion<T> reinsertion) {
+        final HyperRect nRect = node.getBound();
+        if(level == nodeLevel + 1) {
+            if(size < mMax) {
+                setBound(size, nRect);
+                child[size++] = node;
+                count += node.totalSize();
+                return this;
             }
-            // no overlapping node - grow
-            final Node<T> nextLeaf = Leaf.create(builder, mMin, mMax, splitType);
-            nextLeaf.add(t);
-            final int nextChild = addChild(nextLeaf);
-            mbr = mbr.getMbr(child[nextChild].getBound());
+            return overflow(node, level, reinsertion);
+        }
+
+        final int i = chooseLeaf(nRect);
+        count += node.totalSize();
+        final Node<T> n = ((Branch<T>) own(i)).addNode(node, nodeLevel, level - 1, reinsertion);
+        return childAdded(i, n, nRect, level, reinsertion);
+    }
 
+    /**
+     * Take the result of adding to child i, either the child itself, grown by rect unless the insert
+     * gave up entries for reinsertion, or the two halves it was split into
+     */
+    private Node<T> childAdded(final int i, final Node<T> n, final HyperRect rect, final int level, final Reinsertion<T> reinsertion) {
+        final boolean moved = reinsertion != null && reinsertion.moved();
+        if(n == child[i]) {
+            if(moved) {
+                setBound(i, n);
+                recount();
+            } else {
+                expandBound(i, rect);
+            }
             return this;
+        }
 
-        } else {
-            final int bestLeaf = chooseLeaf(t, tRect);
+        // child was split
+        final Branch<T> halves = (Branch<T>) n;
+        child[i] = halves.child[0];
+        setBound(i, child[i]);
+        if(size < mMax) {
+            setBound(size, halves.child[1]);
+            child[size++] = halves.child[1];
+            if(moved) {
+                recount();
+            }
+            return this;
+        }
+        return overflow(halves.child[1], level, reinsertion);
+    }
 
-            child[bestLeaf] = child[bestLeaf].add(t);
-            mbr = mbr.getMbr(child[bestLeaf].getBound());
+    /**
+     * This full branch has one child too many, on the first overflow of a level below the root
+     * during an R* insert the children farthest from the center are given up for reinsertion,
+     * otherwise the branch splits
+     *
+     * @param extra child that overflowed this branch
+     * @param level - level of this branch
+     * @param reinsertion - state of the insert, null to split
+     * @return this branch, or a new branch holding the two halves if it was split
+     */
+    private Node<T> overflow(final Node<T> extra, final int level, final Reinsertion<T> reinsertion) {
+        if(reinsertion == null || !reinsertion.first(level)) {
+            return split(extra);
+        }
 
-            return this;
+        final int n = mMax + 1;
+        final Node<T>[] nodes = Arrays.copyOf(child, n);
+        nodes[mMax] = extra;
+        HyperRect bound = nodes[0].getBound();
+        final HyperRect[] rects = new HyperRect[n];
+        for(int i=0; i<n; i++) {
+            rects[i] = nodes[i].getBound();
+            bound = bound.getMbr(rects[i]);
+        }
+        final Integer[] order = new Integer[n];
+        final int nEvict = RStarSplitLeaf.farthestFirst(rects, bound, mMin, order);
+
+        Arrays.fill(child, null);
+        size = 0;
+        count = 0;
+        for(int i=nEvict; i<n; i++) {
+            addChild(nodes[order[i]]);
         }
+        // nearest first
+        for(int i=nEvict-1; i>=0; i--) {
+            reinsertion.reinsert(nodes[order[i]], level - 1);
+        }
+        return this;
     }
 
-    @Override
-    public Node<T> remove(final T t) {
-        final HyperRect tRect = builder.getBBox(t);
+    private void recount() {
+        count = 0;
+        for(int i=0; i<size; i++) {
+            count += child[i].totalSize();
+        }
+    }
 
+    /**
+     * @return level of this branch, the number of branches down to a leaf
+     */
+    int level() {
+        int level = 1;
+        for(Node<T> n = child[0]; n instanceof Branch; n = ((Branch<T>) n).child[0]) {
+            level++;
+        }
+        return level;
+    }
+
+    /**
+     * Split this full branch and the extra child between this branch and a new sibling
+     *
+     * RSTAR branches use the R* distribution, other types split the children in half along
+     * the axis of greatest extent.
+     *
+     * @param extra child that overflowed this branch
+     * @return new branch holding this branch and its sibling
+     */
+    private Node<T> split(final Node<T> extra) {
+        final int n = mMax + 1;
+        final Node<T>[] nodes = Arrays.copyOf(child, n);
+        nodes[mMax] = extra;
+        final HyperRect[] rects = new HyperRect[n];
+        for(int i=0; i<n; i++) {
+            rects[i] = nodes[i].getBound();
+        }
+
+        final Integer[] order = new Integer[n];
+        final int k = splitType == RTree.Split.RSTAR ? RStarSplitLeaf.distribute(rects, mMin, order) : distributeAxial(rects, order);
+
+        Arrays.fill(child, null);
+        size = 0;
+        count = 0;
+        final Branch<T> sibling = new Branch<>(builder, mMin, mMax, splitType);
+        sibling.gen = gen;
+        for(int i=0; i<k; i++) {
+            addChild(nodes[order[i]]);
+        }
+        for(int i=k; i<n; i++) {
+            sibling.addChild(nodes[order[i]]);
+        }
+
+        final Branch<T> pNode = new Branch<>(builder, mMin, mMax, splitType);
+        pNode.gen = gen;
+        pNode.addChild(this);
+        pNode.addChild(sibling);
+        return pNode;
+    }
+
+    // sort by centroid on the axis of greatest extent, the first half goes to the first group
+    private static int distributeAxial(final HyperRect[] rects, final Integer[] order) {
+        HyperRect bound = rects[0];
+        for(int i=1; i<rects.length; i++) {
+            bound = bound.getMbr(rects[i]);
+        }
+
+        int axis = 0;
+        double rangeD = bound.getRange(0);
+        for(int d=1; d<bound.getNDim(); d++) {
+            final double dr = bound.getRange(d);
+            if(dr > rangeD) {
+                axis = d;
+                rangeD = dr;
+            }
+        }
+
+        final double[] key = new double[rects.length];
+        for(int i=0; i<rects.length; i++) {
+            key[i] = rects[i].getCenter(axis);
+            order[i] = i;
+        }
+        Arrays.sort(order, Comparator.comparingDouble(i -> key[i]));
+
+        return rects.length/2;
+    }
+
+    @Override
+    public Node<T> remove(final T t, final double[] tMin, final double[] tMax, final List<T> orphans) {
         for (int i = 0; i < size; i++) {
-            if (child[i].getBound().intersects(tRect)) {
-                child[i] = child[i].remove(t);
+            if (isIntersecting(tMin, tMax, i)) {
+                if (gen != 0) {
+                    // only copy the children that will change
+                    if (!child[i].contains(tMin, tMax, t)) {
+                        continue;
+                    }
+                    own(i);
+                }
+                final int before = child[i].totalSize();
+                final Node<T> n = child[i].remove(t, tMin, tMax, orphans);
+                if (n != null && n.totalSize() < before && n.size() < mMin) {
+                    // condense - dissolve the child t was removed from if it is left under filled
+                    n.forEach(orphans::add);
+                    child[i] = null;
+                } else {
+                    child[i] = n;
+                }
 
                 if (child[i] == null) {
                     System.arraycopy(child, i+1, child, i, size-i-1);
+                    for(int d = 0; d < tMin.length; d++) {
+                        System.arraycopy(min, d*mMax + i+1, min, d*mMax + i, size-i-1);
+                        System.arraycopy(max, d*mMax + i+1, max, d*mMax + i, size-i-1);
+                    }
                     size--;
                     child[size] = null;
-                    if(size > 0) i--;
+                    i--;
                 }
             }
         }
 
         if (size == 0) {
             return null;
-        } else if (size == 1) {
-            // unsplit branch
-            return child[0];
         }
 
-        mbr = child[0].getBound();
-        for(int i=1; i<size; i++) {
-            mbr = mbr.getMbr(child[i].getBound());
+        count = 0;
+        for(int i=0; i<size; i++) {
+            setBound(i, child[i]);
+            count += child[i].totalSize();
         }
 
         return this;
     }
 
     @Override
-    public Node<T> update(final T told, final T tnew) {
-        final HyperRect tRect = builder.getBBox(told);
+    public Node<T> update(final T told, final double[] tMin, final double[] tMax, final T tnew) {
         for(int i = 0; i < size; i++){
-            if(tRect.intersects(child[i].getBound())) {
-                child[i] = child[i].update(told, tnew);
-            }
-            if(i==0) {
-                mbr = child[i].getBound();
-            } else {
-                mbr = mbr.getMbr(child[i].getBound());
+            if(isIntersecting(tMin, tMax, i)) {
+                if(gen != 0) {
+                    // only copy the children that will change
+                    if(!child[i].contains(tMin, tMax, told)) {
+                        continue;
+                    }
+                    own(i);
+                }
+                child[i] = child[i].update(told, tMin, tMax, tnew);
+                setBound(i, child[i]);
             }
         }
         return this;
     }
 
     @Override
-    public void search(HyperRect rect, Consumer<T> consumer) {
+    public void search(final double[] rMin, final double[] rMax, Consumer<T> consumer) {
         for(int i = 0; i < size; i++) {
-            if(rect.intersects(child[i].getBound())) {
-                child[i].search(rect, consumer);
+            if(isIntersecting(rMin, rMax, i)) {
+                child[i].search(rMin, rMax, consumer);
             }
         }
     }
 
     @Override
-    public int search(final HyperRect rect, final T[] t, int n) {
+    public int search(final double[] rMin, final double[] rMax, final T[] t, int n) {
         final int tLen = t.length;
         final int n0 = n;
+
         for(int i=0; i < size && n < tLen; i++) {
-            if (rect.intersects(child[i].getBound())) {
-                n += child[i].search(rect, t, n);
+            if (isIntersecting(rMin, rMax, i)) {
+                n += child[i].search(rMin, rMax, t, n);
             }
         }
         return n-n0;
     }
 
     @Override
-    public void intersects(HyperRect rect, Consumer<T> consumer) {
+    public void intersects(final double[] rMin, final double[] rMax, Consumer<T> consumer) {
         for(int i = 0; i < size; i++) {
-            if(rect.intersects(child[i].getBound())) {
-                child[i].intersects(rect, consumer);
+            if(isIntersecting(rMin, rMax, i)) {
+                child[i].intersects(rMin, rMax, consumer);
             }
         }
     }
 
     @Override
-    public int intersects(final HyperRect rect, final T[] t, int n) {
+    public int intersects(final double[] rMin, final double[] rMax, final T[] t, int n) {
         final int tLen = t.length;
         final int n0 = n;
+
         for(int i=0; i < size && n < tLen; i++) {
-            if (rect.intersects(child[i].getBound())) {
-                n += child[i].intersects(rect, t, n);
+            if (isIntersecting(rMin, rMax, i)) {
+                n += child[i].intersects(rMin, rMax, t, n);
             }
         }
         return n-n0;
     }
 
+    /**
+     * Children fully contained by rect are counted from their entry count without visiting them
+     */
+    @Override
+    public int count(final double[] rMin, final double[] rMax) {
+        int n = 0;
+        for(int i = 0; i < size; i++) {
+            if(isContained(rMin, rMax, i)) {
+                n += child[i].totalSize();
+            } else if(isIntersecting(rMin, rMax, i)) {
+                n += child[i].count(rMin, rMax);
+            }
+        }
+        return n;
+    }
+
+    @Override
+    public void nearest(final NearestNeighbor<T> nn) {
+        final HyperPoint p = nn.getPoint();
+        final double[] x = new double[p.getNDim()];
+        for(int d = 0; d < x.length; d++) {
+            x[d] = p.getDoubleCoord(d);
+        }
+
+        for(int i = 0; i < size; i++) {
+            double dist = 0.0;
+            for(int d = 0; d < x.length; d++) {
+                final double lo = min[d*mMax + i];
+                final double hi = max[d*mMax + i];
+                if(x[d] < lo) {
+                    dist += (lo - x[d])*(lo - x[d]);
+                } else if(x[d] > hi) {
+                    dist += (x[d] - hi)*(x[d] - hi);
+                }
+            }
+            nn.add(child[i], dist);
+        }
+    }
+
     /**
      * @return number of child nodes
      */
@@ -221,54 +579,228 @@ final class Branch<T> implements Node<T> {
 
     @Override
     public int totalSize() {
-        int s = 0;
-        for(int i=0; i<size; i++) {
-            s+= child[i].totalSize();
-        }
-        return s;
+        return count;
     }
 
-    private int chooseLeaf(final T t, final HyperRect tRect) {
-        if(size > 0) {
-            int bestNode = 0;
-            HyperRect childMbr = child[0].getBound().getMbr(tRect);
-            double leastEnlargement = childMbr.cost() - (child[0].getBound().cost() + tRect.cost());
-            double leastPerimeter   = childMbr.perimeter();
+    private int chooseLeaf(final HyperRect tRect) {
+        if(splitType == RTree.Split.RSTAR && child[0].isLeaf()) {
+            return chooseLeastOverlap(tRect);
+        }
+
+        final double tCost = tRect.cost();
+
+        int bestNode = 0;
+        double leastEnlargement = 0.0;
+        double leastPerimeter   = 0.0;
+
+        for(int i = 0; i<size; i++) {
+            double cost = 1.0;
+            double mbrCost = 1.0;
+            double mbrPerimeter = 0.0;
+            for(int d = 0; d < tRect.getNDim(); d++) {
+                final double lo = min[d*mMax + i];
+                final double hi = max[d*mMax + i];
+                final double tLo = tRect.getMinCoord(d);
+                final double tHi = tRect.getMaxCoord(d);
+                final double range = Math.max(hi, tHi) - Math.min(lo, tLo);
+                cost *= hi - lo;
+                mbrCost *= range;
+                mbrPerimeter += 2.0*range;
+            }
 
-            for(int i = 1; i<size; i++) {
-                childMbr = child[i].getBound().getMbr(tRect);
-                final double nodeEnlargement = childMbr.cost() - (child[i].getBound().cost() + tRect.cost());
-                if (nodeEnlargement < leastEnlargement) {
+            final double nodeEnlargement = Math.abs(mbrCost) - (Math.abs(cost) + tCost);
+            if (i == 0 || nodeEnlargement < leastEnlargement) {
+                leastEnlargement = nodeEnlargement;
+                leastPerimeter  = mbrPerimeter;
+                bestNode = i;
+            }
+            else if(RTree.isEqual(nodeEnlargement, leastEnlargement)) {
+                if (mbrPerimeter < leastPerimeter) {
                     leastEnlargement = nodeEnlargement;
-                    leastPerimeter  = childMbr.perimeter();
+                    leastPerimeter = mbrPerimeter;
                     bestNode = i;
                 }
-                else if(RTree.isEqual(nodeEnlargement, leastEnlargement)) {
-                    final double childPerimeter = childMbr.perimeter();
-                    if (childPerimeter < leastPerimeter) {
-                        leastEnlargement = nodeEnlargement;
-                        leastPerimeter = childPerimeter;
-                        bestNode = i;
-                    }
-                } // else its not the least
+            } // else its not the least
+
+        }
+        return bestNode;
+    }
 
+    /**
+     * R* subtree choice for children that are leaves, least overlap enlargement with the siblings,
+     * then least area enlargement, then least area.
+     */
+    private int chooseLeastOverlap(final HyperRect tRect) {
+        int bestNode = 0;
+        double leastOverlap = 0.0;
+        double leastEnlargement = 0.0;
+        double leastCost = 0.0;
+
+        for(int i=0; i<size; i++) {
+            double overlap = 0.0;
+            for(int j=0; j<size; j++) {
+                if(j != i) {
+                    overlap += overlap(i, j, tRect) - overlap(i, j, null);
+                }
+            }
+
+            double cost = 1.0;
+            double mbrCost = 1.0;
+            for(int d = 0; d < tRect.getNDim(); d++) {
+                final double lo = min[d*mMax + i];
+                final double hi = max[d*mMax + i];
+                final double tLo = tRect.getMinCoord(d);
+                final double tHi = tRect.getMaxCoord(d);
+                cost *= hi - lo;
+                mbrCost *= Math.max(hi, tHi) - Math.min(lo, tLo);
+            }
+            cost = Math.abs(cost);
+            final double enlargement = Math.abs(mbrCost) - cost;
+
+            final boolean better;
+            if(i == 0) {
+                better = true;
+            } else if(!RTree.isEqual(overlap, leastOverlap)) {
+                better = overlap < leastOverlap;
+            } else if(!RTree.isEqual(enlargement, leastEnlargement)) {
+                better = enlargement < leastEnlargement;
+            } else {
+                better = cost < leastCost;
+            }
+
+            if(better) {
+                leastOverlap = overlap;
+                leastEnlargement = enlargement;
+                leastCost = cost;
+                bestNode = i;
             }
-            return bestNode;
         }
-        else {
-            final Node<T> n = Leaf.create(builder, mMin, mMax, splitType);
-            n.add(t);
-            child[size++] = n;
+        return bestNode;
+    }
+
+    // area shared by children i and j, with child i grown to include tRect unless it is null
+    private double overlap(final int i, final int j, final HyperRect tRect) {
+        double area = 1.0;
+        for(int d=0; d<getNDim(); d++) {
+            double lo = min[d*mMax + i];
+            double hi = max[d*mMax + i];
+            if(tRect != null) {
+                final double tLo = tRect.getMinCoord(d);
+                final double tHi = tRect.getMaxCoord(d);
+                lo = Math.min(lo, tLo);
+                hi = Math.max(hi, tHi);
+            }
+            final double range = Math.min(hi, max[d*mMax + j]) - Math.max(lo, min[d*mMax + j]);
+            if(range <= 0.0) {
+                return 0.0;
+            }
+            area *= range;
+        }
+        return area;
+    }
+
+    private int getNDim() {
+        return min.length/mMax;
+    }
+
+    /**
+     * Copy the bounds of rect into the arrays for child i
+     */
+    private void setBound(final int i, final HyperRect rect) {
+        final int nD = rect.getNDim();
+        if(min == null) {
+            min = new double[nD*mMax];
+            max = new double[nD*mMax];
+        }
+        for(int d = 0; d < nD; d++) {
+            min[d*mMax + i] = rect.getMinCoord(d);
+            max[d*mMax + i] = rect.getMaxCoord(d);
+        }
+    }
 
-            if(mbr == null) {
-                mbr = n.getBound();
+    /**
+     * Set the bounds of child i to those of node n, read from the arrays of n so nothing is allocated
+     */
+    private void setBound(final int i, final Node<T> n) {
+        final Node<T> c = CounterNode.unwrap(n);
+        if(c instanceof Branch) {
+            final Branch<T> b = (Branch<T>) c;
+            setBound(i, b.min, b.max, b.mMax, b.size);
+        } else if(c instanceof Leaf) {
+            final Leaf<T> l = (Leaf<T>) c;
+            final int nD = l.getNDim();
+            if(min == null) {
+                min = new double[nD*mMax];
+                max = new double[nD*mMax];
             }
-            else {
-                mbr = mbr.getMbr(n.getBound());
+            for(int d = 0; d < nD; d++) {
+                double lo = l.getMin(d, 0);
+                double hi = l.getMax(d, 0);
+                for(int k = 1; k < l.size; k++) {
+                    lo = Math.min(lo, l.getMin(d, k));
+                    hi = Math.max(hi, l.getMax(d, k));
+                }
+                min[d*mMax + i] = lo;
+                max[d*mMax + i] = hi;
             }
+        } else {
+            setBound(i, n.getBound());
+        }
+    }
+
+    // set the bounds of child i to include the first n bounds of arrays laid out as min and max
+    private void setBound(final int i, final double[] nMin, final double[] nMax, final int nStride, final int n) {
+        final int nD = nMin.length/nStride;
+        if(min == null) {
+            min = new double[nD*mMax];
+            max = new double[nD*mMax];
+        }
+        for(int d = 0; d < nD; d++) {
+            double lo = nMin[d*nStride];
+            double hi = nMax[d*nStride];
+            for(int k = 1; k < n; k++) {
+                lo = Math.min(lo, nMin[d*nStride + k]);
+                hi = Math.max(hi, nMax[d*nStride + k]);
+            }
+            min[d*mMax + i] = lo;
+            max[d*mMax + i] = hi;
+        }
+    }
 
-            return size-1;
+    /**
+     * Grow the bounds of child i, in place, to include rect
+     */
+    private void expandBound(final int i, final HyperRect rect) {
+        for(int d = 0; d < rect.getNDim(); d++) {
+            final double lo = rect.getMinCoord(d);
+            final double hi = rect.getMaxCoord(d);
+            if(lo < min[d*mMax + i]) {
+                min[d*mMax + i] = lo;
+            }
+            if(hi > max[d*mMax + i]) {
+                max[d*mMax + i] = hi;
+            }
+        }
+    }
+
+    // true if child i lies within rMin, rMax
+    private boolean isContained(final double[] rMin, final double[] rMax, final int i) {
+        for(int d = 0; d < rMin.length; d++) {
+            if(min[d*mMax + i] < rMin[d] || max[d*mMax + i] > rMax[d]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // true if child i overlaps rMin, rMax
+    boolean isIntersecting(final double[] rMin, final double[] rMax, final int i) {
+        for(int d = 0; d < rMin.length; d++) {
+            if(min[d*mMax + i] > rMax[d] || max[d*mMax + i] < rMin[d]) {
+                return false;
+            }
         }
+        return true;
     }
 
     /**
@@ -288,10 +820,10 @@ final class Branch<T> implements Node<T> {
     }
 
     @Override
-    public boolean contains(HyperRect rect, T t) {
+    public boolean contains(final double[] rMin, final double[] rMax, T t) {
         for(int i = 0; i < size; i++) {
-            if(rect.intersects(child[i].getBound())) {
-                child[i].contains(rect, t);
+            if(isIntersecting(rMin, rMax, i) && child[i].contains(rMin, rMax, t)) {
+                return true;
             }
         }
         return false;
@@ -309,7 +841,7 @@ final class Branch<T> implements Node<T> {
     public String toString() {
         final StringBuilder sb = new StringBuilder(128);
         sb.append("BRANCH[");
-        sb.append(mbr);
+        sb.append(getBound());
         sb.append(']');
 
         return sb.toString();
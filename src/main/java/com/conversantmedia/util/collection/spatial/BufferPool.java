@@ -0,0 +1,216 @@
+package com.conversantmedia.util.collection.spatial;
+
+/*
+ * #%L
+ * Conversant RTree
+ * ~~
+ * Conversantmedia.com © 2016, Conversant, Inc. Conversant® is a trademark of Conversant, Inc.
+ * ~~
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Bounded cache of the fixed size pages of a file
+ *
+ * Pages are kept in least recently used order.  When the pool is full the least recently used
+ * page that is not pinned is evicted, and written back first if it was changed.  A page is pinned
+ * from {@link #pin(long)} until the matching {@link #unpin(Page)}, so that it can not be evicted
+ * while it is being read or changed.  If every page is pinned the pool grows past its capacity
+ * rather than fail.
+ *
+ * Not thread safe.
+ */
+final class BufferPool implements Closeable {
+
+    static final ByteOrder BYTE_ORDER = ByteOrder.LITTLE_ENDIAN;
+
+    private final FileChannel channel;
+
+    private final int pageSize;
+
+    private final int capacity;
+
+    // access ordered, so iteration starts at the least recently used page
+    private final LinkedHashMap<Long, Page> pages;
+
+    // pages in the file, including any not yet written
+    private long pageCount;
+
+    private long hitCount;
+
+    private long missCount;
+
+    private long evictionCount;
+
+    BufferPool(final FileChannel channel, final int pageSize, final int capacity) throws IOException {
+        this.channel = channel;
+        this.pageSize = pageSize;
+        this.capacity = capacity;
+        this.pages = new LinkedHashMap<>(16, 0.75f, true);
+        this.pageCount = (channel.size() + pageSize - 1) / pageSize;
+    }
+
+    /**
+     * Page of the file, valid until it is unpinned
+     */
+    static final class Page {
+
+        final long id;
+
+        final ByteBuffer buffer;
+
+        private int pins;
+
+        private boolean dirty;
+
+        private Page(final long id, final int pageSize) {
+            this.id = id;
+            this.buffer = ByteBuffer.allocate(pageSize).order(BYTE_ORDER);
+        }
+
+        /**
+         * Mark the page as changed, so that it is written back before it is evicted
+         */
+        void setDirty() {
+            dirty = true;
+        }
+    }
+
+    /**
+     * Pin a page of the file, reading it if it is not in the pool
+     *
+     * @param id - page number
+     * @return the pinned page
+     * @throws IOException if the page can not be read
+     */
+    Page pin(final long id) throws IOException {
+        Page page = pages.get(id);
+        if(page != null) {
+            hitCount++;
+        } else {
+            missCount++;
+            evict();
+            page = new Page(id, pageSize);
+            final ByteBuffer b = page.buffer;
+            while(b.hasRemaining()) {
+                if(channel.read(b, id*pageSize + b.position()) < 0) {
+                    throw new EOFException("Page " + id + " is past the end of the file");
+                }
+            }
+            pages.put(id, page);
+        }
+        page.pins++;
+        return page;
+    }
+
+    /**
+     * Pin a new, zeroed, page at the end of the file
+     *
+     * @return the pinned page
+     * @throws IOException if a page has to be evicted and can not be written
+     */
+    Page allocate() throws IOException {
+        evict();
+        final Page page = new Page(pageCount++, pageSize);
+        page.pins++;
+        page.dirty = true;
+        pages.put(page.id, page);
+        return page;
+    }
+
+    void unpin(final Page page) {
+        page.pins--;
+    }
+
+    /**
+     * Write every changed page and force them to the device
+     *
+     * @throws IOException if a page can not be written
+     */
+    void flush() throws IOException {
+        for(final Page page : pages.values()) {
+            if(page.dirty) {
+                write(page);
+            }
+        }
+        channel.force(false);
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            pages.clear();
+            channel.close();
+        }
+    }
+
+    int getPageSize() {
+        return pageSize;
+    }
+
+    long getPageCount() {
+        return pageCount;
+    }
+
+    long getHitCount() {
+        return hitCount;
+    }
+
+    long getMissCount() {
+        return missCount;
+    }
+
+    long getEvictionCount() {
+        return evictionCount;
+    }
+
+    // make room for one more page if the pool is full
+    private void evict() throws IOException {
+        if(pages.size() < capacity) {
+            return;
+        }
+        final Iterator<Page> it = pages.values().iterator();
+        while(it.hasNext()) {
+            final Page page = it.next();
+            if(page.pins == 0) {
+                if(page.dirty) {
+                    write(page);
+                }
+                it.remove();
+                evictionCount++;
+                return;
+            }
+        }
+    }
+
+    private void write(final Page page) throws IOException {
+        final ByteBuffer b = page.buffer.duplicate();
+        b.clear();
+        while(b.hasRemaining()) {
+            channel.write(b, page.id*pageSize + b.position());
+        }
+        page.dirty = false;
+    }
+}
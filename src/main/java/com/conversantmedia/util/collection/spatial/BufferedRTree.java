@@ -0,0 +1,389 @@
+package com.conversantmedia.util.collection.spatial;
+
+/*
+ * #%L
+ * Conversant RTree
+ * ~~
+ * Conversantmedia.com © 2016, Conversant, Inc. Conversant® is a trademark of Conversant, Inc.
+ * ~~
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.io.Closeable;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.IntToLongFunction;
+
+/**
+ * Protected R-Tree whose changes are queued and applied in batches
+ *
+ * add, remove and update return as soon as the change is queued.  A background thread applies
+ * queued changes in the order they were made, in batches of up to batchSize, taking the write
+ * lock of the tree once for each batch.  It wakes when batchSize changes are queued or maxDelay
+ * after it last ran.  A writer that finds several batches queued applies them itself, so the
+ * queue can not grow without bound.
+ *
+ * Queries read the tree and do not see queued changes.  Call {@link #flush()} for a query to
+ * see every change made before it, for example to read your own writes.
+ *
+ * A change that throws while it is applied loses the changes after it in the same batch, up to
+ * batchSize - 1 of them.  The first such failure is kept and thrown by the next flush or close.
+ *
+ * With sortByLocality each run of adds in a batch is applied in Hilbert order of the centers of
+ * the entries, so consecutive adds descend to the same nodes.  Other changes keep their order.
+ */
+public final class BufferedRTree<T> implements SpatialSearch<T>, Closeable {
+
+    // a writer applies queued changes itself past this many batches
+    private static final int MAX_QUEUED_BATCHES = 8;
+
+    private static final byte ADD = 0;
+
+    private static final byte REMOVE = 1;
+
+    private static final byte UPDATE = 2;
+
+    private final RectBuilder<T> builder;
+
+    private final ConcurrentRTree<T> tree;
+
+    private final int batchSize;
+
+    private final long maxDelayNanos;
+
+    private final boolean sortByLocality;
+
+    private final ConcurrentLinkedQueue<Change<T>> queue = new ConcurrentLinkedQueue<>();
+
+    // changes counted before they are queued, so a flush can wait for one still being queued
+    private final AtomicLong enqueued = new AtomicLong();
+
+    // changes taken from the queue, written under applyLock
+    private volatile long taken;
+
+    // held to take changes from the queue, so changes are applied in order
+    private final ReentrantLock applyLock = new ReentrantLock();
+
+    // first failure to apply a batch, thrown by the next flush
+    private final AtomicReference<RuntimeException> failure = new AtomicReference<>();
+
+    private final Thread applier;
+
+    private volatile boolean closed;
+
+    BufferedRTree(final RectBuilder<T> builder, final ConcurrentRTree<T> tree, final int batchSize, final long maxDelayNanos, final boolean sortByLocality) {
+        if(batchSize < 1) {
+            throw new IllegalArgumentException("Batch size must be at least 1");
+        }
+        this.builder = builder;
+        this.tree = tree;
+        this.batchSize = batchSize;
+        this.maxDelayNanos = maxDelayNanos;
+        this.sortByLocality = sortByLocality;
+
+        applier = new Thread(this::applyQueued, "rtree-buffer");
+        applier.setDaemon(true);
+        applier.start();
+    }
+
+    /**
+     * Queue an entry to be added
+     *
+     * @param t - entry to add
+     *
+     * @throws IllegalStateException if this tree is closed
+     */
+    @Override
+    public void add(final T t) {
+        enqueue(new Change<>(ADD, t, null));
+    }
+
+    /**
+     * Queue an entry to be removed
+     *
+     * @param t - entry to remove
+     *
+     * @throws IllegalStateException if this tree is closed
+     */
+    @Override
+    public void remove(final T t) {
+        enqueue(new Change<>(REMOVE, t, null));
+    }
+
+    /**
+     * Queue an entry to be updated
+     *
+     * @param told - entry to update
+     * @param tnew - entry with new value
+     *
+     * @throws IllegalStateException if this tree is closed
+     */
+    @Override
+    public void update(final T told, final T tnew) {
+        enqueue(new Change<>(UPDATE, told, tnew));
+    }
+
+    /**
+     * Apply every change queued before this call, on return queries see all of them
+     *
+     * Changes queued by other threads after the call began are left for the background thread,
+     * so a flush finishes under sustained writes.
+     *
+     * @throws IllegalStateException if a change failed to apply since the last flush, the cause is
+     *         the first such failure and the rest of its batch is lost
+     */
+    public void flush() {
+        drain(enqueued.get());
+
+        final RuntimeException e = failure.getAndSet(null);
+        if(e != null) {
+            throw e;
+        }
+    }
+
+    /**
+     * @return number of changes queued and not yet applied
+     */
+    public int getQueuedCount() {
+        return (int)Math.max(0L, enqueued.get() - taken);
+    }
+
+    /**
+     * Stop the background thread and apply every queued change
+     */
+    @Override
+    public void close() {
+        closed = true;
+        LockSupport.unpark(applier);
+        boolean interrupted = false;
+        while(applier.isAlive()) {
+            try {
+                applier.join();
+            } catch(InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        flush();
+        if(interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void enqueue(final Change<T> change) {
+        if(closed) {
+            throw new IllegalStateException("Tree is closed");
+        }
+        final long n = enqueued.incrementAndGet() - taken;
+        queue.add(change);
+        if(closed) {
+            // closed while queueing, the final flush may have missed this change
+            flush();
+        } else if(n >= MAX_QUEUED_BATCHES*batchSize) {
+            flush();
+        } else if(n == batchSize) {
+            LockSupport.unpark(applier);
+        }
+    }
+
+    private void applyQueued() {
+        while(!closed) {
+            LockSupport.parkNanos(this, maxDelayNanos);
+            drain(enqueued.get());
+        }
+    }
+
+    /**
+     * Take changes from the queue until target changes have been taken in all
+     *
+     * Every change counted in enqueued was queued, or is about to be, ahead of any change counted
+     * later, so reaching the target takes every change queued before it was read.
+     */
+    private void drain(final long target) {
+        applyLock.lock();
+        try {
+            while(taken < target) {
+                applyBatch((int)Math.min(batchSize, target - taken));
+            }
+        } finally {
+            applyLock.unlock();
+        }
+    }
+
+    /**
+     * Apply the next n changes under one acquisition of the write lock, applyLock must be held
+     *
+     * Waits for changes that were counted but are not yet in the queue.  A change that throws loses
+     * the rest of the batch, the first failure is kept for flush.
+     */
+    @SuppressWarnings("unchecked")
+    private void applyBatch(final int n) {
+        final Change<T>[] batch = new Change[n];
+        for(int i=0; i<n; ) {
+            final Change<T> change = queue.poll();
+            if(change != null) {
+                batch[i++] = change;
+            } else {
+                Thread.yield();
+            }
+        }
+        taken += n;
+
+        if(sortByLocality) {
+            for(int i=0; i<n; ) {
+                int j = i;
+                while(j < n && batch[j].op == ADD) {
+                    j++;
+                }
+                if(j - i > 1) {
+                    sortAdds(batch, i, j);
+                }
+                i = j + 1;
+            }
+        }
+
+        final int[] applied = new int[1];
+        try {
+            tree.write(t -> {
+                for(; applied[0]<n; applied[0]++) {
+                    final Change<T> c = batch[applied[0]];
+                    switch(c.op) {
+                        case ADD:
+                            t.add(c.t);
+                            break;
+                        case REMOVE:
+                            t.remove(c.t);
+                            break;
+                        case UPDATE:
+                        default:
+                            t.update(c.t, c.tnew);
+                            break;
+                    }
+                }
+            });
+        } catch(RuntimeException e) {
+            failure.compareAndSet(null, new IllegalStateException("Failed to apply a queued change, "
+                    + (n - applied[0] - 1) + " changes after it in the batch were lost", e));
+        }
+    }
+
+    /**
+     * order the adds from index lo to hi, exclusive, along the Hilbert curve
+     */
+    private void sortAdds(final Change<T>[] batch, final int lo, final int hi) {
+        final int n = hi - lo;
+        final HyperRect[] bounds = new HyperRect[n];
+        for(int i=0; i<n; i++) {
+            bounds[i] = builder.getBBox(batch[lo + i].t);
+        }
+        final IntToLongFunction hilbertKey = HilbertBulkLoader.hilbertKey(bounds);
+        final long[] key = new long[n];
+        for(int i=0; i<n; i++) {
+            key[i] = hilbertKey.applyAsLong(i);
+        }
+        final int[] order = BulkLoader.identity(n);
+        BulkLoader.sort(order, key, 0, n - 1);
+
+        final Change<T>[] run = Arrays.copyOfRange(batch, lo, hi);
+        for(int i=0; i<n; i++) {
+            batch[lo + i] = run[order[i]];
+        }
+    }
+
+    @Override
+    public int search(final HyperRect rect, final T[] t) {
+        return tree.search(rect, t);
+    }
+
+    @Override
+    public void search(final HyperRect rect, final Consumer<T> consumer) {
+        tree.search(rect, consumer);
+    }
+
+    @Override
+    public void search(final HyperRect rect, final Collection<T> collection) {
+        tree.search(rect, collection);
+    }
+
+    @Override
+    public int intersects(final HyperRect rect, final T[] t) {
+        return tree.intersects(rect, t);
+    }
+
+    @Override
+    public void intersects(final HyperRect rect, final Consumer<T> consumer) {
+        tree.intersects(rect, consumer);
+    }
+
+    @Override
+    public int count(final HyperRect rect) {
+        return tree.count(rect);
+    }
+
+    @Override
+    public int nearest(final HyperPoint p, final int k, final T[] t) {
+        return tree.nearest(p, k, t);
+    }
+
+    @Override
+    public void nearest(final HyperPoint p, final int k, final Consumer<T> consumer) {
+        tree.nearest(p, k, consumer);
+    }
+
+    @Override
+    public Iterator<T> nearest(final HyperPoint p) {
+        return tree.nearest(p);
+    }
+
+    @Override
+    public boolean contains(final T t) {
+        return tree.contains(t);
+    }
+
+    @Override
+    public int getEntryCount() {
+        return tree.getEntryCount();
+    }
+
+    @Override
+    public void forEach(final Consumer<T> consumer) {
+        tree.forEach(consumer);
+    }
+
+    @Override
+    public Stats collectStats() {
+        return tree.collectStats();
+    }
+
+    private static final class Change<T> {
+
+        final byte op;
+
+        final T t;
+
+        final T tnew;
+
+        Change(final byte op, final T t, final T tnew) {
+            this.op = op;
+            this.t = t;
+            this.tnew = tnew;
+        }
+    }
+}
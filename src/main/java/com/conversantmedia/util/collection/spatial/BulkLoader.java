@@ -0,0 +1,508 @@
+package com.conversantmedia.util.collection.spatial;
+
+/*
+ * #%L
+ * Conversant RTree
+ * ~~
+ * Conversantmedia.com © 2016, Conversant, Inc. Conversant® is a trademark of Conversant, Inc.
+ * ~~
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.IntConsumer;
+import java.util.function.IntToLongFunction;
+
+/**
+ * Packs a known set of entries into a tree bottom up.  Implemented by different types of
+ * Pack loader classes, which only decide the order in which the nodes of each level are filled.
+ *
+ * Every node except possibly the last one on each level is filled to mMax.
+ *
+ * Large inputs may be loaded in parallel.  Entries are sorted on a partition key and cut into slabs,
+ * the subtrees of each slab are packed in a ForkJoinPool up to a common level and then stitched
+ * together under the top levels of branches, so that all leaves remain at the same depth.
+ */
+abstract class BulkLoader<T> {
+
+    // below this many entries per range the fork/join overhead is not worth it
+    private static final int PARALLEL_THRESHOLD = 8192;
+
+    // target number of slabs per worker thread so that uneven slabs balance out
+    private static final int SLABS_PER_THREAD = 4;
+
+    protected final RectBuilder<T> builder;
+
+    protected final int mMin;
+
+    protected final int mMax;
+
+    protected final RTree.Split splitType;
+
+    protected BulkLoader(final RectBuilder<T> builder, final int mMin, final int mMax, final RTree.Split splitType) {
+        this.builder = builder;
+        this.mMin = mMin;
+        this.mMax = mMax;
+        this.splitType = splitType;
+    }
+
+    static <R> BulkLoader<R> create(final RectBuilder<R> builder, final int mMin, final int mMax, final RTree.Split splitType, final RTree.Pack packType) {
+
+        switch(packType) {
+            case HILBERT:
+                return new HilbertBulkLoader<>(builder, mMin, mMax, splitType);
+            case STR:
+            default:
+                return new StrBulkLoader<>(builder, mMin, mMax, splitType);
+        }
+
+    }
+
+    /**
+     * Build a packed tree containing every entry in the collection
+     *
+     * @param entries - entries to index
+     * @return root node of the packed tree, null if there are no entries
+     */
+    Node<T> load(final Collection<T> entries) {
+        final int n = entries.size();
+        if(n == 0) {
+            return null;
+        }
+
+        final Object[] entry = entries.toArray();
+        final HyperRect[] bounds = new HyperRect[n];
+        for(int i=0; i<n; i++) {
+            bounds[i] = builder.getBBox((T)entry[i]);
+        }
+
+        return pack(entry, bounds);
+    }
+
+    /**
+     * Build a packed tree containing every entry in the collection using the threads of the given pool
+     *
+     * @param entries - entries to index
+     * @param pool - pool to run the load in
+     * @return root node of the packed tree, null if there are no entries
+     */
+    Node<T> load(final Collection<T> entries, final ForkJoinPool pool) {
+        final int n = entries.size();
+        final int parallelism = pool.getParallelism();
+        if(parallelism < 2 || n < PARALLEL_THRESHOLD) {
+            return load(entries);
+        }
+
+        final Object[] entry = entries.toArray();
+        final HyperRect[] bounds = new HyperRect[n];
+        pool.invoke(new RangeTask(0, n, i -> bounds[i] = builder.getBBox((T)entry[i])));
+
+        final int slab = slabSize(bounds, parallelism);
+        if(n/slab < 2) {
+            return pack(entry, bounds);
+        }
+
+        final long[] key = new long[n];
+        final IntToLongFunction partitionKey = partitionKey(bounds);
+        pool.invoke(new RangeTask(0, n, i -> key[i] = partitionKey.applyAsLong(i)));
+
+        final int[] order = identity(n);
+        pool.invoke(new SortTask(order, key, 0, n-1));
+
+        // every slab is packed up to the same level so the stitched tree stays balanced
+        int levels = 0;
+        for(long capacity = (long)mMax*mMax; capacity <= slab; capacity *= mMax) {
+            levels++;
+        }
+
+        final List<SlabTask> slabs = new ArrayList<>(n/slab + 1);
+        for(int from = 0; from < n; from += slab) {
+            // a short last slab is merged into its predecessor
+            final int to = n - (from + slab) < slab ? n : from + slab;
+            slabs.add(new SlabTask(entry, bounds, order, key, from, to, levels));
+            if(to == n) {
+                break;
+            }
+        }
+        pool.invoke(new RecursiveAction() {
+            @Override
+            protected void compute() {
+                invokeAll(slabs);
+            }
+        });
+
+        final List<Node<T>> stitch = new ArrayList<>();
+        for(SlabTask task : slabs) {
+            for(Node<T> node : task.join()) {
+                stitch.add(node);
+            }
+        }
+
+        Node<T>[] level = stitch.toArray(new Node[stitch.size()]);
+        while(level.length > 1) {
+            level = packBranches(level);
+        }
+
+        return level[0];
+    }
+
+    /**
+     * Packing order of every level of the tree that load would build, without building its nodes,
+     * for trees packed straight into their own storage, see {@link PackedRTree#pack(Object[], HyperRect[], List)}
+     *
+     * @param bounds - bounds of the entries, at least one
+     * @return levels of the tree, from the leaves up to the root
+     */
+    List<Level> levels(final HyperRect[] bounds) {
+        final List<Level> levels = new ArrayList<>();
+        HyperRect[] below = bounds;
+        do {
+            final int n = below.length;
+            final int[] order = order(below);
+            final int count = nodeCount(n);
+            final int[] start = new int[count + 1];
+            final HyperRect[] nodeBounds = new HyperRect[count];
+            int from = 0;
+            for(int i=0; i<count; i++) {
+                final int to = nodeEnd(from, n);
+                HyperRect bound = null;
+                for(int j=from; j<to; j++) {
+                    bound = Leaf.include(bound, below[order[j]]);
+                }
+                start[i] = from;
+                nodeBounds[i] = bound;
+                from = to;
+            }
+            start[count] = n;
+            levels.add(new Level(order, start, nodeBounds));
+            below = nodeBounds;
+        } while(below.length > 1);
+
+        return levels;
+    }
+
+    private Node<T> pack(final Object[] entry, final HyperRect[] bounds) {
+        Node<T>[] level = packLeaves(entry, order(bounds), 0, entry.length);
+        while(level.length > 1) {
+            level = packBranches(level);
+        }
+
+        return level[0];
+    }
+
+    /**
+     * Compute the packing order of the given bounds, consecutive runs of mMax
+     * become the children of one node on the next level up.
+     *
+     * @param bounds - rectangles to be packed
+     * @return permutation of the indexes of bounds in packing order
+     */
+    protected abstract int[] order(final HyperRect[] bounds);
+
+    /**
+     * Key used to partition entries into slabs for a parallel load, a sort on this key must
+     * bring the entries of each slab together.
+     *
+     * @param bounds - rectangles to be packed
+     * @return function from the index of a rect to its partition key
+     */
+    protected abstract IntToLongFunction partitionKey(final HyperRect[] bounds);
+
+    /**
+     * Refine the packing order within one slab of a parallel load, after the partition sort
+     *
+     * @param bounds - rectangles to be packed
+     * @param order - packing order, sorted on the partition key
+     * @param key - scratch space, one key per rect
+     * @param from - start of the slab in order
+     * @param to - end (exclusive) of the slab in order
+     */
+    protected void orderSlab(final HyperRect[] bounds, final int[] order, final long[] key, final int from, final int to) {
+    }
+
+    /**
+     * Number of entries in each slab of a parallel load, by default the largest whole
+     * subtree that still gives every thread several slabs to work on.
+     *
+     * @param bounds - rectangles to be packed
+     * @param parallelism - number of threads
+     * @return entries per slab, a multiple of mMax
+     */
+    protected int slabSize(final HyperRect[] bounds, final int parallelism) {
+        final int n = bounds.length;
+        final long target = Math.max(n/((long)parallelism*SLABS_PER_THREAD), PARALLEL_THRESHOLD);
+        long slab = mMax;
+        while(slab*mMax <= target) {
+            slab *= mMax;
+        }
+        return (int)slab;
+    }
+
+    private Node<T>[] packLeaves(final Object[] entry, final int[] order, final int start, final int end) {
+        final int n = end - start;
+        final Node<T>[] level = new Node[nodeCount(n)];
+        int from = start;
+        for(int i=0; i<level.length; i++) {
+            final int to = start + nodeEnd(from - start, n);
+            final Node<T> leaf = Leaf.create(builder, mMin, mMax, splitType);
+            for(int j=from; j<to; j++) {
+                leaf.add((T)entry[order[j]]);
+            }
+            level[i] = leaf;
+            from = to;
+        }
+        return level;
+    }
+
+    private Node<T>[] packBranches(final Node<T>[] children) {
+        final int n = children.length;
+        final HyperRect[] bounds = new HyperRect[n];
+        for(int i=0; i<n; i++) {
+            bounds[i] = children[i].getBound();
+        }
+
+        final int[] order = order(bounds);
+        final Node<T>[] level = new Node[nodeCount(n)];
+        int from = 0;
+        for(int i=0; i<level.length; i++) {
+            final int to = nodeEnd(from, n);
+            final Branch<T> branch = new Branch<>(builder, mMin, mMax, splitType);
+            for(int j=from; j<to; j++) {
+                branch.addChild(children[order[j]]);
+            }
+            level[i] = branch;
+            from = to;
+        }
+
+        return level;
+    }
+
+    /**
+     * @return number of nodes required to hold n children at full fill
+     */
+    protected final int nodeCount(final int n) {
+        return (n + mMax - 1)/mMax;
+    }
+
+    /**
+     * Nodes are filled to mMax, except that a short last node borrows from its
+     * predecessor so that it never ends up with less than mMin children.
+     *
+     * @return end (exclusive) of the node beginning at from
+     */
+    private int nodeEnd(final int from, final int n) {
+        final int remaining = n - from;
+        if(remaining <= mMax) {
+            return n;
+        } else if(remaining < mMax + mMin) {
+            return from + remaining/2;
+        }
+        return from + mMax;
+    }
+
+    /**
+     * @return identity permutation of length n
+     */
+    static int[] identity(final int n) {
+        final int[] order = new int[n];
+        for(int i=0; i<n; i++) {
+            order[i] = i;
+        }
+        return order;
+    }
+
+    /**
+     * @return a long that sorts in the same order as the given double
+     */
+    static long sortable(final double d) {
+        final long bits = Double.doubleToLongBits(d);
+        return bits ^ ((bits >> 63) & Long.MAX_VALUE);
+    }
+
+    /**
+     * Quicksort of an index array on the value of key at each index, inclusive range
+     */
+    static void sort(final int[] order, final long[] key, int lo, int hi) {
+        while(hi - lo > 16) {
+            final int mid = (lo + hi) >>> 1;
+            // median of three
+            if(key[order[mid]] < key[order[lo]]) swap(order, lo, mid);
+            if(key[order[hi]] < key[order[lo]]) swap(order, lo, hi);
+            if(key[order[hi]] < key[order[mid]]) swap(order, mid, hi);
+            final long pivot = key[order[mid]];
+
+            int i = lo, j = hi;
+            while(i <= j) {
+                while(key[order[i]] < pivot) i++;
+                while(key[order[j]] > pivot) j--;
+                if(i <= j) {
+                    swap(order, i++, j--);
+                }
+            }
+
+            // recurse into the smaller partition to bound stack depth
+            if(j - lo < hi - i) {
+                sort(order, key, lo, j);
+                lo = i;
+            } else {
+                sort(order, key, i, hi);
+                hi = j;
+            }
+        }
+
+        for(int i=lo+1; i<=hi; i++) {
+            final int o = order[i];
+            final long k = key[o];
+            int j = i-1;
+            while(j >= lo && key[order[j]] > k) {
+                order[j+1] = order[j];
+                j--;
+            }
+            order[j+1] = o;
+        }
+    }
+
+    private static void swap(final int[] order, final int i, final int j) {
+        final int o = order[i];
+        order[i] = order[j];
+        order[j] = o;
+    }
+
+    /**
+     * One level of a packed tree, the nodes are numbered in the order they are packed
+     */
+    static final class Level {
+        // packing order of the level below, entries for the leaves
+        final int[] order;
+
+        // children of node i are order[start[i]] to order[start[i+1] - 1]
+        final int[] start;
+
+        final HyperRect[] bounds;
+
+        Level(final int[] order, final int[] start, final HyperRect[] bounds) {
+            this.order = order;
+            this.start = start;
+            this.bounds = bounds;
+        }
+    }
+
+    /**
+     * Pack the entries of one slab into subtrees of the given height
+     */
+    private final class SlabTask extends RecursiveTask<Node<T>[]> {
+        private final Object[] entry;
+        private final HyperRect[] bounds;
+        private final int[] order;
+        private final long[] key;
+        private final int from;
+        private final int to;
+        private final int levels;
+
+        SlabTask(final Object[] entry, final HyperRect[] bounds, final int[] order, final long[] key, final int from, final int to, final int levels) {
+            this.entry = entry;
+            this.bounds = bounds;
+            this.order = order;
+            this.key = key;
+            this.from = from;
+            this.to = to;
+            this.levels = levels;
+        }
+
+        @Override
+        protected Node<T>[] compute() {
+            orderSlab(bounds, order, key, from, to);
+            Node<T>[] level = packLeaves(entry, order, from, to);
+            for(int i=0; i<levels; i++) {
+                level = packBranches(level);
+            }
+            return level;
+        }
+    }
+
+    /**
+     * Apply an action to every index of a range, splitting the range across the pool
+     */
+    private static final class RangeTask extends RecursiveAction {
+        private final int from;
+        private final int to;
+        private final IntConsumer action;
+
+        RangeTask(final int from, final int to, final IntConsumer action) {
+            this.from = from;
+            this.to = to;
+            this.action = action;
+        }
+
+        @Override
+        protected void compute() {
+            if(to - from <= PARALLEL_THRESHOLD) {
+                for(int i=from; i<to; i++) {
+                    action.accept(i);
+                }
+            } else {
+                final int mid = (from + to) >>> 1;
+                invokeAll(new RangeTask(from, mid, action), new RangeTask(mid, to, action));
+            }
+        }
+    }
+
+    /**
+     * Parallel quicksort of an index array on the value of key at each index, inclusive range
+     */
+    private static final class SortTask extends RecursiveAction {
+        private final int[] order;
+        private final long[] key;
+        private final int lo;
+        private final int hi;
+
+        SortTask(final int[] order, final long[] key, final int lo, final int hi) {
+            this.order = order;
+            this.key = key;
+            this.lo = lo;
+            this.hi = hi;
+        }
+
+        @Override
+        protected void compute() {
+            if(hi - lo <= PARALLEL_THRESHOLD) {
+                sort(order, key, lo, hi);
+                return;
+            }
+
+            final int mid = (lo + hi) >>> 1;
+            if(key[order[mid]] < key[order[lo]]) swap(order, lo, mid);
+            if(key[order[hi]] < key[order[lo]]) swap(order, lo, hi);
+            if(key[order[hi]] < key[order[mid]]) swap(order, mid, hi);
+            final long pivot = key[order[mid]];
+
+            int i = lo, j = hi;
+            while(i <= j) {
+                while(key[order[i]] < pivot) i++;
+                while(key[order[j]] > pivot) j--;
+                if(i <= j) {
+                    swap(order, i++, j--);
+                }
+            }
+
+            ForkJoinTask.invokeAll(new SortTask(order, key, lo, j), new SortTask(order, key, i, hi));
+        }
+    }
+}
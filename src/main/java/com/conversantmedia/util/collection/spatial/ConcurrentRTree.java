@@ -22,8 +22,11 @@ package com.conversantmedia.util.collection.spatial;
 
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.StampedLock;
 import java.util.function.Consumer;
 import java.util.Collection;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
 
 /**
  * Created by jcovert on 12/30/15.
@@ -33,15 +36,49 @@ public class ConcurrentRTree<T> implements SpatialSearch<T> {
     private final SpatialSearch<T> rTree;
     private final Lock readLock;
     private final Lock writeLock;
+    // set only for optimistic reads
+    private final StampedLock stampedLock;
+    // number of changes made, guarded by the write lock and read under the read lock
+    private long modCount;
 
     protected ConcurrentRTree(SpatialSearch<T> rTree, ReadWriteLock lock) {
         this.rTree = rTree;
         this.readLock = lock.readLock();
         this.writeLock = lock.writeLock();
+        this.stampedLock = null;
+    }
+
+    /**
+     * Protect an RTree with a stamped lock
+     *
+     * Array searches, count and contains first run without taking the lock and keep their result
+     * only if no write began in the meantime, otherwise they run again under the read lock.  A read
+     * that succeeds optimistically writes nothing to memory shared with other readers.  The tree's
+     * reads must tolerate a concurrent write, returning some result or throwing a RuntimeException,
+     * as {@link RTree} does.
+     */
+    protected ConcurrentRTree(SpatialSearch<T> rTree, StampedLock lock) {
+        this.rTree = rTree;
+        this.readLock = lock.asReadLock();
+        this.writeLock = lock.asWriteLock();
+        this.stampedLock = lock;
     }
 
     @Override
     public int intersects(HyperRect rect, T[] t) {
+        if(stampedLock != null) {
+            final long stamp = stampedLock.tryOptimisticRead();
+            if(stamp != 0L) {
+                try {
+                    final int n = rTree.intersects(rect, t);
+                    if(stampedLock.validate(stamp)) {
+                        return n;
+                    }
+                } catch(RuntimeException e) {
+                    // read a tree in the middle of a write, read it again under the lock
+                }
+            }
+        }
         readLock.lock();
         try {
             return rTree.intersects(rect, t);
@@ -60,9 +97,120 @@ public class ConcurrentRTree<T> implements SpatialSearch<T> {
         }
     }
 
+    @Override
+    public int count(final HyperRect rect) {
+        if(stampedLock != null) {
+            final long stamp = stampedLock.tryOptimisticRead();
+            if(stamp != 0L) {
+                try {
+                    final int n = rTree.count(rect);
+                    if(stampedLock.validate(stamp)) {
+                        return n;
+                    }
+                } catch(RuntimeException e) {
+                    // read a tree in the middle of a write, read it again under the lock
+                }
+            }
+        }
+        readLock.lock();
+        try {
+            return rTree.count(rect);
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    @Override
+    public int nearest(final HyperPoint p, final int k, final T[] t) {
+        readLock.lock();
+        try {
+            return rTree.nearest(p, k, t);
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    @Override
+    public void nearest(final HyperPoint p, final int k, final Consumer<T> consumer) {
+        readLock.lock();
+        try {
+            rTree.nearest(p, k, consumer);
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    /**
+     * Locked nearest neighbor iterator
+     *
+     * The read lock is held for each call to the iterator rather than for its lifetime, so
+     * writers are not blocked by an abandoned iterator.  A change to the tree while the iterator
+     * is in use can move entries between nodes, which the iterator could then return twice or out
+     * of distance order, so once the tree has changed hasNext and next throw
+     * ConcurrentModificationException.  Every entry returned before that was returned once, in
+     * order of distance.
+     *
+     * @param p - point to measure distance from
+     *
+     * @return iterator over entries, nearest first
+     */
+    @Override
+    public Iterator<T> nearest(final HyperPoint p) {
+        final Iterator<T> it;
+        final long expectedModCount;
+        readLock.lock();
+        try {
+            it = rTree.nearest(p);
+            expectedModCount = modCount;
+        } finally {
+            readLock.unlock();
+        }
+
+        return new Iterator<T>() {
+            @Override
+            public boolean hasNext() {
+                readLock.lock();
+                try {
+                    checkModCount(expectedModCount);
+                    return it.hasNext();
+                } finally {
+                    readLock.unlock();
+                }
+            }
+
+            @Override
+            public T next() {
+                readLock.lock();
+                try {
+                    checkModCount(expectedModCount);
+                    return it.next();
+                } finally {
+                    readLock.unlock();
+                }
+            }
+        };
+    }
+
+    // called with the read lock held
+    private void checkModCount(final long expectedModCount) {
+        if(modCount != expectedModCount) {
+            throw new ConcurrentModificationException("RTree changed during nearest neighbor iteration");
+        }
+    }
+
+    /**
+     * Record a change to the tree, called with the write lock held
+     */
+    void modified() {
+        modCount++;
+    }
+
     /**
      * Blocking locked search
      *
+     * With optimistic reads the array may also be written by an attempt that is discarded, only the
+     * first entries up to the returned count are valid.
+     *
      * @param rect - HyperRect to search
      * @param t - array to hold results
      *
@@ -70,6 +218,19 @@ public class ConcurrentRTree<T> implements SpatialSearch<T> {
      */
     @Override
     public int search(final HyperRect rect, final T[] t) {
+        if(stampedLock != null) {
+            final long stamp = stampedLock.tryOptimisticRead();
+            if(stamp != 0L) {
+                try {
+                    final int n = rTree.search(rect, t);
+                    if(stampedLock.validate(stamp)) {
+                        return n;
+                    }
+                } catch(RuntimeException e) {
+                    // read a tree in the middle of a write, read it again under the lock
+                }
+            }
+        }
         readLock.lock();
         try {
             return rTree.search(rect, t);
@@ -88,6 +249,7 @@ public class ConcurrentRTree<T> implements SpatialSearch<T> {
     public void add(final T t) {
         writeLock.lock();
         try {
+            modified();
             rTree.add(t);
         }
         finally {
@@ -104,6 +266,7 @@ public class ConcurrentRTree<T> implements SpatialSearch<T> {
     public void remove(final T t) {
         writeLock.lock();
         try {
+            modified();
             rTree.remove(t);
         }
         finally {
@@ -121,6 +284,7 @@ public class ConcurrentRTree<T> implements SpatialSearch<T> {
     public void update(final T told, final T tnew) {
         writeLock.lock();
         try {
+            modified();
             rTree.update(told, tnew);
         }
         finally {
@@ -157,6 +321,7 @@ public class ConcurrentRTree<T> implements SpatialSearch<T> {
     public boolean tryAdd(T t) {
         if(writeLock.tryLock()) {
             try {
+                modified();
                 rTree.add(t);
             } finally {
                 writeLock.unlock();
@@ -176,6 +341,7 @@ public class ConcurrentRTree<T> implements SpatialSearch<T> {
     public boolean tryRemove(T t) {
         if(writeLock.tryLock()) {
             try {
+                modified();
                 rTree.remove(t);
             } finally {
                 writeLock.unlock();
@@ -196,6 +362,7 @@ public class ConcurrentRTree<T> implements SpatialSearch<T> {
     public boolean tryUpdate(T told, T tnew) {
         if(writeLock.tryLock()) {
             try {
+                modified();
                 rTree.update(told, tnew);
             } finally {
                 writeLock.unlock();
@@ -205,6 +372,21 @@ public class ConcurrentRTree<T> implements SpatialSearch<T> {
         return false;
     }
 
+    /**
+     * Apply several changes under one acquisition of the write lock
+     *
+     * @param changes - makes changes to the protected tree
+     */
+    void write(final Consumer<SpatialSearch<T>> changes) {
+        writeLock.lock();
+        try {
+            modified();
+            changes.accept(rTree);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
     @Override
     public int getEntryCount() {
         return rTree.getEntryCount();
@@ -242,6 +424,19 @@ public class ConcurrentRTree<T> implements SpatialSearch<T> {
 
     @Override
     public boolean contains(T t) {
+        if(stampedLock != null) {
+            final long stamp = stampedLock.tryOptimisticRead();
+            if(stamp != 0L) {
+                try {
+                    final boolean found = rTree.contains(t);
+                    if(stampedLock.validate(stamp)) {
+                        return found;
+                    }
+                } catch(RuntimeException e) {
+                    // read a tree in the middle of a write, read it again under the lock
+                }
+            }
+        }
         readLock.lock();
         try {
             return rTree.contains(t);
@@ -259,4 +454,16 @@ public class ConcurrentRTree<T> implements SpatialSearch<T> {
             readLock.unlock();
         }
     }
+
+    /**
+     * Different ways to protect an RTree shared between threads.
+     *
+     * READ_WRITE takes a fair read lock for every read,
+     * OPTIMISTIC reads without the lock and validates the result against a stamped lock, falling back
+     * to the read lock when a write intervened.  Suited to trees read far more often than written.
+     */
+    public enum Locking {
+        READ_WRITE,
+        OPTIMISTIC,
+    }
 }
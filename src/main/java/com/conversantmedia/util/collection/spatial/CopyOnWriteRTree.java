@@ -0,0 +1,208 @@
+package com.conversantmedia.util.collection.spatial;
+
+/*
+ * #%L
+ * Conversant RTree
+ * ~~
+ * Conversantmedia.com © 2016, Conversant, Inc. Conversant® is a trademark of Conversant, Inc.
+ * ~~
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * R-Tree for many concurrent readers, which run without locking against an immutable snapshot
+ *
+ * A change never touches a node of the published tree.  It copies the nodes on the path to
+ * the entry, see {@link Node#copy(long)}, builds a new root from them and the nodes it did not
+ * change, and publishes that through a volatile reference.  A query reads the reference once,
+ * so it sees every change published before it began and none after, and an iterator from
+ * {@link #nearest(HyperPoint)} stays on the snapshot it started from.
+ *
+ * Changes are serialized by a lock, readers never wait for them.
+ */
+public final class CopyOnWriteRTree<T> implements SpatialSearch<T> {
+
+    private final RectBuilder<T> builder;
+
+    private final int mMin;
+
+    private final int mMax;
+
+    private final RTree.Split splitType;
+
+    private final ReentrantLock writeLock = new ReentrantLock();
+
+    // generation of the last change, guarded by writeLock
+    private long gen;
+
+    // the published snapshot, never changed once published
+    private volatile RTree<T> tree;
+
+    CopyOnWriteRTree(final RectBuilder<T> builder, final int mMin, final int mMax, final RTree.Split splitType) {
+        this.builder = builder;
+        this.mMin = mMin;
+        this.mMax = mMax;
+        this.splitType = splitType;
+        this.tree = new RTree<>(builder, mMin, mMax, splitType);
+    }
+
+    @Override
+    public int search(final HyperRect rect, final T[] t) {
+        return tree.search(rect, t);
+    }
+
+    @Override
+    public void search(final HyperRect rect, final Consumer<T> consumer) {
+        tree.search(rect, consumer);
+    }
+
+    @Override
+    public void search(final HyperRect rect, final Collection<T> collection) {
+        tree.search(rect, collection);
+    }
+
+    @Override
+    public int intersects(final HyperRect rect, final T[] t) {
+        return tree.intersects(rect, t);
+    }
+
+    @Override
+    public void intersects(final HyperRect rect, final Consumer<T> consumer) {
+        tree.intersects(rect, consumer);
+    }
+
+    @Override
+    public int count(final HyperRect rect) {
+        return tree.count(rect);
+    }
+
+    @Override
+    public int nearest(final HyperPoint p, final int k, final T[] t) {
+        return tree.nearest(p, k, t);
+    }
+
+    @Override
+    public void nearest(final HyperPoint p, final int k, final Consumer<T> consumer) {
+        tree.nearest(p, k, consumer);
+    }
+
+    @Override
+    public Iterator<T> nearest(final HyperPoint p) {
+        return tree.nearest(p);
+    }
+
+    @Override
+    public boolean contains(final T t) {
+        return tree.contains(t);
+    }
+
+    @Override
+    public int getEntryCount() {
+        return tree.getEntryCount();
+    }
+
+    @Override
+    public void forEach(final Consumer<T> consumer) {
+        tree.forEach(consumer);
+    }
+
+    @Override
+    public Stats collectStats() {
+        return tree.collectStats();
+    }
+
+    @Override
+    public void add(final T t) {
+        writeLock.lock();
+        try {
+            gen++;
+            publish(add(tree.getRoot(), t));
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    @Override
+    public void remove(final T t) {
+        writeLock.lock();
+        try {
+            final Node<T> root = tree.getRoot();
+            final HyperRect bbox = builder.getBBox(t);
+            final double[] tMin = Leaf.minCoords(bbox);
+            final double[] tMax = Leaf.maxCoords(bbox);
+            if(root == null || !root.contains(tMin, tMax, t)) {
+                return;
+            }
+            gen++;
+
+            final List<T> orphans = new ArrayList<>();
+            Node<T> r = own(root).remove(t, tMin, tMax, orphans);
+
+            // shorten the tree while the root has a single child
+            while(r != null && !r.isLeaf() && r.size() == 1) {
+                r = ((Branch<T>) CounterNode.unwrap(r)).getChildren()[0];
+            }
+
+            for(final T o : orphans) {
+                r = add(r, o);
+            }
+            publish(r);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    @Override
+    public void update(final T told, final T tnew) {
+        writeLock.lock();
+        try {
+            final Node<T> root = tree.getRoot();
+            final HyperRect bbox = builder.getBBox(told);
+            final double[] tMin = Leaf.minCoords(bbox);
+            final double[] tMax = Leaf.maxCoords(bbox);
+            if(root == null || !root.contains(tMin, tMax, told)) {
+                return;
+            }
+            gen++;
+            publish(own(root).update(told, tMin, tMax, tnew));
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    private Node<T> add(final Node<T> root, final T t) {
+        if(root == null) {
+            final Node<T> leaf = Leaf.create(builder, mMin, mMax, splitType);
+            leaf.add(t);
+            return leaf;
+        }
+        final Node<T> r = own(root);
+        return splitType == RTree.Split.RSTAR && r instanceof Branch ? Reinsertion.add((Branch<T>) r, t) : r.add(t);
+    }
+
+    private Node<T> own(final Node<T> node) {
+        return node.getGen() == gen ? node : node.copy(gen);
+    }
+
+    private void publish(final Node<T> root) {
+        tree = new RTree<>(builder, mMin, mMax, splitType, root);
+    }
+}
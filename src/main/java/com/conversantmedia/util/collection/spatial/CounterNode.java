@@ -20,6 +20,7 @@ package com.conversantmedia.util.collection.spatial;
  * #L%
  */
 
+import java.util.List;
 import java.util.function.Consumer;
 
 /**
@@ -35,6 +36,14 @@ final class CounterNode<T> implements Node<T> {
         this.node = node;
     }
 
+    /**
+     * @param n - node, possibly instrumented
+     * @return the node counted by n if it is instrumented, otherwise n
+     */
+    static <T> Node<T> unwrap(final Node<T> n) {
+        return n instanceof CounterNode ? ((CounterNode<T>) n).node : n;
+    }
+
     @Override
     public boolean isLeaf() {
         return node.isLeaf();
@@ -47,20 +56,22 @@ final class CounterNode<T> implements Node<T> {
 
     @Override
     public Node<T> add(T t) {
-        return node.add(t);
+        final Node<T> n = node.add(t);
+        // keep counting unless the node was split
+        return n == node ? this : n;
     }
 
     @Override
-    public Node<T> remove(T t) { return node.remove(t); }
+    public Node<T> remove(T t, double[] tMin, double[] tMax, List<T> orphans) { return node.remove(t, tMin, tMax, orphans); }
 
     @Override
-    public Node<T> update(T told, T tnew) { return node.update(told, tnew); }
+    public Node<T> update(T told, double[] tMin, double[] tMax, T tnew) { return node.update(told, tMin, tMax, tnew); }
 
     @Override
-    public int search(HyperRect rect, T[] t, int n) {
+    public int search(double[] rMin, double[] rMax, T[] t, int n) {
         searchCount++;
         bboxEvalCount += node.size();
-        return node.search(rect, t, n);
+        return node.search(rMin, rMax, t, n);
     }
 
     @Override
@@ -68,6 +79,16 @@ final class CounterNode<T> implements Node<T> {
         return node.size();
     }
 
+    @Override
+    public Node<T> copy(long gen) {
+        return new CounterNode<>(node.copy(gen));
+    }
+
+    @Override
+    public long getGen() {
+        return node.getGen();
+    }
+
     @Override
     public int totalSize() {
         return node.totalSize();
@@ -79,23 +100,37 @@ final class CounterNode<T> implements Node<T> {
     }
 
     @Override
-    public void search(HyperRect rect, Consumer<T> consumer) {
-        node.search(rect, consumer);
+    public void search(double[] rMin, double[] rMax, Consumer<T> consumer) {
+        node.search(rMin, rMax, consumer);
+    }
+
+    @Override
+    public int intersects(double[] rMin, double[] rMax, T[] t, int n) {
+        return node.intersects(rMin, rMax, t, n);
     }
 
     @Override
-    public int intersects(HyperRect rect, T[] t, int n) {
-        return node.intersects(rect, t, n);
+    public void intersects(double[] rMin, double[] rMax, Consumer<T> consumer) {
+        node.intersects(rMin, rMax, consumer);
     }
 
     @Override
-    public void intersects(HyperRect rect, Consumer<T> consumer) {
-        node.intersects(rect, consumer);
+    public int count(double[] rMin, double[] rMax) {
+        searchCount++;
+        bboxEvalCount += node.size();
+        return node.count(rMin, rMax);
+    }
+
+    @Override
+    public void nearest(NearestNeighbor<T> nn) {
+        searchCount++;
+        bboxEvalCount += node.size();
+        node.nearest(nn);
     }
 
     @Override
-    public boolean contains(HyperRect rect, T t) {
-        return node.contains(rect, t);
+    public boolean contains(double[] rMin, double[] rMax, T t) {
+        return node.contains(rMin, rMax, t);
     }
 
     @Override
@@ -0,0 +1,52 @@
+package com.conversantmedia.util.collection.spatial;
+
+/*
+ * #%L
+ * Conversant RTree
+ * ~~
+ * Conversantmedia.com © 2016, Conversant, Inc. Conversant® is a trademark of Conversant, Inc.
+ * ~~
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Reads and writes the entries of a tree when it is streamed, see {@link RTree#writeTo(java.io.OutputStream, EntryCodec)}
+ */
+public interface EntryCodec<T> {
+
+    /**
+     * Write an entry
+     *
+     * @param t - entry to write
+     * @param out - stream positioned where the entry belongs
+     *
+     * @throws IOException if the stream fails
+     */
+    void write(T t, DataOutput out) throws IOException;
+
+    /**
+     * Read an entry written by {@link #write(Object, DataOutput)}
+     *
+     * @param in - stream positioned at the entry
+     *
+     * @return the entry
+     *
+     * @throws IOException if the stream fails
+     */
+    T read(DataInput in) throws IOException;
+}
@@ -0,0 +1,88 @@
+package com.conversantmedia.util.collection.spatial;
+
+/*
+ * #%L
+ * Conversant RTree
+ * ~~
+ * Conversantmedia.com © 2016, Conversant, Inc. Conversant® is a trademark of Conversant, Inc.
+ * ~~
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.util.List;
+
+/**
+ * Packed R-Tree held in heap arrays, see {@link RTree#freeze()}
+ *
+ * Slot bounds are in one double array, the start of each node's run of children in one int
+ * array and the entries in one object array.
+ */
+final class FrozenRTree<T> extends PackedRTree<T> {
+
+    // children of node k are the slots child[k] until child[k+1]
+    private final int[] child;
+
+    // bounds of slot s in dimension d are bounds[s*2*nD + d] to bounds[s*2*nD + nD + d]
+    private final double[] bounds;
+
+    private final Object[] entry;
+
+    FrozenRTree(final RectBuilder<T> builder, final int mMin, final int mMax, final RTree.Split splitType, final Node<T> root) {
+        this(builder, mMin, mMax, splitType, breadthFirst(root));
+    }
+
+    private FrozenRTree(final RectBuilder<T> builder, final int mMin, final int mMax, final RTree.Split splitType, final List<Node<T>> nodes) {
+        super(builder, mMin, mMax, splitType, nodes);
+        this.child = new int[nodeCount + 1];
+        this.bounds = new double[(nodeCount + entryCount)*2*nD];
+        this.entry = new Object[entryCount];
+        pack(nodes);
+    }
+
+    @Override
+    protected int child(final int k) {
+        return child[k];
+    }
+
+    @Override
+    protected double getMin(final int s, final int d) {
+        return bounds[s*2*nD + d];
+    }
+
+    @Override
+    protected double getMax(final int s, final int d) {
+        return bounds[s*2*nD + nD + d];
+    }
+
+    @Override
+    protected T getEntry(final int i) {
+        return (T) entry[i];
+    }
+
+    @Override
+    protected void setChild(final int k, final int s) {
+        child[k] = s;
+    }
+
+    @Override
+    protected void setBound(final int s, final int d, final double min, final double max) {
+        bounds[s*2*nD + d] = min;
+        bounds[s*2*nD + nD + d] = max;
+    }
+
+    @Override
+    protected void setEntry(final int i, final T t) {
+        entry[i] = t;
+    }
+}
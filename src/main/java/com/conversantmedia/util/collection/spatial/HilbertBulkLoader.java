@@ -0,0 +1,149 @@
+package com.conversantmedia.util.collection.spatial;
+
+/*
+ * #%L
+ * Conversant RTree
+ * ~~
+ * Conversantmedia.com © 2016, Conversant, Inc. Conversant® is a trademark of Conversant, Inc.
+ * ~~
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.util.function.IntToLongFunction;
+
+/**
+ * Hilbert packed R-tree bulk loader - Kamel, Faloutsos
+ *
+ * Orders entries by the Hilbert value of their centroid, so that neighbours along the curve,
+ * which are close together in space, are packed into the same node.  Unlike STR the curve
+ * follows the data, which keeps nodes compact for skewed and clustered inputs.
+ *
+ * Centroids are scaled to the extent of the level being packed and quantized to as many bits
+ * per dimension as fit in a 63 bit Hilbert value.
+ */
+final class HilbertBulkLoader<T> extends BulkLoader<T> {
+
+    HilbertBulkLoader(final RectBuilder<T> builder, final int mMin, final int mMax, final RTree.Split splitType) {
+        super(builder, mMin, mMax, splitType);
+    }
+
+    @Override
+    protected int[] order(final HyperRect[] bounds) {
+        final int n = bounds.length;
+        final IntToLongFunction hilbertKey = partitionKey(bounds);
+        final long[] key = new long[n];
+        for(int i=0; i<n; i++) {
+            key[i] = hilbertKey.applyAsLong(i);
+        }
+
+        final int[] order = identity(n);
+        sort(order, key, 0, n-1);
+        return order;
+    }
+
+    /**
+     * Slabs are contiguous runs of the curve, which is already the final packing order
+     */
+    @Override
+    protected IntToLongFunction partitionKey(final HyperRect[] bounds) {
+        return hilbertKey(bounds);
+    }
+
+    /**
+     * Hilbert value of the centroid of each rect, scaled to the extent of all of them
+     *
+     * @param bounds - rects to order
+     * @return Hilbert value of the rect at an index
+     */
+    static IntToLongFunction hilbertKey(final HyperRect[] bounds) {
+        final int nD = bounds[0].getNDim();
+        final int bits = Math.max(1, Math.min(31, 63/nD));
+        final double cells = (1L << bits) - 1;
+
+        final double[] min = new double[nD];
+        final double[] max = new double[nD];
+        for(int d=0; d<nD; d++) {
+            min[d] = Double.POSITIVE_INFINITY;
+            max[d] = Double.NEGATIVE_INFINITY;
+        }
+
+        for(int i=0; i<bounds.length; i++) {
+            for(int d=0; d<nD; d++) {
+                final double v = bounds[i].getCenter(d);
+                min[d] = Math.min(min[d], v);
+                max[d] = Math.max(max[d], v);
+            }
+        }
+
+        return i -> {
+            final int[] x = new int[nD];
+            for(int d=0; d<nD; d++) {
+                final double v = bounds[i].getCenter(d);
+                final double range = max[d] - min[d];
+                x[d] = range > 0.0 ? (int)((v - min[d])/range*cells) : 0;
+            }
+            return hilbert(x, bits);
+        };
+    }
+
+    /**
+     * Compute the distance along the Hilbert curve of the given grid cell - John Skilling,
+     * "Programming the Hilbert curve"
+     *
+     * @param x - coordinates of the cell, overwritten
+     * @param bits - bits per coordinate
+     * @return Hilbert index, nD*bits wide
+     */
+    static long hilbert(final int[] x, final int bits) {
+        final int nD = x.length;
+        final int m = 1 << (bits - 1);
+
+        // inverse undo
+        for(int q = m; q > 1; q >>= 1) {
+            final int p = q - 1;
+            for(int d = 0; d < nD; d++) {
+                if((x[d] & q) != 0) {
+                    x[0] ^= p;
+                } else {
+                    final int t = (x[0] ^ x[d]) & p;
+                    x[0] ^= t;
+                    x[d] ^= t;
+                }
+            }
+        }
+
+        // gray encode
+        for(int d = 1; d < nD; d++) {
+            x[d] ^= x[d-1];
+        }
+        int t = 0;
+        for(int q = m; q > 1; q >>= 1) {
+            if((x[nD-1] & q) != 0) {
+                t ^= q - 1;
+            }
+        }
+        for(int d = 0; d < nD; d++) {
+            x[d] ^= t;
+        }
+
+        // interleave the transposed bits, most significant first
+        long h = 0L;
+        for(int b = bits - 1; b >= 0; b--) {
+            for(int d = 0; d < nD; d++) {
+                h = (h << 1) | ((x[d] >>> b) & 1);
+            }
+        }
+        return h;
+    }
+}
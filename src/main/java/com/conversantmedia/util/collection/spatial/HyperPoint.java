@@ -46,6 +46,19 @@ public interface HyperPoint {
      */
     <D extends Comparable<D>> D getCoord(int d);
 
+    /**
+     * Get the value of this point in the given dimension, without boxing the coordinate
+     *
+     * @param d - dimension
+     *
+     * @return value of this point in the dimension
+     * @throws IllegalArgumentException if a non-existent dimension is requested
+     */
+    default double getDoubleCoord(final int d) {
+        final Number x = getCoord(d);
+        return x.doubleValue();
+    }
+
     /**
      * Calculate the distance from this point to the given point across all dimensions
      *
@@ -57,6 +57,30 @@ public interface HyperRect<D extends Comparable<D>> {
      */
     HyperPoint getMax();
 
+    /**
+     * Get the minimum of this HyperRect in the given dimension, without boxing the coordinate
+     *
+     * @param d - dimension
+     *
+     * @return min coordinate
+     */
+    default double getMinCoord(final int d) {
+        final Number x = getMin().getCoord(d);
+        return x.doubleValue();
+    }
+
+    /**
+     * Get the maximum of this HyperRect in the given dimension, without boxing the coordinate
+     *
+     * @param d - dimension
+     *
+     * @return max coordinate
+     */
+    default double getMaxCoord(final int d) {
+        final Number x = getMax().getCoord(d);
+        return x.doubleValue();
+    }
+
     /**
      * Get the HyperPoint representing the center point in all dimensions of this HyperRect
      *
@@ -64,6 +88,18 @@ public interface HyperRect<D extends Comparable<D>> {
      */
     HyperPoint getCentroid();
 
+    /**
+     * Get the center of this HyperRect in the given dimension, without building the centroid
+     *
+     * @param d - dimension
+     *
+     * @return center coordinate
+     */
+    default double getCenter(final int d) {
+        final double min = getMinCoord(d);
+        return min + (getMaxCoord(d) - min)/2.0;
+    }
+
     /**
      * Calculate the distance between the min and max HyperPoints in given dimension
      *
@@ -20,11 +20,15 @@ package com.conversantmedia.util.collection.spatial;
  * #L%
  */
 
+import java.util.List;
 import java.util.function.Consumer;
 
 /**
  * Node that will contain the data entries. Implemented by different type of SplitType leaf classes.
  *
+ * Entry bounds are kept as primitive arrays, one per dimension, so that scanning a leaf reads
+ * contiguous doubles rather than following a HyperRect and its points for every entry.
+ *
  * Created by jcairns on 4/30/15.
  */
 abstract class Leaf<T> implements Node<T> {
@@ -35,22 +39,25 @@ abstract class Leaf<T> implements Node<T> {
 
     protected final RTree.Split splitType;
 
-    protected final HyperRect[] r;
-
     protected final T[] entry;
 
     protected final RectBuilder<T> builder;
 
-    protected HyperRect mbr;
+    // bounds of entry i in dimension d are min[d*mMax + i] to max[d*mMax + i], allocated on first add
+    // unless the entries are their own bounding boxes, then they stay null and the entries are read
+    protected double[] min;
+
+    protected double[] max;
 
     protected int size;
 
+    // generation this leaf was copied in, 0 if it is not a copy
+    protected long gen;
+
     protected Leaf(final RectBuilder<T> builder, final int mMin, final int mMax, final RTree.Split splitType) {
         this.mMin = mMin;
         this.mMax = mMax;
-        this.mbr = null;
         this.builder = builder;
-        this.r  = new HyperRect[mMax];
         this.entry = (T[]) new Object[mMax];
         this.size = 0;
         this.splitType = splitType;
@@ -60,14 +67,9 @@ abstract class Leaf<T> implements Node<T> {
     public Node<T> add(final T t) {
         if(size < mMax) {
             final HyperRect tRect = builder.getBBox(t);
-            if(mbr != null) {
-                mbr = mbr.getMbr(tRect);
-            } else {
-                mbr = tRect;
-            }
-
-            r[size] = tRect;
-            entry[size++] = t;
+            entry[size] = t;
+            setBound(size, tRect);
+            size++;
         } else {
             return split(t);
         }
@@ -75,8 +77,44 @@ abstract class Leaf<T> implements Node<T> {
         return this;
     }
 
+    /**
+     * Add an entry whose bounds are already known, without a split or a call to the builder
+     *
+     * @param t data entry to add
+     * @param bounds - the min of each dimension followed by the max of each dimension
+     */
+    void addEntry(final T t, final double[] bounds) {
+        final int nD = bounds.length/2;
+        if(min == null) {
+            allocateBounds(nD, -1);
+        }
+        for(int d = 0; d < nD; d++) {
+            min[d*mMax + size] = bounds[d];
+            max[d*mMax + size] = bounds[nD + d];
+        }
+        entry[size++] = t;
+    }
+
     @Override
-    public Node<T> remove(final T t)  {
+    public Node<T> copy(final long gen) {
+        final Leaf<T> copy = (Leaf<T>) create(builder, mMin, mMax, splitType);
+        System.arraycopy(entry, 0, copy.entry, 0, size);
+        if(min != null) {
+            copy.min = min.clone();
+            copy.max = max.clone();
+        }
+        copy.size = size;
+        copy.gen = gen;
+        return copy;
+    }
+
+    @Override
+    public long getGen() {
+        return gen;
+    }
+
+    @Override
+    public Node<T> remove(final T t, final double[] tMin, final double[] tMax, final List<T> orphans)  {
 
         int i=0;
         int j;
@@ -95,10 +133,14 @@ abstract class Leaf<T> implements Node<T> {
             final int nRemoved = j-i;
             if (j < size) {
                 final int nRemaining = size-j;
-                System.arraycopy(r, j, r, i, nRemaining);
+                if(min != null) {
+                    for(int d = 0; d < getNDim(); d++) {
+                        System.arraycopy(min, d*mMax + j, min, d*mMax + i, nRemaining);
+                        System.arraycopy(max, d*mMax + j, max, d*mMax + i, nRemaining);
+                    }
+                }
                 System.arraycopy(entry, j, entry, i, nRemaining);
                 for (int k=size-nRemoved; k < size; k++) {
-                    r[k] = null;
                     entry[k] = null;
                 }
             } else {
@@ -107,21 +149,11 @@ abstract class Leaf<T> implements Node<T> {
                     return null;
                 }
                 for (int k=i; k < size; k++) {
-                    r[k] = null;
                     entry[k] = null;
                 }
             }
 
             size -= nRemoved;
-
-            for(int k=0; k<size; k++) {
-                if(k==0) {
-                    mbr = r[k];
-                } else {
-                    mbr = mbr.getMbr(r[k]);
-                }
-            }
-
         }
 
         return this;
@@ -129,19 +161,13 @@ abstract class Leaf<T> implements Node<T> {
     }
 
     @Override
-    public Node<T> update(final T told, final T tnew) {
+    public Node<T> update(final T told, final double[] tMin, final double[] tMax, final T tnew) {
         final HyperRect bbox = builder.getBBox(tnew);
 
         for(int i=0; i<size; i++) {
             if (entry[i].equals(told)) {
-                r[i] = bbox;
                 entry[i] = tnew;
-            }
-
-            if (i == 0) {
-                mbr = r[i];
-            } else {
-                mbr = mbr.getMbr(r[i]);
+                setBound(i, bbox);
             }
         }
 
@@ -149,12 +175,12 @@ abstract class Leaf<T> implements Node<T> {
     }
 
     @Override
-    public int search(final HyperRect rect, final T[] t, int n) {
+    public int search(final double[] rMin, final double[] rMax, final T[] t, int n) {
         final int tLen = t.length;
         final int n0 = n;
 
         for(int i=0; i<size && n<tLen; i++) {
-            if(rect.contains(r[i])) {
+            if(isContained(rMin, rMax, i)) {
                 t[n++] = entry[i];
             }
         }
@@ -162,21 +188,21 @@ abstract class Leaf<T> implements Node<T> {
     }
 
     @Override
-    public void search(HyperRect rect, Consumer<T> consumer) {
+    public void search(final double[] rMin, final double[] rMax, Consumer<T> consumer) {
         for(int i = 0; i < size; i++) {
-            if(rect.contains(r[i])) {
+            if(isContained(rMin, rMax, i)) {
                 consumer.accept(entry[i]);
             }
         }
     }
 
     @Override
-    public int intersects(final HyperRect rect, final T[] t, int n) {
+    public int intersects(final double[] rMin, final double[] rMax, final T[] t, int n) {
         final int tLen = t.length;
         final int n0 = n;
 
         for(int i=0; i<size && n<tLen; i++) {
-            if(rect.intersects(r[i])) {
+            if(isIntersecting(rMin, rMax, i)) {
                 t[n++] = entry[i];
             }
         }
@@ -184,14 +210,48 @@ abstract class Leaf<T> implements Node<T> {
     }
 
     @Override
-    public void intersects(HyperRect rect, Consumer<T> consumer) {
+    public void intersects(final double[] rMin, final double[] rMax, Consumer<T> consumer) {
         for(int i = 0; i < size; i++) {
-            if(rect.intersects(r[i])) {
+            if(isIntersecting(rMin, rMax, i)) {
                 consumer.accept(entry[i]);
             }
         }
     }
 
+    @Override
+    public int count(final double[] rMin, final double[] rMax) {
+        int n = 0;
+        for(int i = 0; i < size; i++) {
+            if(isContained(rMin, rMax, i)) {
+                n++;
+            }
+        }
+        return n;
+    }
+
+    @Override
+    public void nearest(final NearestNeighbor<T> nn) {
+        final HyperPoint p = nn.getPoint();
+        final double[] x = new double[p.getNDim()];
+        for(int d = 0; d < x.length; d++) {
+            x[d] = p.getDoubleCoord(d);
+        }
+
+        for(int i = 0; i < size; i++) {
+            double dist = 0.0;
+            for(int d = 0; d < x.length; d++) {
+                final double lo = getMin(d, i);
+                final double hi = getMax(d, i);
+                if(x[d] < lo) {
+                    dist += (lo - x[d])*(lo - x[d]);
+                } else if(x[d] > hi) {
+                    dist += (x[d] - hi)*(x[d] - hi);
+                }
+            }
+            nn.add(entry[i], dist);
+        }
+    }
+
     @Override
     public int size() {
         return size;
@@ -207,9 +267,62 @@ abstract class Leaf<T> implements Node<T> {
         return true;
     }
 
+    /**
+     * Built on each call, from the arrays, so changes never pay for it and reading it never writes
+     * to the leaf.  Only the bounding rects of the entries holding the least min and the greatest
+     * max of each dimension are combined.
+     *
+     * @return minimum bounding rect of the entries, null when empty
+     */
     @Override
     public HyperRect getBound() {
-        return mbr;
+        if(size == 0) {
+            return null;
+        }
+        HyperRect bound = null;
+        int last = -1;
+        for(int d = 0; d < getNDim(); d++) {
+            final int lo = extreme(d, false);
+            final int hi = extreme(d, true);
+            if(lo != last) {
+                bound = include(bound, builder.getBBox(entry[lo]));
+            }
+            if(hi != lo) {
+                bound = include(bound, builder.getBBox(entry[hi]));
+            }
+            last = hi;
+        }
+        return bound;
+    }
+
+    /**
+     * @param d - dimension
+     * @param high - true for the greatest max, false for the least min
+     * @return bounding rect of the entry holding the least min or greatest max of dimension d
+     */
+    final HyperRect getExtremeBound(final int d, final boolean high) {
+        return builder.getBBox(entry[extreme(d, high)]);
+    }
+
+    // index of the entry with the least min, or the greatest max, of dimension d
+    private int extreme(final int d, final boolean high) {
+        int k = 0;
+        for(int i = 1; i < size; i++) {
+            if(high ? getMax(d, i) > getMax(d, k) : getMin(d, i) < getMin(d, k)) {
+                k = i;
+            }
+        }
+        return k;
+    }
+
+    /**
+     * @return bound grown to include rect, allocating only if it does not contain rect, or rect if bound is null
+     */
+    static HyperRect include(final HyperRect bound, final HyperRect rect) {
+        if(bound == null) {
+            return rect;
+        }
+        return bound.contains(rect) ? bound : bound.getMbr(rect);
     }
 
     static <R> Node<R> create(final RectBuilder<R> builder, final int mMin, final int M, final RTree.Split splitType) {
@@ -219,6 +332,8 @@ abstract class Leaf<T> implements Node<T> {
                 return new LinearSplitLeaf<>(builder, mMin, M);
             case QUADRATIC:
                 return new QuadraticSplitLeaf<>(builder, mMin, M);
+            case RSTAR:
+                return new RStarSplitLeaf<>(builder, mMin, M);
             case AXIAL:
             default:
                 return new AxialSplitLeaf<>(builder, mMin, M);
@@ -244,9 +359,9 @@ abstract class Leaf<T> implements Node<T> {
     }
 
     @Override
-    public boolean contains(HyperRect rect, T t) {
+    public boolean contains(final double[] rMin, final double[] rMax, T t) {
         for(int i = 0; i < size; i++) {
-            if(rect.contains(r[i])) {
+            if(isContained(rMin, rMax, i)) {
                 if(entry[i].equals(t)) {
                     return true;
                 }
@@ -309,13 +424,158 @@ abstract class Leaf<T> implements Node<T> {
 
     }
 
+    /**
+     * @return number of dimensions of the entries
+     */
+    protected final int getNDim() {
+        return min != null ? min.length/mMax : ((HyperRect) entry[0]).getNDim();
+    }
+
+    /**
+     * @return min of entry i in dimension d
+     */
+    protected final double getMin(final int d, final int i) {
+        return min != null ? min[d*mMax + i] : ((HyperRect) entry[i]).getMinCoord(d);
+    }
+
+    /**
+     * @return max of entry i in dimension d
+     */
+    protected final double getMax(final int d, final int i) {
+        return max != null ? max[d*mMax + i] : ((HyperRect) entry[i]).getMaxCoord(d);
+    }
+
+    /**
+     * Build the bounding rects of the entries
+     *
+     * @param n - length of the result, at least size
+     * @return bounding rect of each entry, followed by n - size nulls
+     */
+    protected final HyperRect[] getBounds(final int n) {
+        final HyperRect[] rects = new HyperRect[n];
+        for(int i = 0; i < size; i++) {
+            rects[i] = builder.getBBox(entry[i]);
+        }
+        return rects;
+    }
+
+    /**
+     * @return cost of the bounds of entry i, as HyperRect.cost()
+     */
+    protected final double cost(final int i) {
+        double cost = 1.0;
+        for(int d = 0; d < getNDim(); d++) {
+            cost *= getMax(d, i) - getMin(d, i);
+        }
+        return Math.abs(cost);
+    }
+
+    /**
+     * @return cost of the mbr of entries i and j, as HyperRect.cost()
+     */
+    protected final double cost(final int i, final int j) {
+        double cost = 1.0;
+        for(int d = 0; d < getNDim(); d++) {
+            cost *= Math.max(getMax(d, i), getMax(d, j)) - Math.min(getMin(d, i), getMin(d, j));
+        }
+        return Math.abs(cost);
+    }
+
+    /**
+     * Copy the bounds of rect, the bounding box of entry i, into the arrays
+     *
+     * Entries that are their own bounding box, such as Rect2d, are not copied while all of them are,
+     * so their bounds are not held twice.
+     */
+    private void setBound(final int i, final HyperRect rect) {
+        final int nD = rect.getNDim();
+        if(min == null) {
+            if(rect == entry[i]) {
+                return;
+            }
+            allocateBounds(nD, i);
+        }
+        for(int d = 0; d < nD; d++) {
+            min[d*mMax + i] = rect.getMinCoord(d);
+            max[d*mMax + i] = rect.getMaxCoord(d);
+        }
+    }
+
+    // allocate the arrays and copy the bounds of the entries so far, other than entry skip, which were their own bounding boxes
+    private void allocateBounds(final int nD, final int skip) {
+        min = new double[nD*mMax];
+        max = new double[nD*mMax];
+        for(int k = 0; k < size; k++) {
+            if(k != skip) {
+                final HyperRect rect = (HyperRect) entry[k];
+                for(int d = 0; d < nD; d++) {
+                    min[d*mMax + k] = rect.getMinCoord(d);
+                    max[d*mMax + k] = rect.getMaxCoord(d);
+                }
+            }
+        }
+    }
+
+    // true if entry i lies within rMin, rMax
+    boolean isContained(final double[] rMin, final double[] rMax, final int i) {
+        if(min == null) {
+            final HyperRect r = (HyperRect) entry[i];
+            for(int d = 0; d < rMin.length; d++) {
+                if(r.getMinCoord(d) < rMin[d] || r.getMaxCoord(d) > rMax[d]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        for(int d = 0; d < rMin.length; d++) {
+            if(min[d*mMax + i] < rMin[d] || max[d*mMax + i] > rMax[d]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // true if entry i overlaps rMin, rMax
+    boolean isIntersecting(final double[] rMin, final double[] rMax, final int i) {
+        if(min == null) {
+            final HyperRect r = (HyperRect) entry[i];
+            for(int d = 0; d < rMin.length; d++) {
+                if(r.getMinCoord(d) > rMax[d] || r.getMaxCoord(d) < rMin[d]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        for(int d = 0; d < rMin.length; d++) {
+            if(min[d*mMax + i] > rMax[d] || max[d*mMax + i] < rMin[d]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static double[] minCoords(final HyperRect rect) {
+        final double[] x = new double[rect.getNDim()];
+        for(int d = 0; d < x.length; d++) {
+            x[d] = rect.getMinCoord(d);
+        }
+        return x;
+    }
+
+    static double[] maxCoords(final HyperRect rect) {
+        final double[] x = new double[rect.getNDim()];
+        for(int d = 0; d < x.length; d++) {
+            x[d] = rect.getMaxCoord(d);
+        }
+        return x;
+    }
 
     @Override
     public String toString() {
         final StringBuilder sb = new StringBuilder(128);
         sb.append(splitType.name());
         sb.append('[');
-        sb.append(mbr);
+        sb.append(getBound());
         sb.append(']');
 
         return sb.toString();
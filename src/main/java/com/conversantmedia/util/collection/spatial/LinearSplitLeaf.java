@@ -40,7 +40,7 @@ final class LinearSplitLeaf<T> extends Leaf<T> {
         final int MIN = 0;
         final int MAX = 1;
         final int NRANGE = 2;
-        final int nD = r[0].getNDim();
+        final int nD = getNDim();
         final int[][][] rIndex = new int[nD][NRANGE][NRANGE];
         // separation between min and max extremes
         final double[] separation = new double[nD];
@@ -53,28 +53,28 @@ final class LinearSplitLeaf<T> extends Leaf<T> {
             rIndex[d][MAX][MAX] = 0;
 
             for(int j = 1; j < size; j++) {
-                if(r[rIndex[d][MIN][MIN]].getMin().getCoord(d).compareTo(r[j].getMin().getCoord(d)) > 0) {
+                if(getMin(d, rIndex[d][MIN][MIN]) > getMin(d, j)) {
                     rIndex[d][MIN][MIN] = j;
                 }
 
-                if(r[rIndex[d][MIN][MAX]].getMin().getCoord(d).compareTo(r[j].getMin().getCoord(d)) < 0) {
+                if(getMin(d, rIndex[d][MIN][MAX]) < getMin(d, j)) {
                     rIndex[d][MIN][MAX] = j;
                 }
 
-                if(r[rIndex[d][MAX][MIN]].getMax().getCoord(d).compareTo(r[j].getMax().getCoord(d)) > 0) {
+                if(getMax(d, rIndex[d][MAX][MIN]) > getMax(d, j)) {
                     rIndex[d][MAX][MIN] = j;
                 }
 
-                if(r[rIndex[d][MAX][MAX]].getMax().getCoord(d).compareTo(r[j].getMax().getCoord(d)) < 0) {
+                if(getMax(d, rIndex[d][MAX][MAX]) < getMax(d, j)) {
                     rIndex[d][MAX][MAX] = j;
                 }
             }
 
             // highest max less lowest min
-            final double width = r[rIndex[d][MAX][MAX]].getMax().distance(r[rIndex[d][MIN][MIN]].getMin(), d);
+            final double width = Math.abs(getMax(d, rIndex[d][MAX][MAX]) - getMin(d, rIndex[d][MIN][MIN]));
 
             // lowest max less highest min (normalized)
-            separation[d] = r[rIndex[d][MAX][MIN]].getMax().distance(r[rIndex[d][MIN][MAX]].getMin(), d) / width;
+            separation[d] = Math.abs(getMax(d, rIndex[d][MAX][MIN]) - getMin(d, rIndex[d][MIN][MAX])) / width;
         }
 
         int r1Ext = rIndex[0][MAX][MIN], r2Ext = rIndex[0][MIN][MAX];
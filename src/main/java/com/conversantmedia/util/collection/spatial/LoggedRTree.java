@@ -0,0 +1,494 @@
+package com.conversantmedia.util.collection.spatial;
+
+/*
+ * #%L
+ * Conversant RTree
+ * ~~
+ * Conversantmedia.com © 2016, Conversant, Inc. Conversant® is a trademark of Conversant, Inc.
+ * ~~
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+/**
+ * Locked R-Tree that records every add, remove and update in an append only log before applying
+ * it, see {@link SpatialSearches#loggedRTree(RectBuilder, Path, EntryCodec, boolean)}
+ *
+ * <pre>
+ * rtree.log          records of length, CRC32 of the payload, then the payload:
+ *                    sequence number, operation and the entries written by the codec
+ * rtree.checkpoint   magic, sequence number of the last record applied, then the tree as
+ *                    written by {@link RTree#writeTo(OutputStream, EntryCodec)}
+ * </pre>
+ *
+ * Opening the directory restores the checkpoint and replays the records that follow it, a record
+ * torn by a crash ends the replay and is cut from the log.  {@link #checkpoint()} replaces the
+ * checkpoint and empties the log, so recovery only replays what changed since.
+ *
+ * Records are buffered in memory and written and forced to the device in groups.  With syncOnWrite
+ * a change returns once its record is durable, and whichever waiting writer is first forces the
+ * records of every writer behind it with a single fsync.  Without it records are forced when
+ * enough have gathered, on {@link #sync()} and on close, so a crash may lose the changes since.
+ *
+ * A change is applied to the tree when its record is appended, before the record is durable, so
+ * group commit can gather the records of many writers.  Readers may therefore see a change that a
+ * crash would lose, even with syncOnWrite, until the writer that made it returns.  Once a write to
+ * the log fails the tree stops taking changes, every later add, remove or update throws.
+ */
+public final class LoggedRTree<T> extends ConcurrentRTree<T> implements Closeable {
+
+    static final String LOG_FILE = "rtree.log";
+
+    static final String CHECKPOINT_FILE = "rtree.checkpoint";
+
+    static final int CHECKPOINT_MAGIC = 0x52545243;
+
+    // without syncOnWrite, records are forced once this many bytes are waiting
+    static final int GROUP_COMMIT_BYTES = 64*1024;
+
+    private static final byte ADD = 1;
+
+    private static final byte REMOVE = 2;
+
+    private static final byte UPDATE = 3;
+
+    private final RTree<T> rTree;
+
+    private final Lock writeLock;
+
+    private final Path dir;
+
+    private final EntryCodec<T> codec;
+
+    private final boolean syncOnWrite;
+
+    private final FileChannel log;
+
+    // encodes one record at a time, guarded by the write lock
+    private final ByteArrayOutputStream record = new ByteArrayOutputStream();
+
+    private final DataOutputStream recordOut = new DataOutputStream(record);
+
+    private final CRC32 crc = new CRC32();
+
+    // sequence number of the last record appended, guarded by the write lock
+    private long lastSeq;
+
+    // set by close, guarded by the write lock
+    private boolean closed;
+
+    private final ReentrantLock syncLock = new ReentrantLock();
+
+    private final Condition synced = syncLock.newCondition();
+
+    // the rest are guarded by syncLock
+
+    // records appended but not yet written to the log
+    private ByteArrayOutputStream pending = new ByteArrayOutputStream();
+
+    private long pendingSeq;
+
+    private long syncedSeq;
+
+    private boolean syncing;
+
+    private IOException failure;
+
+    private LoggedRTree(final RTree<T> rTree, final ReadWriteLock lock, final Path dir, final EntryCodec<T> codec,
+                        final boolean syncOnWrite, final FileChannel log, final long lastSeq) {
+        super(rTree, lock);
+        this.rTree = rTree;
+        this.writeLock = lock.writeLock();
+        this.dir = dir;
+        this.codec = codec;
+        this.syncOnWrite = syncOnWrite;
+        this.log = log;
+        this.lastSeq = lastSeq;
+        this.pendingSeq = lastSeq;
+        this.syncedSeq = lastSeq;
+    }
+
+    /**
+     * Open the log in a directory, restoring the checkpoint and replaying the log if they exist
+     *
+     * @param builder - builder for the entry type
+     * @param dir - directory for the log and checkpoint, created if needed
+     * @param mMin - minimum fill of a new tree
+     * @param mMax - maximum fill of a new tree
+     * @param splitType - split type of a new tree
+     * @param codec - reads and writes entries
+     * @param syncOnWrite - true if each change must be durable before it returns
+     * @return the tree as of the last durable record
+     * @throws IOException if the files can not be read or the checkpoint is not valid
+     */
+    static <T> LoggedRTree<T> open(final RectBuilder<T> builder, final Path dir, final int mMin, final int mMax, final RTree.Split splitType,
+                                   final EntryCodec<T> codec, final boolean syncOnWrite) throws IOException {
+        Files.createDirectories(dir);
+
+        final RTree<T> rTree;
+        final long checkpointSeq;
+        final Path checkpoint = dir.resolve(CHECKPOINT_FILE);
+        if(Files.exists(checkpoint)) {
+            try(final InputStream in = Files.newInputStream(checkpoint)) {
+                final DataInputStream data = new DataInputStream(in);
+                if(data.readInt() != CHECKPOINT_MAGIC) {
+                    throw new IOException("Not an RTree checkpoint: " + checkpoint);
+                }
+                checkpointSeq = data.readLong();
+                rTree = RTreeSerializer.read(in, builder, codec);
+            }
+        } else {
+            checkpointSeq = 0;
+            rTree = new RTree<>(builder, mMin, mMax, splitType);
+        }
+
+        final FileChannel log = FileChannel.open(dir.resolve(LOG_FILE), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            final long lastSeq = replay(log, rTree, codec, checkpointSeq);
+            return new LoggedRTree<>(rTree, new ReentrantReadWriteLock(true), dir, codec, syncOnWrite, log, lastSeq);
+        } catch(IOException | RuntimeException e) {
+            log.close();
+            throw e;
+        }
+    }
+
+    // apply the records after checkpointSeq, cut any torn record from the end and leave the log positioned to append
+    private static <T> long replay(final FileChannel log, final RTree<T> rTree, final EntryCodec<T> codec, final long checkpointSeq) throws IOException {
+        final DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(log.position(0)), GROUP_COMMIT_BYTES));
+        final CRC32 crc = new CRC32();
+        final long size = log.size();
+        long end = 0;
+        long lastSeq = checkpointSeq;
+
+        while(end + 8 <= size) {
+            final int length = in.readInt();
+            final int checksum = in.readInt();
+            if(length < 9 || end + 8 + length > size) {
+                break;
+            }
+            final byte[] payload = new byte[length];
+            in.readFully(payload);
+            crc.reset();
+            crc.update(payload, 0, length);
+            if((int) crc.getValue() != checksum) {
+                break;
+            }
+
+            final DataInputStream data = new DataInputStream(new ByteArrayInputStream(payload));
+            final long seq = data.readLong();
+            final byte op = data.readByte();
+            if(seq > checkpointSeq) {
+                switch(op) {
+                    case ADD:
+                        rTree.add(codec.read(data));
+                        break;
+                    case REMOVE:
+                        rTree.remove(codec.read(data));
+                        break;
+                    case UPDATE:
+                        rTree.update(codec.read(data), codec.read(data));
+                        break;
+                    default:
+                        throw new IOException("Unknown operation " + op + " in RTree log record " + seq);
+                }
+                lastSeq = seq;
+            }
+            end += 8 + length;
+        }
+
+        log.truncate(end);
+        log.position(end);
+        return lastSeq;
+    }
+
+    /**
+     * Blocking locked add, logged before it is applied
+     *
+     * Readers may see the entry before its record is durable.
+     *
+     * @param t - entry to add
+     *
+     * @throws UncheckedIOException if the log is closed or can not be written, now or by an earlier change
+     */
+    @Override
+    public void add(final T t) {
+        final long seq;
+        writeLock.lock();
+        try {
+            seq = append(ADD, t, null);
+            modified();
+            rTree.add(t);
+        } finally {
+            writeLock.unlock();
+        }
+        commit(seq);
+    }
+
+    /**
+     * Blocking locked remove, logged before it is applied
+     *
+     * Readers may see the removal before its record is durable.
+     *
+     * @param t - entry to remove
+     *
+     * @throws UncheckedIOException if the log is closed or can not be written, now or by an earlier change
+     */
+    @Override
+    public void remove(final T t) {
+        final long seq;
+        writeLock.lock();
+        try {
+            seq = append(REMOVE, t, null);
+            modified();
+            rTree.remove(t);
+        } finally {
+            writeLock.unlock();
+        }
+        commit(seq);
+    }
+
+    /**
+     * Blocking locked update, logged before it is applied
+     *
+     * Readers may see the update before its record is durable.
+     *
+     * @param told - entry to update
+     * @param tnew - entry with new value
+     *
+     * @throws UncheckedIOException if the log is closed or can not be written, now or by an earlier change
+     */
+    @Override
+    public void update(final T told, final T tnew) {
+        final long seq;
+        writeLock.lock();
+        try {
+            seq = append(UPDATE, told, tnew);
+            modified();
+            rTree.update(told, tnew);
+        } finally {
+            writeLock.unlock();
+        }
+        commit(seq);
+    }
+
+    /**
+     * Write and force every record appended so far
+     *
+     * @throws IOException if the log can not be written
+     */
+    public void sync() throws IOException {
+        final long seq;
+        syncLock.lock();
+        try {
+            seq = pendingSeq;
+        } finally {
+            syncLock.unlock();
+        }
+        force(seq);
+    }
+
+    /**
+     * Replace the checkpoint with the current tree and empty the log
+     *
+     * Changes wait until the checkpoint is written, queries go on as usual.
+     *
+     * @throws IOException if the checkpoint can not be written
+     */
+    public void checkpoint() throws IOException {
+        writeLock.lock();
+        try {
+            sync();
+
+            final Path tmp = dir.resolve(CHECKPOINT_FILE + ".tmp");
+            try(final FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                final OutputStream out = Channels.newOutputStream(channel);
+                final DataOutputStream data = new DataOutputStream(out);
+                data.writeInt(CHECKPOINT_MAGIC);
+                data.writeLong(lastSeq);
+                rTree.writeTo(out, codec);
+                channel.force(true);
+            }
+            // records up to lastSeq are skipped on replay, so a crash before the log is emptied is harmless
+            Files.move(tmp, dir.resolve(CHECKPOINT_FILE), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            // the rename must be durable before the records it covers are dropped
+            try(final FileChannel directory = FileChannel.open(dir, StandardOpenOption.READ)) {
+                directory.force(true);
+            }
+
+            log.truncate(0);
+            log.force(true);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Sync and close the log, the tree can not be changed afterwards
+     *
+     * @throws IOException if the log can not be written
+     */
+    @Override
+    public void close() throws IOException {
+        writeLock.lock();
+        try {
+            closed = true;
+            sync();
+        } finally {
+            log.close();
+            writeLock.unlock();
+        }
+    }
+
+    // encode a record and queue it to be written, called with the write lock held before the change is applied
+    private long append(final byte op, final T t1, final T t2) {
+        if(closed) {
+            throw new UncheckedIOException(new ClosedChannelException());
+        }
+        syncLock.lock();
+        try {
+            if(failure != null) {
+                // records after a lost batch could never be replayed
+                throw new UncheckedIOException(new IOException("RTree log failed", failure));
+            }
+        } finally {
+            syncLock.unlock();
+        }
+
+        final long seq = lastSeq + 1;
+        record.reset();
+        try {
+            recordOut.writeLong(seq);
+            recordOut.writeByte(op);
+            codec.write(t1, recordOut);
+            if(t2 != null) {
+                codec.write(t2, recordOut);
+            }
+        } catch(IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        lastSeq = seq;
+
+        crc.reset();
+        final byte[] payload = record.toByteArray();
+        crc.update(payload, 0, payload.length);
+
+        syncLock.lock();
+        try {
+            final DataOutputStream out = new DataOutputStream(pending);
+            out.writeInt(payload.length);
+            out.writeInt((int) crc.getValue());
+            out.write(payload);
+            pendingSeq = seq;
+        } catch(IOException e) {
+            // not possible, the stream is in memory
+            throw new UncheckedIOException(e);
+        } finally {
+            syncLock.unlock();
+        }
+        return seq;
+    }
+
+    // make the record durable if required
+    private void commit(final long seq) {
+        final boolean isDue;
+        syncLock.lock();
+        try {
+            isDue = syncOnWrite || pending.size() >= GROUP_COMMIT_BYTES;
+        } finally {
+            syncLock.unlock();
+        }
+
+        if(isDue) {
+            try {
+                force(seq);
+            } catch(IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    /**
+     * Group commit - the first writer to find no sync running writes and forces every record
+     * appended so far, the others wait for it and return if their record was included
+     */
+    private void force(final long seq) throws IOException {
+        syncLock.lock();
+        try {
+            while(syncedSeq < seq) {
+                if(failure != null) {
+                    throw new IOException("RTree log failed", failure);
+                }
+                if(syncing) {
+                    synced.awaitUninterruptibly();
+                    continue;
+                }
+
+                syncing = true;
+                final ByteArrayOutputStream batch = pending;
+                final long batchSeq = pendingSeq;
+                pending = new ByteArrayOutputStream(Math.max(32, batch.size()));
+
+                // writers go on appending while this batch is written
+                IOException error = null;
+                syncLock.unlock();
+                try {
+                    final ByteBuffer b = ByteBuffer.wrap(batch.toByteArray());
+                    while(b.hasRemaining()) {
+                        log.write(b);
+                    }
+                    log.force(false);
+                } catch(IOException e) {
+                    error = e;
+                } finally {
+                    syncLock.lock();
+                    syncing = false;
+                    synced.signalAll();
+                }
+
+                if(error != null) {
+                    // the batch is lost, so no later record can be made durable either
+                    failure = error;
+                    throw error;
+                }
+                syncedSeq = batchSeq;
+            }
+        } finally {
+            syncLock.unlock();
+        }
+    }
+}
@@ -0,0 +1,233 @@
+package com.conversantmedia.util.collection.spatial;
+
+/*
+ * #%L
+ * Conversant RTree
+ * ~~
+ * Conversantmedia.com © 2016, Conversant, Inc. Conversant® is a trademark of Conversant, Inc.
+ * ~~
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.function.LongFunction;
+import java.util.function.ToLongFunction;
+
+/**
+ * Packed R-Tree read directly from a memory mapped file, see {@link RTree#writePacked(Path, ToLongFunction)}
+ *
+ * The file is laid out in pages so that each section can be mapped and read in place:
+ *
+ * <pre>
+ * page 0           header: magic, version, nD, mMin, mMax, split, node count, entry count
+ * child section    int per node plus one, children of node k are slots child[k] until child[k+1]
+ * bounds section   2*nD doubles per slot, the min then the max of each dimension
+ * id section       long id per entry
+ * </pre>
+ *
+ * Every section begins on a page boundary and all values are little endian.  Opening a file reads
+ * only the header, the rest is faulted in by the OS as queries touch it and is shared through the
+ * page cache with any other process that maps the same file.
+ */
+final class MappedRTree<T> extends PackedRTree<T> {
+
+    static final int MAGIC = 0x52545245;
+
+    static final int VERSION = 1;
+
+    static final int PAGE_SIZE = 4096;
+
+    static final ByteOrder BYTE_ORDER = ByteOrder.LITTLE_ENDIAN;
+
+    private static final int HEADER_SIZE = 32;
+
+    private final ToLongFunction<T> id;
+
+    private final LongFunction<T> lookup;
+
+    private final SegmentedBuffer file;
+
+    private final long childOffset;
+
+    private final long boundsOffset;
+
+    private final long idOffset;
+
+    private MappedRTree(final RectBuilder<T> builder, final int mMin, final int mMax, final RTree.Split splitType,
+                        final int nD, final int nodeCount, final int entryCount,
+                        final SegmentedBuffer file, final ToLongFunction<T> id, final LongFunction<T> lookup) {
+        super(builder, mMin, mMax, splitType, nD, nodeCount, entryCount);
+        this.id = id;
+        this.lookup = lookup;
+        this.file = file;
+        this.childOffset = PAGE_SIZE;
+        this.boundsOffset = pageAlign(childOffset + childSize(nodeCount));
+        this.idOffset = pageAlign(boundsOffset + boundsSize(nD, nodeCount, entryCount));
+    }
+
+    /**
+     * Write the packed form of a tree to a file, replacing anything already there
+     *
+     * The tree is written to a temporary file in the same directory, which is forced and then
+     * renamed over the file, so a crash or error leaves either the old file or the new one.
+     *
+     * @param file - file to write
+     * @param builder - builder of the tree
+     * @param mMin - minimum fill of the tree
+     * @param mMax - maximum fill of the tree
+     * @param splitType - split type of the tree
+     * @param root - root of the tree, may be null
+     * @param id - id of an entry, must be unique
+     * @throws IOException if the file can not be written
+     */
+    static <T> void write(final Path file, final RectBuilder<T> builder, final int mMin, final int mMax, final RTree.Split splitType,
+                          final Node<T> root, final ToLongFunction<T> id) throws IOException {
+        final List<Node<T>> nodes = breadthFirst(root);
+        final int nD = nodes.isEmpty() ? 0 : nodes.get(0).getBound().getNDim();
+        final int nodeCount = nodes.size();
+        final int entryCount = entryCount(nodes);
+        final long size = fileSize(nD, nodeCount, entryCount);
+
+        final Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try(final FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            final SegmentedBuffer buffer = SegmentedBuffer.map(channel, FileChannel.MapMode.READ_WRITE, size, BYTE_ORDER, SegmentedBuffer.DEFAULT_SEGMENT_SHIFT);
+            final MappedRTree<T> tree = new MappedRTree<>(builder, mMin, mMax, splitType, nD, nodeCount, entryCount, buffer, id, null);
+            tree.pack(nodes);
+
+            buffer.putInt(0, MAGIC);
+            buffer.putInt(4, VERSION);
+            buffer.putInt(8, nD);
+            buffer.putInt(12, mMin);
+            buffer.putInt(16, mMax);
+            buffer.putInt(20, splitType.ordinal());
+            buffer.putInt(24, nodeCount);
+            buffer.putInt(28, entryCount);
+            buffer.force();
+        } catch(IOException | RuntimeException e) {
+            Files.deleteIfExists(tmp);
+            throw e;
+        }
+        Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Map a file written by {@link #write(Path, RectBuilder, int, int, RTree.Split, Node, ToLongFunction)}
+     *
+     * @param file - file to read
+     * @param builder - builder for the entry type
+     * @param lookup - entry for an id
+     * @param segmentShift - log2 of the size of each mapping
+     * @return read only tree over the file
+     * @throws IOException if the file can not be read or is not a packed tree
+     */
+    static <T> MappedRTree<T> open(final Path file, final RectBuilder<T> builder, final LongFunction<T> lookup, final int segmentShift) throws IOException {
+        try(final FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            final long size = channel.size();
+            if(size < HEADER_SIZE) {
+                throw new IOException("Not a packed RTree file: " + file);
+            }
+
+            final SegmentedBuffer buffer = SegmentedBuffer.map(channel, FileChannel.MapMode.READ_ONLY, size, BYTE_ORDER, segmentShift);
+            if(buffer.getInt(0) != MAGIC) {
+                throw new IOException("Not a packed RTree file: " + file);
+            }
+            if(buffer.getInt(4) != VERSION) {
+                throw new IOException("Unsupported packed RTree version " + buffer.getInt(4) + ": " + file);
+            }
+
+            final int nD = buffer.getInt(8);
+            final int mMin = buffer.getInt(12);
+            final int mMax = buffer.getInt(16);
+            final int split = buffer.getInt(20);
+            final int nodeCount = buffer.getInt(24);
+            final int entryCount = buffer.getInt(28);
+            if(split < 0 || split >= RTree.Split.values().length || nodeCount < 0 || entryCount < 0 || size < fileSize(nD, nodeCount, entryCount)) {
+                throw new IOException("Corrupt packed RTree file: " + file);
+            }
+            // an empty tree has no dimensions and no nodes, otherwise no node holds more than mMax
+            if(mMax < 1 || mMin < 0 || mMin > mMax || (nodeCount == 0) != (entryCount == 0) || (nD > 0) != (nodeCount > 0) ||
+                    entryCount > (long)nodeCount*mMax) {
+                throw new IOException("Corrupt packed RTree file header: " + file);
+            }
+            if(nodeCount > 0 && buffer.getInt(PAGE_SIZE + 4L*nodeCount) != nodeCount + entryCount) {
+                throw new IOException("Corrupt packed RTree file, child table does not match the header: " + file);
+            }
+
+            // the mapping stays valid after the channel is closed
+            return new MappedRTree<>(builder, mMin, mMax, RTree.Split.values()[split], nD, nodeCount, entryCount, buffer, null, lookup);
+        }
+    }
+
+    static long fileSize(final int nD, final int nodeCount, final int entryCount) {
+        final long bounds = pageAlign(PAGE_SIZE + childSize(nodeCount));
+        final long ids = pageAlign(bounds + boundsSize(nD, nodeCount, entryCount));
+        return pageAlign(ids + 8L*entryCount);
+    }
+
+    private static long childSize(final int nodeCount) {
+        return 4L*(nodeCount + 1);
+    }
+
+    private static long boundsSize(final int nD, final int nodeCount, final int entryCount) {
+        return 8L*((long)nodeCount + entryCount)*2*nD;
+    }
+
+    private static long pageAlign(final long offset) {
+        return (offset + PAGE_SIZE - 1) & -PAGE_SIZE;
+    }
+
+    @Override
+    protected int child(final int k) {
+        return file.getInt(childOffset + 4L*k);
+    }
+
+    @Override
+    protected double getMin(final int s, final int d) {
+        return file.getDouble(boundsOffset + 8L*((long)s*2*nD + d));
+    }
+
+    @Override
+    protected double getMax(final int s, final int d) {
+        return file.getDouble(boundsOffset + 8L*((long)s*2*nD + nD + d));
+    }
+
+    @Override
+    protected T getEntry(final int i) {
+        return lookup.apply(file.getLong(idOffset + 8L*i));
+    }
+
+    @Override
+    protected void setChild(final int k, final int s) {
+        file.putInt(childOffset + 4L*k, s);
+    }
+
+    @Override
+    protected void setBound(final int s, final int d, final double min, final double max) {
+        file.putDouble(boundsOffset + 8L*((long)s*2*nD + d), min);
+        file.putDouble(boundsOffset + 8L*((long)s*2*nD + nD + d), max);
+    }
+
+    @Override
+    protected void setEntry(final int i, final T t) {
+        file.putLong(idOffset + 8L*i, id.applyAsLong(t));
+    }
+}
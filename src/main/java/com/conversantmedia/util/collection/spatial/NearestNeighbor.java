@@ -0,0 +1,174 @@
+package com.conversantmedia.util.collection.spatial;
+
+/*
+ * #%L
+ * Conversant RTree
+ * ~~
+ * Conversantmedia.com © 2016, Conversant, Inc. Conversant® is a trademark of Conversant, Inc.
+ * ~~
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.function.Consumer;
+
+/**
+ * Best first nearest neighbor search - Hjaltason, Samet
+ *
+ * Nodes and entries are kept in a single priority queue ordered by their minimum distance (MINDIST)
+ * to the query point.  A node is only expanded when it reaches the head of the queue, at which point
+ * no unexpanded part of the tree can hold anything closer, so entries leave the queue in order of
+ * increasing distance and only the nodes that are needed to prove it are visited.
+ *
+ * As an iterator the search is incremental (distance browsing), nodes are expanded only as the
+ * caller pulls more entries.
+ */
+final class NearestNeighbor<T> implements Iterator<T> {
+
+    private final HyperPoint p;
+
+    private final PriorityQueue<Candidate<T>> queue = new PriorityQueue<>();
+
+    NearestNeighbor(final HyperPoint p, final Node<T> root) {
+        this.p = p;
+        if(root != null) {
+            add(root);
+        }
+    }
+
+    /**
+     * Queue a node to be expanded
+     *
+     * @param node - child node
+     */
+    void add(final Node<T> node) {
+        add(node, distanceSq(p, node.getBound()));
+    }
+
+    /**
+     * Queue a node to be expanded
+     *
+     * @param node - child node
+     * @param distSq - square of the minimum distance from the query point to the node bound
+     */
+    void add(final Node<T> node, final double distSq) {
+        queue.add(new Candidate<>(distSq, node, null));
+    }
+
+    /**
+     * Queue a data entry
+     *
+     * @param t - entry
+     * @param distSq - square of the minimum distance from the query point to the entry
+     */
+    void add(final T t, final double distSq) {
+        queue.add(new Candidate<>(distSq, null, t));
+    }
+
+    /**
+     * @return query point
+     */
+    HyperPoint getPoint() {
+        return p;
+    }
+
+    /**
+     * Give the next nearest entries to consumer, in order of increasing distance
+     *
+     * @param k - maximum number of entries
+     * @param consumer - receives the entries
+     * @return number of entries found
+     */
+    int next(final int k, final Consumer<T> consumer) {
+        int n = 0;
+        while(n < k && hasNext()) {
+            consumer.accept(next());
+            n++;
+        }
+        return n;
+    }
+
+    /**
+     * Expand nodes until the nearest remaining candidate is an entry
+     *
+     * @return true if there are entries remaining
+     */
+    @Override
+    public boolean hasNext() {
+        Candidate<T> c = queue.peek();
+        while(c != null && c.node != null) {
+            queue.poll();
+            c.node.nearest(this);
+            c = queue.peek();
+        }
+        return c != null;
+    }
+
+    @Override
+    public T next() {
+        if(!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        return queue.poll().entry;
+    }
+
+    /**
+     * Square of the minimum distance from the point to any part of the rect, 0 if the point is inside it
+     *
+     * @param p - point
+     * @param r - rect
+     * @return MINDIST squared
+     */
+    static double distanceSq(final HyperPoint p, final HyperRect r) {
+        double dist = 0.0;
+        for(int d = 0; d < p.getNDim(); d++) {
+            final double x = p.getDoubleCoord(d);
+            final double lo = r.getMinCoord(d);
+            final double hi = r.getMaxCoord(d);
+            if(x < lo) {
+                dist += (lo - x)*(lo - x);
+            } else if(x > hi) {
+                dist += (x - hi)*(x - hi);
+            }
+        }
+        return dist;
+    }
+
+    private static final class Candidate<T> implements Comparable<Candidate<T>> {
+        private final double dist;
+        private final Node<T> node;
+        private final T entry;
+
+        Candidate(final double dist, final Node<T> node, final T entry) {
+            this.dist = dist;
+            this.node = node;
+            this.entry = entry;
+        }
+
+        @Override
+        public int compareTo(final Candidate<T> o) {
+            final int c = Double.compare(dist, o.dist);
+            if(c == 0) {
+                // entries first, there is nothing to gain by expanding a node at the same distance
+                if(node == null) {
+                    return o.node == null ? 0 : -1;
+                }
+                return o.node == null ? 1 : 0;
+            }
+            return c;
+        }
+    }
+}
@@ -20,10 +20,14 @@ package com.conversantmedia.util.collection.spatial;
  * #L%
  */
 
+import java.util.List;
 import java.util.function.Consumer;
 
 /**
  * Created by jcairns on 4/30/15.
+ *
+ * Query rects are passed as the arrays rMin and rMax, the min and max of each dimension, built once
+ * by the tree rather than by each node visited.
  */
 interface Node<T> {
 
@@ -47,66 +51,97 @@ interface Node<T> {
     /**
      * Remove t from the index
      *
+     * Child nodes left with fewer than mMin entries are dissolved, their entries are
+     * handed back to be reinserted from the root.
+     *
      * @param t - value to remove from index
+     * @param tMin - min of each dimension of the bounding box of t
+     * @param tMax - max of each dimension of the bounding box of t
+     * @param orphans - receives entries of dissolved nodes
+     * @return this node, or null if it is now empty
      */
-    Node<T> remove(T t);
+    Node<T> remove(T t, double[] tMin, double[] tMax, List<T> orphans);
 
     /**
      * update an existing t in the index
      *
      * @param told - old index to be updated
+     * @param tMin - min of each dimension of the bounding box of told
+     * @param tMax - max of each dimension of the bounding box of told
      * @param tnew - value to update old index to
      */
-    Node<T> update(T told, T tnew);
+    Node<T> update(T told, double[] tMin, double[] tMax, T tnew);
 
     /**
      * Search for rect within this node
      *
-     * @param rect - HyperRect to search for
+     * @param rMin - min of each dimension of the rect to search for
+     * @param rMax - max of each dimension of the rect to search for
      * @param t - array of found results
      * @param n - total result count so far (from recursive call)
      * @return result count from search of this node
      */
-    int search(HyperRect rect, T[] t, int n);
+    int search(double[] rMin, double[] rMax, T[] t, int n);
 
     /**
      * Visitor pattern:
      *
      * Consumer "accepts" every node contained by the given rect
      *
-     * @param rect - limiting rect
+     * @param rMin - min of each dimension of the limiting rect
+     * @param rMax - max of each dimension of the limiting rect
      * @param consumer
      */
-    void search(HyperRect rect, Consumer<T> consumer);
+    void search(double[] rMin, double[] rMax, Consumer<T> consumer);
 
     /**
      * intersect rect with this node
      *
-     * @param rect - HyperRect to search for
+     * @param rMin - min of each dimension of the rect to search for
+     * @param rMax - max of each dimension of the rect to search for
      * @param t - array of found results
      * @param n - total result count so far (from recursive call)
      * @return result count from search of this node
      */
-    int intersects(HyperRect rect, T[] t, int n);
+    int intersects(double[] rMin, double[] rMax, T[] t, int n);
 
     /**
      * Visitor pattern:
      *
      * Consumer "accepts" every node intersecting the given rect
      *
-     * @param rect - limiting rect
+     * @param rMin - min of each dimension of the limiting rect
+     * @param rMax - max of each dimension of the limiting rect
      * @param consumer
      */
-    void intersects(HyperRect rect, Consumer<T> consumer);
+    void intersects(double[] rMin, double[] rMax, Consumer<T> consumer);
+
+    /**
+     * Count the entries contained by rect
+     *
+     * @param rMin - min of each dimension of the limiting rect
+     * @param rMax - max of each dimension of the limiting rect
+     * @return number of entries of this node contained by rect
+     */
+    int count(double[] rMin, double[] rMax);
+
+    /**
+     * Expand this node for a nearest neighbor search, queuing every child
+     * node or data entry by its distance to the query point
+     *
+     * @param nn - nearest neighbor search in progress
+     */
+    void nearest(NearestNeighbor<T> nn);
 
 
     /**
      *
-     * @param rect
+     * @param rMin - min of each dimension of the bounding box of t
+     * @param rMax - max of each dimension of the bounding box of t
      * @param t
      * @return boolean true if subtree contains t
      */
-    boolean contains(HyperRect rect, T t);
+    boolean contains(double[] rMin, double[] rMax, T t);
 
     /**
      * The number of entries in the node
@@ -137,6 +172,22 @@ interface Node<T> {
      */
     void collectStats(Stats stats, int depth);
 
+    /**
+     * Shallow copy of this node that can be changed without changing this node, see CopyOnWriteRTree
+     *
+     * Children are shared with this node, a copied branch copies each child in turn before it
+     * changes it, unless the child was already copied in the same generation.
+     *
+     * @param gen - generation of the change the copy is made for, greater than 0
+     * @return copy of this node
+     */
+    Node<T> copy(long gen);
+
+    /**
+     * @return generation this node was copied in, 0 if it is not a copy
+     */
+    long getGen();
+
     /**
      * Visits node, wraps it in an instrumented node, (see CounterNode)
      *
@@ -0,0 +1,201 @@
+package com.conversantmedia.util.collection.spatial;
+
+/*
+ * #%L
+ * Conversant RTree
+ * ~~
+ * Conversantmedia.com © 2016, Conversant, Inc. Conversant® is a trademark of Conversant, Inc.
+ * ~~
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+
+/**
+ * Spliterator over the entries of a tree, all of them or those found by a search or intersect
+ *
+ * Subtrees still to be visited are kept in order, a branch is replaced by its children that
+ * intersect the query when it is reached.  A split hands off the first half of the subtrees, so
+ * parallel streams divide the tree along branch children.  Sizes are estimated from the entry
+ * counts of the subtrees, which are exact when every entry is visited.
+ *
+ * The tree must not be changed while the spliterator is in use.
+ */
+final class NodeSpliterator<T> implements Spliterator<T> {
+
+    // query, null for every entry
+    private final HyperRect rect;
+
+    private final double[] rMin;
+
+    private final double[] rMax;
+
+    // true for search, entries contained by rect, false for intersects
+    private final boolean contained;
+
+    // subtrees still to visit, next first
+    private final ArrayDeque<Node<T>> nodes;
+
+    // leaf in progress and the index of its next entry
+    private Leaf<T> leaf;
+
+    private int next;
+
+    // entries of a node that is neither leaf nor branch, such as an instrumented node
+    private List<T> buffered;
+
+    NodeSpliterator(final Node<T> root, final HyperRect rect, final boolean contained) {
+        this(rect, rect == null ? null : Leaf.minCoords(rect), rect == null ? null : Leaf.maxCoords(rect), contained, new ArrayDeque<>());
+        if(root != null) {
+            nodes.add(root);
+        }
+    }
+
+    private NodeSpliterator(final HyperRect rect, final double[] rMin, final double[] rMax, final boolean contained, final ArrayDeque<Node<T>> nodes) {
+        this.rect = rect;
+        this.rMin = rMin;
+        this.rMax = rMax;
+        this.contained = contained;
+        this.nodes = nodes;
+    }
+
+    @Override
+    public boolean tryAdvance(final Consumer<? super T> action) {
+        for(;;) {
+            if(leaf != null) {
+                while(next < leaf.size) {
+                    final int i = next++;
+                    if(rect == null || (contained ? leaf.isContained(rMin, rMax, i) : leaf.isIntersecting(rMin, rMax, i))) {
+                        action.accept(leaf.entry[i]);
+                        return true;
+                    }
+                }
+                leaf = null;
+            }
+            if(buffered != null) {
+                if(next < buffered.size()) {
+                    action.accept(buffered.get(next++));
+                    return true;
+                }
+                buffered = null;
+            }
+
+            final Node<T> node = nodes.pollFirst();
+            if(node == null) {
+                return false;
+            }
+            open(node);
+        }
+    }
+
+    @Override
+    public void forEachRemaining(final Consumer<? super T> action) {
+        // finish the leaf in progress, then search each remaining subtree directly
+        while((leaf != null || buffered != null) && tryAdvance(action)) {
+            // tryAdvance passed on the entry
+        }
+
+        final Consumer<T> consumer = action::accept;
+        Node<T> node;
+        while((node = nodes.pollFirst()) != null) {
+            if(rect == null) {
+                node.forEach(consumer);
+            } else if(contained) {
+                node.search(rMin, rMax, consumer);
+            } else {
+                node.intersects(rMin, rMax, consumer);
+            }
+        }
+    }
+
+    @Override
+    public Spliterator<T> trySplit() {
+        // open a lone branch so there are subtrees to divide
+        while(leaf == null && buffered == null && nodes.size() == 1 && nodes.peekFirst() instanceof Branch) {
+            open(nodes.pollFirst());
+        }
+
+        final boolean inProgress = leaf != null || buffered != null;
+        final int parts = nodes.size() + (inProgress ? 1 : 0);
+        if(parts < 2) {
+            return null;
+        }
+
+        // the prefix takes the first half, including the leaf in progress
+        final ArrayDeque<Node<T>> prefixNodes = new ArrayDeque<>();
+        for(int i = inProgress ? 1 : 0; i < parts/2; i++) {
+            prefixNodes.add(nodes.pollFirst());
+        }
+        final NodeSpliterator<T> prefix = new NodeSpliterator<>(rect, rMin, rMax, contained, prefixNodes);
+        prefix.leaf = leaf;
+        prefix.buffered = buffered;
+        prefix.next = next;
+        leaf = null;
+        buffered = null;
+        next = 0;
+        return prefix;
+    }
+
+    /**
+     * Entries in the remaining subtrees, exact when visiting every entry, otherwise an upper bound
+     */
+    @Override
+    public long estimateSize() {
+        long n = 0;
+        if(leaf != null) {
+            n += leaf.size - next;
+        }
+        if(buffered != null) {
+            n += buffered.size() - next;
+        }
+        for(final Node<T> node : nodes) {
+            n += node.totalSize();
+        }
+        return n;
+    }
+
+    @Override
+    public int characteristics() {
+        return rect == null ? ORDERED | NONNULL | SIZED | SUBSIZED : ORDERED | NONNULL;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void open(final Node<T> node) {
+        next = 0;
+        if(node instanceof Leaf) {
+            leaf = (Leaf<T>) node;
+        } else if(node instanceof Branch) {
+            final Branch<T> branch = (Branch<T>) node;
+            final Node<T>[] child = branch.getChildren();
+            for(int i = branch.size() - 1; i >= 0; i--) {
+                if(rect == null || branch.isIntersecting(rMin, rMax, i)) {
+                    nodes.addFirst(child[i]);
+                }
+            }
+        } else {
+            buffered = new ArrayList<>();
+            if(rect == null) {
+                node.forEach(buffered::add);
+            } else if(contained) {
+                node.search(rMin, rMax, buffered::add);
+            } else {
+                node.intersects(rMin, rMax, buffered::add);
+            }
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package com.conversantmedia.util.collection.spatial;
+
+/*
+ * #%L
+ * Conversant RTree
+ * ~~
+ * Conversantmedia.com © 2016, Conversant, Inc. Conversant® is a trademark of Conversant, Inc.
+ * ~~
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.LongFunction;
+import java.util.function.ToLongFunction;
+
+/**
+ * Packed R-Tree held outside the heap, see {@link RTree#freezeOffHeap(ToLongFunction, LongFunction)}
+ *
+ * Slot bounds, child links and entries all live in direct memory, entries as long ids that are
+ * turned back into objects by a lookup supplied by the caller, only when a query returns them.
+ * The heap holds a handful of buffer objects whatever the size of the index, so it adds nothing
+ * to GC marking.  The memory is released when the tree is garbage collected.
+ *
+ * It is built either by copying a complete on-heap tree, listed breadth first, which needs the
+ * on-heap tree and the node list in the heap at the same time as the direct memory, or straight
+ * from a collection of entries in the order of a bulk loader, see
+ * {@link SpatialSearches#offHeapRTree(RectBuilder, int, int, RTree.Split, RTree.Pack, Collection, ToLongFunction, LongFunction)},
+ * which needs only the bounds of the entries and of the nodes above the leaves.
+ */
+final class OffHeapRTree<T> extends PackedRTree<T> {
+
+    private final ToLongFunction<T> id;
+
+    private final LongFunction<T> lookup;
+
+    // children of node k are the slots from the int at 4*k until the int at 4*(k+1)
+    private final SegmentedBuffer child;
+
+    // bounds of slot s in dimension d are the doubles at 8*(s*2*nD + d) and 8*(s*2*nD + nD + d)
+    private final SegmentedBuffer bounds;
+
+    // id of entry i is the long at 8*i
+    private final SegmentedBuffer ids;
+
+    OffHeapRTree(final RectBuilder<T> builder, final int mMin, final int mMax, final RTree.Split splitType, final Node<T> root,
+                 final ToLongFunction<T> id, final LongFunction<T> lookup, final int segmentShift) {
+        this(builder, mMin, mMax, splitType, breadthFirst(root), id, lookup, segmentShift);
+    }
+
+    private OffHeapRTree(final RectBuilder<T> builder, final int mMin, final int mMax, final RTree.Split splitType, final List<Node<T>> nodes,
+                         final ToLongFunction<T> id, final LongFunction<T> lookup, final int segmentShift) {
+        this(builder, mMin, mMax, splitType, nodes.isEmpty() ? 0 : nodes.get(0).getBound().getNDim(), nodes.size(), entryCount(nodes),
+                id, lookup, segmentShift);
+        pack(nodes);
+    }
+
+    private OffHeapRTree(final RectBuilder<T> builder, final int mMin, final int mMax, final RTree.Split splitType,
+                         final int nD, final int nodeCount, final int entryCount,
+                         final ToLongFunction<T> id, final LongFunction<T> lookup, final int segmentShift) {
+        super(builder, mMin, mMax, splitType, nD, nodeCount, entryCount);
+        this.id = id;
+        this.lookup = lookup;
+        this.child = SegmentedBuffer.allocateDirect(4L*(nodeCount + 1), segmentShift);
+        this.bounds = SegmentedBuffer.allocateDirect(8L*(nodeCount + entryCount)*2*nD, segmentShift);
+        this.ids = SegmentedBuffer.allocateDirect(8L*entryCount, segmentShift);
+    }
+
+    /**
+     * Pack entries straight into direct memory, in the order the bulk loader would pack them into
+     * an on-heap tree, without building one
+     *
+     * @param loader - bulk loader deciding the packing order
+     * @param entries - entries to index
+     * @param id - id of an entry, must be unique
+     * @param lookup - entry for an id
+     * @param segmentShift - log2 of the size of each buffer segment
+     * @return read only tree over the entries
+     */
+    static <T> OffHeapRTree<T> load(final BulkLoader<T> loader, final Collection<T> entries,
+                                    final ToLongFunction<T> id, final LongFunction<T> lookup, final int segmentShift) {
+        final Object[] entry = entries.toArray();
+        final HyperRect[] bounds = new HyperRect[entry.length];
+        for(int i = 0; i < entry.length; i++) {
+            bounds[i] = loader.builder.getBBox((T) entry[i]);
+        }
+        final List<BulkLoader.Level> levels = entry.length == 0 ? Collections.emptyList() : loader.levels(bounds);
+
+        int nodeCount = 0;
+        for(final BulkLoader.Level level : levels) {
+            nodeCount += level.bounds.length;
+        }
+        final OffHeapRTree<T> tree = new OffHeapRTree<>(loader.builder, loader.mMin, loader.mMax, loader.splitType,
+                entry.length == 0 ? 0 : bounds[0].getNDim(), nodeCount, entry.length, id, lookup, segmentShift);
+        tree.pack(entry, bounds, levels);
+        return tree;
+    }
+
+    @Override
+    protected int child(final int k) {
+        return child.getInt(4L*k);
+    }
+
+    @Override
+    protected double getMin(final int s, final int d) {
+        return bounds.getDouble(8L*((long)s*2*nD + d));
+    }
+
+    @Override
+    protected double getMax(final int s, final int d) {
+        return bounds.getDouble(8L*((long)s*2*nD + nD + d));
+    }
+
+    @Override
+    protected T getEntry(final int i) {
+        return lookup.apply(ids.getLong(8L*i));
+    }
+
+    @Override
+    protected void setChild(final int k, final int s) {
+        child.putInt(4L*k, s);
+    }
+
+    @Override
+    protected void setBound(final int s, final int d, final double min, final double max) {
+        bounds.putDouble(8L*((long)s*2*nD + d), min);
+        bounds.putDouble(8L*((long)s*2*nD + nD + d), max);
+    }
+
+    @Override
+    protected void setEntry(final int i, final T t) {
+        ids.putLong(8L*i, id.applyAsLong(t));
+    }
+}
@@ -0,0 +1,502 @@
+package com.conversantmedia.util.collection.spatial;
+
+/*
+ * #%L
+ * Conversant RTree
+ * ~~
+ * Conversantmedia.com © 2016, Conversant, Inc. Conversant® is a trademark of Conversant, Inc.
+ * ~~
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.function.Consumer;
+
+/**
+ * Immutable, array packed R-Tree, see {@link RTree#freeze()}
+ *
+ * Nodes are numbered breadth first and the entries follow them in leaf order, so the children
+ * of every node, and the entries of every leaf, are a contiguous run of slots.  Each slot is
+ * described only by its bounds and each node by the start of its run, there are no node objects
+ * and a query scans the slots in order.  Subclasses decide where the slots are stored.
+ *
+ * As nothing changes after it is built the tree may be shared by any number of threads
+ * without locking.  Methods that modify the tree throw UnsupportedOperationException.
+ */
+abstract class PackedRTree<T> implements SpatialSearch<T> {
+
+    protected final RectBuilder<T> builder;
+
+    protected final int mMin;
+
+    protected final int mMax;
+
+    protected final RTree.Split splitType;
+
+    protected final int nD;
+
+    // slots below nodeCount are nodes, the rest are entries
+    protected final int nodeCount;
+
+    protected final int entryCount;
+
+    protected PackedRTree(final RectBuilder<T> builder, final int mMin, final int mMax, final RTree.Split splitType, final List<Node<T>> nodes) {
+        this(builder, mMin, mMax, splitType, nodes.isEmpty() ? 0 : nodes.get(0).getBound().getNDim(), nodes.size(), entryCount(nodes));
+    }
+
+    protected PackedRTree(final RectBuilder<T> builder, final int mMin, final int mMax, final RTree.Split splitType, final int nD, final int nodeCount, final int entryCount) {
+        this.builder = builder;
+        this.mMin = mMin;
+        this.mMax = mMax;
+        this.splitType = splitType;
+        this.nD = nD;
+        this.nodeCount = nodeCount;
+        this.entryCount = entryCount;
+    }
+
+    /**
+     * @param k - node
+     * @return first slot of the children of node k, or the total slot count for k == nodeCount
+     */
+    protected abstract int child(int k);
+
+    /**
+     * @return lower bound of slot s in dimension d
+     */
+    protected abstract double getMin(int s, int d);
+
+    /**
+     * @return upper bound of slot s in dimension d
+     */
+    protected abstract double getMax(int s, int d);
+
+    /**
+     * @return entry i, in leaf order
+     */
+    protected abstract T getEntry(int i);
+
+    protected abstract void setChild(int k, int s);
+
+    protected abstract void setBound(int s, int d, double min, double max);
+
+    protected abstract void setEntry(int i, T t);
+
+    /**
+     * List the nodes of a tree breadth first, the order they are packed in
+     *
+     * @param root - root of the tree, may be null
+     * @return nodes of the tree
+     */
+    static <T> List<Node<T>> breadthFirst(final Node<T> root) {
+        final List<Node<T>> nodes = new ArrayList<>();
+        if(root != null) {
+            nodes.add(root);
+        }
+        for(int k = 0; k < nodes.size(); k++) {
+            final Node<T> n = nodes.get(k);
+            if(!n.isLeaf()) {
+                final Node<T>[] children = ((Branch<T>) CounterNode.unwrap(n)).getChildren();
+                for(int i = 0; i < n.size(); i++) {
+                    nodes.add(children[i]);
+                }
+            }
+        }
+        return nodes;
+    }
+
+    static <T> int entryCount(final List<Node<T>> nodes) {
+        int n = 0;
+        for(final Node<T> node : nodes) {
+            if(node.isLeaf()) {
+                n += node.size();
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Copy the nodes, as listed by breadthFirst, into the slots.  Called by subclasses once their
+     * storage is allocated.
+     */
+    protected final void pack(final List<Node<T>> nodes) {
+        int nextNode = 1;
+        int nextEntry = 0;
+        for(int k = 0; k < nodeCount; k++) {
+            final Node<T> n = nodes.get(k);
+            final HyperRect bound = n.getBound();
+            for(int d = 0; d < nD; d++) {
+                setBound(k, d, bound.getMinCoord(d), bound.getMaxCoord(d));
+            }
+            if(n.isLeaf()) {
+                if(nextNode < nodeCount) {
+                    // runs of children would no longer line up
+                    throw new IllegalStateException("Leaves are not all at the same depth");
+                }
+                setChild(k, nodeCount + nextEntry);
+                final Leaf<T> leaf = (Leaf<T>) CounterNode.unwrap(n);
+                for(int i = 0; i < leaf.size(); i++) {
+                    for(int d = 0; d < nD; d++) {
+                        setBound(nodeCount + nextEntry, d, leaf.getMin(d, i), leaf.getMax(d, i));
+                    }
+                    setEntry(nextEntry++, leaf.entry[i]);
+                }
+            } else {
+                setChild(k, nextNode);
+                nextNode += n.size();
+            }
+        }
+        setChild(nodeCount, nodeCount + entryCount);
+    }
+
+    /**
+     * Copy entries into the slots in the order planned by {@link BulkLoader#levels(HyperRect[])},
+     * without building nodes.  Called by subclasses once their storage is allocated.
+     *
+     * @param entry - entries
+     * @param bounds - bounds of the entries
+     * @param levels - levels of the tree from the leaves up, empty if there are no entries
+     */
+    protected final void pack(final Object[] entry, final HyperRect[] bounds, final List<BulkLoader.Level> levels) {
+        // nodes of each level in breadth first order, as the indexes they were packed with
+        int[] nodes = { 0 };
+        int slot = 0;
+        int nextEntry = 0;
+        for(int j = levels.size() - 1; j >= 0; j--) {
+            final BulkLoader.Level level = levels.get(j);
+            final int[] below = j > 0 ? new int[level.order.length] : null;
+            final int firstChild = slot + nodes.length;
+            int nextChild = 0;
+            for(final int k : nodes) {
+                final HyperRect bound = level.bounds[k];
+                for(int d = 0; d < nD; d++) {
+                    setBound(slot, d, bound.getMinCoord(d), bound.getMaxCoord(d));
+                }
+                if(below != null) {
+                    setChild(slot, firstChild + nextChild);
+                    for(int i = level.start[k]; i < level.start[k+1]; i++) {
+                        below[nextChild++] = level.order[i];
+                    }
+                } else {
+                    setChild(slot, nodeCount + nextEntry);
+                    for(int i = level.start[k]; i < level.start[k+1]; i++) {
+                        final int e = level.order[i];
+                        for(int d = 0; d < nD; d++) {
+                            setBound(nodeCount + nextEntry, d, bounds[e].getMinCoord(d), bounds[e].getMaxCoord(d));
+                        }
+                        setEntry(nextEntry++, (T) entry[e]);
+                    }
+                }
+                slot++;
+            }
+            nodes = below;
+        }
+        setChild(nodeCount, nodeCount + entryCount);
+    }
+
+    @Override
+    public int intersects(final HyperRect rect, final T[] t) {
+        if(nodeCount == 0) {
+            return 0;
+        }
+        return search(0, Leaf.minCoords(rect), Leaf.maxCoords(rect), false, t, 0);
+    }
+
+    @Override
+    public void intersects(final HyperRect rect, final Consumer<T> consumer) {
+        if(nodeCount > 0) {
+            search(0, Leaf.minCoords(rect), Leaf.maxCoords(rect), false, consumer);
+        }
+    }
+
+    @Override
+    public int search(final HyperRect rect, final T[] t) {
+        if(nodeCount == 0) {
+            return 0;
+        }
+        return search(0, Leaf.minCoords(rect), Leaf.maxCoords(rect), true, t, 0);
+    }
+
+    @Override
+    public void search(final HyperRect rect, final Consumer<T> consumer) {
+        if(nodeCount > 0) {
+            search(0, Leaf.minCoords(rect), Leaf.maxCoords(rect), true, consumer);
+        }
+    }
+
+    @Override
+    public void search(final HyperRect rect, final Collection<T> collection) {
+        search(rect, collection::add);
+    }
+
+    /**
+     * Nodes fully contained by rect are counted from their run of entries without visiting them
+     */
+    @Override
+    public int count(final HyperRect rect) {
+        if(nodeCount == 0) {
+            return 0;
+        }
+        return count(0, Leaf.minCoords(rect), Leaf.maxCoords(rect));
+    }
+
+    @Override
+    public int nearest(final HyperPoint p, final int k, final T[] t) {
+        final int[] n = new int[1];
+        nearest(p, Math.min(k, t.length), e -> t[n[0]++] = e);
+        return n[0];
+    }
+
+    @Override
+    public void nearest(final HyperPoint p, final int k, final Consumer<T> consumer) {
+        final Iterator<T> it = nearest(p);
+        for(int n = 0; n < k && it.hasNext(); n++) {
+            consumer.accept(it.next());
+        }
+    }
+
+    @Override
+    public Iterator<T> nearest(final HyperPoint p) {
+        return new Nearest(p);
+    }
+
+    @Override
+    public boolean contains(final T t) {
+        if(nodeCount == 0) {
+            return false;
+        }
+        final HyperRect bbox = builder.getBBox(t);
+        return contains(0, Leaf.minCoords(bbox), Leaf.maxCoords(bbox), t);
+    }
+
+    @Override
+    public void add(final T t) {
+        throw new UnsupportedOperationException("Packed tree is read only");
+    }
+
+    @Override
+    public void remove(final T t) {
+        throw new UnsupportedOperationException("Packed tree is read only");
+    }
+
+    @Override
+    public void update(final T told, final T tnew) {
+        throw new UnsupportedOperationException("Packed tree is read only");
+    }
+
+    @Override
+    public int getEntryCount() {
+        return entryCount;
+    }
+
+    @Override
+    public void forEach(final Consumer<T> consumer) {
+        for(int i = 0; i < entryCount; i++) {
+            consumer.accept(getEntry(i));
+        }
+    }
+
+    @Override
+    public Stats collectStats() {
+        final Stats stats = new Stats();
+        stats.setType(splitType);
+        stats.setMaxFill(mMax);
+        stats.setMinFill(mMin);
+        if(nodeCount > 0) {
+            collectStats(0, stats, 0);
+        }
+        return stats;
+    }
+
+    private int search(final int k, final double[] rMin, final double[] rMax, final boolean contained, final T[] t, int n) {
+        for(int s = child(k); s < child(k+1) && n < t.length; s++) {
+            if(s < nodeCount) {
+                if(isIntersecting(s, rMin, rMax)) {
+                    n = search(s, rMin, rMax, contained, t, n);
+                }
+            } else if(contained ? isContained(s, rMin, rMax) : isIntersecting(s, rMin, rMax)) {
+                t[n++] = getEntry(s - nodeCount);
+            }
+        }
+        return n;
+    }
+
+    private void search(final int k, final double[] rMin, final double[] rMax, final boolean contained, final Consumer<T> consumer) {
+        for(int s = child(k); s < child(k+1); s++) {
+            if(s < nodeCount) {
+                if(isIntersecting(s, rMin, rMax)) {
+                    search(s, rMin, rMax, contained, consumer);
+                }
+            } else if(contained ? isContained(s, rMin, rMax) : isIntersecting(s, rMin, rMax)) {
+                consumer.accept(getEntry(s - nodeCount));
+            }
+        }
+    }
+
+    private int count(final int k, final double[] rMin, final double[] rMax) {
+        int n = 0;
+        for(int s = child(k); s < child(k+1); s++) {
+            if(isContained(s, rMin, rMax)) {
+                n += entryCount(s);
+            } else if(s < nodeCount && isIntersecting(s, rMin, rMax)) {
+                n += count(s, rMin, rMax);
+            }
+        }
+        return n;
+    }
+
+    // entries below slot s run from its leftmost to its rightmost descendant
+    private int entryCount(final int s) {
+        int first = s;
+        int last = s;
+        while(first < nodeCount) {
+            first = child(first);
+            last = child(last+1) - 1;
+        }
+        return last - first + 1;
+    }
+
+    private boolean contains(final int k, final double[] rMin, final double[] rMax, final T t) {
+        for(int s = child(k); s < child(k+1); s++) {
+            if(isIntersecting(s, rMin, rMax)) {
+                if(s < nodeCount) {
+                    if(contains(s, rMin, rMax, t)) {
+                        return true;
+                    }
+                } else {
+                    final T e = getEntry(s - nodeCount);
+                    if(e == t || e.equals(t)) {
+                        return true;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    private void collectStats(final int k, final Stats stats, final int depth) {
+        if(child(k) >= nodeCount) {
+            if (depth > stats.getMaxDepth()) {
+                stats.setMaxDepth(depth);
+            }
+            stats.countLeafAtDepth(depth);
+            stats.countEntriesAtDepth(child(k+1) - child(k), depth);
+        } else {
+            for(int s = child(k); s < child(k+1); s++) {
+                collectStats(s, stats, depth + 1);
+            }
+            stats.countBranchAtDepth(depth);
+        }
+    }
+
+    // true if slot s lies within rMin, rMax
+    private boolean isContained(final int s, final double[] rMin, final double[] rMax) {
+        for(int d = 0; d < nD; d++) {
+            if(getMin(s, d) < rMin[d] || getMax(s, d) > rMax[d]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // true if slot s overlaps rMin, rMax
+    private boolean isIntersecting(final int s, final double[] rMin, final double[] rMax) {
+        for(int d = 0; d < nD; d++) {
+            if(getMin(s, d) > rMax[d] || getMax(s, d) < rMin[d]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // square of the minimum distance from x to slot s
+    private double distanceSq(final int s, final double[] x) {
+        double dist = 0.0;
+        for(int d = 0; d < nD; d++) {
+            final double lo = getMin(s, d);
+            final double hi = getMax(s, d);
+            if(x[d] < lo) {
+                dist += (lo - x[d])*(lo - x[d]);
+            } else if(x[d] > hi) {
+                dist += (x[d] - hi)*(x[d] - hi);
+            }
+        }
+        return dist;
+    }
+
+    /**
+     * Best first nearest neighbor search over slots, as {@link NearestNeighbor}
+     */
+    private final class Nearest implements Iterator<T> {
+
+        private final double[] x;
+
+        private final PriorityQueue<Candidate> queue = new PriorityQueue<>();
+
+        Nearest(final HyperPoint p) {
+            x = new double[p.getNDim()];
+            for(int d = 0; d < x.length; d++) {
+                x[d] = p.getDoubleCoord(d);
+            }
+            if(nodeCount > 0) {
+                queue.add(new Candidate(distanceSq(0, x), 0));
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            Candidate c = queue.peek();
+            while(c != null && c.slot < nodeCount) {
+                queue.poll();
+                for(int s = child(c.slot); s < child(c.slot+1); s++) {
+                    queue.add(new Candidate(distanceSq(s, x), s));
+                }
+                c = queue.peek();
+            }
+            return c != null;
+        }
+
+        @Override
+        public T next() {
+            if(!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return getEntry(queue.poll().slot - nodeCount);
+        }
+    }
+
+    private final class Candidate implements Comparable<Candidate> {
+        private final double dist;
+        private final int slot;
+
+        Candidate(final double dist, final int slot) {
+            this.dist = dist;
+            this.slot = slot;
+        }
+
+        @Override
+        public int compareTo(final Candidate o) {
+            final int c = Double.compare(dist, o.dist);
+            if(c == 0) {
+                // entries first, there is nothing to gain by expanding a node at the same distance
+                return Boolean.compare(slot < nodeCount, o.slot < nodeCount);
+            }
+            return c;
+        }
+    }
+}
@@ -0,0 +1,1021 @@
+package com.conversantmedia.util.collection.spatial;
+
+/*
+ * #%L
+ * Conversant RTree
+ * ~~
+ * Conversantmedia.com © 2016, Conversant, Inc. Conversant® is a trademark of Conversant, Inc.
+ * ~~
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import com.conversantmedia.util.collection.spatial.BufferPool.Page;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.function.Consumer;
+import java.util.function.LongFunction;
+import java.util.function.ToLongFunction;
+
+/**
+ * R-Tree whose nodes are fixed size pages of a file, for indexes larger than memory, see
+ * {@link SpatialSearches#pagedRTree(RectBuilder, Path, int, int, ToLongFunction, LongFunction)}
+ *
+ * Only the pages held by a {@link BufferPool} of bounded size are in memory, the rest are read
+ * from the file as they are needed.  The hit, miss and eviction counts of the pool show whether
+ * it is large enough for the working set of the queries.
+ *
+ * <pre>
+ * page 0   header: magic, version, page size, nD, mMin, mMax, height, entry count, root, free list
+ * node     level (0 for a leaf), slot count, then each slot: the min then the max of each
+ *          dimension, and the page of the child or the id of the entry
+ * </pre>
+ *
+ * The fan-out is as many slots as fit in a page.  Nodes split on the axis of greatest extent, as
+ * {@link RTree.Split#AXIAL}, and under filled nodes are dissolved and their entries added again
+ * on remove.  Entries are stored as ids and looked up again when a query returns them, contains
+ * and remove match entries by id.  Changes reach the file as pages are evicted, and all of them
+ * along with the header on {@link #flush()} or {@link #close()}.
+ *
+ * Not thread safe, queries pin pages and count hits so even they must not run concurrently.
+ */
+public final class PagedRTree<T> implements SpatialSearch<T>, Closeable {
+
+    static final int MAGIC = 0x52545250;
+
+    static final int VERSION = 1;
+
+    static final int DEFAULT_PAGE_SIZE = 4096;
+
+    static final int DEFAULT_POOL_PAGES = 1024;
+
+    private static final int HEADER_SIZE = 48;
+
+    private static final int NODE_HEADER_SIZE = 8;
+
+    private static final long NONE = -1L;
+
+    private final RectBuilder<T> builder;
+
+    private final ToLongFunction<T> id;
+
+    private final LongFunction<T> lookup;
+
+    private final BufferPool pool;
+
+    // fixed by the first entry added
+    private int nD;
+
+    private int mMin;
+
+    private int mMax;
+
+    private int slotSize;
+
+    private int height;
+
+    private int entryCount;
+
+    private long root;
+
+    // freed pages are chained through their first long after the node header
+    private long freeHead;
+
+    private PagedRTree(final RectBuilder<T> builder, final ToLongFunction<T> id, final LongFunction<T> lookup, final BufferPool pool) {
+        this.builder = builder;
+        this.id = id;
+        this.lookup = lookup;
+        this.pool = pool;
+        this.root = NONE;
+        this.freeHead = NONE;
+    }
+
+    /**
+     * Open a paged tree, creating the file if it is empty or does not exist
+     *
+     * @param builder - builder for the entry type
+     * @param file - page file
+     * @param pageSize - bytes per page of a new file, an existing file keeps its own
+     * @param poolPages - pages held in memory
+     * @param id - id of an entry, must be unique
+     * @param lookup - entry for an id
+     * @return the tree
+     * @throws IOException if the file can not be opened or is not a paged tree
+     */
+    static <T> PagedRTree<T> open(final RectBuilder<T> builder, final Path file, final int pageSize, final int poolPages,
+                                  final ToLongFunction<T> id, final LongFunction<T> lookup) throws IOException {
+        if(pageSize < HEADER_SIZE) {
+            throw new IllegalArgumentException("Page size must be at least " + HEADER_SIZE);
+        }
+        if(poolPages < 1) {
+            throw new IllegalArgumentException("Pool must hold at least one page");
+        }
+
+        final FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            if(channel.size() == 0) {
+                final PagedRTree<T> tree = new PagedRTree<>(builder, id, lookup, new BufferPool(channel, pageSize, poolPages));
+                tree.pool.unpin(tree.pool.allocate());
+                tree.writeHeader();
+                return tree;
+            }
+
+            final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(BufferPool.BYTE_ORDER);
+            int n = 0;
+            while(header.hasRemaining() && n >= 0) {
+                n = channel.read(header, header.position());
+            }
+            if(header.hasRemaining() || header.getInt(0) != MAGIC) {
+                throw new IOException("Not a paged RTree file: " + file);
+            }
+            if(header.getInt(4) != VERSION) {
+                throw new IOException("Unsupported paged RTree version " + header.getInt(4) + ": " + file);
+            }
+
+            final int filePageSize = header.getInt(8);
+            final int nD = header.getInt(12);
+            if(filePageSize < HEADER_SIZE || nD < 0 || (nD > 0 && (filePageSize - NODE_HEADER_SIZE)/(16L*nD + 8) < 4)) {
+                throw new IOException("Corrupt paged RTree file header, page size " + filePageSize + ", " + nD + " dimensions: " + file);
+            }
+
+            final PagedRTree<T> tree = new PagedRTree<>(builder, id, lookup, new BufferPool(channel, filePageSize, poolPages));
+            tree.readHeader(header);
+            return tree;
+        } catch(IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public int search(final HyperRect rect, final T[] t) {
+        if(root == NONE) {
+            return 0;
+        }
+        return search(root, Leaf.minCoords(rect), Leaf.maxCoords(rect), true, t, 0);
+    }
+
+    @Override
+    public void search(final HyperRect rect, final Consumer<T> consumer) {
+        if(root != NONE) {
+            search(root, Leaf.minCoords(rect), Leaf.maxCoords(rect), true, consumer);
+        }
+    }
+
+    @Override
+    public void search(final HyperRect rect, final Collection<T> collection) {
+        search(rect, collection::add);
+    }
+
+    @Override
+    public int intersects(final HyperRect rect, final T[] t) {
+        if(root == NONE) {
+            return 0;
+        }
+        return search(root, Leaf.minCoords(rect), Leaf.maxCoords(rect), false, t, 0);
+    }
+
+    @Override
+    public void intersects(final HyperRect rect, final Consumer<T> consumer) {
+        if(root != NONE) {
+            search(root, Leaf.minCoords(rect), Leaf.maxCoords(rect), false, consumer);
+        }
+    }
+
+    /**
+     * Entries are counted from their ids, none of them are looked up
+     */
+    @Override
+    public int count(final HyperRect rect) {
+        if(root == NONE) {
+            return 0;
+        }
+        return count(root, Leaf.minCoords(rect), Leaf.maxCoords(rect));
+    }
+
+    @Override
+    public int nearest(final HyperPoint p, final int k, final T[] t) {
+        final int[] n = new int[1];
+        nearest(p, Math.min(k, t.length), e -> t[n[0]++] = e);
+        return n[0];
+    }
+
+    @Override
+    public void nearest(final HyperPoint p, final int k, final Consumer<T> consumer) {
+        final Iterator<T> it = nearest(p);
+        for(int n = 0; n < k && it.hasNext(); n++) {
+            consumer.accept(it.next());
+        }
+    }
+
+    @Override
+    public Iterator<T> nearest(final HyperPoint p) {
+        return new Nearest(p);
+    }
+
+    /**
+     * Add an entry, the first entry added fixes the dimensions of the tree
+     *
+     * @param t - entry to add
+     *
+     * @throws IllegalArgumentException if the entry does not have the dimensions of the tree
+     */
+    @Override
+    public void add(final T t) {
+        final double[] bounds = bounds(builder.getBBox(t));
+        if(nD == 0) {
+            setDimensions(bounds.length/2);
+        } else {
+            checkDimensions(bounds);
+        }
+        insert(bounds, id.applyAsLong(t));
+        entryCount++;
+    }
+
+    @Override
+    public void remove(final T t) {
+        removeEntry(t);
+    }
+
+    /**
+     * Update an entry, if the old entry is not in the tree nothing is added
+     *
+     * @param told - entry to update
+     * @param tnew - entry to update it to
+     */
+    @Override
+    public void update(final T told, final T tnew) {
+        if(removeEntry(told)) {
+            add(tnew);
+        }
+    }
+
+    // remove the entry, returns false if it was not in the tree
+    private boolean removeEntry(final T t) {
+        if(root == NONE) {
+            return false;
+        }
+
+        final double[] bounds = bounds(builder.getBBox(t));
+        checkDimensions(bounds);
+        final List<Orphan> orphans = new ArrayList<>();
+        if(remove(root, bounds, id.applyAsLong(t), orphans)) {
+            entryCount--;
+
+            // shorten the tree while the root has a single child
+            Page page = pin(root);
+            while(level(page.buffer) > 0 && size(page.buffer) == 1) {
+                final long child = ref(page.buffer, 0);
+                unpin(page);
+                free(root);
+                root = child;
+                height--;
+                page = pin(root);
+            }
+            final boolean isEmpty = size(page.buffer) == 0;
+            unpin(page);
+            if(isEmpty) {
+                free(root);
+                root = NONE;
+                height = 0;
+            }
+
+            for(final Orphan o : orphans) {
+                insert(o.bounds, o.ref);
+            }
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    public int getEntryCount() {
+        return entryCount;
+    }
+
+    @Override
+    public boolean contains(final T t) {
+        if(root == NONE) {
+            return false;
+        }
+        final double[] bounds = bounds(builder.getBBox(t));
+        checkDimensions(bounds);
+        return contains(root, Arrays.copyOfRange(bounds, 0, nD), Arrays.copyOfRange(bounds, nD, 2*nD), id.applyAsLong(t));
+    }
+
+    @Override
+    public void forEach(final Consumer<T> consumer) {
+        if(root != NONE) {
+            forEach(root, consumer);
+        }
+    }
+
+    @Override
+    public Stats collectStats() {
+        final Stats stats = new Stats();
+        stats.setType(RTree.Split.AXIAL);
+        stats.setMaxFill(mMax);
+        stats.setMinFill(mMin);
+        if(root != NONE) {
+            collectStats(root, stats, 0);
+        }
+        return stats;
+    }
+
+    /**
+     * Write the header and every changed page to the file and force them to the device
+     *
+     * @throws IOException if the file can not be written
+     */
+    public void flush() throws IOException {
+        writeHeader();
+        pool.flush();
+    }
+
+    /**
+     * Flush and close the file, the tree can not be used afterwards
+     *
+     * @throws IOException if the file can not be written
+     */
+    @Override
+    public void close() throws IOException {
+        writeHeader();
+        pool.close();
+    }
+
+    /**
+     * @return number of page requests served from the pool
+     */
+    public long getHitCount() {
+        return pool.getHitCount();
+    }
+
+    /**
+     * @return number of page requests that had to read the file
+     */
+    public long getMissCount() {
+        return pool.getMissCount();
+    }
+
+    /**
+     * @return number of pages dropped from the pool to make room for others
+     */
+    public long getEvictionCount() {
+        return pool.getEvictionCount();
+    }
+
+    /**
+     * @return number of pages in the file, including the header and any free pages
+     */
+    public long getPageCount() {
+        return pool.getPageCount();
+    }
+
+    private void setDimensions(final int nD) {
+        final int slotSize = 16*nD + 8;
+        final int mMax = (pool.getPageSize() - NODE_HEADER_SIZE)/slotSize;
+        if(mMax < 4) {
+            throw new IllegalArgumentException("Page size " + pool.getPageSize() + " holds fewer than 4 entries of " + nD + " dimensions");
+        }
+        this.nD = nD;
+        this.slotSize = slotSize;
+        this.mMax = mMax;
+        this.mMin = Math.max(2, mMax*2/5);
+    }
+
+    private void checkDimensions(final double[] bounds) {
+        if(bounds.length != 2*nD) {
+            throw new IllegalArgumentException("Entry has " + bounds.length/2 + " dimensions, the tree has " + nD);
+        }
+    }
+
+    private void writeHeader() {
+        final Page page = pin(0);
+        final ByteBuffer b = page.buffer;
+        b.putInt(0, MAGIC);
+        b.putInt(4, VERSION);
+        b.putInt(8, pool.getPageSize());
+        b.putInt(12, nD);
+        b.putInt(16, mMin);
+        b.putInt(20, mMax);
+        b.putInt(24, height);
+        b.putInt(28, entryCount);
+        b.putLong(32, root);
+        b.putLong(40, freeHead);
+        page.setDirty();
+        unpin(page);
+    }
+
+    private void readHeader(final ByteBuffer b) {
+        if(b.getInt(12) > 0) {
+            setDimensions(b.getInt(12));
+        }
+        height = b.getInt(24);
+        entryCount = b.getInt(28);
+        root = b.getLong(32);
+        freeHead = b.getLong(40);
+    }
+
+    private void insert(final double[] bounds, final long ref) {
+        if(root == NONE) {
+            final Page page = newPage(0);
+            root = page.id;
+            height = 0;
+            unpin(page);
+        }
+
+        final long sibling = insert(root, bounds, ref);
+        if(sibling != NONE) {
+            // the tree only grows in height at the root
+            final Page page = newPage(height + 1);
+            final double[] b = new double[2*nD];
+            pageBound(root, b);
+            setSlot(page.buffer, 0, b, root);
+            pageBound(sibling, b);
+            setSlot(page.buffer, 1, b, sibling);
+            page.buffer.putInt(4, 2);
+            root = page.id;
+            height++;
+            unpin(page);
+        }
+    }
+
+    // add to the subtree at pageId, returns the page split off from it or NONE
+    private long insert(final long pageId, final double[] bounds, final long ref) {
+        final Page page = pin(pageId);
+        try {
+            final ByteBuffer b = page.buffer;
+            if(level(b) == 0) {
+                return append(page, bounds, ref);
+            }
+
+            final int i = chooseChild(b, bounds);
+            final long child = ref(b, i);
+            final long sibling = insert(child, bounds, ref);
+            page.setDirty();
+            if(sibling == NONE) {
+                expandSlot(b, i, bounds);
+                return NONE;
+            }
+
+            final double[] childBounds = new double[2*nD];
+            pageBound(child, childBounds);
+            setSlot(b, i, childBounds, child);
+            pageBound(sibling, childBounds);
+            return append(page, childBounds, sibling);
+        } finally {
+            unpin(page);
+        }
+    }
+
+    // add a slot to a page, splitting it in two if it is full
+    private long append(final Page page, final double[] bounds, final long ref) {
+        final ByteBuffer b = page.buffer;
+        final int size = size(b);
+        page.setDirty();
+        if(size < mMax) {
+            setSlot(b, size, bounds, ref);
+            b.putInt(4, size + 1);
+            return NONE;
+        }
+
+        final int n = mMax + 1;
+        final double[][] slotBounds = new double[n][2*nD];
+        final long[] refs = new long[n];
+        for(int i = 0; i < mMax; i++) {
+            getSlot(b, i, slotBounds[i]);
+            refs[i] = ref(b, i);
+        }
+        System.arraycopy(bounds, 0, slotBounds[mMax], 0, 2*nD);
+        refs[mMax] = ref;
+
+        final Integer[] order = distributeAxial(slotBounds);
+        final int k = n/2;
+        for(int i = 0; i < k; i++) {
+            setSlot(b, i, slotBounds[order[i]], refs[order[i]]);
+        }
+        b.putInt(4, k);
+
+        final Page sibling = newPage(level(b));
+        try {
+            for(int i = k; i < n; i++) {
+                setSlot(sibling.buffer, i - k, slotBounds[order[i]], refs[order[i]]);
+            }
+            sibling.buffer.putInt(4, n - k);
+            return sibling.id;
+        } finally {
+            unpin(sibling);
+        }
+    }
+
+    // sort by centroid on the axis of greatest extent, as Branch
+    private Integer[] distributeAxial(final double[][] slotBounds) {
+        int axis = 0;
+        double rangeD = -1.0;
+        for(int d = 0; d < nD; d++) {
+            double lo = slotBounds[0][d];
+            double hi = slotBounds[0][nD + d];
+            for(int i = 1; i < slotBounds.length; i++) {
+                lo = Math.min(lo, slotBounds[i][d]);
+                hi = Math.max(hi, slotBounds[i][nD + d]);
+            }
+            if(hi - lo > rangeD) {
+                axis = d;
+                rangeD = hi - lo;
+            }
+        }
+
+        final int a = axis;
+        final Integer[] order = new Integer[slotBounds.length];
+        for(int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, Comparator.comparingDouble(i -> slotBounds[i][a] + slotBounds[i][nD + a]));
+        return order;
+    }
+
+    // least enlargement, then least perimeter, as Branch
+    private int chooseChild(final ByteBuffer b, final double[] bounds) {
+        double tCost = 1.0;
+        for(int d = 0; d < nD; d++) {
+            tCost *= bounds[nD + d] - bounds[d];
+        }
+        tCost = Math.abs(tCost);
+
+        int bestNode = 0;
+        double leastEnlargement = 0.0;
+        double leastPerimeter = 0.0;
+        for(int i = 0; i < size(b); i++) {
+            double cost = 1.0;
+            double mbrCost = 1.0;
+            double mbrPerimeter = 0.0;
+            for(int d = 0; d < nD; d++) {
+                final double lo = getMin(b, i, d);
+                final double hi = getMax(b, i, d);
+                final double range = Math.max(hi, bounds[nD + d]) - Math.min(lo, bounds[d]);
+                cost *= hi - lo;
+                mbrCost *= range;
+                mbrPerimeter += 2.0*range;
+            }
+
+            final double nodeEnlargement = Math.abs(mbrCost) - (Math.abs(cost) + tCost);
+            if(i == 0 || nodeEnlargement < leastEnlargement) {
+                leastEnlargement = nodeEnlargement;
+                leastPerimeter = mbrPerimeter;
+                bestNode = i;
+            } else if(RTree.isEqual(nodeEnlargement, leastEnlargement) && mbrPerimeter < leastPerimeter) {
+                leastEnlargement = nodeEnlargement;
+                leastPerimeter = mbrPerimeter;
+                bestNode = i;
+            }
+        }
+        return bestNode;
+    }
+
+    // remove the entry from the subtree at pageId, dissolving any child left under filled
+    private boolean remove(final long pageId, final double[] bounds, final long ref, final List<Orphan> orphans) {
+        final Page page = pin(pageId);
+        try {
+            final ByteBuffer b = page.buffer;
+            if(level(b) == 0) {
+                for(int i = 0; i < size(b); i++) {
+                    if(ref(b, i) == ref) {
+                        removeSlot(b, i);
+                        page.setDirty();
+                        return true;
+                    }
+                }
+                return false;
+            }
+
+            for(int i = 0; i < size(b); i++) {
+                if(isIntersecting(b, i, bounds) && remove(ref(b, i), bounds, ref, orphans)) {
+                    final long child = ref(b, i);
+                    final Page childPage = pin(child);
+                    final boolean underFilled = size(childPage.buffer) < mMin;
+                    unpin(childPage);
+                    if(underFilled) {
+                        // condense - dissolve the under filled child
+                        collect(child, orphans);
+                        removeSlot(b, i);
+                    } else {
+                        final double[] childBounds = new double[2*nD];
+                        pageBound(child, childBounds);
+                        setSlot(b, i, childBounds, child);
+                    }
+                    page.setDirty();
+                    return true;
+                }
+            }
+            return false;
+        } finally {
+            unpin(page);
+        }
+    }
+
+    // move every entry below pageId to orphans and free the pages
+    private void collect(final long pageId, final List<Orphan> orphans) {
+        final Page page = pin(pageId);
+        try {
+            final ByteBuffer b = page.buffer;
+            for(int i = 0; i < size(b); i++) {
+                if(level(b) == 0) {
+                    final double[] bounds = new double[2*nD];
+                    getSlot(b, i, bounds);
+                    orphans.add(new Orphan(bounds, ref(b, i)));
+                } else {
+                    collect(ref(b, i), orphans);
+                }
+            }
+        } finally {
+            unpin(page);
+        }
+        free(pageId);
+    }
+
+    private int search(final long pageId, final double[] rMin, final double[] rMax, final boolean contained, final T[] t, int n) {
+        final Page page = pin(pageId);
+        try {
+            final ByteBuffer b = page.buffer;
+            final boolean isLeaf = level(b) == 0;
+            for(int i = 0; i < size(b) && n < t.length; i++) {
+                if(isLeaf) {
+                    if(contained ? isContained(b, i, rMin, rMax) : isIntersecting(b, i, rMin, rMax)) {
+                        t[n++] = lookup.apply(ref(b, i));
+                    }
+                } else if(isIntersecting(b, i, rMin, rMax)) {
+                    n = search(ref(b, i), rMin, rMax, contained, t, n);
+                }
+            }
+            return n;
+        } finally {
+            unpin(page);
+        }
+    }
+
+    private void search(final long pageId, final double[] rMin, final double[] rMax, final boolean contained, final Consumer<T> consumer) {
+        final Page page = pin(pageId);
+        try {
+            final ByteBuffer b = page.buffer;
+            final boolean isLeaf = level(b) == 0;
+            for(int i = 0; i < size(b); i++) {
+                if(isLeaf) {
+                    if(contained ? isContained(b, i, rMin, rMax) : isIntersecting(b, i, rMin, rMax)) {
+                        consumer.accept(lookup.apply(ref(b, i)));
+                    }
+                } else if(isIntersecting(b, i, rMin, rMax)) {
+                    search(ref(b, i), rMin, rMax, contained, consumer);
+                }
+            }
+        } finally {
+            unpin(page);
+        }
+    }
+
+    private int count(final long pageId, final double[] rMin, final double[] rMax) {
+        final Page page = pin(pageId);
+        try {
+            final ByteBuffer b = page.buffer;
+            final boolean isLeaf = level(b) == 0;
+            int n = 0;
+            for(int i = 0; i < size(b); i++) {
+                if(isLeaf) {
+                    if(isContained(b, i, rMin, rMax)) {
+                        n++;
+                    }
+                } else if(isIntersecting(b, i, rMin, rMax)) {
+                    n += count(ref(b, i), rMin, rMax);
+                }
+            }
+            return n;
+        } finally {
+            unpin(page);
+        }
+    }
+
+    private boolean contains(final long pageId, final double[] rMin, final double[] rMax, final long ref) {
+        final Page page = pin(pageId);
+        try {
+            final ByteBuffer b = page.buffer;
+            final boolean isLeaf = level(b) == 0;
+            for(int i = 0; i < size(b); i++) {
+                if(isIntersecting(b, i, rMin, rMax)) {
+                    if(isLeaf ? ref(b, i) == ref : contains(ref(b, i), rMin, rMax, ref)) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        } finally {
+            unpin(page);
+        }
+    }
+
+    private void forEach(final long pageId, final Consumer<T> consumer) {
+        final Page page = pin(pageId);
+        try {
+            final ByteBuffer b = page.buffer;
+            for(int i = 0; i < size(b); i++) {
+                if(level(b) == 0) {
+                    consumer.accept(lookup.apply(ref(b, i)));
+                } else {
+                    forEach(ref(b, i), consumer);
+                }
+            }
+        } finally {
+            unpin(page);
+        }
+    }
+
+    private void collectStats(final long pageId, final Stats stats, final int depth) {
+        final Page page = pin(pageId);
+        try {
+            final ByteBuffer b = page.buffer;
+            if(level(b) == 0) {
+                if(depth > stats.getMaxDepth()) {
+                    stats.setMaxDepth(depth);
+                }
+                stats.countLeafAtDepth(depth);
+                stats.countEntriesAtDepth(size(b), depth);
+            } else {
+                for(int i = 0; i < size(b); i++) {
+                    collectStats(ref(b, i), stats, depth + 1);
+                }
+                stats.countBranchAtDepth(depth);
+            }
+        } finally {
+            unpin(page);
+        }
+    }
+
+    private Page newPage(final int level) {
+        final Page page;
+        if(freeHead != NONE) {
+            page = pin(freeHead);
+            freeHead = page.buffer.getLong(NODE_HEADER_SIZE);
+            Arrays.fill(page.buffer.array(), (byte) 0);
+            page.setDirty();
+        } else {
+            try {
+                page = pool.allocate();
+            } catch(IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        page.buffer.putInt(0, level);
+        page.buffer.putInt(4, 0);
+        return page;
+    }
+
+    private void free(final long pageId) {
+        final Page page = pin(pageId);
+        page.buffer.putInt(4, 0);
+        page.buffer.putLong(NODE_HEADER_SIZE, freeHead);
+        page.setDirty();
+        unpin(page);
+        freeHead = pageId;
+    }
+
+    private Page pin(final long pageId) {
+        try {
+            return pool.pin(pageId);
+        } catch(IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void unpin(final Page page) {
+        pool.unpin(page);
+    }
+
+    // union of the slots of a page
+    private void pageBound(final long pageId, final double[] bounds) {
+        final Page page = pin(pageId);
+        try {
+            final ByteBuffer b = page.buffer;
+            getSlot(b, 0, bounds);
+            for(int i = 1; i < size(b); i++) {
+                for(int d = 0; d < nD; d++) {
+                    bounds[d] = Math.min(bounds[d], getMin(b, i, d));
+                    bounds[nD + d] = Math.max(bounds[nD + d], getMax(b, i, d));
+                }
+            }
+        } finally {
+            unpin(page);
+        }
+    }
+
+    private static double[] bounds(final HyperRect rect) {
+        final int nD = rect.getNDim();
+        final double[] bounds = new double[2*nD];
+        for(int d = 0; d < nD; d++) {
+            bounds[d] = rect.getMinCoord(d);
+            bounds[nD + d] = rect.getMaxCoord(d);
+        }
+        return bounds;
+    }
+
+    private static int level(final ByteBuffer b) {
+        return b.getInt(0);
+    }
+
+    private static int size(final ByteBuffer b) {
+        return b.getInt(4);
+    }
+
+    private int offset(final int i) {
+        return NODE_HEADER_SIZE + i*slotSize;
+    }
+
+    private double getMin(final ByteBuffer b, final int i, final int d) {
+        return b.getDouble(offset(i) + 8*d);
+    }
+
+    private double getMax(final ByteBuffer b, final int i, final int d) {
+        return b.getDouble(offset(i) + 8*(nD + d));
+    }
+
+    private long ref(final ByteBuffer b, final int i) {
+        return b.getLong(offset(i) + 16*nD);
+    }
+
+    private void getSlot(final ByteBuffer b, final int i, final double[] bounds) {
+        for(int j = 0; j < 2*nD; j++) {
+            bounds[j] = b.getDouble(offset(i) + 8*j);
+        }
+    }
+
+    private void setSlot(final ByteBuffer b, final int i, final double[] bounds, final long ref) {
+        for(int j = 0; j < 2*nD; j++) {
+            b.putDouble(offset(i) + 8*j, bounds[j]);
+        }
+        b.putLong(offset(i) + 16*nD, ref);
+    }
+
+    private void expandSlot(final ByteBuffer b, final int i, final double[] bounds) {
+        for(int d = 0; d < nD; d++) {
+            if(bounds[d] < getMin(b, i, d)) {
+                b.putDouble(offset(i) + 8*d, bounds[d]);
+            }
+            if(bounds[nD + d] > getMax(b, i, d)) {
+                b.putDouble(offset(i) + 8*(nD + d), bounds[nD + d]);
+            }
+        }
+    }
+
+    private void removeSlot(final ByteBuffer b, final int i) {
+        final int size = size(b);
+        final byte[] array = b.array();
+        System.arraycopy(array, offset(i + 1), array, offset(i), (size - i - 1)*slotSize);
+        b.putInt(4, size - 1);
+    }
+
+    // true if slot i lies within rMin, rMax
+    private boolean isContained(final ByteBuffer b, final int i, final double[] rMin, final double[] rMax) {
+        for(int d = 0; d < nD; d++) {
+            if(getMin(b, i, d) < rMin[d] || getMax(b, i, d) > rMax[d]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // true if slot i overlaps rMin, rMax
+    private boolean isIntersecting(final ByteBuffer b, final int i, final double[] rMin, final double[] rMax) {
+        for(int d = 0; d < nD; d++) {
+            if(getMin(b, i, d) > rMax[d] || getMax(b, i, d) < rMin[d]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // true if slot i overlaps bounds, the min then the max of each dimension
+    private boolean isIntersecting(final ByteBuffer b, final int i, final double[] bounds) {
+        for(int d = 0; d < nD; d++) {
+            if(getMin(b, i, d) > bounds[nD + d] || getMax(b, i, d) < bounds[d]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // square of the minimum distance from x to slot i
+    private double distanceSq(final ByteBuffer b, final int i, final double[] x) {
+        double dist = 0.0;
+        for(int d = 0; d < nD; d++) {
+            final double lo = getMin(b, i, d);
+            final double hi = getMax(b, i, d);
+            if(x[d] < lo) {
+                dist += (lo - x[d])*(lo - x[d]);
+            } else if(x[d] > hi) {
+                dist += (x[d] - hi)*(x[d] - hi);
+            }
+        }
+        return dist;
+    }
+
+    private static final class Orphan {
+        private final double[] bounds;
+        private final long ref;
+
+        Orphan(final double[] bounds, final long ref) {
+            this.bounds = bounds;
+            this.ref = ref;
+        }
+    }
+
+    /**
+     * Best first nearest neighbor search over pages, as {@link NearestNeighbor}
+     */
+    private final class Nearest implements Iterator<T> {
+
+        private final double[] x;
+
+        private final PriorityQueue<Candidate> queue = new PriorityQueue<>();
+
+        Nearest(final HyperPoint p) {
+            x = new double[p.getNDim()];
+            for(int d = 0; d < x.length; d++) {
+                x[d] = p.getDoubleCoord(d);
+            }
+            if(root != NONE) {
+                queue.add(new Candidate(0.0, root, false));
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            Candidate c = queue.peek();
+            while(c != null && !c.isEntry) {
+                queue.poll();
+                final Page page = pin(c.ref);
+                try {
+                    final ByteBuffer b = page.buffer;
+                    final boolean isLeaf = level(b) == 0;
+                    for(int i = 0; i < size(b); i++) {
+                        queue.add(new Candidate(distanceSq(b, i, x), ref(b, i), isLeaf));
+                    }
+                } finally {
+                    unpin(page);
+                }
+                c = queue.peek();
+            }
+            return c != null;
+        }
+
+        @Override
+        public T next() {
+            if(!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return lookup.apply(queue.poll().ref);
+        }
+    }
+
+    private static final class Candidate implements Comparable<Candidate> {
+        private final double dist;
+        private final long ref;
+        private final boolean isEntry;
+
+        Candidate(final double dist, final long ref, final boolean isEntry) {
+            this.dist = dist;
+            this.ref = ref;
+            this.isEntry = isEntry;
+        }
+
+        @Override
+        public int compareTo(final Candidate o) {
+            final int c = Double.compare(dist, o.dist);
+            if(c == 0) {
+                // entries first, there is nothing to gain by expanding a node at the same distance
+                return Boolean.compare(!isEntry, !o.isEntry);
+            }
+            return c;
+        }
+    }
+}
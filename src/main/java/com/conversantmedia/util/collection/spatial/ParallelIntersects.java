@@ -0,0 +1,174 @@
+package com.conversantmedia.util.collection.spatial;
+
+/*
+ * #%L
+ * Conversant RTree
+ * ~~
+ * Conversantmedia.com © 2016, Conversant, Inc. Conversant® is a trademark of Conversant, Inc.
+ * ~~
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.Consumer;
+
+/**
+ * Intersect search that splits the traversal of large queries into fork/join tasks
+ *
+ * The search descends from the root on the calling thread.  Where only one child of a branch
+ * intersects the query it follows that child.  Where several do, it estimates how many entries
+ * of each lie inside the query, assuming they are spread evenly over the child's bound.  Below
+ * PARALLEL_THRESHOLD in all the branch is searched sequentially, still on the calling thread,
+ * so a small query never reaches the pool even if it straddles large subtrees.  Otherwise a task
+ * is forked for each intersecting child, each deciding again in the same way.
+ *
+ * Tasks keep their results apart until all have finished, then {@link #drain(Consumer)} passes
+ * them on in the order of the sequential search.  A task keeps at most limit results, as no more
+ * can be passed on.
+ */
+final class ParallelIntersects<T> extends RecursiveAction {
+
+    // below this many entries expected in the query the fork/join overhead is not worth it
+    static final int PARALLEL_THRESHOLD = 8192;
+
+    private final double[] rMin;
+
+    private final double[] rMax;
+
+    private final int limit;
+
+    private Node<T> node;
+
+    // results of a sequential search, or null if the search was split
+    private List<T> found;
+
+    private List<ParallelIntersects<T>> parts;
+
+    private ParallelIntersects(final double[] rMin, final double[] rMax, final int limit, final Node<T> node) {
+        this.rMin = rMin;
+        this.rMax = rMax;
+        this.limit = limit;
+        this.node = node;
+    }
+
+    /**
+     * Find the entries under root intersecting rect, calling pool only if the search is split
+     *
+     * @param rect - HyperRect to search
+     * @param root - root of the tree, not null
+     * @param pool - pool to run the tasks
+     * @param limit - most entries the consumer will take
+     * @param consumer - receives entries in the order of the sequential search
+     */
+    static <T> void intersects(final HyperRect rect, final Node<T> root, final ForkJoinPool pool, final int limit, final Consumer<T> consumer) {
+        final ParallelIntersects<T> task = new ParallelIntersects<>(Leaf.minCoords(rect), Leaf.maxCoords(rect), limit, root);
+        if(task.descend()) {
+            pool.invoke(task);
+            task.drain(consumer);
+        } else if(task.node != null) {
+            task.node.intersects(task.rMin, task.rMax, consumer);
+        }
+    }
+
+    @Override
+    protected void compute() {
+        if(descend()) {
+            invokeAll(parts);
+        } else {
+            found = new ArrayList<>(node == null ? 0 : Math.min(limit, 16));
+            if(node != null) {
+                node.intersects(rMin, rMax, t -> {
+                    if(found.size() < limit) {
+                        found.add(t);
+                    }
+                });
+            }
+        }
+    }
+
+    /**
+     * Follow single intersecting children down from node
+     *
+     * @return true if the search is split into parts, otherwise node is to be searched
+     *         sequentially, or is null if nothing intersects
+     */
+    @SuppressWarnings("unchecked")
+    private boolean descend() {
+        while(node instanceof Branch) {
+            final Branch<T> branch = (Branch<T>) node;
+            final Node<T>[] child = branch.getChildren();
+
+            Node<T> next = null;
+            int hits = 0;
+            double expected = 0.0;
+            for(int i = 0; i < branch.size(); i++) {
+                if(branch.isIntersecting(rMin, rMax, i)) {
+                    next = child[i];
+                    hits++;
+                    expected += expectedCount(child[i]);
+                }
+            }
+
+            if(hits == 0) {
+                node = null;
+                return false;
+            } else if(hits > 1) {
+                if(expected < PARALLEL_THRESHOLD) {
+                    return false;
+                }
+                parts = new ArrayList<>(hits);
+                for(int i = 0; i < branch.size(); i++) {
+                    if(branch.isIntersecting(rMin, rMax, i)) {
+                        parts.add(new ParallelIntersects<>(rMin, rMax, limit, child[i]));
+                    }
+                }
+                return true;
+            }
+            node = next;
+        }
+        return false;
+    }
+
+    // entries of n inside the query, if they were spread evenly over its bound
+    private double expectedCount(final Node<T> n) {
+        final HyperRect bound = n.getBound();
+        double count = n.totalSize();
+        for(int d = 0; d < rMin.length; d++) {
+            final double lo = bound.getMinCoord(d);
+            final double hi = bound.getMaxCoord(d);
+            if(hi > lo) {
+                count *= (Math.min(hi, rMax[d]) - Math.max(lo, rMin[d]))/(hi - lo);
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Pass on every entry found, after the task has completed
+     *
+     * @param consumer - receives entries in the order of the sequential search
+     */
+    void drain(final Consumer<T> consumer) {
+        if(parts != null) {
+            for(final ParallelIntersects<T> part : parts) {
+                part.drain(consumer);
+            }
+        } else {
+            found.forEach(consumer);
+        }
+    }
+}
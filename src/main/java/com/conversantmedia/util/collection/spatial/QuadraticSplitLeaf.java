@@ -43,8 +43,7 @@ final class QuadraticSplitLeaf<T> extends Leaf<T> {
         int r1Max=0, r2Max=size-1;
         for(int i=0; i<size; i++) {
             for(int j=i+1; j<size; j++) {
-                final HyperRect mbr = r[i].getMbr(r[j]);
-                final double cost = mbr.cost() - (r[i].cost() + r[j].cost());
+                final double cost = cost(i, j) - (cost(i) + cost(j));
                 if(cost > minCost) {
                     r1Max = i;
                     r2Max = j;
@@ -0,0 +1,247 @@
+package com.conversantmedia.util.collection.spatial;
+
+/*
+ * #%L
+ * Conversant RTree
+ * ~~
+ * Conversantmedia.com © 2016, Conversant, Inc. Conversant® is a trademark of Conversant, Inc.
+ * ~~
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * R*-tree split - Beckmann, Kriegel, Schneider, Seeger
+ *
+ * The split axis is the one whose candidate distributions have the least total margin, which
+ * favours square nodes.  Along that axis the distribution with the least overlap between the
+ * two groups is used, breaking ties on total area.
+ *
+ * On the first overflow of each level during an insert, nodes reinsert rather than split, see
+ * {@link Reinsertion}.
+ */
+final class RStarSplitLeaf<T> extends Leaf<T> {
+
+    // share of an overflowing node that is reinserted, 30% is recommended by the paper
+    private static final double REINSERT_FRACTION = 0.3;
+
+    // least share of entries in each group of a split, 40% is recommended by the paper
+    private static final double MIN_FILL = 0.4;
+
+    protected RStarSplitLeaf(final RectBuilder<T> builder, final int mMin, final int mMax) {
+        super(builder, mMin, mMax, RTree.Split.RSTAR);
+    }
+
+    @Override
+    protected Node<T> split(final T t) {
+        final Branch<T> pNode = new Branch<>(builder, mMin, mMax, splitType);
+        final Node<T> l1Node = create(builder, mMin, mMax, splitType);
+        final Node<T> l2Node = create(builder, mMin, mMax, splitType);
+
+        final int n = size + 1;
+        final HyperRect[] rects = getBounds(n);
+        final T[] entries = Arrays.copyOf(entry, n);
+        rects[size] = builder.getBBox(t);
+        entries[size] = t;
+
+        final Integer[] order = new Integer[n];
+        final int k = distribute(rects, mMin, order);
+
+        for(int i=0; i<k; i++) {
+            l1Node.add(entries[order[i]]);
+        }
+        for(int i=k; i<n; i++) {
+            l2Node.add(entries[order[i]]);
+        }
+
+        pNode.addChild(l1Node);
+        pNode.addChild(l2Node);
+
+        return pNode;
+    }
+
+    /**
+     * Choose the R* distribution of an overflowing node into two groups, used for both leaves and branches
+     *
+     * @param rects - bounds of the entries or child nodes
+     * @param mMin - least number of entries per node
+     * @param order - receives the order of rects, the first group followed by the second
+     * @return size of the first group
+     */
+    static int distribute(final HyperRect[] rects, final int mMin, final Integer[] order) {
+        final int n = rects.length;
+        // each group holds at least mMin entries
+        final int kMin = Math.max(1, Math.min(Math.max(mMin, (int)(n*MIN_FILL)), n/2));
+        final int nD = rects[0].getNDim();
+
+        // choose the axis with the least margin over all distributions
+        int axis = 0;
+        double leastMargin = Double.POSITIVE_INFINITY;
+        for(int d=0; d<nD; d++) {
+            double margin = 0.0;
+            for(int lower=0; lower<2; lower++) {
+                final Integer[] sorted = sort(rects, d, lower == 0);
+                final HyperRect[] head = prefixMbr(rects, sorted);
+                final HyperRect[] tail = suffixMbr(rects, sorted);
+                for(int k=kMin; k<=n-kMin; k++) {
+                    margin += head[k-1].perimeter() + tail[k].perimeter();
+                }
+            }
+            if(margin < leastMargin) {
+                leastMargin = margin;
+                axis = d;
+            }
+        }
+
+        // choose the distribution with the least overlap along that axis
+        Integer[] bestOrder = null;
+        int bestK = kMin;
+        double leastOverlap = Double.POSITIVE_INFINITY;
+        double leastArea = Double.POSITIVE_INFINITY;
+        for(int lower=0; lower<2; lower++) {
+            final Integer[] sorted = sort(rects, axis, lower == 0);
+            final HyperRect[] head = prefixMbr(rects, sorted);
+            final HyperRect[] tail = suffixMbr(rects, sorted);
+            for(int k=kMin; k<=n-kMin; k++) {
+                final double overlap = overlap(head[k-1], tail[k]);
+                final double area = head[k-1].cost() + tail[k].cost();
+                if(overlap < leastOverlap || (RTree.isEqual(overlap, leastOverlap) && area < leastArea)) {
+                    leastOverlap = overlap;
+                    leastArea = area;
+                    bestOrder = sorted;
+                    bestK = k;
+                }
+            }
+        }
+
+        System.arraycopy(bestOrder, 0, order, 0, n);
+        return bestK;
+    }
+
+    /**
+     * Forced reinsertion - rather than splitting on overflow, remove the entries farthest from
+     * the center of the node so they can be inserted again from the root, possibly into a better
+     * placed node.
+     *
+     * @param t entry that overflowed this full leaf
+     * @return removed entries, nearest to the center first
+     */
+    List<T> evict(final T t) {
+        final int n = size + 1;
+        final HyperRect[] rects = getBounds(n);
+        final T[] entries = Arrays.copyOf(entry, n);
+        rects[size] = builder.getBBox(t);
+        entries[size] = t;
+
+        final Integer[] order = new Integer[n];
+        final int nEvict = farthestFirst(rects, getBound().getMbr(rects[size]), mMin, order);
+
+        Arrays.fill(entry, null);
+        size = 0;
+        for(int i=nEvict; i<n; i++) {
+            add(entries[order[i]]);
+        }
+
+        final List<T> evicted = new ArrayList<>(nEvict);
+        for(int i=nEvict-1; i>=0; i--) {
+            evicted.add(entries[order[i]]);
+        }
+        return evicted;
+    }
+
+    /**
+     * Order the entries or children of an overflowing node for forced reinsertion, farthest from
+     * the center of the node first
+     *
+     * @param rects - bounds of the entries or child nodes
+     * @param bound - bound of the node
+     * @param mMin - least number of entries per node
+     * @param order - receives the order of rects, farthest first
+     * @return number to reinsert, the first of the order
+     */
+    static int farthestFirst(final HyperRect[] rects, final HyperRect bound, final int mMin, final Integer[] order) {
+        final int n = rects.length;
+        final double[] dist = new double[n];
+        for(int i=0; i<n; i++) {
+            for(int d=0; d<bound.getNDim(); d++) {
+                final double dc = rects[i].getCenter(d) - bound.getCenter(d);
+                dist[i] += dc*dc;
+            }
+            order[i] = i;
+        }
+        Arrays.sort(order, (i1, i2) -> Double.compare(dist[i2], dist[i1]));
+
+        return Math.max(1, Math.min((int)(n*REINSERT_FRACTION), n - mMin));
+    }
+
+    /**
+     * Area of the intersection of two rects
+     *
+     * @param r1 - first rect
+     * @param r2 - second rect
+     * @return overlapping area, 0 if they do not intersect
+     */
+    static double overlap(final HyperRect r1, final HyperRect r2) {
+        double area = 1.0;
+        for(int d=0; d<r1.getNDim(); d++) {
+            final double r1Min = r1.getMinCoord(d);
+            final double r1Max = r1.getMaxCoord(d);
+            final double r2Min = r2.getMinCoord(d);
+            final double r2Max = r2.getMaxCoord(d);
+            final double range = Math.min(r1Max, r2Max) - Math.max(r1Min, r2Min);
+            if(range <= 0.0) {
+                return 0.0;
+            }
+            area *= range;
+        }
+        return area;
+    }
+
+    // order rects along dimension d by their lower bound, or upper bound
+    private static Integer[] sort(final HyperRect[] rects, final int d, final boolean lower) {
+        final double[] key = new double[rects.length];
+        final Integer[] order = new Integer[rects.length];
+        for(int i=0; i<rects.length; i++) {
+            key[i] = lower ? rects[i].getMinCoord(d) : rects[i].getMaxCoord(d);
+            order[i] = i;
+        }
+        Arrays.sort(order, Comparator.comparingDouble(i -> key[i]));
+        return order;
+    }
+
+    // head[i] bounds the first i+1 ordered rects
+    private static HyperRect[] prefixMbr(final HyperRect[] rects, final Integer[] order) {
+        final HyperRect[] head = new HyperRect[order.length];
+        head[0] = rects[order[0]];
+        for(int i=1; i<order.length; i++) {
+            head[i] = head[i-1].getMbr(rects[order[i]]);
+        }
+        return head;
+    }
+
+    // tail[i] bounds the ordered rects from i to the end
+    private static HyperRect[] suffixMbr(final HyperRect[] rects, final Integer[] order) {
+        final int n = order.length;
+        final HyperRect[] tail = new HyperRect[n];
+        tail[n-1] = rects[order[n-1]];
+        for(int i=n-2; i>=0; i--) {
+            tail[i] = tail[i+1].getMbr(rects[order[i]]);
+        }
+        return tail;
+    }
+}
@@ -20,8 +20,22 @@ package com.conversantmedia.util.collection.spatial;
  * #L%
  */
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.util.concurrent.ForkJoinPool;
 import java.util.function.Consumer;
+import java.util.function.LongFunction;
+import java.util.function.ToLongFunction;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * <p>Data structure to make range searching more efficient. Indexes multi-dimensional information
@@ -43,16 +57,24 @@ public final class RTree<T> implements SpatialSearch<T> {
     private Node<T> root = null;
 
     protected RTree(final RectBuilder<T> builder, final int mMin, final int mMax, final Split splitType) {
+        this(builder, mMin, mMax, splitType, null);
+    }
+
+    /**
+     * Create a tree over an existing root, such as one produced by a bulk loader
+     */
+    RTree(final RectBuilder<T> builder, final int mMin, final int mMax, final Split splitType, final Node<T> root) {
         this.mMin = mMin;
         this.mMax = mMax;
         this.builder = builder;
         this.splitType = splitType;
+        this.root = root;
     }
 
     @Override
     public int search(final HyperRect rect, final T[] t) {
         if(root != null) {
-            return root.search(rect, t, 0);
+            return root.search(Leaf.minCoords(rect), Leaf.maxCoords(rect), t, 0);
         }
         return 0;
     }
@@ -60,21 +82,21 @@ public final class RTree<T> implements SpatialSearch<T> {
     @Override
     public void search(HyperRect rect, Consumer<T> consumer) {
         if(root != null) {
-            root.search(rect, consumer);
+            root.search(Leaf.minCoords(rect), Leaf.maxCoords(rect), consumer);
         }
     }
 
     @Override
     public void search(HyperRect rect, Collection<T> collection) {
         if(root != null) {
-            root.search(rect, t -> collection.add(t));
+            root.search(Leaf.minCoords(rect), Leaf.maxCoords(rect), t -> collection.add(t));
         }
     }
 
     @Override
     public int intersects(final HyperRect rect, final T[] t) {
         if(root != null) {
-            return root.intersects(rect, t, 0);
+            return root.intersects(Leaf.minCoords(rect), Leaf.maxCoords(rect), t, 0);
         }
         return 0;
     }
@@ -82,14 +104,86 @@ public final class RTree<T> implements SpatialSearch<T> {
     @Override
     public void intersects(HyperRect rect, Consumer<T> consumer) {
         if(root != null) {
-            root.intersects(rect, consumer);
+            root.intersects(Leaf.minCoords(rect), Leaf.maxCoords(rect), consumer);
+        }
+    }
+
+    /**
+     * Find the entries intersecting rect, searching large queries in parallel
+     *
+     * The search runs on the calling thread and only hands off to the pool where several children
+     * of a branch intersect rect and together are expected to hold enough entries inside it to be
+     * worth splitting, see {@link ParallelIntersects}.  When it is split the entries are added to
+     * the collection by the calling thread after all tasks have finished, either way in the same
+     * order as {@link #intersects(HyperRect, Consumer)}.
+     *
+     * @param rect - HyperRect to search
+     * @param collection - collection to add results to
+     * @param pool - pool to run the tasks
+     */
+    public void intersects(final HyperRect rect, final Collection<T> collection, final ForkJoinPool pool) {
+        if(root != null) {
+            ParallelIntersects.intersects(rect, root, pool, Integer.MAX_VALUE, collection::add);
+        }
+    }
+
+    /**
+     * Find the entries intersecting rect, searching large queries in parallel, see
+     * {@link #intersects(HyperRect, Collection, ForkJoinPool)}
+     *
+     * A search that is not split fills t directly.  A split one keeps no more than t.length entries
+     * in each task.
+     *
+     * @param rect - HyperRect to search
+     * @param t - array to hold results
+     * @param pool - pool to run the tasks
+     *
+     * @return number of entries found, at most the length of t
+     */
+    public int intersects(final HyperRect rect, final T[] t, final ForkJoinPool pool) {
+        final int[] n = new int[1];
+        if(root != null) {
+            ParallelIntersects.intersects(rect, root, pool, t.length, e -> {
+                if(n[0] < t.length) {
+                    t[n[0]++] = e;
+                }
+            });
+        }
+        return n[0];
+    }
+
+    @Override
+    public int count(final HyperRect rect) {
+        if(root != null) {
+            return root.count(Leaf.minCoords(rect), Leaf.maxCoords(rect));
+        }
+        return 0;
+    }
+
+    @Override
+    public int nearest(final HyperPoint p, final int k, final T[] t) {
+        final int[] n = new int[1];
+        nearest(p, Math.min(k, t.length), e -> t[n[0]++] = e);
+        return n[0];
+    }
+
+    @Override
+    public void nearest(final HyperPoint p, final int k, final Consumer<T> consumer) {
+        if(root != null) {
+            new NearestNeighbor<>(p, root).next(k, consumer);
         }
     }
 
+    @Override
+    public Iterator<T> nearest(final HyperPoint p) {
+        return new NearestNeighbor<>(p, root);
+    }
+
     @Override
     public void add(final T t) {
         if(root != null) {
-            root = root.add(t);
+            // an R* insert reinserts from the root, at most once per level
+            root = splitType == Split.RSTAR && root instanceof Branch ? Reinsertion.add((Branch<T>) root, t) : root.add(t);
         } else {
             root = Leaf.create(builder, mMin, mMax, splitType);
             root.add(t);
@@ -99,14 +193,26 @@ public final class RTree<T> implements SpatialSearch<T> {
     @Override
     public void remove(final T t) {
         if(root != null) {
-            root = root.remove(t);
+            final HyperRect bbox = builder.getBBox(t);
+            final List<T> orphans = new ArrayList<>();
+            root = root.remove(t, Leaf.minCoords(bbox), Leaf.maxCoords(bbox), orphans);
+
+            // shorten the tree while the root has a single child
+            while(root != null && !root.isLeaf() && root.size() == 1) {
+                root = ((Branch<T>) CounterNode.unwrap(root)).getChildren()[0];
+            }
+
+            for(final T o : orphans) {
+                add(o);
+            }
         }
     }
 
     @Override
     public void update(final T told, final T tnew) {
         if(root != null) {
-            root = root.update(told, tnew);
+            final HyperRect bbox = builder.getBBox(told);
+            root = root.update(told, Leaf.minCoords(bbox), Leaf.maxCoords(bbox), tnew);
         }
     }
 
@@ -129,7 +235,7 @@ public final class RTree<T> implements SpatialSearch<T> {
     public boolean contains(final T t) {
         if(root != null) {
             final HyperRect bbox = builder.getBBox(t);
-            return root.contains(bbox, t);
+            return root.contains(Leaf.minCoords(bbox), Leaf.maxCoords(bbox), t);
         }
         return false;
     }
@@ -149,6 +255,90 @@ public final class RTree<T> implements SpatialSearch<T> {
         }
     }
 
+    /**
+     * Spliterator over every entry, which splits along branch children and reports exact sizes.
+     * The tree must not be changed while it is in use.
+     *
+     * @return spliterator over every entry
+     */
+    public Spliterator<T> spliterator() {
+        return new NodeSpliterator<>(root, null, false);
+    }
+
+    /**
+     * Lazy spliterator over the entries that {@link #search(HyperRect, Consumer)} would find.
+     * Its size is an estimate, the number of entries in the subtrees still to visit.
+     *
+     * @param rect - HyperRect to search
+     *
+     * @return spliterator over entries contained by rect
+     */
+    public Spliterator<T> searchSpliterator(final HyperRect rect) {
+        return new NodeSpliterator<>(root, rect, true);
+    }
+
+    /**
+     * Lazy spliterator over the entries that {@link #intersects(HyperRect, Consumer)} would find.
+     * Its size is an estimate, the number of entries in the subtrees still to visit.
+     *
+     * @param rect - HyperRect to search
+     *
+     * @return spliterator over entries intersecting rect
+     */
+    public Spliterator<T> intersectsSpliterator(final HyperRect rect) {
+        return new NodeSpliterator<>(root, rect, false);
+    }
+
+    /**
+     * @return sequential stream of every entry
+     */
+    public Stream<T> stream() {
+        return StreamSupport.stream(spliterator(), false);
+    }
+
+    /**
+     * @return parallel stream of every entry
+     */
+    public Stream<T> parallelStream() {
+        return StreamSupport.stream(spliterator(), true);
+    }
+
+    /**
+     * @param rect - HyperRect to search
+     *
+     * @return sequential stream of the entries contained by rect
+     */
+    public Stream<T> stream(final HyperRect rect) {
+        return StreamSupport.stream(searchSpliterator(rect), false);
+    }
+
+    /**
+     * @param rect - HyperRect to search
+     *
+     * @return parallel stream of the entries contained by rect
+     */
+    public Stream<T> parallelStream(final HyperRect rect) {
+        return StreamSupport.stream(searchSpliterator(rect), true);
+    }
+
+    /**
+     * @param rect - HyperRect to search
+     *
+     * @return sequential stream of the entries intersecting rect
+     */
+    public Stream<T> intersectsStream(final HyperRect rect) {
+        return StreamSupport.stream(intersectsSpliterator(rect), false);
+    }
+
+    /**
+     * @param rect - HyperRect to search
+     *
+     * @return parallel stream of the entries intersecting rect
+     */
+    public Stream<T> parallelIntersectsStream(final HyperRect rect) {
+        return StreamSupport.stream(intersectsSpliterator(rect), true);
+    }
+
     void instrumentTree() {
         if(root != null) {
             root = root.instrument();
@@ -167,6 +357,80 @@ public final class RTree<T> implements SpatialSearch<T> {
         return stats;
     }
 
+    /**
+     * Take an immutable snapshot of this tree for read only use
+     *
+     * Node bounds, child links and entries are packed into flat arrays, which take far less memory
+     * than the nodes of this tree and are traversed in memory order.  The snapshot does not see
+     * later changes to this tree and throws UnsupportedOperationException if it is modified.
+     *
+     * @return read only copy of this tree
+     */
+    public SpatialSearch<T> freeze() {
+        return new FrozenRTree<>(builder, mMin, mMax, splitType, root);
+    }
+
+    /**
+     * Take an immutable snapshot of this tree, held in direct memory outside the heap
+     *
+     * Entries are stored as ids and looked up again when a query returns them, so neither the
+     * size of the heap nor the cost of garbage collection grows with the snapshot.
+     *
+     * While it is built the heap holds this whole tree plus a list of every node, so the heap must
+     * already fit the index once; only after this tree is released does the heap shrink.  To index a
+     * collection without building the tree on the heap first see
+     * {@link SpatialSearches#offHeapRTree(RectBuilder, Collection, ToLongFunction, LongFunction)}.
+     *
+     * @param id - id of an entry, must be unique
+     * @param lookup - entry for an id
+     *
+     * @return read only copy of this tree
+     */
+    public SpatialSearch<T> freezeOffHeap(final ToLongFunction<T> id, final LongFunction<T> lookup) {
+        return new OffHeapRTree<>(builder, mMin, mMax, splitType, root, id, lookup, SegmentedBuffer.DEFAULT_SEGMENT_SHIFT);
+    }
+
+    /**
+     * Write an immutable snapshot of this tree to a file in the packed, page aligned format read by
+     * {@link SpatialSearches#mappedRTree(RectBuilder, Path, LongFunction)}
+     *
+     * @param file - file to write, replaced if it exists
+     * @param id - id of an entry, must be unique
+     *
+     * @throws IOException if the file can not be written
+     */
+    public void writePacked(final Path file, final ToLongFunction<T> id) throws IOException {
+        MappedRTree.write(file, builder, mMin, mMax, splitType, root, id);
+    }
+
+    /**
+     * Write the exact structure of this tree, its nodes, bounds and settings, followed by each entry
+     * as written by the codec.  Read it back with {@link SpatialSearches#rTree(RectBuilder, java.io.InputStream, EntryCodec)},
+     * which rebuilds the same nodes in one pass without splitting any of them.
+     *
+     * The stream is flushed but not closed.
+     *
+     * @param out - stream to write
+     * @param codec - writes each entry
+     *
+     * @throws IOException if the stream fails
+     */
+    public void writeTo(final OutputStream out, final EntryCodec<T> codec) throws IOException {
+        RTreeSerializer.write(out, mMin, mMax, splitType, root, codec);
+    }
+
+    /**
+     * Write the exact structure of this tree to a channel, see {@link #writeTo(OutputStream, EntryCodec)}
+     *
+     * @param channel - channel to write, not closed
+     * @param codec - writes each entry
+     *
+     * @throws IOException if the channel fails
+     */
+    public void writeTo(final WritableByteChannel channel, final EntryCodec<T> codec) throws IOException {
+        writeTo(Channels.newOutputStream(channel), codec);
+    }
+
     Node<T> getRoot() {
         return root;
     }
@@ -184,5 +448,17 @@ public final class RTree<T> implements SpatialSearch<T> {
         AXIAL,
         LINEAR,
         QUADRATIC,
+        RSTAR,
+    }
+
+    /**
+     * Different methods for ordering entries when bulk loading an RTree.
+     *
+     * STR tiles space evenly and works well for uniformly distributed data,
+     * HILBERT follows the data along a space filling curve and is better suited to skewed or clustered data.
+     */
+    public enum Pack {
+        STR,
+        HILBERT,
     }
 }
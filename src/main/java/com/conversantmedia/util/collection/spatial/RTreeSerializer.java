@@ -0,0 +1,172 @@
+package com.conversantmedia.util.collection.spatial;
+
+/*
+ * #%L
+ * Conversant RTree
+ * ~~
+ * Conversantmedia.com © 2016, Conversant, Inc. Conversant® is a trademark of Conversant, Inc.
+ * ~~
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Streams the exact structure of a tree, so that it can be restored without splitting a node
+ * or choosing a leaf for any entry
+ *
+ * <pre>
+ * header   magic, version, nD, mMin, mMax, split, entry count, 1 if there is a root else 0
+ * node     1 for a leaf or 0 for a branch, child count, then for each child its bounds,
+ *          the min then the max of each dimension, followed by the entry or the child node
+ * </pre>
+ *
+ * Nodes are written depth first from the root, all values big endian as written by DataOutput.
+ */
+final class RTreeSerializer {
+
+    static final int MAGIC = 0x52545253;
+
+    static final int VERSION = 1;
+
+    private static final int BUFFER_SIZE = 64*1024;
+
+    private RTreeSerializer() {
+    }
+
+    static <T> void write(final OutputStream out, final int mMin, final int mMax, final RTree.Split splitType,
+                          final Node<T> root, final EntryCodec<T> codec) throws IOException {
+        final DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out, BUFFER_SIZE));
+        final int nD = root == null ? 0 : root.getBound().getNDim();
+
+        data.writeInt(MAGIC);
+        data.writeInt(VERSION);
+        data.writeInt(nD);
+        data.writeInt(mMin);
+        data.writeInt(mMax);
+        data.writeInt(splitType.ordinal());
+        data.writeInt(root == null ? 0 : root.totalSize());
+        data.writeByte(root == null ? 0 : 1);
+        if(root != null) {
+            writeNode(data, root, new double[2*nD], codec);
+        }
+        data.flush();
+    }
+
+    private static <T> void writeNode(final DataOutputStream data, final Node<T> n, final double[] bounds, final EntryCodec<T> codec) throws IOException {
+        final int nD = bounds.length/2;
+        data.writeByte(n.isLeaf() ? 1 : 0);
+        data.writeInt(n.size());
+        if(n.isLeaf()) {
+            final Leaf<T> leaf = (Leaf<T>) CounterNode.unwrap(n);
+            for(int i = 0; i < leaf.size(); i++) {
+                for(int d = 0; d < nD; d++) {
+                    data.writeDouble(leaf.getMin(d, i));
+                }
+                for(int d = 0; d < nD; d++) {
+                    data.writeDouble(leaf.getMax(d, i));
+                }
+                codec.write(leaf.entry[i], data);
+            }
+        } else {
+            final Branch<T> branch = (Branch<T>) CounterNode.unwrap(n);
+            final Node<T>[] children = branch.getChildren();
+            for(int i = 0; i < branch.size(); i++) {
+                branch.getChildBound(i, bounds);
+                for(final double b : bounds) {
+                    data.writeDouble(b);
+                }
+                writeNode(data, children[i], bounds, codec);
+            }
+        }
+    }
+
+    static <T> RTree<T> read(final InputStream in, final RectBuilder<T> builder, final EntryCodec<T> codec) throws IOException {
+        final DataInputStream data = new DataInputStream(new BufferedInputStream(in, BUFFER_SIZE));
+
+        if(data.readInt() != MAGIC) {
+            throw new IOException("Not a serialized RTree");
+        }
+        final int version = data.readInt();
+        if(version != VERSION) {
+            throw new IOException("Unsupported serialized RTree version " + version);
+        }
+
+        final int nD = data.readInt();
+        final int mMin = data.readInt();
+        final int mMax = data.readInt();
+        final int split = data.readInt();
+        final int entryCount = data.readInt();
+        final boolean hasRoot = data.readByte() != 0;
+        if(nD < 0 || mMax < 2 || mMin < 0 || mMin > mMax || split < 0 || split >= RTree.Split.values().length) {
+            throw new IOException("Corrupt serialized RTree header");
+        }
+
+        final RTree.Split splitType = RTree.Split.values()[split];
+        final Node<T> root = hasRoot ? readNode(data, builder, mMin, mMax, splitType, new double[2*nD], codec) : null;
+        if((root == null ? 0 : root.totalSize()) != entryCount) {
+            throw new IOException("Serialized RTree holds " + (root == null ? 0 : root.totalSize()) + " entries, expected " + entryCount);
+        }
+        return new RTree<>(builder, mMin, mMax, splitType, root);
+    }
+
+    private static <T> Node<T> readNode(final DataInputStream data, final RectBuilder<T> builder, final int mMin, final int mMax, final RTree.Split splitType,
+                                        final double[] bounds, final EntryCodec<T> codec) throws IOException {
+        final boolean isLeaf = data.readByte() != 0;
+        final int size = data.readInt();
+        if(size < 1 || size > mMax) {
+            throw new IOException("Corrupt serialized RTree node of " + size + " children");
+        }
+
+        if(isLeaf) {
+            final Leaf<T> leaf = (Leaf<T>) Leaf.create(builder, mMin, mMax, splitType);
+            for(int i = 0; i < size; i++) {
+                readBounds(data, bounds);
+                leaf.addEntry(codec.read(data), bounds);
+            }
+            return leaf;
+        } else {
+            final Branch<T> branch = new Branch<>(builder, mMin, mMax, splitType);
+            int childLevel = 0;
+            for(int i = 0; i < size; i++) {
+                readBounds(data, bounds);
+                // the child reuses bounds, so keep a copy for this branch
+                final double[] childBounds = bounds.clone();
+                final Node<T> child = readNode(data, builder, mMin, mMax, splitType, bounds, codec);
+
+                // every leaf must be at the same depth, children are checked before their parent
+                final int level = child instanceof Branch ? ((Branch<T>) child).level() : 0;
+                if(i == 0) {
+                    childLevel = level;
+                } else if(level != childLevel) {
+                    throw new IOException("Corrupt serialized RTree, leaves at different depths");
+                }
+                branch.addChild(child, childBounds);
+            }
+            return branch;
+        }
+    }
+
+    private static void readBounds(final DataInputStream data, final double[] bounds) throws IOException {
+        for(int i = 0; i < bounds.length; i++) {
+            bounds[i] = data.readDouble();
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package com.conversantmedia.util.collection.spatial;
+
+/*
+ * #%L
+ * Conversant RTree
+ * ~~
+ * Conversantmedia.com © 2016, Conversant, Inc. Conversant® is a trademark of Conversant, Inc.
+ * ~~
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.util.ArrayDeque;
+import java.util.List;
+
+/**
+ * Insert into an R* tree with forced reinsertion - Beckmann, Kriegel, Schneider, Seeger
+ *
+ * On the first overflow of each level below the root during an insert, the node gives up the
+ * 30% of its entries or children farthest from its center rather than splitting.  They are added
+ * again from the root, an entry to a leaf and a subtree to a branch at the level above its own,
+ * nearest first.  Any later overflow at a level that has reinserted splits, so an insert
+ * reinserts at most once per level.  Levels count up from the leaves, which are level 0, so they
+ * keep their meaning when the root splits.
+ */
+final class Reinsertion<T> {
+
+    // bit l is set once level l has reinserted
+    private long levels;
+
+    // level of the root of the current descent, which never reinserts
+    private int rootLevel;
+
+    // true once the current descent gave up entries, so bounds on its path must be rebuilt
+    private boolean moved;
+
+    private final ArrayDeque<T> entries = new ArrayDeque<>();
+
+    private final ArrayDeque<Node<T>> nodes = new ArrayDeque<>();
+
+    private final ArrayDeque<Integer> nodeLevels = new ArrayDeque<>();
+
+    private Reinsertion() {
+    }
+
+    /**
+     * Add an entry to an R* tree, with forced reinsertion
+     *
+     * @param root - root of the tree, ready to be changed
+     * @param t - entry to add
+     * @return the root of the tree, a new branch if the root was split
+     */
+    static <T> Node<T> add(final Branch<T> root, final T t) {
+        final Reinsertion<T> reinsertion = new Reinsertion<>();
+        reinsertion.rootLevel = root.level();
+        Node<T> top = root.add(t, reinsertion.rootLevel, reinsertion);
+
+        while(!reinsertion.entries.isEmpty() || !reinsertion.nodes.isEmpty()) {
+            // the root is a branch and only grows while entries are added
+            final Branch<T> branch = (Branch<T>) top;
+            reinsertion.rootLevel = branch.level();
+            reinsertion.moved = false;
+            if(!reinsertion.entries.isEmpty()) {
+                top = branch.add(reinsertion.entries.poll(), reinsertion.rootLevel, reinsertion);
+            } else {
+                top = branch.addNode(reinsertion.nodes.poll(), reinsertion.nodeLevels.poll(), reinsertion.rootLevel, reinsertion);
+            }
+        }
+        return top;
+    }
+
+    /**
+     * Claim the reinsertion of a level
+     *
+     * @param level - level of the overflowing node, 0 for a leaf
+     * @return true if the node should reinsert, false if it must split
+     */
+    boolean first(final int level) {
+        final long bit = 1L << level;
+        if(level >= rootLevel || (levels & bit) != 0) {
+            return false;
+        }
+        levels |= bit;
+        return true;
+    }
+
+    /**
+     * @param evicted - entries given up by a leaf, to be added again from the root in order
+     */
+    void reinsert(final List<T> evicted) {
+        entries.addAll(evicted);
+        moved = true;
+    }
+
+    /**
+     * @param node - subtree given up by a branch, to be added again from the root
+     * @param level - level of the subtree
+     */
+    void reinsert(final Node<T> node, final int level) {
+        nodes.add(node);
+        nodeLevels.add(level);
+        moved = true;
+    }
+
+    /**
+     * @return true if the current descent gave up entries or subtrees
+     */
+    boolean moved() {
+        return moved;
+    }
+}
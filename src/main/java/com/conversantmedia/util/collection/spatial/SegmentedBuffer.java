@@ -0,0 +1,140 @@
+package com.conversantmedia.util.collection.spatial;
+
+/*
+ * #%L
+ * Conversant RTree
+ * ~~
+ * Conversantmedia.com © 2016, Conversant, Inc. Conversant® is a trademark of Conversant, Inc.
+ * ~~
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Byte addressed storage larger than a single ByteBuffer can index, split into fixed size
+ * segments.  Values are read and written at offsets aligned to their own size, so with a power
+ * of two segment size no value straddles two segments.
+ */
+final class SegmentedBuffer {
+
+    static final int DEFAULT_SEGMENT_SHIFT = 30;
+
+    private final ByteBuffer[] segment;
+
+    private final int shift;
+
+    private final long mask;
+
+    private final long size;
+
+    /**
+     * @param segment - segments, all but the last 1 &lt;&lt; shift bytes long
+     * @param shift - log2 of the segment size
+     */
+    SegmentedBuffer(final ByteBuffer[] segment, final int shift) {
+        this.segment = segment;
+        this.shift = shift;
+        this.mask = (1L << shift) - 1;
+        long n = 0;
+        for(final ByteBuffer b : segment) {
+            n += b.capacity();
+        }
+        this.size = n;
+    }
+
+    /**
+     * Allocate direct, off heap, memory in native byte order
+     *
+     * @param size - bytes
+     * @param shift - log2 of the segment size
+     * @return zeroed buffer
+     */
+    static SegmentedBuffer allocateDirect(final long size, final int shift) {
+        final long segmentSize = 1L << shift;
+        final ByteBuffer[] segment = new ByteBuffer[(int)((size + segmentSize - 1) >>> shift)];
+        for(int i = 0; i < segment.length; i++) {
+            final int capacity = (int)Math.min(segmentSize, size - i*segmentSize);
+            segment[i] = ByteBuffer.allocateDirect(capacity).order(ByteOrder.nativeOrder());
+        }
+        return new SegmentedBuffer(segment, shift);
+    }
+
+    /**
+     * Map a file into memory
+     *
+     * @param channel - open file
+     * @param mode - READ_ONLY, or READ_WRITE to extend the file to size
+     * @param size - bytes to map from the start of the file
+     * @param order - byte order of the file
+     * @param shift - log2 of the segment size
+     * @return mapped buffer
+     * @throws IOException if the file can not be mapped
+     */
+    static SegmentedBuffer map(final FileChannel channel, final FileChannel.MapMode mode, final long size, final ByteOrder order, final int shift) throws IOException {
+        final long segmentSize = 1L << shift;
+        final ByteBuffer[] segment = new ByteBuffer[(int)((size + segmentSize - 1) >>> shift)];
+        for(int i = 0; i < segment.length; i++) {
+            final long position = i*segmentSize;
+            segment[i] = channel.map(mode, position, Math.min(segmentSize, size - position)).order(order);
+        }
+        return new SegmentedBuffer(segment, shift);
+    }
+
+    /**
+     * Write any changes to mapped segments through to the file
+     */
+    void force() {
+        for(final ByteBuffer b : segment) {
+            if(b instanceof MappedByteBuffer) {
+                ((MappedByteBuffer) b).force();
+            }
+        }
+    }
+
+    /**
+     * @return size in bytes
+     */
+    long size() {
+        return size;
+    }
+
+    double getDouble(final long offset) {
+        return segment[(int)(offset >>> shift)].getDouble((int)(offset & mask));
+    }
+
+    void putDouble(final long offset, final double v) {
+        segment[(int)(offset >>> shift)].putDouble((int)(offset & mask), v);
+    }
+
+    int getInt(final long offset) {
+        return segment[(int)(offset >>> shift)].getInt((int)(offset & mask));
+    }
+
+    void putInt(final long offset, final int v) {
+        segment[(int)(offset >>> shift)].putInt((int)(offset & mask), v);
+    }
+
+    long getLong(final long offset) {
+        return segment[(int)(offset >>> shift)].getLong((int)(offset & mask));
+    }
+
+    void putLong(final long offset, final long v) {
+        segment[(int)(offset >>> shift)].putLong((int)(offset & mask), v);
+    }
+}
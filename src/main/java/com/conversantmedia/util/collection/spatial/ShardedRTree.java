@@ -0,0 +1,605 @@
+package com.conversantmedia.util.collection.spatial;
+
+/*
+ * #%L
+ * Conversant RTree
+ * ~~
+ * Conversantmedia.com © 2016, Conversant, Inc. Conversant® is a trademark of Conversant, Inc.
+ * ~~
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.ConcurrentModificationException;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+
+/**
+ * R-Tree partitioned in space into independent shards, each with its own lock
+ *
+ * Space is cut into a grid of cells, each holding an RTree of the entries whose centers fall
+ * inside it.  Entries outside the grid belong to the nearest edge cell.  A change locks only the
+ * shard of its entry, so writers in different regions do not wait for each other.  A query visits
+ * only the shards whose bounds overlap it, taking the read lock of each in turn.  A query is
+ * consistent within each shard but not across them, it may see a change to one shard and not a
+ * later change to another.
+ *
+ * Each shard keeps the bounds of every entry it has held.  Bounds grow with each add and are not
+ * shrunk by a remove.
+ */
+public final class ShardedRTree<T> implements SpatialSearch<T> {
+
+    private final RectBuilder<T> builder;
+
+    private final int mMin;
+
+    private final int mMax;
+
+    private final RTree.Split splitType;
+
+    // sorted cut points between cells, per dimension
+    private final double[][] cuts;
+
+    private final Shard<T>[] shards;
+
+    /**
+     * @param cuts - sorted cut points between cells for each dimension, n cuts make n+1 cells
+     */
+    @SuppressWarnings("unchecked")
+    ShardedRTree(final RectBuilder<T> builder, final int mMin, final int mMax, final RTree.Split splitType, final double[][] cuts) {
+        this.builder = builder;
+        this.mMin = mMin;
+        this.mMax = mMax;
+        this.splitType = splitType;
+        this.cuts = cuts;
+
+        int n = 1;
+        for(final double[] c : cuts) {
+            n *= c.length + 1;
+        }
+        shards = new Shard[n];
+        for(int i=0; i<n; i++) {
+            shards[i] = new Shard<>(i, new RTree<>(builder, mMin, mMax, splitType));
+        }
+    }
+
+    /**
+     * Cut the extent into cells of the same size
+     *
+     * @param extent - region to cut
+     * @param cells - number of cells in each dimension
+     *
+     * @return cut points for each dimension
+     */
+    static double[][] gridCuts(final HyperRect extent, final int cells) {
+        final double[][] cuts = new double[extent.getNDim()][cells - 1];
+        for(int d=0; d<cuts.length; d++) {
+            final double min = extent.getMinCoord(d);
+            final double range = extent.getMaxCoord(d) - min;
+            for(int i=1; i<cells; i++) {
+                cuts[d][i - 1] = min + range*i/cells;
+            }
+        }
+        return cuts;
+    }
+
+    /**
+     * Cut each dimension at the quantiles of the centers of a sample of entries, so that cells
+     * hold similar numbers of entries drawn from the same distribution
+     *
+     * @param builder - bounds of an entry
+     * @param sample - entries representative of those to be indexed
+     * @param cells - number of cells in each dimension
+     *
+     * @return cut points for each dimension
+     */
+    static <T> double[][] sampleCuts(final RectBuilder<T> builder, final Collection<T> sample, final int cells) {
+        if(sample.isEmpty()) {
+            throw new IllegalArgumentException("Sample must hold at least one entry");
+        }
+
+        final HyperRect[] rects = new HyperRect[sample.size()];
+        int n = 0;
+        for(final T t : sample) {
+            rects[n++] = builder.getBBox(t);
+        }
+
+        final double[][] cuts = new double[rects[0].getNDim()][cells - 1];
+        final double[] centers = new double[n];
+        for(int d=0; d<cuts.length; d++) {
+            for(int i=0; i<n; i++) {
+                centers[i] = rects[i].getCenter(d);
+            }
+            Arrays.sort(centers);
+            for(int i=1; i<cells; i++) {
+                cuts[d][i - 1] = centers[(int)((long)n*i/cells)];
+            }
+        }
+        return cuts;
+    }
+
+    @Override
+    public int search(final HyperRect rect, final T[] t) {
+        final double[] rMin = Leaf.minCoords(rect);
+        final double[] rMax = Leaf.maxCoords(rect);
+        int n = 0;
+        for(final Shard<T> shard : shards) {
+            if(n < t.length && shard.intersects(rect)) {
+                shard.readLock.lock();
+                try {
+                    final Node<T> root = shard.tree.getRoot();
+                    if(root != null) {
+                        n += root.search(rMin, rMax, t, n);
+                    }
+                } finally {
+                    shard.readLock.unlock();
+                }
+            }
+        }
+        return n;
+    }
+
+    @Override
+    public void search(final HyperRect rect, final Consumer<T> consumer) {
+        for(final Shard<T> shard : shards) {
+            if(shard.intersects(rect)) {
+                shard.readLock.lock();
+                try {
+                    shard.tree.search(rect, consumer);
+                } finally {
+                    shard.readLock.unlock();
+                }
+            }
+        }
+    }
+
+    @Override
+    public void search(final HyperRect rect, final Collection<T> collection) {
+        search(rect, collection::add);
+    }
+
+    @Override
+    public int intersects(final HyperRect rect, final T[] t) {
+        final double[] rMin = Leaf.minCoords(rect);
+        final double[] rMax = Leaf.maxCoords(rect);
+        int n = 0;
+        for(final Shard<T> shard : shards) {
+            if(n < t.length && shard.intersects(rect)) {
+                shard.readLock.lock();
+                try {
+                    final Node<T> root = shard.tree.getRoot();
+                    if(root != null) {
+                        n += root.intersects(rMin, rMax, t, n);
+                    }
+                } finally {
+                    shard.readLock.unlock();
+                }
+            }
+        }
+        return n;
+    }
+
+    @Override
+    public void intersects(final HyperRect rect, final Consumer<T> consumer) {
+        for(final Shard<T> shard : shards) {
+            if(shard.intersects(rect)) {
+                shard.readLock.lock();
+                try {
+                    shard.tree.intersects(rect, consumer);
+                } finally {
+                    shard.readLock.unlock();
+                }
+            }
+        }
+    }
+
+    @Override
+    public int count(final HyperRect rect) {
+        int n = 0;
+        for(final Shard<T> shard : shards) {
+            if(shard.intersects(rect)) {
+                shard.readLock.lock();
+                try {
+                    n += shard.tree.count(rect);
+                } finally {
+                    shard.readLock.unlock();
+                }
+            }
+        }
+        return n;
+    }
+
+    @Override
+    public int nearest(final HyperPoint p, final int k, final T[] t) {
+        final int[] n = new int[1];
+        nearest(p, Math.min(k, t.length), e -> t[n[0]++] = e);
+        return n[0];
+    }
+
+    /**
+     * Search shards nearest first, skipping any that can not hold an entry nearer than the
+     * k-th found so far
+     */
+    @Override
+    public void nearest(final HyperPoint p, final int k, final Consumer<T> consumer) {
+        if(k < 1) {
+            return;
+        }
+
+        final List<Shard<T>> byDistance = new ArrayList<>();
+        for(final Shard<T> shard : shards) {
+            if(shard.bounds != null) {
+                byDistance.add(shard);
+            }
+        }
+        final double[] dist = new double[shards.length];
+        for(final Shard<T> shard : byDistance) {
+            dist[shard.index] = shard.distanceSq(p);
+        }
+        byDistance.sort(Comparator.comparingDouble(s -> dist[s.index]));
+
+        final List<T> found = new ArrayList<>();
+        final List<Double> foundDist = new ArrayList<>();
+        for(final Shard<T> shard : byDistance) {
+            if(found.size() >= k && dist[shard.index] > foundDist.get(k - 1)) {
+                break;
+            }
+            shard.readLock.lock();
+            try {
+                shard.tree.nearest(p, k, e -> {
+                    // keep the k nearest in order of distance
+                    final double d = NearestNeighbor.distanceSq(p, builder.getBBox(e));
+                    int i = foundDist.size();
+                    while(i > 0 && foundDist.get(i - 1) > d) {
+                        i--;
+                    }
+                    if(i < k) {
+                        found.add(i, e);
+                        foundDist.add(i, d);
+                        if(found.size() > k) {
+                            found.remove(k);
+                            foundDist.remove(k);
+                        }
+                    }
+                });
+            } finally {
+                shard.readLock.unlock();
+            }
+        }
+
+        for(final T t : found) {
+            consumer.accept(t);
+        }
+    }
+
+    /**
+     * Nearest neighbor iterator merging the nearest neighbors of every shard
+     *
+     * The read lock of a shard is held for each step of that shard's iterator rather than for the
+     * lifetime of the iterator.  As for {@link ConcurrentRTree#nearest(HyperPoint)}, a change to a
+     * shard could make its iterator return entries twice or skip them, so once a shard that still
+     * has entries to return has changed, next throws ConcurrentModificationException.
+     *
+     * @param p - point to measure distance from
+     *
+     * @return iterator over entries, nearest first
+     */
+    @Override
+    public Iterator<T> nearest(final HyperPoint p) {
+        final PriorityQueue<Head<T>> heads = new PriorityQueue<>();
+        for(final Shard<T> shard : shards) {
+            if(shard.bounds != null) {
+                final Head<T> head;
+                shard.readLock.lock();
+                try {
+                    head = new Head<>(shard, new NearestNeighbor<>(p, shard.tree.getRoot()), shard.modCount);
+                } finally {
+                    shard.readLock.unlock();
+                }
+                if(head.advance(p, builder)) {
+                    heads.add(head);
+                }
+            }
+        }
+
+        return new Iterator<T>() {
+            @Override
+            public boolean hasNext() {
+                return !heads.isEmpty();
+            }
+
+            @Override
+            public T next() {
+                final Head<T> head = heads.poll();
+                if(head == null) {
+                    throw new NoSuchElementException();
+                }
+                final T t = head.entry;
+                if(head.advance(p, builder)) {
+                    heads.add(head);
+                }
+                return t;
+            }
+        };
+    }
+
+    @Override
+    public void add(final T t) {
+        final HyperRect bbox = builder.getBBox(t);
+        final Shard<T> shard = shards[route(bbox)];
+        shard.writeLock.lock();
+        try {
+            shard.grow(bbox);
+            shard.modCount++;
+            shard.tree.add(t);
+        } finally {
+            shard.writeLock.unlock();
+        }
+    }
+
+    @Override
+    public void remove(final T t) {
+        final Shard<T> shard = shards[route(builder.getBBox(t))];
+        shard.writeLock.lock();
+        try {
+            shard.modCount++;
+            shard.tree.remove(t);
+        } finally {
+            shard.writeLock.unlock();
+        }
+    }
+
+    /**
+     * Update an entry, when it moves to another shard it is removed from the old shard before it
+     * is added to the new one, so a concurrent query may see neither
+     *
+     * @param told - entry to update
+     * @param tnew - entry with new value
+     */
+    @Override
+    public void update(final T told, final T tnew) {
+        final Shard<T> from = shards[route(builder.getBBox(told))];
+        final HyperRect bbox = builder.getBBox(tnew);
+        final Shard<T> to = shards[route(bbox)];
+
+        if(from == to) {
+            from.writeLock.lock();
+            try {
+                from.grow(bbox);
+                from.modCount++;
+                from.tree.update(told, tnew);
+            } finally {
+                from.writeLock.unlock();
+            }
+            return;
+        }
+
+        from.writeLock.lock();
+        try {
+            if(!from.tree.contains(told)) {
+                return;
+            }
+            from.modCount++;
+            from.tree.remove(told);
+        } finally {
+            from.writeLock.unlock();
+        }
+        add(tnew);
+    }
+
+    @Override
+    public boolean contains(final T t) {
+        final Shard<T> shard = shards[route(builder.getBBox(t))];
+        shard.readLock.lock();
+        try {
+            return shard.tree.contains(t);
+        } finally {
+            shard.readLock.unlock();
+        }
+    }
+
+    @Override
+    public int getEntryCount() {
+        int n = 0;
+        for(final Shard<T> shard : shards) {
+            n += shard.tree.getEntryCount();
+        }
+        return n;
+    }
+
+    @Override
+    public void forEach(final Consumer<T> consumer) {
+        for(final Shard<T> shard : shards) {
+            shard.readLock.lock();
+            try {
+                shard.tree.forEach(consumer);
+            } finally {
+                shard.readLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Stats of all shards, counting the grid of shards as a branch above their roots
+     */
+    @Override
+    public Stats collectStats() {
+        final Stats stats = new Stats();
+        stats.setType(splitType);
+        stats.setMaxFill(mMax);
+        stats.setMinFill(mMin);
+        stats.countBranchAtDepth(0);
+        for(final Shard<T> shard : shards) {
+            shard.readLock.lock();
+            try {
+                final Node<T> root = shard.tree.getRoot();
+                if(root != null) {
+                    root.collectStats(stats, 1);
+                }
+            } finally {
+                shard.readLock.unlock();
+            }
+        }
+        return stats;
+    }
+
+    /**
+     * @return number of shards
+     */
+    public int getShardCount() {
+        return shards.length;
+    }
+
+    /**
+     * index of the shard holding entries with the given bounds
+     */
+    int route(final HyperRect bbox) {
+        int index = 0;
+        for(int d=0; d<cuts.length; d++) {
+            final int pos = Arrays.binarySearch(cuts[d], bbox.getCenter(d));
+            // an entry on a cut belongs to the cell above it
+            index = index*(cuts[d].length + 1) + (pos >= 0 ? pos + 1 : -pos - 1);
+        }
+        return index;
+    }
+
+    private static final class Shard<T> {
+
+        final RTree<T> tree;
+
+        final Lock readLock;
+
+        final Lock writeLock;
+
+        final int index;
+
+        // min then max of each dimension over every entry added, null while empty, guarded by
+        // writeLock for changes and replaced rather than changed so it may be read without a lock
+        volatile double[] bounds;
+
+        // number of changes made, guarded by writeLock and read under readLock
+        long modCount;
+
+        Shard(final int index, final RTree<T> tree) {
+            final ReentrantReadWriteLock lock = new ReentrantReadWriteLock(true);
+            this.tree = tree;
+            this.readLock = lock.readLock();
+            this.writeLock = lock.writeLock();
+            this.index = index;
+        }
+
+        void grow(final HyperRect bbox) {
+            final int nD = bbox.getNDim();
+            final double[] b = bounds;
+            if(b != null) {
+                boolean inside = true;
+                for(int d=0; d<nD && inside; d++) {
+                    inside = b[d] <= bbox.getMinCoord(d) && bbox.getMaxCoord(d) <= b[nD + d];
+                }
+                if(inside) {
+                    return;
+                }
+            }
+
+            final double[] grown = new double[2*nD];
+            for(int d=0; d<nD; d++) {
+                grown[d] = b == null ? bbox.getMinCoord(d) : Math.min(b[d], bbox.getMinCoord(d));
+                grown[nD + d] = b == null ? bbox.getMaxCoord(d) : Math.max(b[nD + d], bbox.getMaxCoord(d));
+            }
+            bounds = grown;
+        }
+
+        boolean intersects(final HyperRect rect) {
+            final double[] b = bounds;
+            if(b == null) {
+                return false;
+            }
+            final int nD = b.length/2;
+            for(int d=0; d<nD; d++) {
+                if(rect.getMaxCoord(d) < b[d] || b[nD + d] < rect.getMinCoord(d)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        double distanceSq(final HyperPoint p) {
+            final double[] b = bounds;
+            final int nD = b.length/2;
+            double dist = 0.0;
+            for(int d=0; d<nD; d++) {
+                final double x = p.getDoubleCoord(d);
+                if(x < b[d]) {
+                    dist += (b[d] - x)*(b[d] - x);
+                } else if(x > b[nD + d]) {
+                    dist += (x - b[nD + d])*(x - b[nD + d]);
+                }
+            }
+            return dist;
+        }
+    }
+
+    /**
+     * next entry of a shard's nearest neighbor iterator
+     */
+    private static final class Head<T> implements Comparable<Head<T>> {
+
+        private final Shard<T> shard;
+
+        private final Iterator<T> it;
+
+        // modCount of the shard when the iterator was created
+        private final long expectedModCount;
+
+        private T entry;
+
+        private double dist;
+
+        Head(final Shard<T> shard, final Iterator<T> it, final long expectedModCount) {
+            this.shard = shard;
+            this.it = it;
+            this.expectedModCount = expectedModCount;
+        }
+
+        boolean advance(final HyperPoint p, final RectBuilder<T> builder) {
+            shard.readLock.lock();
+            try {
+                if(shard.modCount != expectedModCount) {
+                    throw new ConcurrentModificationException("Shard " + shard.index + " changed during nearest neighbor iteration");
+                }
+                if(!it.hasNext()) {
+                    return false;
+                }
+                entry = it.next();
+            } finally {
+                shard.readLock.unlock();
+            }
+            dist = NearestNeighbor.distanceSq(p, builder.getBBox(entry));
+            return true;
+        }
+
+        @Override
+        public int compareTo(final Head<T> o) {
+            return Double.compare(dist, o.dist);
+        }
+    }
+}
@@ -22,6 +22,7 @@ package com.conversantmedia.util.collection.spatial;
 
 import java.util.function.Consumer;
 import java.util.Collection;
+import java.util.Iterator;
 
 /**
  * Created by jcovert on 12/30/15.
@@ -74,6 +75,74 @@ public interface SpatialSearch<T> {
      */
     void search(HyperRect rect, Collection<T> collection);
 
+    /**
+     * Count the entries contained by the given bounding rect, without collecting them
+     *
+     * The default passes each entry found by {@link #search(HyperRect, Consumer)} to a counter.
+     *
+     * @param rect - Bounding rectangle to use for querying
+     *
+     * @return Number of entries contained by rect
+     */
+    default int count(final HyperRect rect) {
+        final int[] n = new int[1];
+        search(rect, t -> n[0]++);
+        return n[0];
+    }
+
+    /**
+     * Search for the k entries nearest to the given point, in order of increasing distance
+     *
+     * The distance to an entry is the distance to the nearest point of its bounding rect.  The
+     * default takes the first entries of {@link #nearest(HyperPoint)}.
+     *
+     * @param p - point to measure distance from
+     * @param k - maximum number of entries to find
+     * @param t - Array to store found entries
+     *
+     * @return Number of results found
+     */
+    default int nearest(final HyperPoint p, final int k, final T[] t) {
+        final int[] n = new int[1];
+        nearest(p, Math.min(k, t.length), e -> t[n[0]++] = e);
+        return n[0];
+    }
+
+    /**
+     * Search for the k entries nearest to the given point, in order of increasing distance
+     *
+     * The default takes the first entries of {@link #nearest(HyperPoint)}.
+     *
+     * @param p - point to measure distance from
+     * @param k - maximum number of entries to find
+     * @param consumer - callback to receive nearest objects
+     *
+     */
+    default void nearest(final HyperPoint p, final int k, final Consumer<T> consumer) {
+        final Iterator<T> it = nearest(p);
+        for(int n = 0; n < k && it.hasNext(); n++) {
+            consumer.accept(it.next());
+        }
+    }
+
+    /**
+     * Browse entries in order of increasing distance from the given point
+     *
+     * The search is lazy, nodes are only visited as more entries are requested, so
+     * k does not need to be known in advance.
+     *
+     * Only the implementation knows the bounding rects of its entries, so the default can not
+     * measure distances and throws.  Every implementation in this package overrides it.
+     *
+     * @param p - point to measure distance from
+     *
+     * @return iterator over entries, nearest first
+     * @throws UnsupportedOperationException if the implementation does not support nearest neighbor search
+     */
+    default Iterator<T> nearest(final HyperPoint p) {
+        throw new UnsupportedOperationException("Nearest neighbor search is not supported by " + getClass().getName());
+    }
+
     /**
      * returns whether or not the HyperRect will enclose all of the data entries in t
      *
@@ -20,7 +20,18 @@ package com.conversantmedia.util.collection.spatial;
  * #L%
  */
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.LongFunction;
+import java.util.function.ToLongFunction;
 
 /**
  * Create instances of SpatialSearch implementations
@@ -32,6 +43,7 @@ public class SpatialSearches {
     private static final int DEFAULT_MIN_M = 2;
     private static final int DEFAULT_MAX_M = 8;
     private static final RTree.Split DEFAULT_SPLIT_TYPE = RTree.Split.AXIAL;
+    private static final RTree.Pack DEFAULT_PACK_TYPE = RTree.Pack.STR;
 
     private SpatialSearches() {}
 
@@ -62,6 +74,158 @@ public class SpatialSearches {
         return new RTree<>(builder, minM, maxM, splitType);
     }
 
+    /**
+     * Create an R-Tree with default values for m, M, and split type, bulk loaded with the given entries
+     *
+     * The tree is packed bottom up using Sort-Tile-Recursive, leaves are filled to M rather than
+     * being split as each entry is added.
+     *
+     * @param builder - Builder implementation used to create HyperRects out of T's
+     * @param entries - entries to load into the tree
+     * @param <T> - The store type of the bound
+     *
+     * @return SpatialSearch - The spatial search and index structure
+     */
+    public static <T> SpatialSearch<T> rTree(final RectBuilder<T> builder, final Collection<T> entries) {
+        return rTree(builder, DEFAULT_MIN_M, DEFAULT_MAX_M, DEFAULT_SPLIT_TYPE, entries);
+    }
+
+    /**
+     * Create an R-Tree with specified values for m, M, and split type, bulk loaded with the given entries
+     *
+     * @param builder - Builder implementation used to create HyperRects out of T's
+     * @param minM - minimum number of entries per node of this tree
+     * @param maxM - maximum number of entries per node of this tree (exceeding this causes node split)
+     * @param splitType - type of split to use when M+1 entries are added to a node
+     * @param entries - entries to load into the tree
+     * @param <T> - The store type of the bound
+     *
+     * @return SpatialSearch - The spatial search and index structure
+     */
+    public static <T> SpatialSearch<T> rTree(final RectBuilder<T> builder, final int minM, final int maxM, final RTree.Split splitType, final Collection<T> entries) {
+        return rTree(builder, minM, maxM, splitType, DEFAULT_PACK_TYPE, entries);
+    }
+
+    /**
+     * Create an R-Tree with specified values for m, M, split and pack type, bulk loaded with the given entries
+     *
+     * @param builder - Builder implementation used to create HyperRects out of T's
+     * @param minM - minimum number of entries per node of this tree
+     * @param maxM - maximum number of entries per node of this tree (exceeding this causes node split)
+     * @param splitType - type of split to use when M+1 entries are added to a node
+     * @param packType - order in which entries are packed into nodes
+     * @param entries - entries to load into the tree
+     * @param <T> - The store type of the bound
+     *
+     * @return SpatialSearch - The spatial search and index structure
+     */
+    public static <T> SpatialSearch<T> rTree(final RectBuilder<T> builder, final int minM, final int maxM, final RTree.Split splitType, final RTree.Pack packType, final Collection<T> entries) {
+        final Node<T> root = BulkLoader.create(builder, minM, maxM, splitType, packType).load(entries);
+        return new RTree<>(builder, minM, maxM, splitType, root);
+    }
+
+    /**
+     * Create an R-Tree with default values for m, M, and split type, bulk loaded in parallel with the given entries
+     *
+     * Entries are partitioned into slabs whose subtrees are packed concurrently by the threads of the pool,
+     * then stitched together under the top levels of the tree.
+     *
+     * @param builder - Builder implementation used to create HyperRects out of T's
+     * @param entries - entries to load into the tree
+     * @param pool - pool used to pack the tree
+     * @param <T> - The store type of the bound
+     *
+     * @return SpatialSearch - The spatial search and index structure
+     */
+    public static <T> SpatialSearch<T> rTree(final RectBuilder<T> builder, final Collection<T> entries, final ForkJoinPool pool) {
+        return rTree(builder, DEFAULT_MIN_M, DEFAULT_MAX_M, DEFAULT_SPLIT_TYPE, DEFAULT_PACK_TYPE, entries, pool);
+    }
+
+    /**
+     * Create an R-Tree with specified values for m, M, split and pack type, bulk loaded in parallel with the given entries
+     *
+     * @param builder - Builder implementation used to create HyperRects out of T's
+     * @param minM - minimum number of entries per node of this tree
+     * @param maxM - maximum number of entries per node of this tree (exceeding this causes node split)
+     * @param splitType - type of split to use when M+1 entries are added to a node
+     * @param packType - order in which entries are packed into nodes
+     * @param entries - entries to load into the tree
+     * @param pool - pool used to pack the tree
+     * @param <T> - The store type of the bound
+     *
+     * @return SpatialSearch - The spatial search and index structure
+     */
+    public static <T> SpatialSearch<T> rTree(final RectBuilder<T> builder, final int minM, final int maxM, final RTree.Split splitType, final RTree.Pack packType, final Collection<T> entries, final ForkJoinPool pool) {
+        final Node<T> root = BulkLoader.create(builder, minM, maxM, splitType, packType).load(entries, pool);
+        return new RTree<>(builder, minM, maxM, splitType, root);
+    }
+
+    /**
+     * Create an R-Tree, with default values for m, M, and split type, whose readers never lock
+     *
+     * Each change builds a new version of the tree, copying only the nodes it changes, and
+     * publishes it atomically.  Queries run against the version published when they began.
+     *
+     * @param builder - Builder implementation used to create HyperRects out of T's
+     * @param <T> - The store type of the bound
+     *
+     * @return SpatialSearch - The spatial search and index structure
+     */
+    public static <T> SpatialSearch<T> copyOnWriteRTree(final RectBuilder<T> builder) {
+        return new CopyOnWriteRTree<>(builder, DEFAULT_MIN_M, DEFAULT_MAX_M, DEFAULT_SPLIT_TYPE);
+    }
+
+    /**
+     * Create an R-Tree with specified values for m, M, and split type, whose readers never lock
+     *
+     * @param builder - Builder implementation used to create HyperRects out of T's
+     * @param minM - minimum number of entries per node of this tree
+     * @param maxM - maximum number of entries per node of this tree (exceeding this causes node split)
+     * @param splitType - type of split to use when M+1 entries are added to a node
+     * @param <T> - The store type of the bound
+     *
+     * @return SpatialSearch - The spatial search and index structure
+     */
+    public static <T> SpatialSearch<T> copyOnWriteRTree(final RectBuilder<T> builder, final int minM, final int maxM, final RTree.Split splitType) {
+        return new CopyOnWriteRTree<>(builder, minM, maxM, splitType);
+    }
+
+    /**
+     * Restore an R-Tree written by {@link RTree#writeTo(java.io.OutputStream, EntryCodec)}
+     *
+     * The nodes are rebuilt exactly as they were written, in a single pass over the stream, so no
+     * node is split and no entry is placed by searching the tree.  The stream is read through a
+     * buffer and may be consumed beyond the end of the tree.
+     *
+     * @param builder - Builder implementation used to create HyperRects out of T's
+     * @param in - stream positioned at the start of the tree, not closed
+     * @param codec - reads each entry
+     * @param <T> - The store type of the bound
+     *
+     * @return SpatialSearch - The spatial search and index structure
+     *
+     * @throws IOException if the stream fails or does not hold a tree
+     */
+    public static <T> SpatialSearch<T> rTree(final RectBuilder<T> builder, final InputStream in, final EntryCodec<T> codec) throws IOException {
+        return RTreeSerializer.read(in, builder, codec);
+    }
+
+    /**
+     * Restore an R-Tree written by {@link RTree#writeTo(java.nio.channels.WritableByteChannel, EntryCodec)}
+     *
+     * @param builder - Builder implementation used to create HyperRects out of T's
+     * @param channel - channel positioned at the start of the tree, not closed
+     * @param codec - reads each entry
+     * @param <T> - The store type of the bound
+     *
+     * @return SpatialSearch - The spatial search and index structure
+     *
+     * @throws IOException if the channel fails or does not hold a tree
+     */
+    public static <T> SpatialSearch<T> rTree(final RectBuilder<T> builder, final ReadableByteChannel channel, final EntryCodec<T> codec) throws IOException {
+        return rTree(builder, Channels.newInputStream(channel), codec);
+    }
+
     /**
      * Create a protected R-Tree with default values for m, M, and split type
      *
@@ -89,4 +253,291 @@ public class SpatialSearches {
         return new ConcurrentRTree<>(rTree(builder, minM, maxM, splitType), new ReentrantReadWriteLock(true));
     }
 
+    /**
+     * Create a protected R-Tree with default values for m, M, and split type
+     *
+     * @param builder - Builder implementation used to create HyperRects out of T's
+     * @param locking - how reads are protected from concurrent writes
+     * @param <T> - The store type of the bound
+     *
+     * @return SpatialSearch - The spatial search and index structure
+     */
+    public static <T> SpatialSearch<T> lockingRTree(final RectBuilder<T> builder, final ConcurrentRTree.Locking locking) {
+        return lockingRTree(builder, DEFAULT_MIN_M, DEFAULT_MAX_M, DEFAULT_SPLIT_TYPE, locking);
+    }
+
+    /**
+     * Create a protected R-Tree with specified values for m, M, and split type
+     *
+     * @param builder - Builder implementation used to create HyperRects out of T's
+     * @param minM - minimum number of entries per node of this tree
+     * @param maxM - maximum number of entries per node of this tree (exceeding this causes node split)
+     * @param splitType - type of split to use when M+1 entries are added to a node
+     * @param locking - how reads are protected from concurrent writes
+     * @param <T> - The store type of the bound
+     *
+     * @return SpatialSearch - The spatial search and index structure
+     */
+    public static <T> SpatialSearch<T> lockingRTree(final RectBuilder<T> builder, final int minM, final int maxM, final RTree.Split splitType, final ConcurrentRTree.Locking locking) {
+        return concurrentRTree(builder, minM, maxM, splitType, locking);
+    }
+
+    /**
+     * Create an R-Tree whose changes are queued and applied in batches, each batch under one
+     * acquisition of the write lock, by a background thread
+     *
+     * @param builder - Builder implementation used to create HyperRects out of T's
+     * @param batchSize - number of queued changes that wakes the background thread
+     * @param maxDelay - longest time a change waits before it is applied
+     * @param unit - unit of maxDelay
+     * @param sortByLocality - true to add the entries of a batch in Hilbert order of their centers
+     * @param <T> - The store type of the bound
+     *
+     * @return BufferedRTree - The spatial search, which must be closed to apply all changes
+     */
+    public static <T> BufferedRTree<T> bufferedRTree(final RectBuilder<T> builder, final int batchSize, final long maxDelay, final TimeUnit unit,
+                                                     final boolean sortByLocality) {
+        return bufferedRTree(builder, DEFAULT_MIN_M, DEFAULT_MAX_M, DEFAULT_SPLIT_TYPE, ConcurrentRTree.Locking.READ_WRITE, batchSize, maxDelay, unit, sortByLocality);
+    }
+
+    /**
+     * Create an R-Tree whose changes are queued and applied in batches, each batch under one
+     * acquisition of the write lock, by a background thread
+     *
+     * @param builder - Builder implementation used to create HyperRects out of T's
+     * @param minM - minimum number of entries per node of this tree
+     * @param maxM - maximum number of entries per node of this tree (exceeding this causes node split)
+     * @param splitType - type of split to use when M+1 entries are added to a node
+     * @param locking - how reads are protected from the batches
+     * @param batchSize - number of queued changes that wakes the background thread
+     * @param maxDelay - longest time a change waits before it is applied
+     * @param unit - unit of maxDelay
+     * @param sortByLocality - true to add the entries of a batch in Hilbert order of their centers
+     * @param <T> - The store type of the bound
+     *
+     * @return BufferedRTree - The spatial search, which must be closed to apply all changes
+     */
+    public static <T> BufferedRTree<T> bufferedRTree(final RectBuilder<T> builder, final int minM, final int maxM, final RTree.Split splitType,
+                                                     final ConcurrentRTree.Locking locking, final int batchSize, final long maxDelay, final TimeUnit unit,
+                                                     final boolean sortByLocality) {
+        return new BufferedRTree<>(builder, concurrentRTree(builder, minM, maxM, splitType, locking), batchSize, unit.toNanos(maxDelay), sortByLocality);
+    }
+
+    private static <T> ConcurrentRTree<T> concurrentRTree(final RectBuilder<T> builder, final int minM, final int maxM, final RTree.Split splitType, final ConcurrentRTree.Locking locking) {
+        switch(locking) {
+            case OPTIMISTIC:
+                return new ConcurrentRTree<>(rTree(builder, minM, maxM, splitType), new StampedLock());
+            case READ_WRITE:
+            default:
+                return new ConcurrentRTree<>(rTree(builder, minM, maxM, splitType), new ReentrantReadWriteLock(true));
+        }
+    }
+
+    /**
+     * Create an R-Tree split into shards over a grid of equal cells, each shard with its own lock
+     *
+     * @param builder - Builder implementation used to create HyperRects out of T's
+     * @param extent - region covered by the grid, entries outside it go to the nearest edge cell
+     * @param cells - number of cells in each dimension
+     * @param <T> - The store type of the bound
+     *
+     * @return ShardedRTree - The spatial search and index structure
+     */
+    public static <T> ShardedRTree<T> shardedRTree(final RectBuilder<T> builder, final HyperRect extent, final int cells) {
+        return shardedRTree(builder, DEFAULT_MIN_M, DEFAULT_MAX_M, DEFAULT_SPLIT_TYPE, extent, cells);
+    }
+
+    /**
+     * Create an R-Tree split into shards over a grid of equal cells, each shard with its own lock
+     *
+     * @param builder - Builder implementation used to create HyperRects out of T's
+     * @param minM - minimum number of entries per node of each shard
+     * @param maxM - maximum number of entries per node of each shard (exceeding this causes node split)
+     * @param splitType - type of split to use when M+1 entries are added to a node
+     * @param extent - region covered by the grid, entries outside it go to the nearest edge cell
+     * @param cells - number of cells in each dimension
+     * @param <T> - The store type of the bound
+     *
+     * @return ShardedRTree - The spatial search and index structure
+     */
+    public static <T> ShardedRTree<T> shardedRTree(final RectBuilder<T> builder, final int minM, final int maxM, final RTree.Split splitType,
+                                                   final HyperRect extent, final int cells) {
+        return new ShardedRTree<>(builder, minM, maxM, splitType, ShardedRTree.gridCuts(extent, cells));
+    }
+
+    /**
+     * Create an R-Tree split into shards, each with its own lock, over a grid cut at the quantiles
+     * of a sample so that shards hold similar numbers of entries.  The sample is not added to the tree.
+     *
+     * @param builder - Builder implementation used to create HyperRects out of T's
+     * @param sample - entries distributed like those to be indexed
+     * @param cells - number of cells in each dimension
+     * @param <T> - The store type of the bound
+     *
+     * @return ShardedRTree - The spatial search and index structure
+     */
+    public static <T> ShardedRTree<T> shardedRTree(final RectBuilder<T> builder, final Collection<T> sample, final int cells) {
+        return shardedRTree(builder, DEFAULT_MIN_M, DEFAULT_MAX_M, DEFAULT_SPLIT_TYPE, sample, cells);
+    }
+
+    /**
+     * Create an R-Tree split into shards, each with its own lock, over a grid cut at the quantiles
+     * of a sample so that shards hold similar numbers of entries.  The sample is not added to the tree.
+     *
+     * @param builder - Builder implementation used to create HyperRects out of T's
+     * @param minM - minimum number of entries per node of each shard
+     * @param maxM - maximum number of entries per node of each shard (exceeding this causes node split)
+     * @param splitType - type of split to use when M+1 entries are added to a node
+     * @param sample - entries distributed like those to be indexed
+     * @param cells - number of cells in each dimension
+     * @param <T> - The store type of the bound
+     *
+     * @return ShardedRTree - The spatial search and index structure
+     */
+    public static <T> ShardedRTree<T> shardedRTree(final RectBuilder<T> builder, final int minM, final int maxM, final RTree.Split splitType,
+                                                   final Collection<T> sample, final int cells) {
+        return new ShardedRTree<>(builder, minM, maxM, splitType, ShardedRTree.sampleCuts(builder, sample, cells));
+    }
+
+    /**
+     * Open a read only R-Tree over a file written by {@link RTree#writePacked(Path, java.util.function.ToLongFunction)}
+     *
+     * The file is memory mapped rather than read, so opening takes the same time whatever its size
+     * and only the pages a query touches are loaded.  Processes mapping the same file share one copy
+     * in the OS page cache.
+     *
+     * @param builder - Builder implementation used to create HyperRects out of T's
+     * @param file - packed tree file
+     * @param lookup - entry for an id written with the file
+     * @param <T> - The store type of the bound
+     *
+     * @return SpatialSearch - The read only spatial search over the file
+     *
+     * @throws IOException if the file can not be read or is not a packed tree
+     */
+    public static <T> SpatialSearch<T> mappedRTree(final RectBuilder<T> builder, final Path file, final LongFunction<T> lookup) throws IOException {
+        return MappedRTree.open(file, builder, lookup, SegmentedBuffer.DEFAULT_SEGMENT_SHIFT);
+    }
+
+    /**
+     * Create a read only R-Tree held in direct memory outside the heap, with default values for m, M,
+     * split and pack type, packed with the given entries
+     *
+     * @param builder - Builder implementation used to create HyperRects out of T's
+     * @param entries - entries to index
+     * @param id - id of an entry, must be unique
+     * @param lookup - entry for an id
+     * @param <T> - The store type of the bound
+     *
+     * @return SpatialSearch - The read only spatial search
+     */
+    public static <T> SpatialSearch<T> offHeapRTree(final RectBuilder<T> builder, final Collection<T> entries, final ToLongFunction<T> id, final LongFunction<T> lookup) {
+        return offHeapRTree(builder, DEFAULT_MIN_M, DEFAULT_MAX_M, DEFAULT_SPLIT_TYPE, DEFAULT_PACK_TYPE, entries, id, lookup);
+    }
+
+    /**
+     * Create a read only R-Tree held in direct memory outside the heap, with specified values for m,
+     * M, split and pack type, packed with the given entries
+     *
+     * The entries are ordered as a bulk load with the same pack type would order them and copied
+     * straight into direct memory, no tree is built on the heap.  Besides the collection the heap
+     * only holds the bounds of the entries and of the nodes while the tree is packed.
+     *
+     * @param builder - Builder implementation used to create HyperRects out of T's
+     * @param minM - minimum number of entries per node of this tree
+     * @param maxM - maximum number of entries per node of this tree
+     * @param splitType - split type reported by the tree
+     * @param packType - order in which entries are packed into nodes
+     * @param entries - entries to index
+     * @param id - id of an entry, must be unique
+     * @param lookup - entry for an id
+     * @param <T> - The store type of the bound
+     *
+     * @return SpatialSearch - The read only spatial search
+     */
+    public static <T> SpatialSearch<T> offHeapRTree(final RectBuilder<T> builder, final int minM, final int maxM, final RTree.Split splitType, final RTree.Pack packType,
+                                                    final Collection<T> entries, final ToLongFunction<T> id, final LongFunction<T> lookup) {
+        return OffHeapRTree.load(BulkLoader.create(builder, minM, maxM, splitType, packType), entries, id, lookup, SegmentedBuffer.DEFAULT_SEGMENT_SHIFT);
+    }
+
+    /**
+     * Open an R-Tree held in fixed size pages of a file, with a pool of default size caching the
+     * pages in memory, creating the file if it does not exist
+     *
+     * @param builder - Builder implementation used to create HyperRects out of T's
+     * @param file - page file
+     * @param id - id of an entry, must be unique
+     * @param lookup - entry for an id
+     * @param <T> - The store type of the bound
+     *
+     * @return PagedRTree - The spatial search, which must be closed to write all changes to the file
+     *
+     * @throws IOException if the file can not be opened or is not a paged tree
+     */
+    public static <T> PagedRTree<T> pagedRTree(final RectBuilder<T> builder, final Path file, final ToLongFunction<T> id, final LongFunction<T> lookup) throws IOException {
+        return pagedRTree(builder, file, PagedRTree.DEFAULT_PAGE_SIZE, PagedRTree.DEFAULT_POOL_PAGES, id, lookup);
+    }
+
+    /**
+     * Open an R-Tree held in fixed size pages of a file, creating the file if it does not exist
+     *
+     * Only poolPages pages are held in memory at once, the hit, miss and eviction counts of the
+     * returned tree show whether that is enough for the queries being run.
+     *
+     * @param builder - Builder implementation used to create HyperRects out of T's
+     * @param file - page file
+     * @param pageSize - bytes per page of a new file, which also sets the fan-out
+     * @param poolPages - number of pages cached in memory
+     * @param id - id of an entry, must be unique
+     * @param lookup - entry for an id
+     * @param <T> - The store type of the bound
+     *
+     * @return PagedRTree - The spatial search, which must be closed to write all changes to the file
+     *
+     * @throws IOException if the file can not be opened or is not a paged tree
+     */
+    public static <T> PagedRTree<T> pagedRTree(final RectBuilder<T> builder, final Path file, final int pageSize, final int poolPages,
+                                               final ToLongFunction<T> id, final LongFunction<T> lookup) throws IOException {
+        return PagedRTree.open(builder, file, pageSize, poolPages, id, lookup);
+    }
+
+    /**
+     * Open a protected R-Tree, with default values for m, M, and split type, whose changes are
+     * recorded in a write ahead log in dir
+     *
+     * @param builder - Builder implementation used to create HyperRects out of T's
+     * @param dir - directory of the log and checkpoint, restored if they exist
+     * @param codec - reads and writes entries
+     * @param syncOnWrite - true if each change must be durable before it returns, false to force the log in larger groups
+     * @param <T> - The store type of the bound
+     *
+     * @return LoggedRTree - The spatial search, which must be closed to make all changes durable
+     *
+     * @throws IOException if the log or checkpoint can not be read
+     */
+    public static <T> LoggedRTree<T> loggedRTree(final RectBuilder<T> builder, final Path dir, final EntryCodec<T> codec, final boolean syncOnWrite) throws IOException {
+        return loggedRTree(builder, DEFAULT_MIN_M, DEFAULT_MAX_M, DEFAULT_SPLIT_TYPE, dir, codec, syncOnWrite);
+    }
+
+    /**
+     * Open a protected R-Tree whose changes are recorded in a write ahead log in dir
+     *
+     * @param builder - Builder implementation used to create HyperRects out of T's
+     * @param minM - minimum number of entries per node of a new tree
+     * @param maxM - maximum number of entries per node of a new tree
+     * @param splitType - type of split of a new tree
+     * @param dir - directory of the log and checkpoint, restored if they exist
+     * @param codec - reads and writes entries
+     * @param syncOnWrite - true if each change must be durable before it returns, false to force the log in larger groups
+     * @param <T> - The store type of the bound
+     *
+     * @return LoggedRTree - The spatial search, which must be closed to make all changes durable
+     *
+     * @throws IOException if the log or checkpoint can not be read
+     */
+    public static <T> LoggedRTree<T> loggedRTree(final RectBuilder<T> builder, final int minM, final int maxM, final RTree.Split splitType,
+                                                 final Path dir, final EntryCodec<T> codec, final boolean syncOnWrite) throws IOException {
+        return LoggedRTree.open(builder, dir, minM, maxM, splitType, codec, syncOnWrite);
+    }
+
 }
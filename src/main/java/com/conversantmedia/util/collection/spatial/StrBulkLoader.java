@@ -0,0 +1,97 @@
+package com.conversantmedia.util.collection.spatial;
+
+/*
+ * #%L
+ * Conversant RTree
+ * ~~
+ * Conversantmedia.com © 2016, Conversant, Inc. Conversant® is a trademark of Conversant, Inc.
+ * ~~
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.util.function.IntToLongFunction;
+
+/**
+ * Sort-Tile-Recursive bulk loader - Leutenegger, Lopez, Edgington
+ *
+ * Entries are sorted on the centroid of the first dimension and cut into slabs, each slab
+ * is sorted on the next dimension and so on until every tile holds exactly one node worth
+ * of entries.
+ *
+ * For a parallel load the slabs of the first dimension are tiled independently.
+ */
+final class StrBulkLoader<T> extends BulkLoader<T> {
+
+    StrBulkLoader(final RectBuilder<T> builder, final int mMin, final int mMax, final RTree.Split splitType) {
+        super(builder, mMin, mMax, splitType);
+    }
+
+    @Override
+    protected int[] order(final HyperRect[] bounds) {
+        final int n = bounds.length;
+        final int[] order = identity(n);
+        tile(bounds, order, new long[n], 0, n, 0, bounds[0].getNDim());
+        return order;
+    }
+
+    @Override
+    protected IntToLongFunction partitionKey(final HyperRect[] bounds) {
+        return i -> {
+            final double c = bounds[i].getCenter(0);
+            return sortable(c);
+        };
+    }
+
+    @Override
+    protected void orderSlab(final HyperRect[] bounds, final int[] order, final long[] key, final int from, final int to) {
+        final int nD = bounds[0].getNDim();
+        if(nD > 1) {
+            tile(bounds, order, key, from, to, 1, nD);
+        }
+    }
+
+    @Override
+    protected int slabSize(final HyperRect[] bounds, final int parallelism) {
+        final int nD = bounds[0].getNDim();
+        if(nD < 2) {
+            return super.slabSize(bounds, parallelism);
+        }
+        final int nodes = nodeCount(bounds.length);
+        final int slabs = (int)Math.ceil(Math.pow(nodes, 1.0/nD));
+        return ((nodes + slabs - 1)/slabs)*mMax;
+    }
+
+    private void tile(final HyperRect[] bounds, final int[] order, final long[] key, final int from, final int to, final int d, final int nD) {
+        final int n = to - from;
+        if(n <= mMax) {
+            return;
+        }
+
+        for(int i=from; i<to; i++) {
+            final double c = bounds[order[i]].getCenter(d);
+            key[order[i]] = sortable(c);
+        }
+        sort(order, key, from, to-1);
+
+        if(d+1 < nD) {
+            // cut into S slabs of (S^(nD-d-1)) nodes each
+            final int nodes = nodeCount(n);
+            final int slabs = (int)Math.ceil(Math.pow(nodes, 1.0/(nD - d)));
+            final int slabSize = ((nodes + slabs - 1)/slabs)*mMax;
+            for(int i=from; i<to; i+=slabSize) {
+                tile(bounds, order, key, i, Math.min(i+slabSize, to), d+1, nD);
+            }
+        }
+    }
+}
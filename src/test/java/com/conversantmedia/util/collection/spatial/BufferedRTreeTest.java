@@ -0,0 +1,253 @@
+package com.conversantmedia.util.collection.spatial;
+
+/*
+ * #%L
+ * Conversant RTree
+ * ~~
+ * Conversantmedia.com © 2016, Conversant, Inc. Conversant® is a trademark of Conversant, Inc.
+ * ~~
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import com.conversantmedia.util.collection.geometry.Rect2d;
+import org.junit.Assert;
+import org.junit.Ignore;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+public class BufferedRTreeTest {
+
+    /**
+     * After a flush the tree must hold what a tree given the same changes directly holds
+     */
+    @Test
+    public void flushMatchesTreeTest() {
+        // distinct entries, sorting may reorder equal entries, which RTree removes only when adjacent
+        final Rect2d[] rects = new LinkedHashSet<>(Arrays.asList(RTreeTest.generateRandomRects(10_000))).toArray(new Rect2d[0]);
+
+        for(final boolean sort : new boolean[] { false, true }) {
+            final RTree<Rect2d> rTree = RTreeTest.createRect2DTree(2, 8, RTree.Split.AXIAL);
+            try(final BufferedRTree<Rect2d> buffered = SpatialSearches.bufferedRTree(new Rect2d.Builder(), 256, 1, TimeUnit.HOURS, sort)) {
+                for(final Rect2d r : rects) {
+                    rTree.add(r);
+                    buffered.add(r);
+                }
+                for(int i=0; i<rects.length; i+=3) {
+                    rTree.remove(rects[i]);
+                    buffered.remove(rects[i]);
+                }
+                for(int i=1; i<rects.length; i+=3) {
+                    final Rect2d moved = new Rect2d(rects[i].getMinCoord(0) + 1, rects[i].getMinCoord(1), rects[i].getMaxCoord(0) + 1, rects[i].getMaxCoord(1));
+                    rTree.update(rects[i], moved);
+                    buffered.update(rects[i], moved);
+                }
+                buffered.flush();
+                Assert.assertEquals(0, buffered.getQueuedCount());
+
+                Assert.assertEquals(rTree.getEntryCount(), buffered.getEntryCount());
+                final Random rand = new Random(41);
+                for(int i=0; i<100; i++) {
+                    final int x = rand.nextInt(500);
+                    final int y = rand.nextInt(500);
+                    final Rect2d searchRect = new Rect2d(x, y, x + rand.nextInt(100), y + rand.nextInt(100));
+                    Assert.assertEquals("[" + sort + "] count", rTree.count(searchRect), buffered.count(searchRect));
+                    Assert.assertEquals("[" + sort + "] intersects", rTree.intersects(searchRect, new Rect2d[rects.length]), buffered.intersects(searchRect, new Rect2d[rects.length]));
+                }
+            }
+        }
+    }
+
+    /**
+     * Changes to the same entry within a batch must keep their order when adds are sorted
+     */
+    @Test
+    public void changeOrderTest() {
+        try(final BufferedRTree<Rect2d> buffered = SpatialSearches.bufferedRTree(new Rect2d.Builder(), 1024, 1, TimeUnit.HOURS, true)) {
+            final Rect2d a = new Rect2d(1, 1, 2, 2);
+            final Rect2d b = new Rect2d(400, 400, 401, 401);
+            final Rect2d c = new Rect2d(200, 200, 201, 201);
+            final Rect2d d = new Rect2d(300, 300, 301, 301);
+
+            buffered.add(b);
+            buffered.add(a);
+            buffered.remove(a);
+            buffered.add(c);
+            buffered.add(a);
+            buffered.update(b, d);
+            buffered.remove(c);
+            Assert.assertEquals(0, buffered.getEntryCount());
+
+            buffered.flush();
+            Assert.assertTrue(buffered.contains(a));
+            Assert.assertFalse(buffered.contains(b));
+            Assert.assertFalse(buffered.contains(c));
+            Assert.assertTrue(buffered.contains(d));
+            Assert.assertEquals(2, buffered.getEntryCount());
+        }
+    }
+
+    @Test
+    public void backgroundApplyTest() throws InterruptedException {
+        try(final BufferedRTree<Rect2d> buffered = SpatialSearches.bufferedRTree(new Rect2d.Builder(), 1024, 10, TimeUnit.MILLISECONDS, false)) {
+            buffered.add(new Rect2d(1, 1, 2, 2));
+
+            final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+            while(buffered.getEntryCount() == 0 && System.nanoTime() < deadline) {
+                Thread.sleep(1);
+            }
+            Assert.assertEquals(1, buffered.getEntryCount());
+            Assert.assertEquals(0, buffered.getQueuedCount());
+        }
+    }
+
+    @Test
+    public void concurrentWritersTest() throws InterruptedException {
+        final Rect2d[] rects = RTreeTest.generateRandomRects(20_000);
+        final BufferedRTree<Rect2d> buffered = SpatialSearches.bufferedRTree(new Rect2d.Builder(), 64, 1, TimeUnit.MILLISECONDS, true);
+
+        final List<Thread> writers = new ArrayList<>();
+        for(int w=0; w<4; w++) {
+            final int from = w*5000;
+            writers.add(new Thread(() -> {
+                for(int i=from; i<from + 5000; i++) {
+                    buffered.add(rects[i]);
+                }
+            }));
+        }
+        for(final Thread t : writers) {
+            t.start();
+        }
+        for(final Thread t : writers) {
+            t.join();
+        }
+
+        buffered.close();
+        Assert.assertEquals(rects.length, buffered.getEntryCount());
+        for(int i=0; i<rects.length; i+=13) {
+            Assert.assertTrue(buffered.contains(rects[i]));
+        }
+    }
+
+    /**
+     * A change that throws loses the rest of its batch, flush reports the first failure once
+     */
+    @Test
+    public void failureTest() {
+        final Rect2d first = new Rect2d(10, 10, 11, 11);
+        final Rect2d second = new Rect2d(20, 20, 21, 21);
+        final RectBuilder<Rect2d> builder = new RectBuilder<Rect2d>() {
+            @Override
+            public HyperRect getBBox(final Rect2d r) {
+                if(r == first || r == second) {
+                    throw new IllegalArgumentException(r == first ? "first" : "second");
+                }
+                return r;
+            }
+
+            @Override
+            public HyperRect getMbr(final HyperPoint p1, final HyperPoint p2) {
+                return new Rect2d.Builder().getMbr(p1, p2);
+            }
+        };
+
+        try(final BufferedRTree<Rect2d> buffered = SpatialSearches.bufferedRTree(builder, 4, 1, TimeUnit.HOURS, false)) {
+            final Rect2d[] rects = new Rect2d[8];
+            for(int i=0; i<rects.length; i++) {
+                rects[i] = new Rect2d(100 + i, 100, 101 + i, 101);
+            }
+            buffered.add(rects[0]);
+            buffered.add(first);
+            buffered.add(rects[1]);
+            buffered.add(rects[2]);
+            buffered.add(rects[3]);
+            buffered.add(second);
+            buffered.add(rects[4]);
+            buffered.add(rects[5]);
+
+            try {
+                buffered.flush();
+                Assert.fail("flush must report the failed change");
+            } catch(IllegalStateException e) {
+                Assert.assertEquals("first", e.getCause().getMessage());
+            }
+            Assert.assertTrue(buffered.contains(rects[0]));
+            Assert.assertFalse(buffered.contains(rects[1]));
+            Assert.assertFalse(buffered.contains(rects[2]));
+            Assert.assertTrue(buffered.contains(rects[3]));
+            Assert.assertFalse(buffered.contains(rects[4]));
+            Assert.assertEquals(2, buffered.getEntryCount());
+
+            buffered.add(rects[6]);
+            buffered.flush();
+            Assert.assertTrue(buffered.contains(rects[6]));
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void closedTest() {
+        final BufferedRTree<Rect2d> buffered = SpatialSearches.bufferedRTree(new Rect2d.Builder(), 16, 1, TimeUnit.MILLISECONDS, false);
+        buffered.close();
+        buffered.add(new Rect2d(1, 1, 2, 2));
+    }
+
+    /**
+     * Compare add throughput of a locking tree and a buffered tree, with and without sorting
+     * batches, for 1..16 writers
+     */
+    @Ignore
+    // This test ignored because output needs to be manually evaluated.
+    public void bufferedWriteBenchmarkTest() throws InterruptedException {
+        final int entryCount = 400_000;
+        final Rect2d[] rects = RTreeTest.generateRandomRects(entryCount);
+
+        for(int j=0; j<2; j++) {
+            for(int writers=1; writers<=16; writers*=4) {
+                for(int mode=0; mode<3; mode++) {
+                    final SpatialSearch<Rect2d> tree = mode == 0 ? SpatialSearches.lockingRTree(new Rect2d.Builder()) :
+                            SpatialSearches.bufferedRTree(new Rect2d.Builder(), 1024, 1, TimeUnit.MILLISECONDS, mode == 2);
+                    final List<Thread> threads = new ArrayList<>();
+                    final int perWriter = entryCount/writers;
+                    for(int w=0; w<writers; w++) {
+                        final int from = w*perWriter;
+                        threads.add(new Thread(() -> {
+                            for(int i=from; i<from + perWriter; i++) {
+                                tree.add(rects[i]);
+                            }
+                        }));
+                    }
+
+                    final long start = System.nanoTime();
+                    for(final Thread t : threads) {
+                        t.start();
+                    }
+                    for(final Thread t : threads) {
+                        t.join();
+                    }
+                    if(tree instanceof BufferedRTree) {
+                        ((BufferedRTree<Rect2d>) tree).close();
+                    }
+                    final long elapsed = System.nanoTime() - start;
+                    final String name = mode == 0 ? "locking" : mode == 1 ? "buffered" : "buffered sorted";
+                    System.out.println(name + " " + writers + " writers: " + 1_000_000_000L*perWriter*writers/elapsed + " adds/s, " + tree.getEntryCount() + " entries");
+                }
+            }
+        }
+    }
+}
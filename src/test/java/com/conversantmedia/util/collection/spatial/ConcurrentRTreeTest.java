@@ -20,16 +20,27 @@ package com.conversantmedia.util.collection.spatial;
  * #L%
  */
 
+import com.conversantmedia.util.collection.geometry.Point2d;
 import com.conversantmedia.util.collection.geometry.Rect2d;
 import org.junit.Assert;
+import org.junit.Ignore;
 import org.junit.Test;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.function.Consumer;
 import java.util.Collection;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
 
 import static org.mockito.Mockito.*;
 
@@ -52,6 +63,63 @@ public class ConcurrentRTreeTest {
         tree.search(RECT_2_D_0, new Rect2d[0]);
     }
 
+    @Test
+    public void testCountLocking() {
+
+        MockLock lock = new MockLock();
+        MockSearch search = new MockSearch(lock);
+        ConcurrentRTree<Rect2d> tree = new ConcurrentRTree<>(search, lock);
+
+        // asserts proper locking
+        tree.count(RECT_2_D_0);
+    }
+
+    @Test
+    public void testNearestLocking() {
+
+        MockLock lock = new MockLock();
+        MockSearch search = new MockSearch(lock);
+        ConcurrentRTree<Rect2d> tree = new ConcurrentRTree<>(search, lock);
+
+        // asserts proper locking
+        tree.nearest(RECT_2_D_0.getCentroid(), 1, new Rect2d[1]);
+        tree.nearest(RECT_2_D_0.getCentroid(), 1, r -> {});
+
+        final Iterator<Rect2d> it = tree.nearest(RECT_2_D_0.getCentroid());
+        Assert.assertTrue(it.hasNext());
+        it.next();
+    }
+
+    /**
+     * A change to the tree while a nearest neighbor iterator is in use fails the iterator
+     */
+    @Test
+    public void testNearestModified() {
+        final SpatialSearch<Rect2d> tree = SpatialSearches.lockingRTree(new Rect2d.Builder());
+        for(int i=0; i<20; i++) {
+            tree.add(new Rect2d(i, i, i + 1, i + 1));
+        }
+
+        final Iterator<Rect2d> it = tree.nearest(new Point2d(0, 0));
+        Assert.assertEquals(new Rect2d(0, 0, 1, 1), it.next());
+        Assert.assertEquals(new Rect2d(1, 1, 2, 2), it.next());
+        tree.remove(new Rect2d(5, 5, 6, 6));
+        try {
+            it.next();
+            Assert.fail("the tree changed");
+        } catch(ConcurrentModificationException e) {
+            // expected
+        }
+
+        final Iterator<Rect2d> unchanged = tree.nearest(new Point2d(0, 0));
+        int n = 0;
+        while(unchanged.hasNext()) {
+            unchanged.next();
+            n++;
+        }
+        Assert.assertEquals(19, n);
+    }
+
     @Test
     public void testAddLocking() {
 
@@ -165,6 +233,151 @@ public class ConcurrentRTreeTest {
         verify(writeLock, times(1)).unlock();
     }
 
+    @Test
+    public void testOptimisticMatchesReadWrite() {
+        final Rect2d[] rects = RTreeTest.generateRandomRects(5000);
+        final SpatialSearch<Rect2d> locked = SpatialSearches.lockingRTree(new Rect2d.Builder(), ConcurrentRTree.Locking.READ_WRITE);
+        final SpatialSearch<Rect2d> optimistic = SpatialSearches.lockingRTree(new Rect2d.Builder(), ConcurrentRTree.Locking.OPTIMISTIC);
+        for(final Rect2d r : rects) {
+            locked.add(r);
+            optimistic.add(r);
+        }
+        Assert.assertEquals(locked.getEntryCount(), optimistic.getEntryCount());
+
+        final Random rand = new Random(29);
+        for(int i=0; i<100; i++) {
+            final int x = rand.nextInt(500);
+            final int y = rand.nextInt(500);
+            final Rect2d searchRect = new Rect2d(x, y, x + rand.nextInt(100), y + rand.nextInt(100));
+
+            final Rect2d[] expected = new Rect2d[rects.length];
+            final Rect2d[] actual = new Rect2d[rects.length];
+            Assert.assertEquals(locked.search(searchRect, expected), optimistic.search(searchRect, actual));
+            Assert.assertEquals(locked.count(searchRect), optimistic.count(searchRect));
+            Assert.assertEquals(locked.intersects(searchRect, expected), optimistic.intersects(searchRect, actual));
+        }
+
+        for(int i=0; i<rects.length; i+=11) {
+            Assert.assertTrue(optimistic.contains(rects[i]));
+        }
+        Assert.assertFalse(optimistic.contains(new Rect2d(-10, -10, -9, -9)));
+    }
+
+    /**
+     * Entries that are never written must be found by every optimistic read while a writer
+     * reshapes the tree around them
+     */
+    @Test
+    public void testOptimisticReadWithWriter() throws InterruptedException {
+        final SpatialSearch<Rect2d> tree = SpatialSearches.lockingRTree(new Rect2d.Builder(), ConcurrentRTree.Locking.OPTIMISTIC);
+        final List<Rect2d> stable = new ArrayList<>();
+        for(int x=0; x<40; x++) {
+            for(int y=0; y<40; y++) {
+                final Rect2d r = new Rect2d(x, y, x + 0.5, y + 0.5);
+                stable.add(r);
+                tree.add(r);
+            }
+        }
+        final Rect2d stableRect = new Rect2d(0, 0, 40, 40);
+
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        final Thread writer = new Thread(() -> {
+            final Random rand = new Random(31);
+            final List<Rect2d> churn = new ArrayList<>();
+            try {
+                while(running.get()) {
+                    final double x = 50 + rand.nextInt(100);
+                    final double y = rand.nextInt(100);
+                    final Rect2d r = new Rect2d(x, y, x + 1, y + 1);
+                    churn.add(r);
+                    tree.add(r);
+                    if(churn.size() > 500) {
+                        tree.remove(churn.remove(rand.nextInt(churn.size())));
+                    }
+                }
+            } catch(Throwable t) {
+                failure.set(t);
+            }
+        });
+        writer.start();
+
+        try {
+            final Rect2d[] results = new Rect2d[stable.size()];
+            for(int i=0; i<2000; i++) {
+                Assert.assertEquals(stable.size(), tree.search(stableRect, results));
+                Assert.assertEquals(stable.size(), tree.count(stableRect));
+                Assert.assertTrue(tree.contains(stable.get(i % stable.size())));
+            }
+        } finally {
+            running.set(false);
+            writer.join();
+        }
+        Assert.assertNull(failure.get());
+    }
+
+    /**
+     * Compare query throughput of read write and optimistic locking for 1..64 readers while a
+     * background writer adds and removes an entry every 100 microseconds
+     */
+    @Ignore
+    // This test ignored because output needs to be manually evaluated.
+    public void lockingBenchmarkTest() throws InterruptedException {
+        final int entryCount = 100_000;
+        final Rect2d[] rects = RTreeTest.generateRandomRects(entryCount);
+
+        for(int j=0; j<2; j++) {
+            for(final ConcurrentRTree.Locking locking : ConcurrentRTree.Locking.values()) {
+                final SpatialSearch<Rect2d> tree = SpatialSearches.lockingRTree(new Rect2d.Builder(), locking);
+                for(int i=0; i<entryCount; i++) {
+                    tree.add(rects[i]);
+                }
+
+                for(int readers=1; readers<=64; readers*=2) {
+                    final AtomicBoolean running = new AtomicBoolean(true);
+                    final AtomicLong queries = new AtomicLong();
+                    final AtomicLong writes = new AtomicLong();
+                    final List<Thread> threads = new ArrayList<>();
+
+                    threads.add(new Thread(() -> {
+                        final Rect2d r = new Rect2d(-10, -10, -9, -9);
+                        while(running.get()) {
+                            tree.add(r);
+                            tree.remove(r);
+                            writes.incrementAndGet();
+                            LockSupport.parkNanos(100_000);
+                        }
+                    }));
+                    for(int t=0; t<readers; t++) {
+                        final int seed = t;
+                        threads.add(new Thread(() -> {
+                            final Random rand = new Random(seed);
+                            final Rect2d[] results = new Rect2d[64];
+                            long n = 0;
+                            while(running.get()) {
+                                final int x = rand.nextInt(500);
+                                final int y = rand.nextInt(500);
+                                tree.search(new Rect2d(x, y, x + 5, y + 5), results);
+                                n++;
+                            }
+                            queries.addAndGet(n);
+                        }));
+                    }
+
+                    for(final Thread t : threads) {
+                        t.start();
+                    }
+                    Thread.sleep(2000);
+                    running.set(false);
+                    for(final Thread t : threads) {
+                        t.join();
+                    }
+                    System.out.println(locking + " " + readers + " readers: " + queries.get() / 2 + " queries/s, " + writes.get() / 2 + " writes/s");
+                }
+            }
+        }
+    }
+
     private static class MockLock implements ReadWriteLock {
         boolean isLocked = false;
         int readers = 0;
@@ -296,6 +509,47 @@ public class ConcurrentRTreeTest {
             Assert.assertFalse("Attempting to read while writers are writing", lock.isLocked);
         }
 
+        @Override
+        public int count(HyperRect rect) {
+            Assert.assertNotEquals("Read lock should have reader while search in progress", lock.readers, 0);
+            Assert.assertFalse("Attempting to read while writers are writing", lock.isLocked);
+            return 0;
+        }
+
+        @Override
+        public int nearest(HyperPoint p, int k, Object[] t) {
+            Assert.assertNotEquals("Read lock should have reader while search in progress", lock.readers, 0);
+            Assert.assertFalse("Attempting to read while writers are writing", lock.isLocked);
+            return 0;
+        }
+
+        @Override
+        public void nearest(HyperPoint p, int k, Consumer consumer) {
+            Assert.assertNotEquals("Read lock should have reader while search in progress", lock.readers, 0);
+            Assert.assertFalse("Attempting to read while writers are writing", lock.isLocked);
+        }
+
+        @Override
+        public Iterator nearest(HyperPoint p) {
+            Assert.assertNotEquals("Read lock should have reader while search in progress", lock.readers, 0);
+            Assert.assertFalse("Attempting to read while writers are writing", lock.isLocked);
+            return new Iterator() {
+                @Override
+                public boolean hasNext() {
+                    Assert.assertNotEquals("Read lock should have reader while search in progress", lock.readers, 0);
+                    Assert.assertFalse("Attempting to read while writers are writing", lock.isLocked);
+                    return true;
+                }
+
+                @Override
+                public Object next() {
+                    Assert.assertNotEquals("Read lock should have reader while search in progress", lock.readers, 0);
+                    Assert.assertFalse("Attempting to read while writers are writing", lock.isLocked);
+                    return null;
+                }
+            };
+        }
+
         @Override
         public boolean contains(Object o) {
             Assert.assertNotEquals("Read lock should have reader while search in progress", lock.readers, 0);
@@ -0,0 +1,230 @@
+package com.conversantmedia.util.collection.spatial;
+
+/*
+ * #%L
+ * Conversant RTree
+ * ~~
+ * Conversantmedia.com © 2016, Conversant, Inc. Conversant® is a trademark of Conversant, Inc.
+ * ~~
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import com.conversantmedia.util.collection.geometry.Point2d;
+import com.conversantmedia.util.collection.geometry.Rect2d;
+import org.junit.Assert;
+import org.junit.Ignore;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class CopyOnWriteRTreeTest {
+
+    /**
+     * Given the same changes the tree holds the same entries as an RTree.  The shape may differ
+     * after a remove, RTree also dissolves under filled nodes off the path of the entry removed.
+     */
+    @Test
+    public void matchesTreeTest() {
+        final Rect2d[] rects = RTreeTest.generateRandomRects(10_000);
+
+        for (RTree.Split type : RTree.Split.values()) {
+            final RTree<Rect2d> rTree = RTreeTest.createRect2DTree(2, 8, type);
+            final SpatialSearch<Rect2d> cow = SpatialSearches.copyOnWriteRTree(new Rect2d.Builder(), 2, 8, type);
+            for (int i = 0; i < rects.length; i++) {
+                rTree.add(rects[i]);
+                cow.add(rects[i]);
+            }
+            for (int i = 0; i < rects.length; i += 4) {
+                rTree.remove(rects[i]);
+                cow.remove(rects[i]);
+            }
+            for (int i = 1; i < rects.length; i += 4) {
+                final Rect2d moved = new Rect2d(rects[i].getMinCoord(0), rects[i].getMinCoord(1) + 2, rects[i].getMaxCoord(0), rects[i].getMaxCoord(1) + 2);
+                rTree.update(rects[i], moved);
+                cow.update(rects[i], moved);
+            }
+
+            Assert.assertEquals("[" + type + "]", rTree.getEntryCount(), cow.getEntryCount());
+            Assert.assertEquals("[" + type + "]", rTree.getEntryCount(), cow.collectStats().getEntryCount());
+            for (int i = 0; i < rects.length; i++) {
+                Assert.assertEquals("[" + type + "] contains " + i, rTree.contains(rects[i]), cow.contains(rects[i]));
+            }
+
+            final Random rand = new Random(43);
+            for (int i = 0; i < 100; i++) {
+                final int x = rand.nextInt(500);
+                final int y = rand.nextInt(500);
+                final Rect2d searchRect = new Rect2d(x, y, x + rand.nextInt(100), y + rand.nextInt(100));
+                final Rect2d[] expected = new Rect2d[rects.length];
+                final Rect2d[] actual = new Rect2d[rects.length];
+                final int n = rTree.search(searchRect, expected);
+                Assert.assertEquals("[" + type + "] search", n, cow.search(searchRect, actual));
+                Assert.assertEquals("[" + type + "] search", sorted(expected, n), sorted(actual, n));
+                Assert.assertEquals("[" + type + "] count", n, cow.count(searchRect));
+                Assert.assertEquals("[" + type + "] intersects", rTree.intersects(searchRect, expected), cow.intersects(searchRect, actual));
+            }
+        }
+    }
+
+    private static List<String> sorted(final Rect2d[] rects, final int n) {
+        final List<String> list = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            list.add(rects[i].toString());
+        }
+        list.sort(null);
+        return list;
+    }
+
+    /**
+     * A query that began before a change does not see it, the nodes it reads are never changed
+     */
+    @Test
+    public void snapshotIsolationTest() {
+        final Rect2d[] rects = RTreeTest.generateRandomRects(5000);
+        for (RTree.Split type : RTree.Split.values()) {
+            final SpatialSearch<Rect2d> cow = SpatialSearches.copyOnWriteRTree(new Rect2d.Builder(), 2, 8, type);
+            for (int i = 0; i < rects.length / 2; i++) {
+                cow.add(rects[i]);
+            }
+
+            final Point2d p = new Point2d(250, 250);
+            final Iterator<Rect2d> it = cow.nearest(p);
+            final double[] expected = new double[rects.length / 2];
+            for (int i = 0; i < expected.length; i++) {
+                expected[i] = NearestNeighbor.distanceSq(p, rects[i]);
+            }
+            Arrays.sort(expected);
+
+            for (int i = rects.length / 2; i < rects.length; i++) {
+                cow.add(rects[i]);
+            }
+            for (int i = 0; i < rects.length; i += 2) {
+                cow.remove(rects[i]);
+            }
+
+            for (int i = 0; i < expected.length; i++) {
+                Assert.assertEquals("[" + type + "] neighbor " + i, expected[i], NearestNeighbor.distanceSq(p, it.next()), 0.0);
+            }
+            Assert.assertFalse(it.hasNext());
+        }
+    }
+
+    @Test
+    public void emptyTest() {
+        final SpatialSearch<Rect2d> cow = SpatialSearches.copyOnWriteRTree(new Rect2d.Builder());
+        final Rect2d rect = new Rect2d(0, 0, 1, 1);
+        cow.remove(rect);
+        cow.update(rect, rect);
+        Assert.assertEquals(0, cow.getEntryCount());
+
+        cow.add(rect);
+        Assert.assertTrue(cow.contains(rect));
+        cow.remove(rect);
+        Assert.assertEquals(0, cow.getEntryCount());
+        Assert.assertFalse(cow.contains(rect));
+    }
+
+    /**
+     * Readers only ever see whole changes, so counts seen by any one reader never go down while entries are only added
+     */
+    @Test
+    public void concurrentReaderTest() throws Exception {
+        final Rect2d[] rects = RTreeTest.generateRandomRects(20_000);
+        final SpatialSearch<Rect2d> cow = SpatialSearches.copyOnWriteRTree(new Rect2d.Builder());
+        final Rect2d all = new Rect2d(-1, -1, 2000, 2000);
+        final AtomicBoolean done = new AtomicBoolean();
+        final ExecutorService pool = Executors.newFixedThreadPool(4);
+        try {
+            final List<Future<?>> readers = new ArrayList<>();
+            for (int j = 0; j < 4; j++) {
+                readers.add(pool.submit(() -> {
+                    int last = 0;
+                    while (!done.get()) {
+                        final int n = cow.count(all);
+                        Assert.assertTrue(n >= last);
+                        last = n;
+                    }
+                }));
+            }
+            for (int i = 0; i < rects.length; i++) {
+                cow.add(rects[i]);
+            }
+            done.set(true);
+            for (Future<?> f : readers) {
+                f.get();
+            }
+        } finally {
+            pool.shutdown();
+            pool.awaitTermination(10, TimeUnit.SECONDS);
+        }
+        Assert.assertEquals(rects.length, cow.count(all));
+    }
+
+    /**
+     * Queries per second from many readers while one thread keeps changing the tree
+     */
+    @Ignore
+    // This test ignored because output needs to be manually evaluated.
+    public void readerScalingBenchmarkTest() throws Exception {
+        final Rect2d[] rects = RTreeTest.generateRandomRects(200_000);
+        for (int readers : new int[] { 1, 8, 64 }) {
+            final List<SpatialSearch<Rect2d>> searches = Arrays.asList(
+                    SpatialSearches.lockingRTree(new Rect2d.Builder()),
+                    SpatialSearches.copyOnWriteRTree(new Rect2d.Builder()));
+            for (SpatialSearch<Rect2d> search : searches) {
+                for (int i = 0; i < rects.length / 2; i++) {
+                    search.add(rects[i]);
+                }
+
+                final AtomicBoolean done = new AtomicBoolean();
+                final AtomicLong queries = new AtomicLong();
+                final AtomicLong writes = new AtomicLong();
+                final ExecutorService pool = Executors.newFixedThreadPool(readers + 1);
+                pool.submit(() -> {
+                    for (int i = rects.length / 2; !done.get(); i++) {
+                        search.add(rects[i % rects.length]);
+                        search.remove(rects[(i - rects.length / 2) % rects.length]);
+                        writes.incrementAndGet();
+                    }
+                });
+                for (int j = 0; j < readers; j++) {
+                    final Random rand = new Random(j);
+                    pool.submit(() -> {
+                        while (!done.get()) {
+                            final int x = rand.nextInt(500);
+                            final int y = rand.nextInt(500);
+                            search.intersects(new Rect2d(x, y, x + 1, y + 1), r -> {});
+                            queries.incrementAndGet();
+                        }
+                    });
+                }
+                Thread.sleep(2000);
+                done.set(true);
+                pool.shutdown();
+                pool.awaitTermination(10, TimeUnit.SECONDS);
+                System.out.println(search.getClass().getSimpleName() + ", " + readers + " readers: " + queries.get() / 2 + " queries and " + writes.get() / 2 + " changes per second");
+            }
+        }
+    }
+}
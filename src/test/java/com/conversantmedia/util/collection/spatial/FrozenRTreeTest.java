@@ -0,0 +1,211 @@
+package com.conversantmedia.util.collection.spatial;
+
+/*
+ * #%L
+ * Conversant RTree
+ * ~~
+ * Conversantmedia.com © 2016, Conversant, Inc. Conversant® is a trademark of Conversant, Inc.
+ * ~~
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import com.conversantmedia.util.collection.geometry.Point2d;
+import com.conversantmedia.util.collection.geometry.Rect2d;
+import org.junit.Assert;
+import org.junit.Ignore;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class FrozenRTreeTest {
+
+    @Test
+    public void emptyFreezeTest() {
+        final SpatialSearch<Rect2d> frozen = RTreeTest.createRect2DTree(RTree.Split.AXIAL).freeze();
+
+        Assert.assertEquals(0, frozen.getEntryCount());
+        Assert.assertEquals(0, frozen.search(new Rect2d(0, 0, 10, 10), new Rect2d[1]));
+        Assert.assertEquals(0, frozen.count(new Rect2d(0, 0, 10, 10)));
+        Assert.assertFalse(frozen.nearest(new Point2d(0, 0)).hasNext());
+        Assert.assertFalse(frozen.contains(new Rect2d(0, 0, 10, 10)));
+    }
+
+    @Test
+    public void singleLeafFreezeTest() {
+        final RTree<Point2d> pTree = new RTree<>(new Point2d.Builder(), 2, 8, RTree.Split.AXIAL);
+        for(int i=0; i<8; i++) {
+            pTree.add(new Point2d(i, i));
+        }
+
+        final SpatialSearch<Point2d> frozen = pTree.freeze();
+        final Stats stats = frozen.collectStats();
+        Assert.assertEquals(0, stats.getMaxDepth());
+        Assert.assertEquals(1, stats.getLeafCount());
+        Assert.assertEquals(8, frozen.getEntryCount());
+
+        final Point2d[] result = new Point2d[8];
+        Assert.assertEquals(7, frozen.search(new Rect2d(new Point2d(1,1), new Point2d(7,7)), result));
+        Assert.assertEquals(new Point2d(3, 3), frozen.nearest(new Point2d(3.2, 3.2)).next());
+    }
+
+    /**
+     * The snapshot must return exactly what the tree it was taken from returns
+     */
+    @Test
+    public void freezeMatchesTreeTest() {
+        final int entryCount = 20_000;
+        final Rect2d[] rects = RTreeTest.generateRandomRects(entryCount);
+
+        for (RTree.Split type : RTree.Split.values()) {
+            final RTree<Rect2d> rTree = RTreeTest.createRect2DTree(2, 8, type);
+            for (int i = 0; i < rects.length; i++) {
+                rTree.add(rects[i]);
+            }
+            final SpatialSearch<Rect2d> frozen = rTree.freeze();
+            Assert.assertEquals(entryCount, frozen.getEntryCount());
+
+            final Stats treeStats = rTree.collectStats();
+            final Stats frozenStats = frozen.collectStats();
+            Assert.assertEquals(treeStats.getMaxDepth(), frozenStats.getMaxDepth());
+            Assert.assertEquals(treeStats.getBranchCount(), frozenStats.getBranchCount());
+            Assert.assertEquals(treeStats.getLeafCount(), frozenStats.getLeafCount());
+            Assert.assertEquals(treeStats.getEntryCount(), frozenStats.getEntryCount());
+
+            final Random rand = new Random(17);
+            for(int i=0; i<100; i++) {
+                final int x = rand.nextInt(500);
+                final int y = rand.nextInt(500);
+                final Rect2d searchRect = new Rect2d(x, y, x + rand.nextInt(100), y + rand.nextInt(100));
+
+                final Rect2d[] expected = new Rect2d[entryCount];
+                final Rect2d[] actual = new Rect2d[entryCount];
+                final int searchCount = rTree.search(searchRect, expected);
+                Assert.assertEquals("[" + type + "] search", searchCount, frozen.search(searchRect, actual));
+                Assert.assertEquals("[" + type + "] search order", Arrays.asList(expected), Arrays.asList(actual));
+                Assert.assertEquals("[" + type + "] count", searchCount, frozen.count(searchRect));
+                Assert.assertEquals("[" + type + "] intersects", rTree.intersects(searchRect, expected), frozen.intersects(searchRect, actual));
+
+                final List<Rect2d> found = new ArrayList<>();
+                frozen.intersects(searchRect, found::add);
+                Assert.assertEquals("[" + type + "] intersects consumer", rTree.intersects(searchRect, expected), found.size());
+
+                final Point2d p = new Point2d(x, y);
+                final Rect2d[] expectedNearest = new Rect2d[10];
+                final Rect2d[] actualNearest = new Rect2d[10];
+                Assert.assertEquals(10, rTree.nearest(p, 10, expectedNearest));
+                Assert.assertEquals(10, frozen.nearest(p, 10, actualNearest));
+                for(int j=0; j<10; j++) {
+                    Assert.assertEquals("[" + type + "] neighbor " + j, NearestNeighbor.distanceSq(p, expectedNearest[j]), NearestNeighbor.distanceSq(p, actualNearest[j]), 0.0);
+                }
+            }
+
+            for (int i = 0; i < rects.length; i += 7) {
+                Assert.assertTrue("[" + type + "] missing " + rects[i], frozen.contains(rects[i]));
+            }
+            Assert.assertFalse(frozen.contains(new Rect2d(-10, -10, -9, -9)));
+
+            final AtomicInteger n = new AtomicInteger();
+            frozen.forEach(r -> n.incrementAndGet());
+            Assert.assertEquals(entryCount, n.get());
+        }
+    }
+
+    @Test
+    public void snapshotIsolationTest() {
+        final RTree<Rect2d> rTree = RTreeTest.createRect2DTree(RTree.Split.QUADRATIC);
+        final Rect2d[] rects = RTreeTest.generateRandomRects(100);
+        for (int i = 0; i < rects.length; i++) {
+            rTree.add(rects[i]);
+        }
+
+        final SpatialSearch<Rect2d> frozen = rTree.freeze();
+        rTree.remove(rects[0]);
+        rTree.add(new Rect2d(-10, -10, -9, -9));
+
+        Assert.assertEquals(100, frozen.getEntryCount());
+        Assert.assertTrue(frozen.contains(rects[0]));
+        Assert.assertFalse(frozen.contains(new Rect2d(-10, -10, -9, -9)));
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void readOnlyTest() {
+        final RTree<Rect2d> rTree = RTreeTest.createRect2DTree(RTree.Split.AXIAL);
+        rTree.add(new Rect2d(0, 0, 1, 1));
+        rTree.freeze().add(new Rect2d(1, 1, 2, 2));
+    }
+
+    @Test
+    public void nearestIteratorTest() {
+        final Rect2d[] rects = RTreeTest.generateRandomRects(5000);
+        final SpatialSearch<Rect2d> frozen = ((RTree<Rect2d>) SpatialSearches.rTree(new Rect2d.Builder(), Arrays.asList(rects))).freeze();
+
+        final Point2d p = new Point2d(123, 321);
+        final double[] expected = new double[rects.length];
+        for(int i=0; i<rects.length; i++) {
+            expected[i] = NearestNeighbor.distanceSq(p, rects[i]);
+        }
+        Arrays.sort(expected);
+
+        final Iterator<Rect2d> it = frozen.nearest(p);
+        for(int i=0; i<rects.length; i++) {
+            Assert.assertEquals("distance of neighbor " + i, expected[i], NearestNeighbor.distanceSq(p, it.next()), 0.0);
+        }
+        Assert.assertFalse(it.hasNext());
+    }
+
+    /**
+     * Compare memory per entry and intersect time of a tree and its frozen snapshot
+     */
+    @Ignore
+    // This test ignored because output needs to be manually evaluated.
+    public void freezeBenchmarkTest() {
+        final int entryCount = 1_000_000;
+        final Rect2d[] rects = RTreeTest.generateRandomRects(entryCount);
+        final Runtime runtime = Runtime.getRuntime();
+
+        for (int j = 0; j < 3; j++) {
+            System.gc();
+            long used = runtime.totalMemory() - runtime.freeMemory();
+            final RTree<Rect2d> rTree = RTreeTest.createRect2DTree(2, 8, RTree.Split.AXIAL);
+            for (int i = 0; i < entryCount; i++) {
+                rTree.add(rects[i]);
+            }
+            System.gc();
+            System.out.println("tree: " + (runtime.totalMemory() - runtime.freeMemory() - used) / entryCount + " bytes per entry");
+
+            System.gc();
+            used = runtime.totalMemory() - runtime.freeMemory();
+            final SpatialSearch<Rect2d> frozen = rTree.freeze();
+            System.gc();
+            System.out.println("frozen: " + (runtime.totalMemory() - runtime.freeMemory() - used) / entryCount + " bytes per entry");
+
+            for (SpatialSearch<Rect2d> search : Arrays.asList(rTree, frozen)) {
+                final Random rand = new Random(23);
+                final AtomicInteger hits = new AtomicInteger();
+                final long start = System.nanoTime();
+                for (int i = 0; i < 10_000; i++) {
+                    final int x = rand.nextInt(500);
+                    final int y = rand.nextInt(500);
+                    search.intersects(new Rect2d(x, y, x + 10, y + 10), r -> hits.incrementAndGet());
+                }
+                System.out.println(search.getClass().getSimpleName() + " intersects: " + (System.nanoTime() - start) / 10_000 + " ns per query, " + hits.get() + " hits");
+            }
+        }
+    }
+}
@@ -0,0 +1,186 @@
+package com.conversantmedia.util.collection.spatial;
+
+/*
+ * #%L
+ * Conversant RTree
+ * ~~
+ * Conversantmedia.com © 2016, Conversant, Inc. Conversant® is a trademark of Conversant, Inc.
+ * ~~
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import com.conversantmedia.util.collection.geometry.Rect2d;
+import org.junit.Assert;
+import org.junit.Ignore;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+public class HilbertBulkLoaderTest {
+
+    private static final RTree.Pack TYPE = RTree.Pack.HILBERT;
+
+    /**
+     * Consecutive Hilbert values must be adjacent grid cells
+     */
+    @Test
+    public void curveContinuityTest() {
+        for(int nD = 1; nD <= 3; nD++) {
+            final int bits = 3;
+            final int side = 1 << bits;
+            final int cells = 1 << (bits * nD);
+            final int[][] cellAt = new int[cells][];
+
+            for(int c = 0; c < cells; c++) {
+                final int[] x = new int[nD];
+                int v = c;
+                for(int d = 0; d < nD; d++) {
+                    x[d] = v % side;
+                    v /= side;
+                }
+                final long h = HilbertBulkLoader.hilbert(Arrays.copyOf(x, nD), bits);
+                Assert.assertTrue("Hilbert value out of range " + h, h >= 0 && h < cells);
+                Assert.assertNull("Hilbert value repeated " + h, cellAt[(int)h]);
+                cellAt[(int)h] = x;
+            }
+
+            for(int h = 1; h < cells; h++) {
+                int dist = 0;
+                for(int d = 0; d < nD; d++) {
+                    dist += Math.abs(cellAt[h][d] - cellAt[h-1][d]);
+                }
+                Assert.assertEquals("Curve jumps between " + (h-1) + " and " + h, 1, dist);
+            }
+        }
+    }
+
+    @Test
+    public void loadMatchesIncrementalTest() {
+        final int entryCount = 20_000;
+        final Rect2d[] rects = generateClusteredRects(entryCount);
+
+        final RTree<Rect2d> rTree = RTreeTest.createRect2DTree(2, 8, RTree.Split.AXIAL);
+        for (int i = 0; i < rects.length; i++) {
+            rTree.add(rects[i]);
+        }
+
+        final SpatialSearch<Rect2d> packed = SpatialSearches.rTree(new Rect2d.Builder(), 2, 8, RTree.Split.AXIAL, TYPE, Arrays.asList(rects));
+        Assert.assertEquals(entryCount, packed.getEntryCount());
+
+        final Random rand = new Random(31);
+        for(int i=0; i<100; i++) {
+            final int x = rand.nextInt(500);
+            final int y = rand.nextInt(500);
+            final Rect2d searchRect = new Rect2d(x, y, x + rand.nextInt(100), y + rand.nextInt(100));
+
+            final Rect2d[] expected = new Rect2d[entryCount];
+            final Rect2d[] actual = new Rect2d[entryCount];
+            Assert.assertEquals("search count", rTree.search(searchRect, expected), packed.search(searchRect, actual));
+            Assert.assertEquals("intersect count", rTree.intersects(searchRect, expected), packed.intersects(searchRect, actual));
+        }
+
+        for (int i = 0; i < rects.length; i++) {
+            Assert.assertTrue("missing " + rects[i], packed.contains(rects[i]));
+        }
+    }
+
+    @Test
+    public void packedFillTest() {
+        final int entryCount = 50_000;
+        final Rect2d[] rects = generateClusteredRects(entryCount);
+
+        final SpatialSearch<Rect2d> packed = SpatialSearches.rTree(new Rect2d.Builder(), 2, 8, RTree.Split.AXIAL, TYPE, Arrays.asList(rects));
+        final Stats stats = packed.collectStats();
+
+        Assert.assertEquals(entryCount, stats.getEntryCount());
+        Assert.assertTrue("Leaf fill " + stats.getLeafFillPercentage(), stats.getLeafFillPercentage() > 99.0f);
+        Assert.assertEquals(5, stats.getMaxDepth());
+    }
+
+    @Test
+    public void parallelLoadTest() {
+        final int entryCount = 200_000;
+        final Rect2d[] rects = generateClusteredRects(entryCount);
+
+        final ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            final RTree<Rect2d> packed = (RTree<Rect2d>) SpatialSearches.rTree(new Rect2d.Builder(), 2, 8, RTree.Split.AXIAL, TYPE, Arrays.asList(rects), pool);
+            Assert.assertEquals(entryCount, packed.getEntryCount());
+            StrBulkLoaderTest.assertBalanced(packed.getRoot(), 2, 8);
+
+            for (int i = 0; i < rects.length; i += 97) {
+                Assert.assertTrue("missing " + rects[i], packed.contains(rects[i]));
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Compare nodes visited and bounding boxes evaluated by trees loaded with each pack type
+     * against an incrementally built AXIAL tree, over clustered data.
+     */
+    @Ignore
+    // This test ignored because output needs to be manually evaluated.
+    public void packSearchStatsTest() {
+        final int entryCount = 100_000;
+        final Rect2d[] rects = generateClusteredRects(entryCount);
+        final Rect2d searchRect = new Rect2d(100, 100, 120, 120);
+        final Rect2d[] results = new Rect2d[entryCount];
+
+        final RTree<Rect2d> axial = RTreeTest.createRect2DTree(2, 8, RTree.Split.AXIAL);
+        for (int i = 0; i < rects.length; i++) {
+            axial.add(rects[i]);
+        }
+        axial.collectStats().print(System.out);
+        axial.instrumentTree();
+        int foundCount = axial.search(searchRect, results);
+        System.out.println("[AXIAL add] searched " + CounterNode.searchCount + " nodes, evaluated " + CounterNode.bboxEvalCount + " b-boxes, returning " + foundCount + " entries");
+
+        for(RTree.Pack pack : RTree.Pack.values()) {
+            final RTree<Rect2d> packed = (RTree<Rect2d>) SpatialSearches.rTree(new Rect2d.Builder(), 2, 8, RTree.Split.AXIAL, pack, Arrays.asList(rects));
+            packed.collectStats().print(System.out);
+            packed.instrumentTree();
+            foundCount = packed.search(searchRect, results);
+            System.out.println("[" + pack + " load] searched " + CounterNode.searchCount + " nodes, evaluated " + CounterNode.bboxEvalCount + " b-boxes, returning " + foundCount + " entries");
+        }
+    }
+
+    /**
+     * Generate rectangles concentrated around a few random centers
+     */
+    static Rect2d[] generateClusteredRects(final int count) {
+        final Random rand = new Random(13);
+        final int nCluster = 20;
+        final double[] cx = new double[nCluster];
+        final double[] cy = new double[nCluster];
+        final double[] spread = new double[nCluster];
+        for(int c = 0; c < nCluster; c++) {
+            cx[c] = rand.nextInt(500);
+            cy[c] = rand.nextInt(500);
+            spread[c] = 1 + rand.nextInt(40);
+        }
+
+        final Rect2d[] rects = new Rect2d[count];
+        for (int i = 0; i < count; i++) {
+            final int c = rand.nextInt(nCluster);
+            final double x1 = cx[c] + rand.nextGaussian()*spread[c];
+            final double y1 = cy[c] + rand.nextGaussian()*spread[c];
+            rects[i] = new Rect2d(x1, y1, x1 + rand.nextInt(5), y1 + rand.nextInt(5));
+        }
+        return rects;
+    }
+}
@@ -0,0 +1,298 @@
+package com.conversantmedia.util.collection.spatial;
+
+/*
+ * #%L
+ * Conversant RTree
+ * ~~
+ * Conversantmedia.com © 2016, Conversant, Inc. Conversant® is a trademark of Conversant, Inc.
+ * ~~
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import com.conversantmedia.util.collection.geometry.Rect2d;
+import org.junit.Assert;
+import org.junit.Ignore;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+public class LoggedRTreeTest {
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private static LoggedRTree<Rect2d> open(final Path dir, final boolean syncOnWrite) throws IOException {
+        return SpatialSearches.loggedRTree(new Rect2d.Builder(), 2, 8, RTree.Split.QUADRATIC, dir, RTreeSerializerTest.RECT_CODEC, syncOnWrite);
+    }
+
+    @Test
+    public void replayTest() throws IOException {
+        final Path dir = folder.newFolder().toPath();
+        final RTree<Rect2d> expected = RTreeTest.createRect2DTree(2, 8, RTree.Split.QUADRATIC);
+        final Rect2d[] rects = RTreeTest.generateRandomRects(5000);
+
+        try (final LoggedRTree<Rect2d> logged = open(dir, false)) {
+            applyChanges(rects, expected, logged);
+        }
+
+        try (final LoggedRTree<Rect2d> logged = open(dir, false)) {
+            assertMatches(expected, logged);
+            Assert.assertEquals(RTree.Split.QUADRATIC, logged.collectStats().getType());
+        }
+    }
+
+    /**
+     * Every change that returned with syncOnWrite survives the log never being closed
+     */
+    @Test
+    public void syncOnWriteTest() throws IOException {
+        final Path dir = folder.newFolder().toPath();
+        final RTree<Rect2d> expected = RTreeTest.createRect2DTree(2, 8, RTree.Split.QUADRATIC);
+        final Rect2d[] rects = RTreeTest.generateRandomRects(500);
+
+        final LoggedRTree<Rect2d> crashed = open(dir, true);
+        applyChanges(rects, expected, crashed);
+
+        try (final LoggedRTree<Rect2d> logged = open(dir, true)) {
+            assertMatches(expected, logged);
+        } finally {
+            crashed.close();
+        }
+    }
+
+    /**
+     * Once a record can not be written no later change is taken, nor applied to the tree
+     */
+    @Test
+    public void failedLogTest() throws IOException {
+        final Path dir = folder.newFolder().toPath();
+        final LoggedRTree<Rect2d> logged = open(dir, true);
+        final Rect2d first = new Rect2d(1, 1, 2, 2);
+        final Rect2d second = new Rect2d(3, 3, 4, 4);
+        logged.add(first);
+        logged.close();
+
+        try {
+            logged.remove(first);
+            Assert.fail("the log is closed");
+        } catch(UncheckedIOException e) {
+            Assert.assertTrue(e.getCause() instanceof ClosedChannelException);
+        }
+        Assert.assertTrue(logged.contains(first));
+        try {
+            logged.add(second);
+            Assert.fail("the log is closed");
+        } catch(UncheckedIOException e) {
+            Assert.assertTrue(e.getCause() instanceof ClosedChannelException);
+        }
+        Assert.assertFalse(logged.contains(second));
+    }
+
+    /**
+     * A record torn by a crash ends the replay and is cut from the log
+     */
+    @Test
+    public void tornRecordTest() throws IOException {
+        final Path dir = folder.newFolder().toPath();
+        final Rect2d[] rects = RTreeTest.generateRandomRects(100);
+        try (final LoggedRTree<Rect2d> logged = open(dir, false)) {
+            for (int i = 0; i < rects.length; i++) {
+                logged.add(rects[i]);
+            }
+        }
+
+        final Path log = dir.resolve(LoggedRTree.LOG_FILE);
+        final long size = Files.size(log);
+        final byte[] data = Files.readAllBytes(log);
+        Files.write(log, Arrays.copyOf(data, data.length - 5));
+
+        try (final LoggedRTree<Rect2d> logged = open(dir, false)) {
+            Assert.assertEquals(rects.length - 1, logged.getEntryCount());
+            Assert.assertFalse(logged.contains(rects[rects.length - 1]));
+            logged.add(rects[rects.length - 1]);
+        }
+        Assert.assertEquals(size, Files.size(log));
+
+        // garbage after the last record is cut as well
+        Files.write(log, new byte[] { 0, 0, 0, 40, 1, 2, 3, 4, 5, 6 }, StandardOpenOption.APPEND);
+        try (final LoggedRTree<Rect2d> logged = open(dir, false)) {
+            Assert.assertEquals(rects.length, logged.getEntryCount());
+        }
+        Assert.assertEquals(size, Files.size(log));
+    }
+
+    @Test
+    public void checkpointTest() throws IOException {
+        final Path dir = folder.newFolder().toPath();
+        final RTree<Rect2d> expected = RTreeTest.createRect2DTree(2, 8, RTree.Split.QUADRATIC);
+        final Rect2d[] rects = RTreeTest.generateRandomRects(4000);
+
+        try (final LoggedRTree<Rect2d> logged = open(dir, false)) {
+            applyChanges(Arrays.copyOf(rects, 2000), expected, logged);
+            logged.checkpoint();
+            Assert.assertEquals(0, Files.size(dir.resolve(LoggedRTree.LOG_FILE)));
+            Assert.assertTrue(Files.exists(dir.resolve(LoggedRTree.CHECKPOINT_FILE)));
+
+            applyChanges(Arrays.copyOfRange(rects, 2000, 4000), expected, logged);
+        }
+
+        try (final LoggedRTree<Rect2d> logged = open(dir, false)) {
+            assertMatches(expected, logged);
+        }
+    }
+
+    /**
+     * Records already in the checkpoint are skipped, as after a crash between writing the
+     * checkpoint and emptying the log
+     */
+    @Test
+    public void checkpointReplayTest() throws IOException {
+        final Path dir = folder.newFolder().toPath();
+        final Rect2d[] rects = RTreeTest.generateRandomRects(1000);
+        final byte[] log;
+        try (final LoggedRTree<Rect2d> logged = open(dir, false)) {
+            for (int i = 0; i < rects.length; i++) {
+                logged.add(rects[i]);
+            }
+            logged.sync();
+            log = Files.readAllBytes(dir.resolve(LoggedRTree.LOG_FILE));
+            logged.checkpoint();
+        }
+        Files.write(dir.resolve(LoggedRTree.LOG_FILE), log);
+
+        try (final LoggedRTree<Rect2d> logged = open(dir, false)) {
+            Assert.assertEquals(rects.length, logged.getEntryCount());
+        }
+    }
+
+    @Test
+    public void concurrentWriterTest() throws Exception {
+        final Path dir = folder.newFolder().toPath();
+        final Rect2d[] rects = RTreeTest.generateRandomRects(4000);
+        final ExecutorService pool = Executors.newFixedThreadPool(8);
+        try (final LoggedRTree<Rect2d> logged = open(dir, true)) {
+            final List<Future<?>> futures = new ArrayList<>();
+            for (int j = 0; j < 8; j++) {
+                final int first = j;
+                futures.add(pool.submit(() -> {
+                    for (int i = first; i < rects.length; i += 8) {
+                        logged.add(rects[i]);
+                    }
+                }));
+            }
+            for (Future<?> f : futures) {
+                f.get();
+            }
+            Assert.assertEquals(rects.length, logged.getEntryCount());
+        } finally {
+            pool.shutdown();
+            pool.awaitTermination(10, TimeUnit.SECONDS);
+        }
+
+        try (final LoggedRTree<Rect2d> logged = open(dir, true)) {
+            Assert.assertEquals(rects.length, logged.getEntryCount());
+            for (int i = 0; i < rects.length; i++) {
+                Assert.assertTrue(logged.contains(rects[i]));
+            }
+        }
+    }
+
+    private static void applyChanges(final Rect2d[] rects, final RTree<Rect2d> expected, final SpatialSearch<Rect2d> logged) {
+        for (int i = 0; i < rects.length; i++) {
+            expected.add(rects[i]);
+            logged.add(rects[i]);
+        }
+        for (int i = 0; i < rects.length; i += 5) {
+            expected.remove(rects[i]);
+            logged.remove(rects[i]);
+        }
+        for (int i = 1; i < rects.length; i += 5) {
+            final Rect2d moved = new Rect2d(rects[i].getMinCoord(0) + 1, rects[i].getMinCoord(1), rects[i].getMaxCoord(0) + 1, rects[i].getMaxCoord(1));
+            expected.update(rects[i], moved);
+            logged.update(rects[i], moved);
+        }
+    }
+
+    private static void assertMatches(final RTree<Rect2d> expected, final SpatialSearch<Rect2d> actual) {
+        Assert.assertEquals(expected.getEntryCount(), actual.getEntryCount());
+        final Random rand = new Random(41);
+        for (int i = 0; i < 100; i++) {
+            final int x = rand.nextInt(500);
+            final int y = rand.nextInt(500);
+            final Rect2d searchRect = new Rect2d(x, y, x + rand.nextInt(100), y + rand.nextInt(100));
+            final Rect2d[] e = new Rect2d[expected.getEntryCount()];
+            final Rect2d[] a = new Rect2d[expected.getEntryCount()];
+            Assert.assertEquals(expected.search(searchRect, e), actual.search(searchRect, a));
+            Assert.assertEquals(Arrays.asList(e), Arrays.asList(a));
+        }
+    }
+
+    /**
+     * Adds per second with each change made durable, for growing numbers of writers sharing fsyncs
+     */
+    @Ignore
+    // This test ignored because output needs to be manually evaluated.
+    public void groupCommitBenchmarkTest() throws Exception {
+        final Rect2d[] rects = RTreeTest.generateRandomRects(200_000);
+        for (int threads : new int[] { 1, 4, 16, 64 }) {
+            final Path dir = folder.newFolder().toPath();
+            final ExecutorService pool = Executors.newFixedThreadPool(threads);
+            final int perThread = 80_000 / threads;
+            try (final LoggedRTree<Rect2d> logged = open(dir, true)) {
+                final List<Future<?>> futures = new ArrayList<>();
+                final long start = System.nanoTime();
+                for (int j = 0; j < threads; j++) {
+                    final int first = j * perThread;
+                    futures.add(pool.submit(() -> {
+                        for (int i = first; i < first + perThread; i++) {
+                            logged.add(rects[i]);
+                        }
+                    }));
+                }
+                for (Future<?> f : futures) {
+                    f.get();
+                }
+                final long elapsed = System.nanoTime() - start;
+                System.out.println(threads + " writers, sync on write: " + 1_000_000_000L * threads * perThread / elapsed + " durable adds per second");
+            } finally {
+                pool.shutdown();
+            }
+        }
+
+        final Path dir = folder.newFolder().toPath();
+        try (final LoggedRTree<Rect2d> logged = open(dir, false)) {
+            final long start = System.nanoTime();
+            for (int i = 0; i < rects.length; i++) {
+                logged.add(rects[i]);
+            }
+            logged.sync();
+            System.out.println("1 writer, grouped: " + 1_000_000_000L * rects.length / (System.nanoTime() - start) + " adds per second");
+        }
+    }
+}
@@ -0,0 +1,238 @@
+package com.conversantmedia.util.collection.spatial;
+
+/*
+ * #%L
+ * Conversant RTree
+ * ~~
+ * Conversantmedia.com © 2016, Conversant, Inc. Conversant® is a trademark of Conversant, Inc.
+ * ~~
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import com.conversantmedia.util.collection.geometry.Point2d;
+import com.conversantmedia.util.collection.geometry.Rect2d;
+import org.junit.Assert;
+import org.junit.Ignore;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class MappedRTreeTest {
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void emptyTest() throws IOException {
+        final Path file = folder.newFile().toPath();
+        RTreeTest.createRect2DTree(RTree.Split.AXIAL).writePacked(file, r -> 0L);
+        Assert.assertEquals(MappedRTree.fileSize(0, 0, 0), Files.size(file));
+
+        final SpatialSearch<Rect2d> mapped = SpatialSearches.mappedRTree(new Rect2d.Builder(), file, id -> null);
+        Assert.assertEquals(0, mapped.getEntryCount());
+        Assert.assertEquals(0, mapped.search(new Rect2d(0, 0, 10, 10), new Rect2d[1]));
+        Assert.assertFalse(mapped.nearest(new Point2d(0, 0)).hasNext());
+    }
+
+    @Test
+    public void mappedMatchesTreeTest() throws IOException {
+        final int entryCount = 20_000;
+        final Rect2d[] rects = RTreeTest.generateRandomRects(entryCount);
+        final Map<Rect2d, Long> ids = new IdentityHashMap<>();
+        for (int i = 0; i < rects.length; i++) {
+            ids.put(rects[i], (long) i);
+        }
+
+        for (RTree.Split type : RTree.Split.values()) {
+            final RTree<Rect2d> rTree = RTreeTest.createRect2DTree(2, 8, type);
+            for (int i = 0; i < rects.length; i++) {
+                rTree.add(rects[i]);
+            }
+            final Path file = folder.newFile().toPath();
+            rTree.writePacked(file, ids::get);
+            Assert.assertEquals(0, Files.size(file) % MappedRTree.PAGE_SIZE);
+
+            // small mappings put sections across mapping boundaries
+            for (int shift : new int[] { 12, SegmentedBuffer.DEFAULT_SEGMENT_SHIFT }) {
+                final SpatialSearch<Rect2d> mapped = MappedRTree.open(file, new Rect2d.Builder(), id -> rects[(int) id], shift);
+                Assert.assertEquals(entryCount, mapped.getEntryCount());
+
+                final Stats treeStats = rTree.collectStats();
+                final Stats mappedStats = mapped.collectStats();
+                Assert.assertEquals(type, mappedStats.getType());
+                Assert.assertEquals(treeStats.getMaxDepth(), mappedStats.getMaxDepth());
+                Assert.assertEquals(treeStats.getLeafCount(), mappedStats.getLeafCount());
+
+                final Random rand = new Random(29);
+                for (int i = 0; i < 100; i++) {
+                    final int x = rand.nextInt(500);
+                    final int y = rand.nextInt(500);
+                    final Rect2d searchRect = new Rect2d(x, y, x + rand.nextInt(100), y + rand.nextInt(100));
+
+                    final Rect2d[] expected = new Rect2d[entryCount];
+                    final Rect2d[] actual = new Rect2d[entryCount];
+                    final int searchCount = rTree.search(searchRect, expected);
+                    Assert.assertEquals("[" + type + "] search", searchCount, mapped.search(searchRect, actual));
+                    Assert.assertEquals("[" + type + "] search order", Arrays.asList(expected), Arrays.asList(actual));
+                    Assert.assertEquals("[" + type + "] count", searchCount, mapped.count(searchRect));
+                    Assert.assertEquals("[" + type + "] intersects", rTree.intersects(searchRect, expected), mapped.intersects(searchRect, actual));
+
+                    final Point2d p = new Point2d(x, y);
+                    Assert.assertEquals(NearestNeighbor.distanceSq(p, rTree.nearest(p).next()), NearestNeighbor.distanceSq(p, mapped.nearest(p).next()), 0.0);
+                }
+
+                for (int i = 0; i < rects.length; i += 7) {
+                    Assert.assertTrue("[" + type + "] missing " + rects[i], mapped.contains(rects[i]));
+                }
+            }
+        }
+    }
+
+    /**
+     * Writing over a file replaces it whole, a tree already mapped from it keeps the old contents
+     */
+    @Test
+    public void replaceFileTest() throws IOException {
+        final Path file = folder.newFolder().toPath().resolve("tree");
+        final Rect2d[] rects = RTreeTest.generateRandomRects(1000);
+        final RTree<Rect2d> rTree = RTreeTest.createRect2DTree(2, 8, RTree.Split.AXIAL);
+        for (int i = 0; i < 500; i++) {
+            rTree.add(rects[i]);
+        }
+        rTree.writePacked(file, r -> 0L);
+        final SpatialSearch<Rect2d> before = SpatialSearches.mappedRTree(new Rect2d.Builder(), file, id -> null);
+
+        for (int i = 500; i < rects.length; i++) {
+            rTree.add(rects[i]);
+        }
+        rTree.writePacked(file, r -> 0L);
+        final SpatialSearch<Rect2d> after = SpatialSearches.mappedRTree(new Rect2d.Builder(), file, id -> null);
+
+        Assert.assertEquals(500, before.getEntryCount());
+        Assert.assertEquals(1000, after.getEntryCount());
+        // nothing is left behind
+        Assert.assertArrayEquals(new String[] {"tree"}, file.getParent().toFile().list());
+    }
+
+    @Test(expected = IOException.class)
+    public void notPackedFileTest() throws IOException {
+        final Path file = folder.newFile().toPath();
+        Files.write(file, new byte[MappedRTree.PAGE_SIZE]);
+        SpatialSearches.mappedRTree(new Rect2d.Builder(), file, id -> null);
+    }
+
+    @Test(expected = IOException.class)
+    public void truncatedFileTest() throws IOException {
+        final Rect2d[] rects = RTreeTest.generateRandomRects(1000);
+        final RTree<Rect2d> rTree = (RTree<Rect2d>) SpatialSearches.rTree(new Rect2d.Builder(), Arrays.asList(rects));
+        final Path file = folder.newFile().toPath();
+        rTree.writePacked(file, r -> 0L);
+
+        final byte[] data = Files.readAllBytes(file);
+        Files.write(file, Arrays.copyOf(data, data.length - MappedRTree.PAGE_SIZE));
+        SpatialSearches.mappedRTree(new Rect2d.Builder(), file, id -> null);
+    }
+
+    /**
+     * A header whose dimensions, fill or counts can not describe a tree is rejected when opened
+     */
+    @Test
+    public void corruptHeaderTest() throws IOException {
+        final Rect2d[] rects = RTreeTest.generateRandomRects(1000);
+        final RTree<Rect2d> rTree = (RTree<Rect2d>) SpatialSearches.rTree(new Rect2d.Builder(), Arrays.asList(rects));
+        final Path file = folder.newFile().toPath();
+        rTree.writePacked(file, r -> 0L);
+        final byte[] data = Files.readAllBytes(file);
+        final int nodeCount = ByteBuffer.wrap(data).order(MappedRTree.BYTE_ORDER).getInt(24);
+
+        // offset of the header field, corrupt value
+        final int[][] corruptions = {
+                { 8, 0 },               // no dimensions
+                { 8, -2 },
+                { 16, 0 },              // mMax
+                { 12, 100 },            // mMin above mMax
+                { 28, 0 },              // entries with no nodes
+                { 24, nodeCount - 1 },  // child table does not match
+                { 28, 999 },
+        };
+        for(final int[] corruption : corruptions) {
+            final byte[] corrupt = data.clone();
+            ByteBuffer.wrap(corrupt).order(MappedRTree.BYTE_ORDER).putInt(corruption[0], corruption[1]);
+            Files.write(file, corrupt);
+            try {
+                SpatialSearches.mappedRTree(new Rect2d.Builder(), file, id -> null);
+                Assert.fail("header field " + corruption[0] + " = " + corruption[1] + " must be rejected");
+            } catch(IOException e) {
+                // expected
+            }
+        }
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void readOnlyTest() throws IOException {
+        final RTree<Rect2d> rTree = RTreeTest.createRect2DTree(RTree.Split.AXIAL);
+        final Rect2d rect = new Rect2d(0, 0, 1, 1);
+        rTree.add(rect);
+        final Path file = folder.newFile().toPath();
+        rTree.writePacked(file, r -> 0L);
+        SpatialSearches.mappedRTree(new Rect2d.Builder(), file, id -> rect).add(rect);
+    }
+
+    /**
+     * Time to open a large file, and query time of the mapped file against the tree it was written from
+     */
+    @Ignore
+    // This test ignored because output needs to be manually evaluated.
+    public void mappedBenchmarkTest() throws IOException {
+        final int entryCount = 1_000_000;
+        final Rect2d[] rects = RTreeTest.generateRandomRects(entryCount);
+        final Map<Rect2d, Long> ids = new IdentityHashMap<>();
+        for (int i = 0; i < rects.length; i++) {
+            ids.put(rects[i], (long) i);
+        }
+        final RTree<Rect2d> rTree = (RTree<Rect2d>) SpatialSearches.rTree(new Rect2d.Builder(), Arrays.asList(rects));
+        final Path file = folder.newFile().toPath();
+        rTree.writePacked(file, ids::get);
+        System.out.println("file: " + Files.size(file) / entryCount + " bytes per entry");
+
+        for (int j = 0; j < 3; j++) {
+            long start = System.nanoTime();
+            final SpatialSearch<Rect2d> mapped = SpatialSearches.mappedRTree(new Rect2d.Builder(), file, id -> rects[(int) id]);
+            System.out.println("open: " + (System.nanoTime() - start) / 1000 + " us");
+
+            for (SpatialSearch<Rect2d> search : Arrays.asList(rTree, mapped)) {
+                final Random rand = new Random(23);
+                final AtomicInteger hits = new AtomicInteger();
+                start = System.nanoTime();
+                for (int i = 0; i < 10_000; i++) {
+                    final int x = rand.nextInt(500);
+                    final int y = rand.nextInt(500);
+                    hits.addAndGet(search.count(new Rect2d(x, y, x + 10, y + 10)));
+                    search.intersects(new Rect2d(x, y, x + 1, y + 1), r -> hits.incrementAndGet());
+                }
+                System.out.println(search.getClass().getSimpleName() + ": " + (System.nanoTime() - start) / 10_000 + " ns per count and point query, " + hits.get() + " hits");
+            }
+        }
+    }
+}
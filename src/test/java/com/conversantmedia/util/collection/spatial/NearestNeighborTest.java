@@ -0,0 +1,184 @@
+package com.conversantmedia.util.collection.spatial;
+
+/*
+ * #%L
+ * Conversant RTree
+ * ~~
+ * Conversantmedia.com © 2016, Conversant, Inc. Conversant® is a trademark of Conversant, Inc.
+ * ~~
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import com.conversantmedia.util.collection.geometry.Point2d;
+import com.conversantmedia.util.collection.geometry.Rect2d;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Random;
+
+public class NearestNeighborTest {
+
+    @Test
+    public void emptyTreeTest() {
+        final RTree<Point2d> pTree = new RTree<>(new Point2d.Builder(), 2, 8, RTree.Split.AXIAL);
+        Assert.assertEquals(0, pTree.nearest(new Point2d(0, 0), 5, new Point2d[5]));
+    }
+
+    @Test
+    public void pointNearestTest() {
+        final RTree<Point2d> pTree = new RTree<>(new Point2d.Builder(), 2, 8, RTree.Split.AXIAL);
+        for(int i=0; i<100; i++) {
+            pTree.add(new Point2d(i, i));
+        }
+
+        final Point2d[] result = new Point2d[3];
+        Assert.assertEquals(3, pTree.nearest(new Point2d(50.2, 50.2), 3, result));
+        Assert.assertEquals(new Point2d(50, 50), result[0]);
+        Assert.assertEquals(new Point2d(51, 51), result[1]);
+        Assert.assertEquals(new Point2d(49, 49), result[2]);
+
+        // k larger than the result array
+        Assert.assertEquals(2, pTree.nearest(new Point2d(0, 0), 10, new Point2d[2]));
+        // k larger than the tree
+        Assert.assertEquals(100, pTree.nearest(new Point2d(0, 0), 1000, new Point2d[1000]));
+    }
+
+    @Test
+    public void rectContainsPointTest() {
+        final RTree<Rect2d> rTree = RTreeTest.createRect2DTree(RTree.Split.AXIAL);
+        final Rect2d big = new Rect2d(0, 0, 100, 100);
+        rTree.add(big);
+        rTree.add(new Rect2d(10, 10, 11, 11));
+        rTree.add(new Rect2d(200, 200, 201, 201));
+
+        final List<Rect2d> result = new ArrayList<>();
+        rTree.nearest(new Point2d(50, 50), 1, result::add);
+        Assert.assertEquals(1, result.size());
+        Assert.assertEquals(big, result.get(0));
+    }
+
+    /**
+     * Every split type must return the same distances as a brute force scan
+     */
+    @Test
+    public void nearestMatchesScanTest() {
+        final int entryCount = 5000;
+        final int k = 20;
+        final Rect2d[] rects = RTreeTest.generateRandomRects(entryCount);
+
+        for (RTree.Split type : RTree.Split.values()) {
+            final RTree<Rect2d> rTree = RTreeTest.createRect2DTree(2, 8, type);
+            for (int i = 0; i < rects.length; i++) {
+                rTree.add(rects[i]);
+            }
+
+            final Random rand = new Random(7);
+            for(int q=0; q<50; q++) {
+                final Point2d p = new Point2d(rand.nextInt(600), rand.nextInt(600));
+
+                final double[] expected = new double[entryCount];
+                for(int i=0; i<entryCount; i++) {
+                    expected[i] = NearestNeighbor.distanceSq(p, rects[i]);
+                }
+                Arrays.sort(expected);
+
+                final Rect2d[] result = new Rect2d[k];
+                Assert.assertEquals(k, rTree.nearest(p, k, result));
+                for(int i=0; i<k; i++) {
+                    Assert.assertEquals("[" + type + "] distance of neighbor " + i, expected[i], NearestNeighbor.distanceSq(p, result[i]), 0.0);
+                }
+            }
+        }
+    }
+
+    /**
+     * Only the nodes along the way to the nearest entries should be expanded
+     */
+    @Test
+    public void nearestVisitsFewNodesTest() {
+        final int entryCount = 50_000;
+        final Rect2d[] rects = RTreeTest.generateRandomRects(entryCount);
+        final RTree<Rect2d> rTree = (RTree<Rect2d>) SpatialSearches.rTree(new Rect2d.Builder(), Arrays.asList(rects));
+        final Stats stats = rTree.collectStats();
+
+        rTree.instrumentTree();
+        final Rect2d[] result = new Rect2d[10];
+        Assert.assertEquals(10, rTree.nearest(new Point2d(250, 250), 10, result));
+
+        final int nodeCount = stats.getBranchCount() + stats.getLeafCount();
+        Assert.assertTrue("Visited " + CounterNode.searchCount + " of " + nodeCount + " nodes", CounterNode.searchCount < 100);
+    }
+
+    @Test
+    public void iteratorMatchesScanTest() {
+        final int entryCount = 5000;
+        final Rect2d[] rects = RTreeTest.generateRandomRects(entryCount);
+        final RTree<Rect2d> rTree = RTreeTest.createRect2DTree(2, 8, RTree.Split.QUADRATIC);
+        for (int i = 0; i < rects.length; i++) {
+            rTree.add(rects[i]);
+        }
+
+        final Point2d p = new Point2d(123, 321);
+        final double[] expected = new double[entryCount];
+        for(int i=0; i<entryCount; i++) {
+            expected[i] = NearestNeighbor.distanceSq(p, rects[i]);
+        }
+        Arrays.sort(expected);
+
+        final Iterator<Rect2d> it = rTree.nearest(p);
+        for(int i=0; i<entryCount; i++) {
+            Assert.assertTrue(it.hasNext());
+            Assert.assertEquals("distance of neighbor " + i, expected[i], NearestNeighbor.distanceSq(p, it.next()), 0.0);
+        }
+        Assert.assertFalse(it.hasNext());
+    }
+
+    @Test(expected = NoSuchElementException.class)
+    public void emptyIteratorTest() {
+        final RTree<Point2d> pTree = new RTree<>(new Point2d.Builder(), 2, 8, RTree.Split.AXIAL);
+        final Iterator<Point2d> it = pTree.nearest(new Point2d(0, 0));
+        Assert.assertFalse(it.hasNext());
+        it.next();
+    }
+
+    /**
+     * Stopping early should only pay for the nodes needed so far
+     */
+    @Test
+    public void iteratorIsLazyTest() {
+        final int entryCount = 50_000;
+        final Rect2d[] rects = RTreeTest.generateRandomRects(entryCount);
+        final RTree<Rect2d> rTree = (RTree<Rect2d>) SpatialSearches.rTree(new Rect2d.Builder(), Arrays.asList(rects));
+
+        rTree.instrumentTree();
+        final Iterator<Rect2d> it = rTree.nearest(new Point2d(250, 250));
+        Assert.assertEquals(0, CounterNode.searchCount);
+
+        // filtered browse, stop at the first 3 matches
+        int found = 0;
+        while(found < 3 && it.hasNext()) {
+            final double x = it.next().getMin().getCoord(0);
+            if(x < 250) {
+                found++;
+            }
+        }
+        Assert.assertEquals(3, found);
+        Assert.assertTrue("Visited " + CounterNode.searchCount + " nodes", CounterNode.searchCount < 50);
+    }
+}
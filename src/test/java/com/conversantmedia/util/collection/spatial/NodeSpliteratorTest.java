@@ -0,0 +1,206 @@
+package com.conversantmedia.util.collection.spatial;
+
+/*
+ * #%L
+ * Conversant RTree
+ * ~~
+ * Conversantmedia.com © 2016, Conversant, Inc. Conversant® is a trademark of Conversant, Inc.
+ * ~~
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import com.conversantmedia.util.collection.geometry.Rect2d;
+import org.junit.Assert;
+import org.junit.Ignore;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.Spliterator;
+import java.util.stream.Collectors;
+
+public class NodeSpliteratorTest {
+
+    private static final Comparator<Rect2d> BY_COORDS = Comparator.comparingDouble((Rect2d r) -> r.getMinCoord(0))
+            .thenComparingDouble(r -> r.getMinCoord(1))
+            .thenComparingDouble(r -> r.getMaxCoord(0))
+            .thenComparingDouble(r -> r.getMaxCoord(1));
+
+    /**
+     * Streams must return the entries of the matching search, sequential streams in the same order
+     */
+    @Test
+    public void streamMatchesSearchTest() {
+        final int entryCount = 20_000;
+        final Rect2d[] rects = RTreeTest.generateRandomRects(entryCount);
+
+        for(RTree.Split type : RTree.Split.values()) {
+            final RTree<Rect2d> rTree = RTreeTest.createRect2DTree(2, 8, type);
+            for(final Rect2d r : rects) {
+                rTree.add(r);
+            }
+
+            final List<Rect2d> all = new ArrayList<>();
+            rTree.forEach(all::add);
+            Assert.assertEquals("[" + type + "] stream", all, rTree.stream().collect(Collectors.toList()));
+            Assert.assertEquals("[" + type + "] parallel stream", entryCount, rTree.parallelStream().count());
+
+            final Random rand = new Random(47);
+            for(int i=0; i<50; i++) {
+                final int x = rand.nextInt(500);
+                final int y = rand.nextInt(500);
+                final Rect2d searchRect = new Rect2d(x, y, x + rand.nextInt(200), y + rand.nextInt(200));
+
+                final List<Rect2d> expected = new ArrayList<>();
+                rTree.search(searchRect, expected::add);
+                Assert.assertEquals("[" + type + "] search stream", expected, rTree.stream(searchRect).collect(Collectors.toList()));
+                final List<Rect2d> parallel = rTree.parallelStream(searchRect).sorted(BY_COORDS).collect(Collectors.toList());
+                expected.sort(BY_COORDS);
+                Assert.assertEquals("[" + type + "] parallel search stream", expected, parallel);
+
+                expected.clear();
+                rTree.intersects(searchRect, expected::add);
+                Assert.assertEquals("[" + type + "] intersects stream", expected, rTree.intersectsStream(searchRect).collect(Collectors.toList()));
+                Assert.assertEquals("[" + type + "] parallel intersects stream", expected.size(), rTree.parallelIntersectsStream(searchRect).count());
+            }
+        }
+    }
+
+    /**
+     * Splitting must divide the entries into ordered parts with exact sizes when every entry is visited
+     */
+    @Test
+    public void splitTest() {
+        final Rect2d[] rects = RTreeTest.generateRandomRects(10_000);
+        final RTree<Rect2d> rTree = (RTree<Rect2d>) SpatialSearches.rTree(new Rect2d.Builder(), Arrays.asList(rects));
+
+        final Spliterator<Rect2d> spliterator = rTree.spliterator();
+        Assert.assertTrue(spliterator.hasCharacteristics(Spliterator.SIZED));
+        Assert.assertEquals(rects.length, spliterator.getExactSizeIfKnown());
+
+        final List<Spliterator<Rect2d>> parts = new ArrayList<>();
+        split(spliterator, parts, 4);
+        Assert.assertTrue(parts.size() > 8);
+
+        final List<Rect2d> expected = new ArrayList<>();
+        rTree.forEach(expected::add);
+        final List<Rect2d> actual = new ArrayList<>();
+        long size = 0;
+        for(final Spliterator<Rect2d> part : parts) {
+            final long partSize = part.getExactSizeIfKnown();
+            size += partSize;
+            final int before = actual.size();
+            // mix single steps with the bulk traversal
+            part.tryAdvance(actual::add);
+            part.forEachRemaining(actual::add);
+            Assert.assertEquals(partSize, actual.size() - before);
+        }
+        Assert.assertEquals(rects.length, size);
+        Assert.assertEquals(expected, actual);
+    }
+
+    @Test
+    public void searchEstimateTest() {
+        final Rect2d[] rects = RTreeTest.generateRandomRects(10_000);
+        final RTree<Rect2d> rTree = (RTree<Rect2d>) SpatialSearches.rTree(new Rect2d.Builder(), Arrays.asList(rects));
+        final Rect2d searchRect = new Rect2d(100, 100, 200, 200);
+
+        final Spliterator<Rect2d> spliterator = rTree.searchSpliterator(searchRect);
+        Assert.assertFalse(spliterator.hasCharacteristics(Spliterator.SIZED));
+        Assert.assertEquals(rects.length, spliterator.estimateSize());
+
+        // once opened the estimate only counts subtrees that intersect the query
+        final Spliterator<Rect2d> prefix = spliterator.trySplit();
+        final long estimate = prefix.estimateSize() + spliterator.estimateSize();
+        Assert.assertTrue(estimate < rects.length);
+        Assert.assertTrue(estimate >= rTree.count(searchRect));
+    }
+
+    @Test
+    public void emptyTest() {
+        final RTree<Rect2d> rTree = RTreeTest.createRect2DTree(RTree.Split.AXIAL);
+        Assert.assertEquals(0, rTree.stream().count());
+        Assert.assertEquals(0, rTree.parallelStream(new Rect2d(0, 0, 10, 10)).count());
+        Assert.assertNull(rTree.spliterator().trySplit());
+        Assert.assertEquals(0, rTree.spliterator().getExactSizeIfKnown());
+    }
+
+    @Test
+    public void instrumentedTest() {
+        final RTree<Rect2d> rTree = RTreeTest.createRect2DTree(2, 8, RTree.Split.AXIAL);
+        final Rect2d[] rects = RTreeTest.generateRandomRects(1000);
+        for(final Rect2d r : rects) {
+            rTree.add(r);
+        }
+        rTree.instrumentTree();
+
+        final Rect2d searchRect = new Rect2d(100, 100, 300, 300);
+        Assert.assertEquals(rTree.count(searchRect), rTree.stream(searchRect).count());
+        Assert.assertEquals(rects.length, rTree.parallelStream().count());
+    }
+
+    private static void split(final Spliterator<Rect2d> spliterator, final List<Spliterator<Rect2d>> parts, final int depth) {
+        final Spliterator<Rect2d> prefix = depth > 0 ? spliterator.trySplit() : null;
+        if(prefix == null) {
+            parts.add(spliterator);
+        } else {
+            split(prefix, parts, depth - 1);
+            split(spliterator, parts, depth - 1);
+        }
+    }
+
+    /**
+     * Compare a search into an array with sequential and parallel streams over the same query
+     */
+    @Ignore
+    // This test ignored because output needs to be manually evaluated.
+    public void streamBenchmarkTest() {
+        final int entryCount = 2_000_000;
+        final Rect2d[] rects = RTreeTest.generateRandomRects(entryCount);
+        final RTree<Rect2d> rTree = (RTree<Rect2d>) SpatialSearches.rTree(new Rect2d.Builder(), Arrays.asList(rects));
+        final Rect2d viewport = new Rect2d(100, 100, 400, 400);
+        final Rect2d[] results = new Rect2d[entryCount];
+
+        for(int j=0; j<3; j++) {
+            long start = System.nanoTime();
+            long n = 0;
+            for(int i=0; i<10; i++) {
+                final int found = rTree.intersects(viewport, results);
+                for(int k=0; k<found; k++) {
+                    if(results[k].getRange(0) > 10) {
+                        n++;
+                    }
+                }
+            }
+            System.out.println("array: " + (System.nanoTime() - start)/10_000 + " us, " + n/10 + " found");
+
+            start = System.nanoTime();
+            n = 0;
+            for(int i=0; i<10; i++) {
+                n += rTree.intersectsStream(viewport).filter(r -> r.getRange(0) > 10).count();
+            }
+            System.out.println("stream: " + (System.nanoTime() - start)/10_000 + " us, " + n/10 + " found");
+
+            start = System.nanoTime();
+            n = 0;
+            for(int i=0; i<10; i++) {
+                n += rTree.parallelIntersectsStream(viewport).filter(r -> r.getRange(0) > 10).count();
+            }
+            System.out.println("parallel stream: " + (System.nanoTime() - start)/10_000 + " us, " + n/10 + " found");
+        }
+    }
+}
@@ -0,0 +1,219 @@
+package com.conversantmedia.util.collection.spatial;
+
+/*
+ * #%L
+ * Conversant RTree
+ * ~~
+ * Conversantmedia.com © 2016, Conversant, Inc. Conversant® is a trademark of Conversant, Inc.
+ * ~~
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import com.conversantmedia.util.collection.geometry.Point2d;
+import com.conversantmedia.util.collection.geometry.Rect2d;
+import org.junit.Assert;
+import org.junit.Ignore;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class OffHeapRTreeTest {
+
+    @Test
+    public void emptyTest() {
+        final SpatialSearch<Rect2d> offHeap = RTreeTest.createRect2DTree(RTree.Split.AXIAL).freezeOffHeap(r -> 0L, id -> null);
+
+        Assert.assertEquals(0, offHeap.getEntryCount());
+        Assert.assertEquals(0, offHeap.search(new Rect2d(0, 0, 10, 10), new Rect2d[1]));
+        Assert.assertFalse(offHeap.nearest(new Point2d(0, 0)).hasNext());
+    }
+
+    /**
+     * Segments of 64 bytes put values at every possible position relative to a segment boundary
+     */
+    @Test
+    public void offHeapMatchesTreeTest() {
+        final int entryCount = 20_000;
+        final Rect2d[] rects = RTreeTest.generateRandomRects(entryCount);
+        final Map<Rect2d, Long> ids = new IdentityHashMap<>();
+        for (int i = 0; i < rects.length; i++) {
+            ids.put(rects[i], (long) i);
+        }
+
+        for (RTree.Split type : RTree.Split.values()) {
+            final RTree<Rect2d> rTree = RTreeTest.createRect2DTree(2, 8, type);
+            for (int i = 0; i < rects.length; i++) {
+                rTree.add(rects[i]);
+            }
+
+            for (int shift : new int[] { 6, SegmentedBuffer.DEFAULT_SEGMENT_SHIFT }) {
+                final SpatialSearch<Rect2d> offHeap = new OffHeapRTree<>(new Rect2d.Builder(), 2, 8, type, rTree.getRoot(), ids::get, id -> rects[(int) id], shift);
+                Assert.assertEquals(entryCount, offHeap.getEntryCount());
+                Assert.assertEquals(rTree.collectStats().getLeafCount(), offHeap.collectStats().getLeafCount());
+
+                final Random rand = new Random(19);
+                for (int i = 0; i < 100; i++) {
+                    final int x = rand.nextInt(500);
+                    final int y = rand.nextInt(500);
+                    final Rect2d searchRect = new Rect2d(x, y, x + rand.nextInt(100), y + rand.nextInt(100));
+
+                    final Rect2d[] expected = new Rect2d[entryCount];
+                    final Rect2d[] actual = new Rect2d[entryCount];
+                    final int searchCount = rTree.search(searchRect, expected);
+                    Assert.assertEquals("[" + type + "] search", searchCount, offHeap.search(searchRect, actual));
+                    Assert.assertEquals("[" + type + "] search order", Arrays.asList(expected), Arrays.asList(actual));
+                    Assert.assertEquals("[" + type + "] count", searchCount, offHeap.count(searchRect));
+                    Assert.assertEquals("[" + type + "] intersects", rTree.intersects(searchRect, expected), offHeap.intersects(searchRect, actual));
+
+                    final Point2d p = new Point2d(x, y);
+                    Assert.assertEquals(NearestNeighbor.distanceSq(p, rTree.nearest(p).next()), NearestNeighbor.distanceSq(p, offHeap.nearest(p).next()), 0.0);
+                }
+
+                for (int i = 0; i < rects.length; i += 7) {
+                    Assert.assertTrue("[" + type + "] missing " + rects[i], offHeap.contains(rects[i]));
+                }
+            }
+        }
+    }
+
+    /**
+     * Packing a collection straight into direct memory must give the tree a bulk load would give
+     */
+    @Test
+    public void loadMatchesBulkLoadTest() {
+        final Rect2d[] rects = RTreeTest.generateRandomRects(20_000);
+        final Map<Rect2d, Long> ids = new IdentityHashMap<>();
+        for (int i = 0; i < rects.length; i++) {
+            ids.put(rects[i], (long) i);
+        }
+
+        for (RTree.Pack pack : RTree.Pack.values()) {
+            final SpatialSearch<Rect2d> empty = SpatialSearches.offHeapRTree(new Rect2d.Builder(), 2, 8, RTree.Split.AXIAL, pack, Arrays.asList(), ids::get, id -> null);
+            Assert.assertEquals(0, empty.getEntryCount());
+            Assert.assertEquals(0, empty.search(new Rect2d(0, 0, 10, 10), new Rect2d[1]));
+            Assert.assertFalse(empty.nearest(new Point2d(0, 0)).hasNext());
+
+            for (int n : new int[] { 1, 8, 9, 1000, rects.length }) {
+                final List<Rect2d> entries = Arrays.asList(rects).subList(0, n);
+                final RTree<Rect2d> rTree = (RTree<Rect2d>) SpatialSearches.rTree(new Rect2d.Builder(), 2, 8, RTree.Split.AXIAL, pack, entries);
+                final SpatialSearch<Rect2d> offHeap = SpatialSearches.offHeapRTree(new Rect2d.Builder(), 2, 8, RTree.Split.AXIAL, pack, entries, ids::get, id -> rects[(int) id]);
+                Assert.assertEquals(n, offHeap.getEntryCount());
+                Assert.assertEquals(rTree.collectStats().getLeafCount(), offHeap.collectStats().getLeafCount());
+                Assert.assertEquals(rTree.collectStats().getMaxDepth(), offHeap.collectStats().getMaxDepth());
+
+                final Random rand = new Random(37);
+                for (int i = 0; i < 50; i++) {
+                    final int x = rand.nextInt(500);
+                    final int y = rand.nextInt(500);
+                    final Rect2d searchRect = new Rect2d(x, y, x + rand.nextInt(100), y + rand.nextInt(100));
+
+                    final Rect2d[] expected = new Rect2d[rects.length];
+                    final Rect2d[] actual = new Rect2d[rects.length];
+                    final int searchCount = rTree.search(searchRect, expected);
+                    Assert.assertEquals("[" + pack + "] search", searchCount, offHeap.search(searchRect, actual));
+                    Assert.assertEquals("[" + pack + "] search order", Arrays.asList(expected), Arrays.asList(actual));
+                    Assert.assertEquals("[" + pack + "] intersects", rTree.intersects(searchRect, expected), offHeap.intersects(searchRect, actual));
+                }
+
+                for (int i = 0; i < n; i += 7) {
+                    Assert.assertTrue("[" + pack + "] missing " + rects[i], offHeap.contains(rects[i]));
+                }
+            }
+        }
+    }
+
+    /**
+     * Entries are only looked up when a query returns them
+     */
+    @Test
+    public void lazyLookupTest() {
+        final Rect2d[] rects = RTreeTest.generateRandomRects(10_000);
+        final RTree<Rect2d> rTree = (RTree<Rect2d>) SpatialSearches.rTree(new Rect2d.Builder(), Arrays.asList(rects));
+        final Map<Rect2d, Long> ids = new IdentityHashMap<>();
+        for (int i = 0; i < rects.length; i++) {
+            ids.put(rects[i], (long) i);
+        }
+
+        final AtomicInteger lookups = new AtomicInteger();
+        final SpatialSearch<Rect2d> offHeap = rTree.freezeOffHeap(ids::get, id -> {
+            lookups.incrementAndGet();
+            return rects[(int) id];
+        });
+        Assert.assertEquals(0, lookups.get());
+
+        final Rect2d searchRect = new Rect2d(100, 100, 120, 120);
+        final int found = offHeap.search(searchRect, new Rect2d[rects.length]);
+        Assert.assertEquals(found, lookups.get());
+        Assert.assertEquals(found, offHeap.count(searchRect));
+        Assert.assertEquals(found, lookups.get());
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void readOnlyTest() {
+        final RTree<Rect2d> rTree = RTreeTest.createRect2DTree(RTree.Split.AXIAL);
+        final Rect2d rect = new Rect2d(0, 0, 1, 1);
+        rTree.add(rect);
+        rTree.freezeOffHeap(r -> 0L, id -> rect).remove(rect);
+    }
+
+    /**
+     * Heap retained by a tree and by its off heap snapshot, and intersect time of each
+     */
+    @Ignore
+    // This test ignored because output needs to be manually evaluated.
+    public void offHeapBenchmarkTest() {
+        final int entryCount = 1_000_000;
+        final Rect2d[] rects = RTreeTest.generateRandomRects(entryCount);
+        final Map<Rect2d, Long> ids = new IdentityHashMap<>();
+        for (int i = 0; i < rects.length; i++) {
+            ids.put(rects[i], (long) i);
+        }
+        final Runtime runtime = Runtime.getRuntime();
+
+        for (int j = 0; j < 3; j++) {
+            System.gc();
+            long used = runtime.totalMemory() - runtime.freeMemory();
+            final RTree<Rect2d> rTree = RTreeTest.createRect2DTree(2, 8, RTree.Split.AXIAL);
+            for (int i = 0; i < entryCount; i++) {
+                rTree.add(rects[i]);
+            }
+            System.gc();
+            System.out.println("tree: " + (runtime.totalMemory() - runtime.freeMemory() - used) / entryCount + " heap bytes per entry");
+
+            System.gc();
+            used = runtime.totalMemory() - runtime.freeMemory();
+            final SpatialSearch<Rect2d> offHeap = rTree.freezeOffHeap(ids::get, id -> rects[(int) id]);
+            System.gc();
+            System.out.println("off heap: " + (runtime.totalMemory() - runtime.freeMemory() - used) + " heap bytes in total");
+
+            for (SpatialSearch<Rect2d> search : Arrays.asList(rTree, rTree.freeze(), offHeap)) {
+                final Random rand = new Random(23);
+                final AtomicInteger hits = new AtomicInteger();
+                final long start = System.nanoTime();
+                for (int i = 0; i < 10_000; i++) {
+                    final int x = rand.nextInt(500);
+                    final int y = rand.nextInt(500);
+                    hits.addAndGet(search.count(new Rect2d(x, y, x + 10, y + 10)));
+                    search.intersects(new Rect2d(x, y, x + 1, y + 1), r -> hits.incrementAndGet());
+                }
+                System.out.println(search.getClass().getSimpleName() + ": " + (System.nanoTime() - start) / 10_000 + " ns per count and point query, " + hits.get() + " hits");
+            }
+        }
+    }
+}
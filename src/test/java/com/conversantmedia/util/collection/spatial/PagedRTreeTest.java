@@ -0,0 +1,334 @@
+package com.conversantmedia.util.collection.spatial;
+
+/*
+ * #%L
+ * Conversant RTree
+ * ~~
+ * Conversantmedia.com © 2016, Conversant, Inc. Conversant® is a trademark of Conversant, Inc.
+ * ~~
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import com.conversantmedia.util.collection.geometry.Point2d;
+import com.conversantmedia.util.collection.geometry.Rect2d;
+import com.conversantmedia.util.collection.geometry.Rect3d;
+import org.junit.Assert;
+import org.junit.Ignore;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class PagedRTreeTest {
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private Rect2d[] rects;
+
+    private Map<Rect2d, Long> ids;
+
+    private PagedRTree<Rect2d> open(final Path file, final int pageSize, final int poolPages) throws IOException {
+        return SpatialSearches.pagedRTree(new Rect2d.Builder(), file, pageSize, poolPages, ids::get, id -> rects[(int) id]);
+    }
+
+    // distinct rects, the tree removes every entry equal to the one removed but the paged tree matches ids
+    private void generate(final int entryCount) {
+        rects = new HashSet<>(Arrays.asList(RTreeTest.generateRandomRects(entryCount))).toArray(new Rect2d[0]);
+        ids = new IdentityHashMap<>();
+        for (int i = 0; i < rects.length; i++) {
+            ids.put(rects[i], (long) i);
+        }
+    }
+
+    @Test
+    public void emptyTest() throws IOException {
+        generate(1);
+        try (final PagedRTree<Rect2d> paged = open(folder.newFile().toPath(), 512, 4)) {
+            Assert.assertEquals(0, paged.getEntryCount());
+            Assert.assertEquals(0, paged.search(new Rect2d(0, 0, 10, 10), new Rect2d[1]));
+            Assert.assertFalse(paged.nearest(new Point2d(0, 0)).hasNext());
+            Assert.assertFalse(paged.contains(rects[0]));
+            paged.remove(rects[0]);
+        }
+    }
+
+    /**
+     * A pool much smaller than the tree evicts and reads pages back all the time
+     */
+    @Test
+    public void pagedMatchesTreeTest() throws IOException {
+        generate(20_000);
+        final RTree<Rect2d> rTree = RTreeTest.createRect2DTree(2, 8, RTree.Split.AXIAL);
+        try (final PagedRTree<Rect2d> paged = open(folder.newFile().toPath(), 512, 16)) {
+            for (int i = 0; i < rects.length; i++) {
+                rTree.add(rects[i]);
+                paged.add(rects[i]);
+            }
+            Assert.assertEquals(rects.length, paged.getEntryCount());
+            Assert.assertEquals(rects.length, paged.collectStats().getEntryCount());
+            Assert.assertTrue(paged.getEvictionCount() > 0);
+            assertMatches(rTree, paged);
+
+            for (int i = 0; i < rects.length; i += 3) {
+                rTree.remove(rects[i]);
+                paged.remove(rects[i]);
+            }
+            Assert.assertEquals(rTree.getEntryCount(), paged.getEntryCount());
+            Assert.assertEquals(rTree.getEntryCount(), paged.collectStats().getEntryCount());
+            assertMatches(rTree, paged);
+
+            for (int i = 0; i < rects.length; i++) {
+                Assert.assertEquals("contains " + i, i % 3 != 0, paged.contains(rects[i]));
+                Assert.assertEquals("contains " + i, rTree.contains(rects[i]), paged.contains(rects[i]));
+            }
+        }
+    }
+
+    /**
+     * Every change written before close is there when the file is opened again
+     */
+    @Test
+    public void reopenTest() throws IOException {
+        generate(5000);
+        final Path file = folder.newFile().toPath();
+        final RTree<Rect2d> rTree = RTreeTest.createRect2DTree(2, 8, RTree.Split.AXIAL);
+        try (final PagedRTree<Rect2d> paged = open(file, 1024, 8)) {
+            for (int i = 0; i < rects.length; i++) {
+                rTree.add(rects[i]);
+                paged.add(rects[i]);
+            }
+        }
+        Assert.assertEquals(0, Files.size(file) % 1024);
+
+        // an existing file keeps its own page size
+        try (final PagedRTree<Rect2d> paged = open(file, 4096, 8)) {
+            Assert.assertEquals(rects.length, paged.getEntryCount());
+            assertMatches(rTree, paged);
+
+            for (int i = 0; i < rects.length; i += 2) {
+                rTree.remove(rects[i]);
+                paged.remove(rects[i]);
+            }
+            paged.flush();
+            Assert.assertEquals(Files.size(file), paged.getPageCount()*1024);
+        }
+
+        try (final PagedRTree<Rect2d> paged = open(file, 1024, 64)) {
+            Assert.assertEquals(rTree.getEntryCount(), paged.getEntryCount());
+            assertMatches(rTree, paged);
+        }
+    }
+
+    @Test
+    public void counterTest() throws IOException {
+        generate(10_000);
+        try (final PagedRTree<Rect2d> paged = open(folder.newFile().toPath(), 512, 10_000)) {
+            for (int i = 0; i < rects.length; i++) {
+                paged.add(rects[i]);
+            }
+            // the pool holds the whole file, so nothing is read back
+            Assert.assertEquals(0, paged.getEvictionCount());
+            final long misses = paged.getMissCount();
+            final long hits = paged.getHitCount();
+            paged.count(new Rect2d(0, 0, 1000, 1000));
+            Assert.assertEquals(misses, paged.getMissCount());
+            Assert.assertEquals(hits + paged.getPageCount() - 1, paged.getHitCount());
+        }
+    }
+
+    @Test
+    public void updateTest() throws IOException {
+        generate(1000);
+        try (final PagedRTree<Rect2d> paged = open(folder.newFile().toPath(), 512, 16)) {
+            for (int i = 0; i < 100; i++) {
+                paged.add(rects[i]);
+            }
+
+            paged.update(rects[0], rects[200]);
+            Assert.assertFalse(paged.contains(rects[0]));
+            Assert.assertTrue(paged.contains(rects[200]));
+            Assert.assertEquals(100, paged.getEntryCount());
+
+            // an entry that is not in the tree is not updated
+            paged.update(rects[300], rects[400]);
+            Assert.assertFalse(paged.contains(rects[400]));
+            Assert.assertEquals(100, paged.getEntryCount());
+            Assert.assertEquals(100, paged.collectStats().getEntryCount());
+        }
+    }
+
+    @Test
+    public void freePageReuseTest() throws IOException {
+        generate(5000);
+        try (final PagedRTree<Rect2d> paged = open(folder.newFile().toPath(), 512, 32)) {
+            for (int i = 0; i < rects.length; i++) {
+                paged.add(rects[i]);
+            }
+            final long pageCount = paged.getPageCount();
+            for (int i = 0; i < rects.length; i++) {
+                paged.remove(rects[i]);
+            }
+            Assert.assertEquals(0, paged.getEntryCount());
+            Assert.assertFalse(paged.nearest(new Point2d(0, 0)).hasNext());
+
+            for (int i = 0; i < rects.length; i++) {
+                paged.add(rects[i]);
+            }
+            Assert.assertEquals(pageCount, paged.getPageCount());
+            Assert.assertEquals(rects.length, paged.count(new Rect2d(-1, -1, 2000, 2000)));
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void notPagedFileTest() throws IOException {
+        generate(1);
+        final Path file = folder.newFile().toPath();
+        Files.write(file, new byte[4096]);
+        open(file, 4096, 4);
+    }
+
+    @Test
+    public void corruptPageSizeTest() throws IOException {
+        generate(100);
+        final Path file = folder.newFile().toPath();
+        try (final PagedRTree<Rect2d> paged = open(file, 512, 4)) {
+            for (final Rect2d r : rects) {
+                paged.add(r);
+            }
+        }
+        final byte[] data = Files.readAllBytes(file);
+
+        for (final int pageSize : new int[] { 0, -512, 16 }) {
+            final byte[] corrupt = data.clone();
+            ByteBuffer.wrap(corrupt).order(BufferPool.BYTE_ORDER).putInt(8, pageSize);
+            Files.write(file, corrupt);
+            try {
+                open(file, 512, 4).close();
+                Assert.fail("page size " + pageSize + " must be rejected");
+            } catch (IOException e) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void dimensionMismatchTest() throws IOException {
+        final List<HyperRect> entries = new ArrayList<>();
+        final RectBuilder<HyperRect> builder = new RectBuilder<HyperRect>() {
+            @Override
+            public HyperRect getBBox(final HyperRect r) {
+                return r;
+            }
+
+            @Override
+            public HyperRect getMbr(final HyperPoint p1, final HyperPoint p2) {
+                throw new UnsupportedOperationException();
+            }
+        };
+
+        try (final PagedRTree<HyperRect> paged = SpatialSearches.pagedRTree(builder, folder.newFile().toPath(), 512, 4,
+                r -> entries.indexOf(r), id -> entries.get((int) id))) {
+            entries.add(new Rect2d(1, 1, 2, 2));
+            entries.add(new Rect3d(1, 1, 1, 2, 2, 2));
+            paged.add(entries.get(0));
+            try {
+                paged.add(entries.get(1));
+                Assert.fail("a 3 dimensional entry must be rejected by a 2 dimensional tree");
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+            Assert.assertEquals(1, paged.getEntryCount());
+        }
+    }
+
+    private void assertMatches(final RTree<Rect2d> rTree, final PagedRTree<Rect2d> paged) {
+        final Random rand = new Random(37);
+        for (int i = 0; i < 100; i++) {
+            final int x = rand.nextInt(500);
+            final int y = rand.nextInt(500);
+            final Rect2d searchRect = new Rect2d(x, y, x + rand.nextInt(100), y + rand.nextInt(100));
+
+            final List<Rect2d> expected = new ArrayList<>();
+            final List<Rect2d> actual = new ArrayList<>();
+            rTree.search(searchRect, expected);
+            paged.search(searchRect, actual);
+            Assert.assertEquals("search", expected.size(), actual.size());
+            Assert.assertEquals("search", new HashSet<>(expected), new HashSet<>(actual));
+            Assert.assertEquals("count", expected.size(), paged.count(searchRect));
+
+            final Rect2d[] found = new Rect2d[rects.length];
+            Assert.assertEquals("intersects", rTree.intersects(searchRect, found), paged.intersects(searchRect, found));
+
+            final Point2d p = new Point2d(x, y);
+            final Rect2d[] expectedNearest = new Rect2d[10];
+            final Rect2d[] actualNearest = new Rect2d[10];
+            Assert.assertEquals(10, rTree.nearest(p, 10, expectedNearest));
+            Assert.assertEquals(10, paged.nearest(p, 10, actualNearest));
+            for (int j = 0; j < 10; j++) {
+                Assert.assertEquals("neighbor " + j, NearestNeighbor.distanceSq(p, expectedNearest[j]), NearestNeighbor.distanceSq(p, actualNearest[j]), 0.0);
+            }
+        }
+
+        final AtomicInteger n = new AtomicInteger();
+        paged.forEach(r -> n.incrementAndGet());
+        Assert.assertEquals(rTree.getEntryCount(), n.get());
+    }
+
+    /**
+     * Hit rate and query time for pools holding a growing share of the pages of a large tree
+     */
+    @Ignore
+    // This test ignored because output needs to be manually evaluated.
+    public void poolSizeBenchmarkTest() throws IOException {
+        generate(1_000_000);
+        final Path file = folder.newFile().toPath();
+        try (final PagedRTree<Rect2d> paged = open(file, 4096, 1024)) {
+            final long start = System.nanoTime();
+            for (int i = 0; i < rects.length; i++) {
+                paged.add(rects[i]);
+            }
+            System.out.println("add: " + (System.nanoTime() - start) / rects.length + " ns per entry, " + paged.getPageCount() + " pages");
+        }
+
+        for (int poolPages : new int[] { 16, 256, 4096, 65536 }) {
+            try (final PagedRTree<Rect2d> paged = open(file, 4096, poolPages)) {
+                final Random rand = new Random(23);
+                final AtomicInteger hits = new AtomicInteger();
+                final long start = System.nanoTime();
+                for (int i = 0; i < 10_000; i++) {
+                    final int x = rand.nextInt(500);
+                    final int y = rand.nextInt(500);
+                    hits.addAndGet(paged.count(new Rect2d(x, y, x + 10, y + 10)));
+                    paged.intersects(new Rect2d(x, y, x + 1, y + 1), r -> hits.incrementAndGet());
+                }
+                final long requests = paged.getHitCount() + paged.getMissCount();
+                System.out.println(poolPages + " pages: " + (System.nanoTime() - start) / 10_000 + " ns per count and point query, " +
+                        100*paged.getHitCount()/requests + "% hits, " + paged.getEvictionCount() + " evictions, " + hits.get() + " hits");
+            }
+        }
+    }
+}
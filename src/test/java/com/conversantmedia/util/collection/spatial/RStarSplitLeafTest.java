@@ -0,0 +1,257 @@
+package com.conversantmedia.util.collection.spatial;
+
+/*
+ * #%L
+ * Conversant RTree
+ * ~~
+ * Conversantmedia.com © 2016, Conversant, Inc. Conversant® is a trademark of Conversant, Inc.
+ * ~~
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import com.conversantmedia.util.collection.geometry.Rect2d;
+import org.junit.Assert;
+import org.junit.Ignore;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Random;
+
+public class RStarSplitLeafTest {
+
+    private static final RTree.Split TYPE = RTree.Split.RSTAR;
+
+    /**
+     * Reinsertion from the root at every level must keep the tree balanced, with branch counts and
+     * child bounds that match their subtrees
+     */
+    @Test
+    public void reinsertionStructureTest() {
+        final Rect2d[] rects = RTreeTest.generateRandomRects(20_000);
+        final RTree<Rect2d> rTree = RTreeTest.createRect2DTree(2, 8, TYPE);
+        for(final Rect2d r : rects) {
+            rTree.add(r);
+        }
+
+        Assert.assertEquals(rects.length, rTree.getEntryCount());
+        final int depth = checkNode(rTree.getRoot());
+        Assert.assertTrue("depth " + depth, depth >= 4);
+        for(int i=0; i<rects.length; i+=17) {
+            Assert.assertTrue(rTree.contains(rects[i]));
+        }
+    }
+
+    // returns the depth of the leaves below node, which must be the same for all of them
+    private static int checkNode(final Node<Rect2d> node) {
+        if(node.isLeaf()) {
+            return 0;
+        }
+        final Branch<Rect2d> branch = (Branch<Rect2d>) node;
+        final Node<Rect2d>[] child = branch.getChildren();
+        final double[] bounds = new double[4];
+        int depth = -1;
+        int count = 0;
+        for(int i=0; i<branch.size(); i++) {
+            final int d = checkNode(child[i]);
+            Assert.assertTrue("unbalanced", depth < 0 || d == depth);
+            depth = d;
+            count += child[i].totalSize();
+
+            branch.getChildBound(i, bounds);
+            final HyperRect b = child[i].getBound();
+            Assert.assertTrue(bounds[0] <= b.getMinCoord(0) && bounds[1] <= b.getMinCoord(1));
+            Assert.assertTrue(bounds[2] >= b.getMaxCoord(0) && bounds[3] >= b.getMaxCoord(1));
+        }
+        Assert.assertEquals(count, branch.totalSize());
+        return depth + 1;
+    }
+
+    /**
+     * Adds enough entries to force a single split and confirms that
+     * no entries are lost.
+     */
+    @Test
+    public void basicSplitTest() {
+
+        RTree<Rect2d> rTree = RTreeTest.createRect2DTree(TYPE);
+        rTree.add(new Rect2d(0, 0, 1, 1));
+        rTree.add(new Rect2d(1, 1, 2, 2));
+        rTree.add(new Rect2d(2, 2, 3, 3));
+        rTree.add(new Rect2d(3, 3, 4, 4));
+        rTree.add(new Rect2d(4, 4, 5, 5));
+        rTree.add(new Rect2d(5, 5, 6, 6));
+        rTree.add(new Rect2d(6, 6, 7, 7));
+        rTree.add(new Rect2d(7, 7, 8, 8));
+        // 9 entries guarantees a split
+        rTree.add(new Rect2d(8, 8, 9, 9));
+
+        Stats stats = rTree.collectStats();
+        Assert.assertTrue("Unexpected max depth after basic split", stats.getMaxDepth() == 1);
+        Assert.assertTrue("Unexpected number of branches after basic split", stats.getBranchCount() == 1);
+        Assert.assertTrue("Unexpected number of leaves after basic split", stats.getLeafCount() == 2);
+        Assert.assertTrue("Unexpected number of entries per leaf after basic split", stats.getEntriesPerLeaf() == 4.5);
+    }
+
+    /**
+     * The split should pick the distribution with the least overlap
+     */
+    @Test
+    public void splitCorrectnessTest() {
+
+        RTree<Rect2d> rTree = RTreeTest.createRect2DTree(2, 4, TYPE);
+        rTree.add(new Rect2d(0, 0, 3, 3));
+        rTree.add(new Rect2d(1, 1, 2, 2));
+        rTree.add(new Rect2d(2, 2, 4, 4));
+        rTree.add(new Rect2d(4, 0, 5, 1));
+        // 5 entrees guarantees a split
+        rTree.add(new Rect2d(0, 2, 1, 4));
+
+        Branch root = (Branch) rTree.getRoot();
+        Node<Rect2d>[] children = root.getChildren();
+        int childCount = 0;
+        for(Node c : children) {
+            if (c != null) {
+                childCount++;
+            }
+        }
+        Assert.assertEquals("Expected different number of children after split", 2, childCount);
+
+        Node<Rect2d> child1 = children[0];
+        Rect2d child1Mbr = (Rect2d) child1.getBound();
+        Rect2d expectedChild1Mbr = new Rect2d(0, 0, 3, 4);
+        Assert.assertEquals("Child 1 size incorrect after split", 3, child1.size());
+        Assert.assertEquals("Child 1 mbr incorrect after split", expectedChild1Mbr, child1Mbr);
+
+        Node<Rect2d> child2 = children[1];
+        Rect2d child2Mbr = (Rect2d) child2.getBound();
+        Rect2d expectedChild2Mbr = new Rect2d(2, 0, 5, 4);
+        Assert.assertEquals("Child 2 size incorrect after split", 2, child2.size());
+        Assert.assertEquals("Child 2 mbr incorrect after split", expectedChild2Mbr, child2Mbr);
+    }
+
+    /**
+     * The entries farthest from the center of the overflowing leaf are given up for reinsertion
+     */
+    @Test
+    public void evictTest() {
+        final RStarSplitLeaf<Rect2d> leaf = new RStarSplitLeaf<>(new Rect2d.Builder(), 2, 8);
+        for(int i=0; i<8; i++) {
+            leaf.add(new Rect2d(i, i, i+1, i+1));
+        }
+
+        final Rect2d far = new Rect2d(3, -20, 4, -19);
+        final List<Rect2d> evicted = leaf.evict(far);
+
+        Assert.assertEquals(2, evicted.size());
+        Assert.assertEquals(far, evicted.get(0));
+        Assert.assertEquals(new Rect2d(7, 7, 8, 8), evicted.get(1));
+        Assert.assertEquals(7, leaf.size());
+        Assert.assertEquals(new Rect2d(0, 0, 7, 7), leaf.getBound());
+    }
+
+    @Test
+    public void overlapTest() {
+        Assert.assertEquals(4.0, RStarSplitLeaf.overlap(new Rect2d(0, 0, 3, 4), new Rect2d(2, 0, 5, 4)), 0.0);
+        Assert.assertEquals(0.0, RStarSplitLeaf.overlap(new Rect2d(0, 0, 1, 1), new Rect2d(1, 1, 2, 2)), 0.0);
+        Assert.assertEquals(0.0, RStarSplitLeaf.overlap(new Rect2d(0, 0, 1, 1), new Rect2d(5, 0, 6, 1)), 0.0);
+    }
+
+    /**
+     * Adds several overlapping rectangles and confirms that no entries
+     * are lost during insert/split.
+     */
+    @Test
+    public void overlappingEntryTest() {
+
+        final RTree<Rect2d> rTree = RTreeTest.createRect2DTree(TYPE);
+        rTree.add(new Rect2d(0, 0, 1, 1));
+        rTree.add(new Rect2d(0, 0, 2, 2));
+        rTree.add(new Rect2d(0, 0, 2, 2));
+        rTree.add(new Rect2d(0, 0, 3, 3));
+        rTree.add(new Rect2d(0, 0, 3, 3));
+
+        rTree.add(new Rect2d(0, 0, 4, 4));
+        rTree.add(new Rect2d(0, 0, 5, 5));
+        rTree.add(new Rect2d(0, 0, 6, 6));
+        rTree.add(new Rect2d(0, 0, 7, 7));
+        rTree.add(new Rect2d(0, 0, 7, 7));
+
+        rTree.add(new Rect2d(0, 0, 8, 8));
+        rTree.add(new Rect2d(0, 0, 9, 9));
+        rTree.add(new Rect2d(0, 1, 2, 2));
+        rTree.add(new Rect2d(0, 1, 3, 3));
+        rTree.add(new Rect2d(0, 1, 4, 4));
+
+        rTree.add(new Rect2d(0, 1, 4, 4));
+        rTree.add(new Rect2d(0, 1, 5, 5));
+
+        // 17 entries guarantees *at least* 2 splits when max leaf size is 8
+        final int expectedEntryCount = 17;
+
+        final Stats stats = rTree.collectStats();
+        Assert.assertEquals("Unexpected number of entries in " + TYPE + " split tree: " + stats.getEntryCount() + " entries - expected: " + expectedEntryCount + " actual: " + stats.getEntryCount(), expectedEntryCount, stats.getEntryCount());
+    }
+
+    /**
+     * Adds many random entries and confirms that no entries are lost during
+     * insertion, reinsertion and split.
+     */
+    @Test
+    public void randomEntryTest() {
+
+        final int entryCount = 50000;
+        final Rect2d[] rects = RTreeTest.generateRandomRects(entryCount);
+
+        final RTree<Rect2d> rTree = RTreeTest.createRect2DTree(TYPE);
+        for (int i = 0; i < rects.length; i++) {
+            rTree.add(rects[i]);
+        }
+
+        final Stats stats = rTree.collectStats();
+        Assert.assertEquals("Unexpected number of entries in " + TYPE + " split tree: " + stats.getEntryCount() + " entries - expected: " + entryCount + " actual: " + stats.getEntryCount(), entryCount, stats.getEntryCount());
+
+        for (int i = 0; i < rects.length; i += 7) {
+            Assert.assertTrue("missing " + rects[i], rTree.contains(rects[i]));
+        }
+    }
+
+    /**
+     * Compare nodes visited and bounding boxes evaluated by each split type
+     * over a set of small queries.
+     */
+    @Ignore
+    // This test ignored because output needs to be manually evaluated.
+    public void splitSearchStatsTest() {
+        final int entryCount = 50_000;
+        final Rect2d[] rects = RTreeTest.generateRandomRects(entryCount);
+        final Rect2d[] results = new Rect2d[entryCount];
+
+        for (RTree.Split type : RTree.Split.values()) {
+            final RTree<Rect2d> rTree = RTreeTest.createRect2DTree(2, 8, type);
+            for (int i = 0; i < rects.length; i++) {
+                rTree.add(rects[i]);
+            }
+            rTree.instrumentTree();
+
+            final Random rand = new Random(5);
+            int foundCount = 0;
+            for(int i=0; i<1000; i++) {
+                final int x = rand.nextInt(500);
+                final int y = rand.nextInt(500);
+                foundCount += rTree.search(new Rect2d(x, y, x + 20, y + 20), results);
+            }
+            System.out.println("[" + type + "] searched " + CounterNode.searchCount + " nodes, evaluated " + CounterNode.bboxEvalCount + " b-boxes, returning " + foundCount + " entries");
+        }
+    }
+}
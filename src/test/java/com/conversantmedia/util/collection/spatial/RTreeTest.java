@@ -26,6 +26,11 @@ import org.junit.Assert;
 import org.junit.Ignore;
 import org.junit.Test;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.util.Arrays;
 import java.util.Random;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.List;
@@ -205,6 +210,44 @@ public class RTreeTest {
         }
     }
 
+    /**
+     * count must agree with search for every split type and for a bulk loaded tree,
+     * and must not need to visit the subtrees it counts whole.
+     */
+    @Test
+    public void rect2DCountTest() {
+        final int entryCount = 20_000;
+        final Rect2d[] rects = generateRandomRects(entryCount);
+        final Rect2d[] results = new Rect2d[entryCount];
+
+        final List<RTree<Rect2d>> trees = new ArrayList<>();
+        for (RTree.Split type : RTree.Split.values()) {
+            final RTree<Rect2d> rTree = createRect2DTree(2, 8, type);
+            for (int i = 0; i < rects.length; i++) {
+                rTree.add(rects[i]);
+            }
+            trees.add(rTree);
+        }
+        trees.add((RTree<Rect2d>) SpatialSearches.rTree(new Rect2d.Builder(), Arrays.asList(rects)));
+
+        for (RTree<Rect2d> rTree : trees) {
+            final Random rand = new Random(11);
+            for (int i = 0; i < 100; i++) {
+                final int x = rand.nextInt(500);
+                final int y = rand.nextInt(500);
+                final Rect2d searchRect = new Rect2d(x, y, x + rand.nextInt(300), y + rand.nextInt(300));
+                Assert.assertEquals(rTree.search(searchRect, results), rTree.count(searchRect));
+            }
+
+            final Rect2d all = new Rect2d(0, 0, Integer.MAX_VALUE, Integer.MAX_VALUE);
+            rTree.instrumentTree();
+            Assert.assertEquals(entryCount, rTree.count(all));
+            Assert.assertEquals("whole tree counted at the root", 1, CounterNode.searchCount);
+        }
+
+        Assert.assertEquals(0, createRect2DTree(RTree.Split.AXIAL).count(new Rect2d(0, 0, 1, 1)));
+    }
+
     /**
      * Collect stats making the structure of trees of each split type
      * more visible.
@@ -267,6 +310,101 @@ public class RTreeTest {
         }
     }
 
+    /**
+     * Measure heap retained per entry and intersect throughput for trees of points,
+     * whose bounding rects are built by the RectBuilder, and of rects.
+     */
+    @Ignore
+    // This test ignored because output needs to be manually evaluated.
+    public void leafLayoutBenchmarkTest() {
+        final int entryCount = 1_000_000;
+        final Rect2d[] rects = generateRandomRects(entryCount);
+        final Point2d[] points = new Point2d[entryCount];
+        for (int i = 0; i < entryCount; i++) {
+            points[i] = new Point2d(rects[i].getMin().getCoord(0), rects[i].getMin().getCoord(1));
+        }
+
+        final Runtime runtime = Runtime.getRuntime();
+        for (int j = 0; j < 3; j++) {
+            System.gc();
+            long used = runtime.totalMemory() - runtime.freeMemory();
+            final RTree<Point2d> pTree = new RTree<>(new Point2d.Builder(), 2, 8, RTree.Split.AXIAL);
+            for (int i = 0; i < entryCount; i++) {
+                pTree.add(points[i]);
+            }
+            System.gc();
+            System.out.println("point tree: " + (runtime.totalMemory() - runtime.freeMemory() - used) / entryCount + " bytes per entry");
+
+            System.gc();
+            used = runtime.totalMemory() - runtime.freeMemory();
+            final RTree<Rect2d> rTree = createRect2DTree(2, 8, RTree.Split.AXIAL);
+            for (int i = 0; i < entryCount; i++) {
+                rTree.add(rects[i]);
+            }
+            System.gc();
+            System.out.println("rect tree: " + (runtime.totalMemory() - runtime.freeMemory() - used) / entryCount + " bytes per entry");
+
+            final Random rand = new Random(23);
+            final AtomicInteger hits = new AtomicInteger();
+            final long start = System.nanoTime();
+            for (int i = 0; i < 10_000; i++) {
+                final int x = rand.nextInt(500);
+                final int y = rand.nextInt(500);
+                rTree.intersects(new Rect2d(x, y, x + 10, y + 10), r -> hits.incrementAndGet());
+            }
+            System.out.println("intersects: " + (System.nanoTime() - start) / 10_000 + " ns per query, " + hits.get() + " hits");
+            System.out.println(pTree.getEntryCount() + rTree.getEntryCount());
+        }
+    }
+
+    /**
+     * Bytes allocated by the tree per insert, once warm.  Rect2d entries are their own bounding box
+     * so the builder allocates nothing and what is left is the cost of maintaining the tree, inserts
+     * that do not split a node should not allocate at all.
+     */
+    @Ignore
+    // This test ignored because output needs to be manually evaluated.
+    public void insertAllocationBenchmarkTest() {
+        final int entryCount = 1_000_000;
+        final int warmCount = entryCount/2;
+        final int timedCount = entryCount/4;
+        final Rect2d[] rects = generateRandomRects(entryCount);
+        final com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) java.lang.management.ManagementFactory.getThreadMXBean();
+        final long threadId = Thread.currentThread().getId();
+
+        for (RTree.Split type : RTree.Split.values()) {
+            for (int j = 0; j < 3; j++) {
+                final RTree<Rect2d> rTree = createRect2DTree(2, 8, type);
+                for (int i = 0; i < warmCount; i++) {
+                    rTree.add(rects[i]);
+                }
+
+                long allocated = threadBean.getThreadAllocatedBytes(threadId);
+                final long start = System.nanoTime();
+                for (int i = warmCount; i < warmCount + timedCount; i++) {
+                    rTree.add(rects[i]);
+                }
+                final long elapsed = System.nanoTime() - start;
+                final long bytes = threadBean.getThreadAllocatedBytes(threadId) - allocated;
+
+                // per insert, less what it costs to ask
+                allocated = threadBean.getThreadAllocatedBytes(threadId);
+                final long overhead = threadBean.getThreadAllocatedBytes(threadId) - allocated;
+                int zeroCount = 0;
+                for (int i = warmCount + timedCount; i < entryCount; i++) {
+                    allocated = threadBean.getThreadAllocatedBytes(threadId);
+                    rTree.add(rects[i]);
+                    if (threadBean.getThreadAllocatedBytes(threadId) - allocated <= overhead) {
+                        zeroCount++;
+                    }
+                }
+
+                System.out.println("[" + type + "] " + bytes / timedCount + " bytes per insert, " + elapsed / timedCount + " ns per insert, " +
+                        (100L * zeroCount / (entryCount - warmCount - timedCount)) + "% of inserts allocation free");
+            }
+        }
+    }
+
     @Test
     public void treeContainsTest() {
         final RTree<Rect2d> rTree = createRect2DTree(RTree.Split.QUADRATIC);
@@ -326,6 +464,41 @@ public class RTreeTest {
     }
 
 
+    /**
+     * Branch entry counts are maintained incrementally, they must agree with
+     * the entries actually in the tree through adds, splits, removes and reinsertion.
+     */
+    @Test
+    public void treeEntryCountChurnTest() {
+        final int entryCount = 5000;
+        final Rect2d[] rects = generateRandomRects(entryCount);
+
+        for (RTree.Split type : RTree.Split.values()) {
+            final RTree<Rect2d> rTree = createRect2DTree(2, 8, type);
+            final Random rand = new Random(3);
+            final boolean[] present = new boolean[entryCount];
+            int expected = 0;
+            for (int j = 0; j < 4*entryCount; j++) {
+                final int i = rand.nextInt(entryCount);
+                if (present[i]) {
+                    rTree.remove(rects[i]);
+                    expected--;
+                } else {
+                    rTree.add(rects[i]);
+                    expected++;
+                }
+                present[i] = !present[i];
+
+                if (j % 97 == 0) {
+                    final AtomicInteger visitCount = new AtomicInteger();
+                    rTree.forEach(r -> visitCount.incrementAndGet());
+                    Assert.assertEquals("[" + type + "] entry count", visitCount.get(), rTree.getEntryCount());
+                }
+            }
+            Assert.assertEquals("[" + type + "] entry count", expected, rTree.getEntryCount());
+        }
+    }
+
     @Test
     public void treeRemovalTestDuplicates() {
 
@@ -388,8 +561,7 @@ public class RTreeTest {
         Assert.assertTrue("Tree nulled out and could not add HyperRect back in", rTree.getEntryCount() > 0);
     }
 
-    @Ignore
-    // This test ignored because output needs to be manually evaluated.
+    @Test
     public void treeRemoveAndRebalanceTest() {
         final RTree<Rect2d> rTree = createRect2DTree(RTree.Split.QUADRATIC);
 
@@ -422,6 +594,92 @@ public class RTreeTest {
         }
         Stats stat2 = rTree.collectStats();
         stat2.print(System.out);
+
+        Assert.assertEquals(60, stat2.getEntryCount());
+        Assert.assertFalse(rTree.contains(rect[64]));
+        for(int i = 0; i < 60; i++){
+            Assert.assertTrue("Missing " + rect[i], rTree.contains(rect[i]));
+        }
+        leafDepth(rTree.getRoot(), 8);
+    }
+
+    /**
+     * Removing most of the entries must leave a balanced tree without under filled nodes,
+     * which shrinks in height as it empties.
+     */
+    @Test
+    public void treeRemoveCondenseTest() {
+        final int entryCount = 20_000;
+        final Rect2d[] rects = generateRandomRects(entryCount);
+
+        for (RTree.Split type : new RTree.Split[] {RTree.Split.AXIAL, RTree.Split.RSTAR}) {
+            final RTree<Rect2d> rTree = createRect2DTree(2, 8, type);
+            for (int i = 0; i < rects.length; i++) {
+                rTree.add(rects[i]);
+            }
+
+            final Random rand = new Random(17);
+            final boolean[] removed = new boolean[entryCount];
+            int remaining = entryCount;
+            while(remaining > entryCount/20) {
+                final int i = rand.nextInt(entryCount);
+                if(!removed[i]) {
+                    rTree.remove(rects[i]);
+                    removed[i] = true;
+                    remaining--;
+                }
+            }
+
+            Assert.assertEquals("[" + type + "] entry count", remaining, rTree.getEntryCount());
+            StrBulkLoaderTest.assertBalanced(rTree.getRoot(), 2, 8);
+
+            for (int i = 0; i < rects.length; i++) {
+                if(!removed[i]) {
+                    Assert.assertTrue("[" + type + "] missing " + rects[i], rTree.contains(rects[i]));
+                }
+            }
+
+            // height shrinks as the tree empties
+            for (int i = 0; i < rects.length && remaining > 10; i++) {
+                if(!removed[i]) {
+                    rTree.remove(rects[i]);
+                    removed[i] = true;
+                    remaining--;
+                }
+            }
+            Assert.assertEquals("[" + type + "] entry count", remaining, rTree.getEntryCount());
+            StrBulkLoaderTest.assertBalanced(rTree.getRoot(), 2, 8);
+            Assert.assertTrue("[" + type + "] tree too deep", rTree.collectStats().getMaxDepth() <= 2);
+        }
+    }
+
+    /**
+     * Only the child an entry is removed from is condensed, an under filled sibling that merely
+     * intersects the entry is left alone
+     */
+    @Test
+    public void removeCondensesOnlyChildRemovedFromTest() {
+        final Rect2d.Builder builder = new Rect2d.Builder();
+        final Node<Rect2d> full = Leaf.create(builder, 2, 8, RTree.Split.AXIAL);
+        full.add(new Rect2d(0, 0, 5, 5));
+        full.add(new Rect2d(1, 1, 6, 6));
+        full.add(new Rect2d(2, 2, 7, 7));
+        final Rect2d single = new Rect2d(3, 3, 4, 4);
+        final Node<Rect2d> underFilled = Leaf.create(builder, 2, 8, RTree.Split.AXIAL);
+        underFilled.add(single);
+
+        final Branch<Rect2d> branch = new Branch<>(builder, 2, 8, RTree.Split.AXIAL);
+        branch.addChild(full);
+        branch.addChild(underFilled);
+
+        final Rect2d removed = new Rect2d(1, 1, 6, 6);
+        final List<Rect2d> orphans = new ArrayList<>();
+        final Node<Rect2d> n = branch.remove(removed, Leaf.minCoords(removed), Leaf.maxCoords(removed), orphans);
+
+        Assert.assertTrue("Orphaned " + orphans, orphans.isEmpty());
+        Assert.assertEquals(2, n.size());
+        Assert.assertEquals(3, n.totalSize());
+        Assert.assertTrue(n.contains(Leaf.minCoords(single), Leaf.maxCoords(single), single));
     }
 
     @Test
@@ -466,6 +724,173 @@ public class RTreeTest {
 
     }
 
+    /**
+     * Branches split rather than overflow, so every leaf is at the same depth
+     * and no node holds more than mMax children.
+     */
+    @Test
+    public void branchSplitBalanceTest() {
+        final int entryCount = 20_000;
+        final Rect2d[] rects = generateRandomRects(entryCount);
+
+        for (RTree.Split type : RTree.Split.values()) {
+            for (int maxM : new int[] {4, 8, 12}) {
+                final RTree<Rect2d> rTree = createRect2DTree(2, maxM, type);
+                for (int i = 0; i < rects.length; i++) {
+                    rTree.add(rects[i]);
+                }
+
+                Assert.assertEquals("[" + type + "] entry count", entryCount, rTree.getEntryCount());
+                final int depth = leafDepth(rTree.getRoot(), maxM);
+                final int maxDepth = (int)Math.ceil(Math.log(entryCount)/Math.log(2));
+                Assert.assertTrue("[" + type + "] tree too deep " + depth, depth < maxDepth);
+
+                for (int i = 0; i < rects.length; i += 11) {
+                    Assert.assertTrue("[" + type + "] missing " + rects[i], rTree.contains(rects[i]));
+                }
+            }
+        }
+    }
+
+    /**
+     * Bounds are kept current by adds, removes and updates, each node's bound must be exactly
+     * the bound of its children or entries
+     */
+    @Test
+    public void exactBoundsTest() {
+        final Rect2d[] rects = generateRandomRects(10_000);
+
+        for (RTree.Split type : RTree.Split.values()) {
+            final RTree<Rect2d> rTree = createRect2DTree(2, 8, type);
+            for (final Rect2d r : rects) {
+                rTree.add(r);
+            }
+            assertExactBounds(rTree.getRoot());
+
+            for (int i = 0; i < rects.length; i += 3) {
+                rTree.remove(rects[i]);
+            }
+            assertExactBounds(rTree.getRoot());
+
+            for (int i = 1; i < rects.length; i += 3) {
+                rTree.update(rects[i], new Rect2d(rects[i].getMinCoord(0)/2, rects[i].getMinCoord(1)/2, rects[i].getMaxCoord(0)/2, rects[i].getMaxCoord(1)/2));
+            }
+            assertExactBounds(rTree.getRoot());
+        }
+    }
+
+    /**
+     * Entries that are their own bounding box are not copied into the leaf arrays, the arrays are
+     * built as soon as one entry is not
+     */
+    @Test
+    public void selfBoundedLeafTest() {
+        final Leaf<Rect2d> rectLeaf = (Leaf<Rect2d>) Leaf.create(new Rect2d.Builder(), 2, 8, RTree.Split.AXIAL);
+        final Rect2d[] rects = generateRandomRects(6);
+        for (int i = 0; i < 4; i++) {
+            rectLeaf.add(rects[i]);
+        }
+        Assert.assertNull(rectLeaf.min);
+
+        // a builder that copies every other entry
+        final int[] calls = new int[1];
+        final RectBuilder<Rect2d> copying = new RectBuilder<Rect2d>() {
+            @Override
+            public HyperRect getBBox(final Rect2d r) {
+                return calls[0]++ % 2 == 0 ? r : new Rect2d(r.getMinCoord(0), r.getMinCoord(1), r.getMaxCoord(0), r.getMaxCoord(1));
+            }
+
+            @Override
+            public HyperRect getMbr(final HyperPoint p1, final HyperPoint p2) {
+                return new Rect2d((Point2d) p1, (Point2d) p2);
+            }
+        };
+        final Leaf<Rect2d> mixedLeaf = (Leaf<Rect2d>) Leaf.create(copying, 2, 8, RTree.Split.AXIAL);
+        mixedLeaf.add(rects[0]);
+        Assert.assertNull(mixedLeaf.min);
+        for (int i = 1; i < rects.length; i++) {
+            mixedLeaf.add(rects[i]);
+        }
+        Assert.assertNotNull(mixedLeaf.min);
+
+        for (int i = 0; i < 4; i++) {
+            for (int d = 0; d < 2; d++) {
+                Assert.assertEquals(rects[i].getMinCoord(d), rectLeaf.getMin(d, i), 0.0);
+                Assert.assertEquals(rects[i].getMaxCoord(d), rectLeaf.getMax(d, i), 0.0);
+            }
+        }
+        for (int i = 0; i < rects.length; i++) {
+            for (int d = 0; d < 2; d++) {
+                Assert.assertEquals(rects[i].getMinCoord(d), mixedLeaf.getMin(d, i), 0.0);
+                Assert.assertEquals(rects[i].getMaxCoord(d), mixedLeaf.getMax(d, i), 0.0);
+            }
+        }
+    }
+
+    // bound of node, which must match the bound built from its children or entries
+    private static HyperRect assertExactBounds(final Node<Rect2d> node) {
+        final HyperRect[] bound = new HyperRect[1];
+        if(node.isLeaf()) {
+            node.forEach(r -> bound[0] = bound[0] == null ? r : bound[0].getMbr(r));
+        } else {
+            final Node[] children = ((Branch) node).getChildren();
+            for(int i=0; i<node.size(); i++) {
+                final HyperRect b = assertExactBounds(children[i]);
+                bound[0] = bound[0] == null ? b : bound[0].getMbr(b);
+            }
+        }
+        Assert.assertEquals(bound[0], node.getBound());
+        return bound[0];
+    }
+
+    /**
+     * An instrumented tree wraps its nodes in CounterNodes, removing, freezing and writing it must
+     * see through them
+     */
+    @Test
+    public void instrumentedTreeTest() throws IOException {
+        final Rect2d[] rects = generateRandomRects(1000);
+        final RTree<Rect2d> rTree = createRect2DTree(2, 8, RTree.Split.AXIAL);
+        for (final Rect2d r : rects) {
+            rTree.add(r);
+        }
+        rTree.instrumentTree();
+
+        final Rect2d searchRect = new Rect2d(100, 100, 300, 300);
+        final Rect2d[] expected = new Rect2d[rects.length];
+        final int n = rTree.search(searchRect, expected);
+        Assert.assertEquals(n, rTree.freeze().search(searchRect, new Rect2d[rects.length]));
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        rTree.writeTo(out, RTreeSerializerTest.RECT_CODEC);
+        final SpatialSearch<Rect2d> restored = SpatialSearches.rTree(new Rect2d.Builder(), Channels.newChannel(new ByteArrayInputStream(out.toByteArray())), RTreeSerializerTest.RECT_CODEC);
+        Assert.assertEquals(rects.length, restored.getEntryCount());
+
+        // removing all but a few collapses the root through its single children
+        for (int i = 5; i < rects.length; i++) {
+            rTree.remove(rects[i]);
+        }
+        Assert.assertEquals(5, rTree.getEntryCount());
+        for (int i = 0; i < 5; i++) {
+            Assert.assertTrue(rTree.contains(rects[i]));
+        }
+    }
+
+    // depth of the leaves under node, which must all be the same
+    private static int leafDepth(final Node<?> node, final int maxM) {
+        Assert.assertTrue("Over filled node " + node + " " + node.size(), node.size() <= maxM);
+        if(node.isLeaf()) {
+            return 0;
+        }
+
+        final Node[] children = ((Branch) node).getChildren();
+        final int depth = leafDepth(children[0], maxM);
+        for(int i=1; i<node.size(); i++) {
+            Assert.assertEquals("Unbalanced tree", depth, leafDepth(children[i], maxM));
+        }
+        return depth + 1;
+    }
+
     /**
      * Generate 'count' random rectangles with fixed ranges.
      *
@@ -37,6 +37,15 @@ public class Rect1DTest {
         Assert.assertTrue(RTree.isEqual(.5D, rect.getCentroid().getCoord(0)));
     }
 
+    @Test
+    public void primitiveCoordTest() {
+        Range1d rect = new Range1d(1D, 4D);
+        Assert.assertEquals(1D, rect.getMinCoord(0), 0.0);
+        Assert.assertEquals(4D, rect.getMaxCoord(0), 0.0);
+        Assert.assertEquals(2.5D, rect.getCenter(0), 0.0);
+        Assert.assertEquals(4D, rect.getMax().getDoubleCoord(0), 0.0);
+    }
+
     @Test
     public void mbrTest() {
         Range1d r1 = new Range1d(0, 5);
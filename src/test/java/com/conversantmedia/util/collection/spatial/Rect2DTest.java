@@ -41,6 +41,22 @@ public class Rect2DTest {
         Assert.assertTrue("Bad Y-coord of centroid - expected " + 1.5 + " but was " + y, RTree.isEqual(y, 1.5d));
     }
 
+    @Test
+    public void primitiveCoordTest() {
+
+        Rect2d rect = new Rect2d(1, 0, 4, 3);
+
+        for(int d=0; d<rect.getNDim(); d++) {
+            double min = rect.getMin().getCoord(d);
+            double max = rect.getMax().getCoord(d);
+            double center = rect.getCentroid().getCoord(d);
+            Assert.assertEquals(min, rect.getMinCoord(d), 0.0);
+            Assert.assertEquals(max, rect.getMaxCoord(d), 0.0);
+            Assert.assertEquals(center, rect.getCenter(d), 0.0);
+            Assert.assertEquals(min, rect.getMin().getDoubleCoord(d), 0.0);
+        }
+    }
+
     @Test
     public void mbrTest() {
 
@@ -45,6 +45,22 @@ public class Rect3DTest {
         Assert.assertTrue("Bad Z-coord of centroid - expected " + 1.0 + " but was " + y, RTree.isEqual(z, 1.0d));
     }
 
+    @Test
+    public void primitiveCoordTest() {
+
+        Rect3d rect = new Rect3d(1, 0, -2, 4, 3, 2);
+
+        for(int d=0; d<rect.getNDim(); d++) {
+            double min = rect.getMin().getCoord(d);
+            double max = rect.getMax().getCoord(d);
+            double center = rect.getCentroid().getCoord(d);
+            Assert.assertEquals(min, rect.getMinCoord(d), 0.0);
+            Assert.assertEquals(max, rect.getMaxCoord(d), 0.0);
+            Assert.assertEquals(center, rect.getCenter(d), 0.0);
+            Assert.assertEquals(min, rect.getMin().getDoubleCoord(d), 0.0);
+        }
+    }
+
     @Test
     public void mbrTest() {
 
@@ -0,0 +1,145 @@
+package com.conversantmedia.util.collection.spatial;
+
+/*
+ * #%L
+ * Conversant RTree
+ * ~~
+ * Conversantmedia.com © 2016, Conversant, Inc. Conversant® is a trademark of Conversant, Inc.
+ * ~~
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import com.conversantmedia.util.collection.geometry.Point2d;
+import com.conversantmedia.util.collection.geometry.Rect2d;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.function.Consumer;
+
+public class SpatialSearchTest {
+
+    /**
+     * count and nearest have defaults, an implementation written before they were added still
+     * compiles and counts through search
+     */
+    @Test
+    public void defaultMethodsTest() {
+        final Rect2d[] rects = RTreeTest.generateRandomRects(1000);
+        final RTree<Rect2d> rTree = RTreeTest.createRect2DTree(2, 8, RTree.Split.AXIAL);
+        final SpatialSearch<Rect2d> legacy = new LegacySearch(rTree);
+        for(final Rect2d r : rects) {
+            legacy.add(r);
+        }
+
+        final Rect2d searchRect = new Rect2d(100, 100, 300, 300);
+        Assert.assertEquals(rTree.count(searchRect), legacy.count(searchRect));
+
+        try {
+            legacy.nearest(new Point2d(250, 250), 5, new Rect2d[5]);
+            Assert.fail("nearest needs the bounding rects of the entries");
+        } catch(UnsupportedOperationException e) {
+            // expected
+        }
+
+        final SpatialSearch<Rect2d> withIterator = new LegacySearch(rTree) {
+            @Override
+            public Iterator<Rect2d> nearest(final HyperPoint p) {
+                return rTree.nearest(p);
+            }
+        };
+        final Point2d p = new Point2d(250, 250);
+        final Rect2d[] expected = new Rect2d[10];
+        final Rect2d[] actual = new Rect2d[10];
+        Assert.assertEquals(rTree.nearest(p, 10, expected), withIterator.nearest(p, 10, actual));
+        Assert.assertArrayEquals(expected, actual);
+        final List<Rect2d> found = new ArrayList<>();
+        withIterator.nearest(p, 3, found::add);
+        Assert.assertEquals(Arrays.asList(expected).subList(0, 3), found);
+    }
+
+    // implements only the methods SpatialSearch had before count and nearest
+    private static class LegacySearch implements SpatialSearch<Rect2d> {
+
+        private final RTree<Rect2d> rTree;
+
+        LegacySearch(final RTree<Rect2d> rTree) {
+            this.rTree = rTree;
+        }
+
+        @Override
+        public int intersects(final HyperRect rect, final Rect2d[] t) {
+            return rTree.intersects(rect, t);
+        }
+
+        @Override
+        public void intersects(final HyperRect rect, final Consumer<Rect2d> consumer) {
+            rTree.intersects(rect, consumer);
+        }
+
+        @Override
+        public int search(final HyperRect rect, final Rect2d[] t) {
+            return rTree.search(rect, t);
+        }
+
+        @Override
+        public void search(final HyperRect rect, final Consumer<Rect2d> consumer) {
+            rTree.search(rect, consumer);
+        }
+
+        @Override
+        public void search(final HyperRect rect, final Collection<Rect2d> collection) {
+            rTree.search(rect, collection);
+        }
+
+        @Override
+        public boolean contains(final Rect2d t) {
+            return rTree.contains(t);
+        }
+
+        @Override
+        public void add(final Rect2d t) {
+            rTree.add(t);
+        }
+
+        @Override
+        public void remove(final Rect2d t) {
+            rTree.remove(t);
+        }
+
+        @Override
+        public void update(final Rect2d told, final Rect2d tnew) {
+            rTree.update(told, tnew);
+        }
+
+        @Override
+        public int getEntryCount() {
+            return rTree.getEntryCount();
+        }
+
+        @Override
+        public void forEach(final Consumer<Rect2d> consumer) {
+            rTree.forEach(consumer);
+        }
+
+        @Override
+        public Stats collectStats() {
+            return rTree.collectStats();
+        }
+    }
+}